@@ -25,7 +25,6 @@ import java.lang.reflect.Array;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -58,8 +57,8 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
     /** The Value serializer used for this tree. */
     protected ElementSerializer<V> valueSerializer;
 
-    /** The list of read transactions being executed */
-    protected ConcurrentLinkedQueue<ReadTransaction<K, V>> readTransactions;
+    /** The revisions used by the read transactions being executed */
+    protected ReadRevisionRegistry readRevisions;
 
     /** The size of the buffer used to write data in disk */
     protected int writeBufferSize;
@@ -79,9 +78,6 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
     /** The FQCN of the Value serializer */
     protected String valueSerializerFQCN;
 
-    /** The thread responsible for the cleanup of timed out reads */
-    protected Thread readTransactionsThread;
-
     /** The BTree type : either in-memory, disk backed or persisted */
     protected BTreeTypeEnum btreeType;
 
@@ -98,7 +94,7 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
     protected TransactionManager transactionManager;
 
     /** The size of the stack to use to manage tree searches */
-    private final static int MAX_STACK_DEPTH = 32;
+    /* no qualifier */final static int MAX_STACK_DEPTH = 32;
 
 
     /**
@@ -1043,77 +1039,4 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
             return cursor;
         }
     }
-
-
-    /**
-     * Create a thread that is responsible of cleaning the transactions when
-     * they hit the timeout
-     */
-    /*no qualifier*/void createTransactionManager()
-    {
-        Runnable readTransactionTask = new Runnable()
-        {
-            public void run()
-            {
-                try
-                {
-                    ReadTransaction<K, V> transaction = null;
-
-                    while ( !Thread.currentThread().isInterrupted() )
-                    {
-                        long timeoutDate = System.currentTimeMillis() - readTimeOut;
-                        long t0 = System.currentTimeMillis();
-                        int nbTxns = 0;
-
-                        // Loop on all the transactions from the queue
-                        while ( ( transaction = readTransactions.peek() ) != null )
-                        {
-                            nbTxns++;
-
-                            if ( transaction.isClosed() )
-                            {
-                                // The transaction is already closed, remove it from the queue
-                                readTransactions.poll();
-                                continue;
-                            }
-
-                            // Check if the transaction has timed out
-                            if ( transaction.getCreationDate() < timeoutDate )
-                            {
-                                transaction.close();
-                                readTransactions.poll();
-
-                                synchronized ( btreeRevisions )
-                                {
-                                    btreeRevisions.remove( transaction.getRevision() );
-                                }
-
-                                continue;
-                            }
-
-                            // We need to stop now
-                            break;
-                        }
-
-                        long t1 = System.currentTimeMillis();
-
-                        // Wait until we reach the timeout
-                        Thread.sleep( readTimeOut );
-                    }
-                }
-                catch ( InterruptedException ie )
-                {
-                    //System.out.println( "Interrupted" );
-                }
-                catch ( Exception e )
-                {
-                    throw new RuntimeException( e );
-                }
-            }
-        };
-
-        readTransactionsThread = new Thread( readTransactionTask );
-        readTransactionsThread.setDaemon( true );
-        readTransactionsThread.start();
-    }
 }
@@ -25,6 +25,7 @@ import java.lang.reflect.Array;
 
 import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
+import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
 
 
 /**
@@ -535,6 +536,33 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
     }
 
 
+    /**
+     * Compares the key at a given position with a key, using the serialized keys
+     * when we have them.
+     *
+     * @param pos The position of the key in the page
+     * @param key The key to compare
+     * @param rawKey The serialized key to compare, or null
+     * @return the comparison result
+     */
+    private int compare( int pos, K key, byte[] rawKey )
+    {
+        if ( ( rawKey != null ) && ( keys[pos] instanceof PersistedKeyHolder ) )
+        {
+            try
+            {
+                return ( ( PersistedKeyHolder<K> ) keys[pos] ).compareRaw( rawKey );
+            }
+            catch ( IOException ioe )
+            {
+                // Compare the deserialized keys then
+            }
+        }
+
+        return compare( keys[pos].getKey(), key );
+    }
+
+
     /**
      * Finds the position of the given key in the page. If we have found the key,
      * we will return its position as a negative value.
@@ -582,12 +610,22 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         int min = 0;
         int max = nbElems - 1;
 
+        // If the serialized keys can be compared directly, serialize the searched key
+        // once, instead of deserializing the keys of the page
+        byte[] rawKey = null;
+        ElementSerializer<K> keySerializer = btree.getKeySerializer();
+
+        if ( ( key != null ) && ( keys[0] instanceof PersistedKeyHolder ) && keySerializer.isRawComparable() )
+        {
+            rawKey = keySerializer.serialize( key );
+        }
+
         // binary search
         while ( min < max )
         {
             int middle = ( min + max + 1 ) >> 1;
 
-            int comp = compare( keys[middle].getKey(), key );
+            int comp = compare( middle, key, rawKey );
 
             if ( comp < 0 )
             {
@@ -607,7 +645,7 @@ import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
         }
 
         // Special case : we don't know if the key is present
-        int comp = compare( keys[max].getKey(), key );
+        int comp = compare( max, key, rawKey );
 
         if ( comp == 0 )
         {
@@ -114,7 +114,6 @@ public class BTreeFactory<K, V>
         configuration.setValueSerializer( valueSerializer );
         configuration.setPageSize( BTree.DEFAULT_PAGE_SIZE );
         configuration.setAllowDuplicates( BTree.FORBID_DUPLICATES );
-        configuration.setCacheSize( PersistedBTree.DEFAULT_CACHE_SIZE );
         configuration.setWriteBufferSize( BTree.DEFAULT_WRITE_BUFFER_SIZE );
 
         BTree<K, V> btree = new PersistedBTree<K, V>( configuration );
@@ -143,7 +142,6 @@ public class BTreeFactory<K, V>
         configuration.setValueSerializer( valueSerializer );
         configuration.setPageSize( BTree.DEFAULT_PAGE_SIZE );
         configuration.setAllowDuplicates( allowDuplicates );
-        configuration.setCacheSize( PersistedBTree.DEFAULT_CACHE_SIZE );
         configuration.setWriteBufferSize( BTree.DEFAULT_WRITE_BUFFER_SIZE );
 
         BTree<K, V> btree = new PersistedBTree<K, V>( configuration );
@@ -160,9 +158,12 @@ public class BTreeFactory<K, V>
      * @param keySerializer Key serializer
      * @param valueSerializer Value serializer
      * @param allowDuplicates Tells if the B-tree allows multiple value for a given key
-     * @param cacheSize The size to be used for this B-tree cache
+     * @param cacheSize Ignored
      * @return a new B-tree instance
+     * @deprecated The pages are cached in the page cache shared by all the B-trees of a RecordManager,
+     * which size is set with {@link RecordManager#setPageCacheSize(long)}
      */
+    @Deprecated
     public static <K, V> BTree<K, V> createPersistedBTree( String name, ElementSerializer<K> keySerializer,
         ElementSerializer<V> valueSerializer, boolean allowDuplicates, int cacheSize )
     {
@@ -202,7 +203,6 @@ public class BTreeFactory<K, V>
         configuration.setValueSerializer( valueSerializer );
         configuration.setPageSize( pageSize );
         configuration.setAllowDuplicates( BTree.FORBID_DUPLICATES );
-        configuration.setCacheSize( PersistedBTree.DEFAULT_CACHE_SIZE );
         configuration.setWriteBufferSize( BTree.DEFAULT_WRITE_BUFFER_SIZE );
 
         BTree<K, V> btree = new PersistedBTree<K, V>( configuration );
@@ -232,7 +232,6 @@ public class BTreeFactory<K, V>
         configuration.setValueSerializer( valueSerializer );
         configuration.setPageSize( pageSize );
         configuration.setAllowDuplicates( allowDuplicates );
-        configuration.setCacheSize( PersistedBTree.DEFAULT_CACHE_SIZE );
         configuration.setWriteBufferSize( BTree.DEFAULT_WRITE_BUFFER_SIZE );
 
         BTree<K, V> btree = new PersistedBTree<K, V>( configuration );
@@ -250,9 +249,12 @@ public class BTreeFactory<K, V>
      * @param valueSerializer Value serializer
      * @param pageSize Size of the page
      * @param allowDuplicates Tells if the B-tree allows multiple value for a given key
-     * @param cacheSize The size to be used for this B-tree cache
+     * @param cacheSize Ignored
      * @return a new B-tree instance
+     * @deprecated The pages are cached in the page cache shared by all the B-trees of a RecordManager,
+     * which size is set with {@link RecordManager#setPageCacheSize(long)}
      */
+    @Deprecated
     public static <K, V> BTree<K, V> createPersistedBTree( String name, ElementSerializer<K> keySerializer,
         ElementSerializer<V> valueSerializer, int pageSize, boolean allowDuplicates, int cacheSize )
     {
@@ -855,6 +857,32 @@ public class BTreeFactory<K, V>
     }
 
 
+    /**
+     * Set the key at a give position, the key being serialized in a part of a buffer.
+     * The buffer is not copied.
+     *
+     * @param btree The B-tree to update
+     * @param page The page to update
+     * @param pos The position of this key in the page
+     * @param buffer The byte[] containing the serialized key
+     * @param offset The position of the serialized key in the buffer
+     * @param length The serialized key length
+     */
+    /* no qualifier*/static <K, V> void setKey( BTree<K, V> btree, Page<K, V> page, int pos, byte[] buffer,
+        int offset, int length )
+    {
+        if ( btree instanceof PersistedBTree )
+        {
+            KeyHolder<K> keyHolder = new PersistedKeyHolder<K>( btree.getKeySerializer(), buffer, offset, length );
+            ( ( AbstractPage<K, V> ) page ).setKey( pos, keyHolder );
+        }
+        else
+        {
+            throw new IllegalArgumentException( "The B-tree must be a PersistedBTree" );
+        }
+    }
+
+
     /**
      * Includes the intermediate nodes in the path up to and including the left most leaf of the tree
      *
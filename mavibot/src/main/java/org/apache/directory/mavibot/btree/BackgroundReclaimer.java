@@ -0,0 +1,216 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A thread reclaiming the copied pages in the background, so that the writers don't
+ * have to run the PageReclaimer when they commit.<br/>
+ * The thread wakes up when a read transaction is closed, as the revision it was using
+ * may now be reclaimed, or when the interval has expired, to reclaim the pages copied by
+ * the commits. The pages are reclaimed in slices : each slice is a transaction of its own,
+ * which stops once the time budget is consumed, so that the writers get the transaction
+ * lock regularly.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class BackgroundReclaimer implements Runnable
+{
+    /** The LoggerFactory used by this class */
+    protected static final Logger LOG = LoggerFactory.getLogger( BackgroundReclaimer.class );
+
+    /** The default time budget of a slice, in milliseconds */
+    public static final long DEFAULT_TIME_BUDGET = 10L;
+
+    /** The default interval between two passes when no read transaction is closed, in milliseconds */
+    public static final long DEFAULT_INTERVAL = 1000L;
+
+    /** The record manager */
+    private RecordManager rm;
+
+    /** The revisions released by the closed read transactions */
+    private BlockingQueue<RevisionName> closedTransactionsQueue;
+
+    /** The time budget of a slice, in milliseconds */
+    private long timeBudget;
+
+    /** The interval between two passes, in milliseconds */
+    private long interval;
+
+    /** The thread running the reclaimer */
+    private Thread thread;
+
+    /** Set when the thread has to stop */
+    private volatile boolean stopped;
+
+    /** The number of slices run so far */
+    private AtomicLong nbSlices = new AtomicLong( 0 );
+
+
+    /**
+     * Creates a new BackgroundReclaimer instance
+     *
+     * @param rm The RecordManager
+     * @param closedTransactionsQueue The queue in which the closed read transactions are pushed
+     * @param timeBudget The time budget of a slice, in milliseconds
+     * @param interval The interval between two passes, in milliseconds
+     */
+    /* no qualifier */BackgroundReclaimer( RecordManager rm, BlockingQueue<RevisionName> closedTransactionsQueue,
+        long timeBudget, long interval )
+    {
+        this.rm = rm;
+        this.closedTransactionsQueue = closedTransactionsQueue;
+        this.timeBudget = timeBudget;
+        this.interval = interval;
+    }
+
+
+    /**
+     * Start the reclaimer thread
+     */
+    /* no qualifier */void start()
+    {
+        stopped = false;
+        thread = new Thread( this, "Mavibot-PageReclaimer" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+
+    /**
+     * Stop the reclaimer thread, and wait for the current slice to be done. The thread
+     * is not interrupted, as it would close the file channel if it's doing some I/O.
+     */
+    /* no qualifier */void stop()
+    {
+        stopped = true;
+
+        // Wake up the thread
+        closedTransactionsQueue.offer( new RevisionName( RecordManager.NO_PAGE, "" ) );
+
+        try
+        {
+            thread.join();
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run()
+    {
+        while ( !stopped )
+        {
+            try
+            {
+                // Wait for a read transaction to be closed, or for the interval to expire
+                closedTransactionsQueue.poll( interval, TimeUnit.MILLISECONDS );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            // The pass will process all the revisions released so far
+            closedTransactionsQueue.clear();
+
+            boolean done = false;
+
+            while ( !done && !stopped )
+            {
+                done = reclaimSlice();
+            }
+        }
+    }
+
+
+    /**
+     * Reclaim the pages during the time budget, in a transaction of its own
+     *
+     * @return <code>true</code> if all the reclaimable pages have been reclaimed
+     */
+    private boolean reclaimSlice()
+    {
+        try
+        {
+            // The writers of the user B-trees aren't blocked when the striped locking is enabled
+            rm.beginManagementTransaction();
+
+            try
+            {
+                nbSlices.incrementAndGet();
+
+                return rm.runReclaimer( System.currentTimeMillis() + timeBudget );
+            }
+            finally
+            {
+                rm.commit();
+            }
+        }
+        catch ( Exception e )
+        {
+            // Wait for the next pass
+            LOG.warn( "Errors while reclaiming the pages in the background", e );
+
+            return true;
+        }
+    }
+
+
+    /**
+     * @return The time budget of a slice, in milliseconds
+     */
+    public long getTimeBudget()
+    {
+        return timeBudget;
+    }
+
+
+    /**
+     * @return The interval between two passes, in milliseconds
+     */
+    public long getInterval()
+    {
+        return interval;
+    }
+
+
+    /**
+     * @return The number of slices run so far
+     */
+    public long getNbSlices()
+    {
+        return nbSlices.get();
+    }
+}
@@ -21,11 +21,16 @@
 package org.apache.directory.mavibot.btree;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -35,13 +40,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import org.apache.directory.mavibot.btree.comparator.IntComparator;
 import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
-import org.apache.directory.mavibot.btree.serializer.IntSerializer;
 
 
 /**
@@ -55,6 +61,12 @@ import org.apache.directory.mavibot.btree.serializer.IntSerializer;
  */
 public class BulkLoader<K, V>
 {
+    /** The size of the buffers used to write and read the sorted files */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The number of leaves built by each thread of the pool in one batch */
+    private static final int LEAVES_PER_THREAD = 16;
+
     private BulkLoader()
     {
     };
@@ -89,18 +101,20 @@ public class BulkLoader<K, V>
 
     /**
      * Process the data, and creates files to store them sorted if necessary, or store them
-     * TODO readElements.
+     * in memory if they fit in one single chunk. The chunks are sorted and flushed on disk
+     * by the given pool, while the next chunk is being read.
      *
-     * @param btree
-     * @param iterator
-     * @param sortedFiles
-     * @param tuples
-     * @param chunkSize
-     * @return
-     * @throws IOException
+     * @param btree The BTree we are loading
+     * @param iterator The iterator over the data to load
+     * @param sortedFiles The list of sorted files, filled by this method
+     * @param tuples The list containing the tuples, if they all fit in one chunk
+     * @param chunkSize The number of elements we may store in memory at each iteration
+     * @param pool The pool used to sort the chunks
+     * @return The number of read elements
+     * @throws IOException If a chunk can't be written on disk
      */
     private static <K, V> int readElements( BTree<K, V> btree, Iterator<Tuple<K, V>> iterator, List<File> sortedFiles,
-        List<Tuple<K, V>> tuples, int chunkSize ) throws IOException
+        List<Tuple<K, V>> tuples, int chunkSize, ForkJoinPool pool ) throws IOException
     {
         int nbRead = 0;
         int nbIteration = 0;
@@ -108,17 +122,22 @@ public class BulkLoader<K, V>
         boolean inMemory = true;
         Set<K> keys = new HashSet<K>();
 
+        // The chunk being read. The first one is the list we may return
+        List<Tuple<K, V>> chunk = tuples;
+
+        // The chunks being sorted and flushed on disk, in the order they have been read
+        List<ForkJoinTask<File>> flushes = new ArrayList<ForkJoinTask<File>>();
+
         while ( true )
         {
             nbIteration++;
-            tuples.clear();
             keys.clear();
 
             // Read up to chukSize elements
             while ( iterator.hasNext() && ( nbRead < chunkSize ) )
             {
                 Tuple<K, V> tuple = iterator.next();
-                tuples.add( tuple );
+                chunk.add( tuple );
 
                 if ( !keys.contains( tuple.getKey() ) )
                 {
@@ -134,7 +153,7 @@ public class BulkLoader<K, V>
                     // Flush the sorted data on disk and exit
                     inMemory = false;
 
-                    sortedFiles.add( flushToDisk( nbIteration, tuples, btree ) );
+                    flushes.add( submitFlush( pool, nbIteration, chunk, btree ) );
                 }
 
                 // Update the number of read elements
@@ -151,7 +170,7 @@ public class BulkLoader<K, V>
                     {
                         // Flush the sorted data on disk and exit
                         inMemory = false;
-                        sortedFiles.add( flushToDisk( nbIteration, tuples, btree ) );
+                        flushes.add( submitFlush( pool, nbIteration, chunk, btree ) );
                     }
 
                     // We have read all the data in one round trip, let's get out, no need
@@ -166,10 +185,24 @@ public class BulkLoader<K, V>
                 // We have read chunkSize elements, we have to sort them on disk
                 nbElems += nbRead;
                 nbRead = 0;
-                sortedFiles.add( flushToDisk( nbIteration, tuples, btree ) );
+                flushes.add( submitFlush( pool, nbIteration, chunk, btree ) );
+
+                // Don't keep in memory more chunks than the pool can sort at the same time
+                while ( flushes.size() - sortedFiles.size() > pool.getParallelism() )
+                {
+                    sortedFiles.add( waitForTask( flushes.get( sortedFiles.size() ) ) );
+                }
+
+                chunk = new ArrayList<Tuple<K, V>>( chunkSize );
             }
         }
 
+        // Wait for all the chunks to be on disk
+        while ( sortedFiles.size() < flushes.size() )
+        {
+            sortedFiles.add( waitForTask( flushes.get( sortedFiles.size() ) ) );
+        }
+
         if ( !inMemory )
         {
             tuples.clear();
@@ -179,6 +212,53 @@ public class BulkLoader<K, V>
     }
 
 
+    /**
+     * Ask the pool to sort a chunk of tuples and to flush it on disk
+     */
+    private static <K, V> ForkJoinTask<File> submitFlush( ForkJoinPool pool, final int fileNb,
+        final List<Tuple<K, V>> tuples, final BTree<K, V> btree )
+    {
+        return pool.submit( new Callable<File>()
+        {
+            @Override
+            public File call() throws IOException
+            {
+                return flushToDisk( fileNb, tuples, btree );
+            }
+        } );
+    }
+
+
+    /**
+     * Wait for a task submitted to the pool to be completed
+     *
+     * @return The task result
+     * @throws IOException If the task has thrown an IOException
+     */
+    private static <T> T waitForTask( ForkJoinTask<T> task ) throws IOException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException( "Interrupted while waiting for the bulk load tasks" );
+        }
+        catch ( ExecutionException ee )
+        {
+            if ( ee.getCause() instanceof IOException )
+            {
+                throw ( IOException ) ee.getCause();
+            }
+
+            throw new RuntimeException( ee.getCause() );
+        }
+    }
+
+
     /**
      * Read all the sorted files, and inject them into one single big file containing all the 
      * sorted and merged elements.
@@ -189,7 +269,7 @@ public class BulkLoader<K, V>
     {
         File file = File.createTempFile( "sortedUnique", "data" );
         file.deleteOnExit();
-        FileOutputStream fos = new FileOutputStream( file );
+        DataOutputStream dos = createOutputStream( file );
 
         // Number of read elements
         int nbReads = 0;
@@ -199,34 +279,14 @@ public class BulkLoader<K, V>
         {
             nbReads++;
 
-            // grab a tuple
-            Tuple<K, Set<V>> tuple = dataIterator.next();
-
-            // Serialize the key
-            byte[] bytesKey = btree.getKeySerializer().serialize( tuple.key );
-            fos.write( IntSerializer.serialize( bytesKey.length ) );
-            fos.write( bytesKey );
-
-            // Serialize the number of values
-            int nbValues = tuple.getValue().size();
-            fos.write( IntSerializer.serialize( nbValues ) );
-
-            // Serialize the values
-            for ( V value : tuple.getValue() )
-            {
-                byte[] bytesValue = btree.getValueSerializer().serialize( value );
-
-                // Serialize the value
-                fos.write( IntSerializer.serialize( bytesValue.length ) );
-                fos.write( bytesValue );
-            }
+            // grab a tuple, and write it
+            writeTuple( btree, dataIterator.next(), dos );
         }
 
-        fos.flush();
-        fos.close();
+        dos.close();
 
-        FileInputStream fis = new FileInputStream( file );
-        Iterator<Tuple<K, Set<V>>> uniqueIterator = createUniqueFileIterator( btree, fis );
+        DataInputStream dis = createInputStream( file );
+        Iterator<Tuple<K, Set<V>>> uniqueIterator = createUniqueFileIterator( btree, dis );
         SortedFile sortedFile = new SortedFile( file, nbReads );
 
         Tuple<Iterator<Tuple<K, Set<V>>>, SortedFile> result = new Tuple<Iterator<Tuple<K, Set<V>>>, SortedFile>(
@@ -237,7 +297,8 @@ public class BulkLoader<K, V>
 
 
     /**
-     * Bulk Load data into a persisted BTree
+     * Bulk Load data into a persisted BTree. The chunks are sorted using the common
+     * ForkJoinPool.
      *
      * @param btree The persisted BTree in which we want to load the data
      * @param iterator The iterator over the data to bulkload
@@ -246,6 +307,24 @@ public class BulkLoader<K, V>
      */
     public static <K, V> BTree<K, V> load( BTree<K, V> btree, Iterator<Tuple<K, V>> iterator, int chunkSize )
         throws IOException
+    {
+        return load( btree, iterator, chunkSize, ForkJoinPool.commonPool() );
+    }
+
+
+    /**
+     * Bulk Load data into a persisted BTree. The chunks are sorted and written on disk
+     * by the given pool, while the next chunk is being read. Up to one chunk per
+     * thread of the pool, plus the chunk being read, are kept in memory.
+     *
+     * @param btree The persisted BTree in which we want to load the data
+     * @param iterator The iterator over the data to bulkload
+     * @param chunkSize The number of elements we may store in memory at each iteration
+     * @param pool The pool used to sort the chunks
+     * @throws IOException If there is a problem while processing the data
+     */
+    public static <K, V> BTree<K, V> load( BTree<K, V> btree, Iterator<Tuple<K, V>> iterator, int chunkSize,
+        ForkJoinPool pool ) throws IOException
     {
         if ( btree == null )
         {
@@ -269,7 +348,7 @@ public class BulkLoader<K, V>
 
         // Now, start to read all the tuples to sort them. We may use intermediate files
         // for that purpose if we hit the threshold.
-        int nbElems = readElements( btree, iterator, sortedFiles, tuples, chunkSize );
+        int nbElems = readElements( btree, iterator, sortedFiles, tuples, chunkSize, pool );
 
         // If the tuple list is empty, we have to process the load based on files, not in memory
         if ( nbElems > 0 )
@@ -279,7 +358,7 @@ public class BulkLoader<K, V>
 
         // Now that we have processed all the data, we can start storing them in the btree
         Iterator<Tuple<K, Set<V>>> dataIterator = null;
-        FileInputStream[] streams = null;
+        DataInputStream[] streams = null;
         BTree<K, V> resultBTree = null;
 
         if ( inMemory )
@@ -287,30 +366,30 @@ public class BulkLoader<K, V>
             // Here, we have all the data in memory, no need to merge files
             // We will build a simple iterator over the data
             dataIterator = createTupleIterator( btree, tuples );
-            resultBTree = bulkLoad( btree, dataIterator, nbElems );
+            resultBTree = bulkLoad( btree, dataIterator, nbElems, pool );
         }
         else
         {
             // We first have to build an iterator over the files
             int nbFiles = sortedFiles.size();
-            streams = new FileInputStream[nbFiles];
+            streams = new DataInputStream[nbFiles];
 
             for ( int i = 0; i < nbFiles; i++ )
             {
-                streams[i] = new FileInputStream( sortedFiles.get( i ) );
+                streams[i] = createInputStream( sortedFiles.get( i ) );
             }
 
             dataIterator = createIterator( btree, streams );
 
             // Process the files, and construct one single file with an iterator
             Tuple<Iterator<Tuple<K, Set<V>>>, SortedFile> result = processFiles( btree, dataIterator );
-            resultBTree = bulkLoad( btree, result.key, result.value.nbValues );
+            resultBTree = bulkLoad( btree, result.key, result.value.nbValues, pool );
             result.value.file.delete();
         }
 
         // Ok, we have an iterator over sorted elements, we can now load them in the 
         // target btree.
-        // Now, close the FileInputStream, and delete them if we have some
+        // Now, close the streams, and delete the files if we have some
         if ( !inMemory )
         {
             int nbFiles = sortedFiles.size();
@@ -465,46 +544,80 @@ public class BulkLoader<K, V>
 
 
     /**
-     * Inject a tuple into a leaf
+     * Compute the number of elements of each leaf, from the leaf level layout : the leaves
+     * are full up to the limit, then the remaining elements are stored in one page, or
+     * spread across two pages if they don't fit in a single one.
      */
-    private static <K, V> void injectInLeaf( BTree<K, V> btree, Tuple<K, Set<V>> tuple, LevelInfo<K, V> leafLevel )
+    private static <K, V> int[] computeLeafSizes( BTree<K, V> btree, LevelInfo<K, V> leafLevel )
     {
-        PersistedLeaf<K, V> leaf = ( PersistedLeaf<K, V> ) leafLevel.getCurrentPage();
-
-        KeyHolder<K> keyHolder = new PersistedKeyHolder<K>( btree.getKeySerializer(), tuple.getKey() );
-        leaf.setKey( leafLevel.getCurrentPos(), keyHolder );
+        int pageSize = btree.getPageSize();
+        int nbElems = leafLevel.getNbElems();
+        int limit = Math.max( 0, leafLevel.getNbElemsLimit() );
+        int remaining = nbElems - limit;
+        int nbLeaves = limit / pageSize;
 
-        if ( btree.getType() != BTreeTypeEnum.PERSISTED_SUB )
+        if ( remaining > pageSize )
         {
-            ValueHolder<V> valueHolder = new PersistedValueHolder<V>( btree, ( V[] ) tuple.getValue().toArray() );
-            leaf.setValue( leafLevel.getCurrentPos(), valueHolder );
+            nbLeaves += 2;
+        }
+        else if ( remaining > 0 )
+        {
+            nbLeaves++;
         }
 
-        leafLevel.incCurrentPos();
-    }
-
-
-    private static <K, V> int computeNbElemsLeaf( BTree<K, V> btree, LevelInfo<K, V> levelInfo )
-    {
-        int pageSize = btree.getPageSize();
-        int remaining = levelInfo.getNbElems() - levelInfo.getNbAddedElems();
+        int[] leafSizes = new int[nbLeaves];
+        int pos = 0;
 
-        if ( remaining < pageSize )
+        while ( pos < limit / pageSize )
         {
-            return remaining;
+            leafSizes[pos++] = pageSize;
         }
-        else if ( remaining == pageSize )
+
+        if ( remaining > pageSize )
         {
-            return pageSize;
+            leafSizes[pos++] = remaining - pageSize / 2;
+            leafSizes[pos] = pageSize / 2;
         }
-        else if ( remaining > levelInfo.getNbElems() - levelInfo.getNbElemsLimit() )
+        else if ( remaining > 0 )
         {
-            return pageSize;
+            leafSizes[pos] = remaining;
         }
-        else
+
+        return leafSizes;
+    }
+
+
+    /**
+     * Ask the pool to build a leaf from its keys and values, and to serialize it.
+     */
+    private static <K, V> ForkJoinTask<Tuple<Page<K, V>, List<byte[]>>> submitLeaf( ForkJoinPool pool,
+        final BTree<K, V> btree, final List<K> keys, final ValueHolder<V>[] values )
+    {
+        return pool.submit( new Callable<Tuple<Page<K, V>, List<byte[]>>>()
         {
-            return remaining - pageSize / 2;
-        }
+            @Override
+            public Tuple<Page<K, V>, List<byte[]>> call() throws IOException
+            {
+                int nbElems = keys.size();
+                PersistedLeaf<K, V> leaf = ( PersistedLeaf<K, V> ) BTreeFactory.createLeaf( btree, 0L, nbElems );
+
+                for ( int pos = 0; pos < nbElems; pos++ )
+                {
+                    // Serializing the keys is done here, in parallel
+                    leaf.setKey( pos, new PersistedKeyHolder<K>( btree.getKeySerializer(), keys.get( pos ) ) );
+
+                    if ( values != null )
+                    {
+                        leaf.setValue( pos, values[pos] );
+                    }
+                }
+
+                List<byte[]> serializedLeaf = ( ( PersistedBTree<K, V> ) btree ).getRecordManager()
+                    .serializePageData( btree, 0L, leaf );
+
+                return new Tuple<Page<K, V>, List<byte[]>>( leaf, serializedLeaf );
+            }
+        } );
     }
 
 
@@ -572,19 +685,30 @@ public class BulkLoader<K, V>
 
 
     /**
-     * Inject a page reference into a Node. This method will recurse if needed.
+     * Write a page on disk, and inject its reference into a Node. This method will recurse if needed.
      */
     private static <K, V> void injectInNode( BTree<K, V> btree, Page<K, V> page, List<LevelInfo<K, V>> levels,
         int levelIndex )
         throws IOException
+    {
+        // We first have to write the page on disk
+        PageHolder<K, V> pageHolder = ( ( PersistedBTree<K, V> ) btree ).getRecordManager().writePage( btree, page, 0L );
+
+        injectInNode( btree, page, pageHolder, levels, levelIndex );
+    }
+
+
+    /**
+     * Inject the reference of a page which has already been written on disk into a Node.
+     * This method will recurse if needed.
+     */
+    private static <K, V> void injectInNode( BTree<K, V> btree, Page<K, V> page, PageHolder<K, V> pageHolder,
+        List<LevelInfo<K, V>> levels, int levelIndex ) throws IOException
     {
         int pageSize = btree.getPageSize();
         LevelInfo<K, V> level = levels.get( levelIndex );
         PersistedNode<K, V> node = ( PersistedNode<K, V> ) level.getCurrentPage();
 
-        // We first have to write the page on disk
-        PageHolder<K, V> pageHolder = ( ( PersistedBTree<K, V> ) btree ).getRecordManager().writePage( btree, page, 0L );
-
         // First deal with a node that has less than PageSize elements at this level.
         // It will become the root node.
         if ( level.getNbElems() <= pageSize + 1 )
@@ -845,10 +969,16 @@ public class BulkLoader<K, V>
 
     /**
      * Construct the target BTree from the sorted data. We will use the nb of elements
-     * to determinate the structure of the BTree, as it must be balanced
+     * to determinate the structure of the BTree, as it must be balanced.<br/>
+     * The leaves are read by batches. The leaves of a batch are built and serialized in
+     * parallel by the pool, then written in contiguous pages, and their references are
+     * injected in the nodes.<br/>
+     * All the leaves are written in key order in one extent, reserved at the end of the file
+     * once the size of the first batch is known, so that a full scan reads the file sequentially.
+     * The nodes are allocated out of this extent.
      */
-    private static <K, V> BTree<K, V> bulkLoad( BTree<K, V> btree, Iterator<Tuple<K, Set<V>>> dataIterator, int nbElems )
-        throws IOException
+    private static <K, V> BTree<K, V> bulkLoad( BTree<K, V> btree, Iterator<Tuple<K, Set<V>>> dataIterator,
+        int nbElems, ForkJoinPool pool ) throws IOException
     {
         int pageSize = btree.getPageSize();
 
@@ -863,109 +993,82 @@ public class BulkLoader<K, V>
         // First, compute the needed number of levels.
         List<LevelInfo<K, V>> levels = computeLevels( btree, nbElems );
 
-        // Now, let's fill the levels
-        LevelInfo<K, V> leafLevel = levels.get( 0 );
+        // and the number of elements in each leaf
+        int[] leafSizes = computeLeafSizes( btree, levels.get( 0 ) );
 
-        while ( dataIterator.hasNext() )
-        {
-            // let's fill page up to the point all the complete pages have been filled
-            if ( leafLevel.getNbAddedElems() < leafLevel.getNbElemsLimit() )
-            {
-                // grab a tuple
-                Tuple<K, Set<V>> tuple = dataIterator.next();
+        RecordManager recordManager = ( ( PersistedBTree<K, V> ) btree ).getRecordManager();
+        boolean hasValues = btree.getType() != BTreeTypeEnum.PERSISTED_SUB;
+        int batchSize = pool.getParallelism() * LEAVES_PER_THREAD;
+        PageExtent extent = null;
 
-                injectInLeaf( btree, tuple, leafLevel );
-                leafLevel.incNbAddedElems();
-
-                // The page is completed, update the parent's node and create a new current page
-                if ( leafLevel.getCurrentPos() == pageSize )
-                {
-                    injectInNode( btree, leafLevel.getCurrentPage(), levels, 1 );
-
-                    // The page is full, we have to create a new one
-                    leafLevel.setCurrentPage( BTreeFactory
-                        .createLeaf( btree, 0L, computeNbElemsLeaf( btree, leafLevel ) ) );
-                    leafLevel.setCurrentPos( 0 );
-                }
-            }
-            else
+        try
+        {
+            for ( int firstLeaf = 0; firstLeaf < leafSizes.length; firstLeaf += batchSize )
             {
-                // We have to deal with uncompleted pages now (if we have any)
-                if ( leafLevel.getNbAddedElems() == nbElems )
-                {
-                    // First use case : we have injected all the elements in the btree : get out
-                    break;
-                }
+                int lastLeaf = Math.min( firstLeaf + batchSize, leafSizes.length );
+                List<ForkJoinTask<Tuple<Page<K, V>, List<byte[]>>>> builds =
+                    new ArrayList<ForkJoinTask<Tuple<Page<K, V>, List<byte[]>>>>( lastLeaf - firstLeaf );
 
-                if ( nbElems - leafLevel.getNbElemsLimit() > pageSize )
+                // Read the elements of each leaf. The values are created here, as they may
+                // have to be stored in a sub-btree, which is written by the RecordManager
+                for ( int leafNb = firstLeaf; leafNb < lastLeaf; leafNb++ )
                 {
-                    // Second use case : the number of elements after the limit does not
-                    // fit in a page, that means we have to split it into
-                    // two pages
-
-                    // First page will contain nbElems - leafLevel.nbElemsLimit - PageSize/2 elements
-                    int nbToAdd = nbElems - leafLevel.getNbElemsLimit() - pageSize / 2;
+                    int leafSize = leafSizes[leafNb];
+                    List<K> keys = new ArrayList<K>( leafSize );
+                    ValueHolder<V>[] values = hasValues ? new ValueHolder[leafSize] : null;
 
-                    while ( nbToAdd > 0 )
+                    for ( int pos = 0; pos < leafSize; pos++ )
                     {
                         // grab a tuple
                         Tuple<K, Set<V>> tuple = dataIterator.next();
+                        keys.add( tuple.getKey() );
 
-                        injectInLeaf( btree, tuple, leafLevel );
-                        leafLevel.incNbAddedElems();
-                        nbToAdd--;
+                        if ( hasValues )
+                        {
+                            values[pos] = new PersistedValueHolder<V>( btree, ( V[] ) tuple.getValue().toArray() );
+                        }
                     }
 
-                    // Now inject the page into the node
-                    Page<K, V> currentPage = leafLevel.getCurrentPage();
-                    injectInNode( btree, currentPage, levels, 1 );
-
-                    // Create a new page for the remaining elements
-                    nbToAdd = pageSize / 2;
-                    leafLevel.setCurrentPage( BTreeFactory.createLeaf( btree, 0L, nbToAdd ) );
-                    leafLevel.setCurrentPos( 0 );
-
-                    while ( nbToAdd > 0 )
-                    {
-                        // grab a tuple
-                        Tuple<K, Set<V>> tuple = dataIterator.next();
-
-                        injectInLeaf( btree, tuple, leafLevel );
-                        leafLevel.incNbAddedElems();
-                        nbToAdd--;
-                    }
+                    builds.add( submitLeaf( pool, btree, keys, values ) );
+                }
 
-                    // And update the parent node
-                    Page<K, V> levelCurrentPage = leafLevel.getCurrentPage();
-                    injectInNode( btree, levelCurrentPage, levels, 1 );
+                // Wait for the leaves, and write them
+                List<Page<K, V>> leaves = new ArrayList<Page<K, V>>( builds.size() );
+                List<List<byte[]>> serializedLeaves = new ArrayList<List<byte[]>>( builds.size() );
 
-                    // We are done
-                    break;
-                }
-                else
+                for ( ForkJoinTask<Tuple<Page<K, V>, List<byte[]>>> build : builds )
                 {
-                    // Third use case : we can push all the elements in the last page.
-                    // Let's do it
-                    int nbToAdd = nbElems - leafLevel.getNbElemsLimit();
-
-                    while ( nbToAdd > 0 )
-                    {
-                        // grab a tuple
-                        Tuple<K, Set<V>> tuple = dataIterator.next();
+                    Tuple<Page<K, V>, List<byte[]>> builtLeaf = waitForTask( build );
+                    leaves.add( builtLeaf.getKey() );
+                    serializedLeaves.add( builtLeaf.getValue() );
+                }
 
-                        injectInLeaf( btree, tuple, leafLevel );
-                        leafLevel.incNbAddedElems();
-                        nbToAdd--;
-                    }
+                if ( extent == null )
+                {
+                    // Reserve the pages for all the leaves, based on the size of the first ones
+                    long nbPages = ( long ) recordManager.computeNbPageIos( serializedLeaves ) * leafSizes.length
+                        / leaves.size();
+                    extent = recordManager.reserveExtent( ( int ) ( nbPages + nbPages / 16 + 1 ) );
+                }
 
-                    // Now inject the page into the node
-                    injectInNode( btree, leafLevel.getCurrentPage(), levels, 1 );
+                List<PageHolder<K, V>> pageHolders = recordManager.writeContiguousPages( btree, leaves,
+                    serializedLeaves, extent );
 
-                    // and we are done
-                    break;
+                // Now inject the leaves into their parent node
+                for ( int i = 0; i < leaves.size(); i++ )
+                {
+                    injectInNode( btree, leaves.get( i ), pageHolders.get( i ), levels, 1 );
                 }
             }
         }
+        finally
+        {
+            if ( extent != null )
+            {
+                // Give back the pages we have reserved in excess
+                recordManager.releaseExtent( extent );
+            }
+        }
 
         // Update the btree with the nb of added elements, and write it$
         BTreeHeader<K, V> btreeHeader = ( ( AbstractBTree<K, V> ) btree ).getBtreeHeader();
@@ -988,35 +1091,67 @@ public class BulkLoader<K, V>
 
         File file = File.createTempFile( "sorted", Integer.toString( fileNb ) );
         file.deleteOnExit();
-        FileOutputStream fos = new FileOutputStream( file );
+        DataOutputStream dos = createOutputStream( file );
 
-        // Flush the tuples on disk
-        for ( Tuple<K, Set<V>> tuple : sortedTuples )
+        try
         {
-            // Serialize the key
-            byte[] bytesKey = btree.getKeySerializer().serialize( tuple.key );
-            fos.write( IntSerializer.serialize( bytesKey.length ) );
-            fos.write( bytesKey );
+            // Flush the tuples on disk
+            for ( Tuple<K, Set<V>> tuple : sortedTuples )
+            {
+                writeTuple( btree, tuple, dos );
+            }
+        }
+        finally
+        {
+            dos.close();
+        }
 
-            // Serialize the number of values
-            int nbValues = tuple.getValue().size();
-            fos.write( IntSerializer.serialize( nbValues ) );
+        return file;
+    }
 
-            // Serialize the values
-            for ( V value : tuple.getValue() )
-            {
-                byte[] bytesValue = btree.getValueSerializer().serialize( value );
 
-                // Serialize the value
-                fos.write( IntSerializer.serialize( bytesValue.length ) );
-                fos.write( bytesValue );
-            }
+    /**
+     * Serialize a tuple : the key, the number of values and the values
+     */
+    private static <K, V> void writeTuple( BTree<K, V> btree, Tuple<K, Set<V>> tuple, DataOutputStream dos )
+        throws IOException
+    {
+        // Serialize the key
+        byte[] bytesKey = btree.getKeySerializer().serialize( tuple.key );
+        dos.writeInt( bytesKey.length );
+        dos.write( bytesKey );
+
+        // Serialize the number of values
+        int nbValues = tuple.getValue().size();
+        dos.writeInt( nbValues );
+
+        // Serialize the values
+        for ( V value : tuple.getValue() )
+        {
+            byte[] bytesValue = btree.getValueSerializer().serialize( value );
+
+            // Serialize the value
+            dos.writeInt( bytesValue.length );
+            dos.write( bytesValue );
         }
+    }
 
-        fos.flush();
-        fos.close();
 
-        return file;
+    /**
+     * Open a buffered stream to write a temporary file
+     */
+    private static DataOutputStream createOutputStream( File file ) throws FileNotFoundException
+    {
+        return new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), BUFFER_SIZE ) );
+    }
+
+
+    /**
+     * Open a buffered stream to read a temporary file
+     */
+    private static DataInputStream createInputStream( File file ) throws FileNotFoundException
+    {
+        return new DataInputStream( new BufferedInputStream( new FileInputStream( file ), BUFFER_SIZE ) );
     }
 
 
@@ -1122,11 +1257,11 @@ public class BulkLoader<K, V>
     }
 
 
-    private static <K, V> Tuple<K, Set<V>> fetchTuple( BTree<K, V> btree, FileInputStream fis )
+    private static <K, V> Tuple<K, Set<V>> fetchTuple( BTree<K, V> btree, DataInputStream dis )
     {
         try
         {
-            if ( fis.available() == 0 )
+            if ( dis.available() == 0 )
             {
                 return null;
             }
@@ -1134,32 +1269,21 @@ public class BulkLoader<K, V>
             Tuple<K, Set<V>> tuple = new Tuple<K, Set<V>>();
             tuple.value = new TreeSet<V>();
 
-            byte[] intBytes = new byte[4];
-
-            // Read the key length
-            fis.read( intBytes );
-            int keyLength = IntSerializer.deserialize( intBytes );
-
             // Read the key
-            byte[] keyBytes = new byte[keyLength];
-            fis.read( keyBytes );
+            byte[] keyBytes = new byte[dis.readInt()];
+            dis.readFully( keyBytes );
             K key = btree.getKeySerializer().fromBytes( keyBytes );
             tuple.key = key;
 
             // get the number of values
-            fis.read( intBytes );
-            int nbValues = IntSerializer.deserialize( intBytes );
+            int nbValues = dis.readInt();
 
             // Serialize the values
             for ( int i = 0; i < nbValues; i++ )
             {
-                // Read the value length
-                fis.read( intBytes );
-                int valueLength = IntSerializer.deserialize( intBytes );
-
                 // Read the value
-                byte[] valueBytes = new byte[valueLength];
-                fis.read( valueBytes );
+                byte[] valueBytes = new byte[dis.readInt()];
+                dis.readFully( valueBytes );
                 V value = btree.getValueSerializer().fromBytes( valueBytes );
                 tuple.value.add( value );
             }
@@ -1174,99 +1298,41 @@ public class BulkLoader<K, V>
 
 
     /**
-     * Build an iterator over an array of sorted tuples, from files on the disk
-     * @throws FileNotFoundException 
+     * Build an iterator over an array of sorted tuples, from files on the disk. The
+     * files are merged using a {@link LoserTree}, and the values of the keys present
+     * in more than one file are gathered.
      */
     private static <K, V> Iterator<Tuple<K, Set<V>>> createIterator( final BTree<K, V> btree,
-        final FileInputStream[] streams )
+        final DataInputStream[] streams )
         throws FileNotFoundException
     {
         // The number of files we have to read from
-        final int nbFiles = streams.length;
+        int nbFiles = streams.length;
 
         // We will read only one element at a time from each file
-        final Tuple<K, Set<V>>[] readTuples = new Tuple[nbFiles];
-        final TreeMap<Tuple<K, Integer>, Set<V>> candidates =
-            new TreeMap<Tuple<K, Integer>, Set<V>>(
-                new TupleComparator<K, Integer>( btree.getKeyComparator(), IntComparator.INSTANCE ) );
+        Iterator<Tuple<K, Set<V>>>[] sources = new Iterator[nbFiles];
 
-        // Read the tuple from each files
         for ( int i = 0; i < nbFiles; i++ )
         {
-            while ( true )
-            {
-                readTuples[i] = fetchTuple( btree, streams[i] );
-
-                if ( readTuples[i] != null )
-                {
-                    Tuple<K, Integer> candidate = new Tuple<K, Integer>( readTuples[i].key, i, btree.getKeySerializer()
-                        .getComparator() );
-
-                    if ( !candidates.containsKey( candidate ) )
-                    {
-                        candidates.put( candidate, readTuples[i].getValue() );
-                        break;
-                    }
-                    else
-                    {
-                        // We have to merge the pulled tuple with the existing one, and read one more tuple
-                        Set<V> oldValues = candidates.get( candidate );
-                        oldValues.addAll( readTuples[i].getValue() );
-                    }
-                }
-                else
-                {
-                    break;
-                }
-            }
+            sources[i] = createUniqueFileIterator( btree, streams[i] );
         }
 
+        final Comparator<Tuple<K, Set<V>>> tupleComparator = new TupleComparator<K, Set<V>>(
+            btree.getKeyComparator(), null );
+        final LoserTree<Tuple<K, Set<V>>> loserTree = new LoserTree<Tuple<K, Set<V>>>( sources, tupleComparator );
+
         Iterator<Tuple<K, Set<V>>> tupleIterator = new Iterator<Tuple<K, Set<V>>>()
         {
             @Override
             public Tuple<K, Set<V>> next()
             {
-                // Get the first candidate
-                Tuple<K, Integer> tupleCandidate = candidates.firstKey();
-
-                // Remove it from the set
-                candidates.remove( tupleCandidate );
-
-                // Get the the next tuple from the stream we just got the tuple from
-                Tuple<K, Set<V>> tuple = readTuples[tupleCandidate.value];
+                // Get the smallest tuple of all the files
+                Tuple<K, Set<V>> tuple = loserTree.next();
 
-                // fetch the next tuple from the file we just read teh candidate from 
-                while ( true )
+                // The other files may contain the same key : merge the values
+                while ( !loserTree.isEmpty() && ( tupleComparator.compare( loserTree.peek(), tuple ) == 0 ) )
                 {
-                    // fetch it from the disk and store it into its reader
-                    readTuples[tupleCandidate.value] = fetchTuple( btree, streams[tupleCandidate.value] );
-
-                    if ( readTuples[tupleCandidate.value] == null )
-                    {
-                        // No more tuple for this file
-                        break;
-                    }
-
-                    if ( readTuples[tupleCandidate.value] != null )
-                    {
-                        // And store it into the candidate set
-                        Set<V> oldValues = candidates.get( readTuples[tupleCandidate.value] );
-
-                        if ( oldValues != null )
-                        {
-                            // We already have another element with the same key, merge them
-                            oldValues.addAll( readTuples[tupleCandidate.value].value );
-                        }
-                        else
-                        {
-                            Tuple<K, Integer> newTuple = new Tuple<K, Integer>( readTuples[tupleCandidate.value].key,
-                                tupleCandidate.value );
-                            candidates.put( newTuple, readTuples[tupleCandidate.value].getValue() );
-
-                            // and exit the loop
-                            break;
-                        }
-                    }
+                    tuple.value.addAll( loserTree.next().value );
                 }
 
                 // We can now return the found value
@@ -1278,7 +1344,7 @@ public class BulkLoader<K, V>
             public boolean hasNext()
             {
                 // Check that we have at least one element to read
-                return !candidates.isEmpty();
+                return !loserTree.isEmpty();
             }
 
 
@@ -1298,7 +1364,7 @@ public class BulkLoader<K, V>
      * @throws FileNotFoundException 
      */
     private static <K, V> Iterator<Tuple<K, Set<V>>> createUniqueFileIterator( final BTree<K, V> btree,
-        final FileInputStream stream )
+        final DataInputStream stream )
         throws FileNotFoundException
     {
         Iterator<Tuple<K, Set<V>>> tupleIterator = new Iterator<Tuple<K, Set<V>>>()
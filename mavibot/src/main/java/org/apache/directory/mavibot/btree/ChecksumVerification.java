@@ -0,0 +1,45 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+/**
+ * An enum to describe when the RecordManager checks the checksum of the pages it reads. We
+ * have three possible levels :
+ * <ul>
+ * <li>OFF : the checksums are never checked</li>
+ * <li>SAMPLED : the checksum of one read out of N is checked, N being the sample rate</li>
+ * <li>ALWAYS : the checksum of every read is checked</li>
+ * </ul>
+ * Only the pages written while the checksums were enabled have a checksum.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public enum ChecksumVerification
+{
+    /** Never check the checksums */
+    OFF,
+
+    /** Check the checksum of some of the reads */
+    SAMPLED,
+
+    /** Check the checksum of all the reads */
+    ALWAYS
+}
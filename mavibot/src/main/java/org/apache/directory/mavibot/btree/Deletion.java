@@ -39,4 +39,16 @@ package org.apache.directory.mavibot.btree;
     {
         super( key, null );
     }
+
+
+    /**
+     * Create a new Deletion instance, removing a single value of a key.
+     * 
+     * @param key The key to be deleted
+     * @param value The value to be deleted
+     */
+    public Deletion( K key, V value )
+    {
+        super( key, value );
+    }
 }
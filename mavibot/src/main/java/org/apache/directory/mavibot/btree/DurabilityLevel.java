@@ -0,0 +1,54 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+/**
+ * An enum to describe how the RecordManager forces the commits on disk. We have four
+ * possible levels :
+ * <ul>
+ * <li>NONE : nothing is forced, the OS decides when the data reach the disk. A crash
+ * may lose some commits, and may leave a RecordManager header referencing pages which
+ * have not been written</li>
+ * <li>FLUSH_HEADER_ONLY : the pages are forced on disk before the RecordManager header
+ * referencing them is written, but the header itself is not forced. A crash may lose
+ * the last commits, but the file remains consistent</li>
+ * <li>FLUSH_ON_COMMIT : the pages are forced before the header is written, and the
+ * header is forced before the commit returns. A committed transaction is never lost</li>
+ * <li>FLUSH_EVERY_N_MS : a commit is done as with FLUSH_ON_COMMIT if the last flush is
+ * older than the flush interval, otherwise as with NONE</li>
+ * </ul>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public enum DurabilityLevel
+{
+    /** Never force anything on disk */
+    NONE,
+
+    /** Force the pages before writing the header, the header is not forced */
+    FLUSH_HEADER_ONLY,
+
+    /** Force the pages before writing the header, and the header before the commit returns */
+    FLUSH_ON_COMMIT,
+
+    /** Flush a commit like FLUSH_ON_COMMIT at most once in a given interval */
+    FLUSH_EVERY_N_MS
+}
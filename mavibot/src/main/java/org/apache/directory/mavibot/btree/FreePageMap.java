@@ -0,0 +1,311 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.util.BitSet;
+
+
+/**
+ * The free pages of a RecordManager, kept in memory in a bitmap with one bit per page.
+ * Allocating or releasing a page doesn't need any I/O.<br/>
+ * On disk, the free pages are still linked one to the other, ordered by offset, starting
+ * from the RecordManager header. The map keeps a track of the free pages whose link
+ * on disk is outdated, so that only those pages are written when the header is updated.<br/>
+ * This class is not thread safe.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */class FreePageMap
+{
+    /** The page size */
+    private final int pageSize;
+
+    /** The free pages */
+    private final BitSet freePages = new BitSet();
+
+    /** The free pages whose link to the next free page must be written on disk */
+    private final BitSet dirtyPages = new BitSet();
+
+    /** The number of free pages */
+    private int nbFreePages;
+
+    /** The lowest free page, -1 if there is no free page */
+    private int firstPage = -1;
+
+
+    /**
+     * Creates a new FreePageMap instance
+     *
+     * @param pageSize The page size
+     */
+    /* no qualifier */FreePageMap( int pageSize )
+    {
+        this.pageSize = pageSize;
+    }
+
+
+    /**
+     * Allocate the free page with the lowest offset
+     *
+     * @return The offset of the allocated page, or {@link RecordManager#NO_PAGE} if there is no free page
+     */
+    /* no qualifier */long allocate()
+    {
+        if ( firstPage < 0 )
+        {
+            return RecordManager.NO_PAGE;
+        }
+
+        long offset = toOffset( firstPage );
+        remove( firstPage, firstPage + 1 );
+
+        return offset;
+    }
+
+
+    /**
+     * Allocate some contiguous free pages, using the first range of free pages large enough
+     *
+     * @param nbPages The number of pages to allocate
+     * @return The offset of the first allocated page, or {@link RecordManager#NO_PAGE} if there
+     * is no range of free pages large enough
+     */
+    /* no qualifier */long allocate( int nbPages )
+    {
+        int start = firstPage;
+
+        while ( start >= 0 )
+        {
+            int end = freePages.nextClearBit( start );
+
+            if ( end - start >= nbPages )
+            {
+                remove( start, start + nbPages );
+
+                return toOffset( start );
+            }
+
+            start = freePages.nextSetBit( end );
+        }
+
+        return RecordManager.NO_PAGE;
+    }
+
+
+    /**
+     * Add a page to the free pages
+     *
+     * @param offset The page offset
+     * @return <code>false</code> if the page was already free
+     */
+    /* no qualifier */boolean release( long offset )
+    {
+        int page = toPage( offset );
+
+        if ( freePages.get( page ) )
+        {
+            return false;
+        }
+
+        freePages.set( page );
+        dirtyPages.set( page );
+        nbFreePages++;
+
+        // The previous free page is now linked to this one
+        markPreviousDirty( page );
+
+        if ( ( firstPage < 0 ) || ( page < firstPage ) )
+        {
+            firstPage = page;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Remove the free pages found at the end of the file
+     *
+     * @param endOfFileOffset The offset of the end of the file
+     * @return The offset of the end of the file, once the free pages have been removed
+     */
+    /* no qualifier */long truncate( long endOfFileOffset )
+    {
+        int end = toPage( endOfFileOffset );
+        int start = end;
+
+        while ( ( start > 0 ) && freePages.get( start - 1 ) )
+        {
+            start--;
+        }
+
+        if ( start < end )
+        {
+            remove( start, end );
+        }
+
+        return toOffset( start );
+    }
+
+
+    /**
+     * Tell that the link of a free page on disk is the given one. The page won't be written
+     * if it's the link we would write.
+     *
+     * @param offset The free page offset
+     * @param nextOffset The offset of the next free page on disk
+     */
+    /* no qualifier */void setLink( long offset, long nextOffset )
+    {
+        if ( getNext( offset ) == nextOffset )
+        {
+            dirtyPages.clear( toPage( offset ) );
+        }
+    }
+
+
+    /**
+     * Remove a range of pages from the free pages
+     */
+    private void remove( int start, int end )
+    {
+        freePages.clear( start, end );
+        dirtyPages.clear( start, end );
+        nbFreePages -= end - start;
+
+        // The previous free page is now linked to the page following the range
+        markPreviousDirty( start );
+
+        if ( firstPage >= start )
+        {
+            firstPage = freePages.nextSetBit( end );
+        }
+    }
+
+
+    /**
+     * Mark the free page preceding a page as dirty
+     */
+    private void markPreviousDirty( int page )
+    {
+        if ( page > 0 )
+        {
+            int previous = freePages.previousSetBit( page - 1 );
+
+            if ( previous >= 0 )
+            {
+                dirtyPages.set( previous );
+            }
+        }
+    }
+
+
+    /**
+     * @return The offset of the first free page, or {@link RecordManager#NO_PAGE} if there is no free page
+     */
+    /* no qualifier */long getFirst()
+    {
+        return ( firstPage < 0 ) ? RecordManager.NO_PAGE : toOffset( firstPage );
+    }
+
+
+    /**
+     * @param offset The offset of a free page
+     * @return The offset of the next free page, or {@link RecordManager#NO_PAGE} if it's the last one
+     */
+    /* no qualifier */long getNext( long offset )
+    {
+        int next = freePages.nextSetBit( toPage( offset ) + 1 );
+
+        return ( next < 0 ) ? RecordManager.NO_PAGE : toOffset( next );
+    }
+
+
+    /**
+     * @param offset The page offset
+     * @return <code>true</code> if the page is free
+     */
+    /* no qualifier */boolean isFree( long offset )
+    {
+        return freePages.get( toPage( offset ) );
+    }
+
+
+    /**
+     * @return The number of free pages
+     */
+    /* no qualifier */int size()
+    {
+        return nbFreePages;
+    }
+
+
+    /**
+     * @return <code>true</code> if some links have to be written on disk
+     */
+    /* no qualifier */boolean isDirty()
+    {
+        return !dirtyPages.isEmpty();
+    }
+
+
+    /**
+     * Get the free pages whose link has to be written on disk, and consider them as written.
+     *
+     * @return The offsets of the pages, from the highest to the lowest
+     */
+    /* no qualifier */long[] pollDirtyPages()
+    {
+        long[] offsets = new long[dirtyPages.cardinality()];
+        int pos = 0;
+
+        for ( int page = dirtyPages.length() - 1; page >= 0; page = dirtyPages.previousSetBit( page - 1 ) )
+        {
+            offsets[pos++] = toOffset( page );
+        }
+
+        dirtyPages.clear();
+
+        return offsets;
+    }
+
+
+    private int toPage( long offset )
+    {
+        return ( int ) ( offset / pageSize );
+    }
+
+
+    private long toOffset( int page )
+    {
+        return ( long ) page * pageSize;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "FreePageMap[" + nbFreePages + " free pages, first:0x" + Long.toHexString( getFirst() ) + ", dirty:"
+            + dirtyPages.cardinality() + "]";
+    }
+}
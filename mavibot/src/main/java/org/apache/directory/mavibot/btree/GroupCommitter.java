@@ -0,0 +1,362 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.directory.mavibot.btree.exception.FileException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A class used to merge the commits of many write transactions into one single
+ * RecordManager header update and one single durability barrier.<br/>
+ * Each committed transaction gets a ticket. The first thread waiting for its ticket
+ * to be flushed becomes the leader of the group : it waits until the group is full
+ * or until the window has expired, then flushes the RecordManager header on behalf
+ * of all the transactions committed so far, and wakes up the other waiters. If the
+ * flush fails, all the transactions of the group get the error.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class GroupCommitter
+{
+    /** The LoggerFactory used by this class */
+    protected static final Logger LOG = LoggerFactory.getLogger( GroupCommitter.class );
+
+    /** The record manager */
+    private RecordManager rm;
+
+    /** The maximum number of transactions in a group */
+    private int maxGroupSize;
+
+    /** The maximum delay a leader will wait for other transactions to join the group, in ns */
+    private long maxDelay;
+
+    /** The lock protecting the tickets */
+    private ReentrantLock lock = new ReentrantLock();
+
+    /** The condition used to wake up the leader and the waiters */
+    private Condition groupFlushed = lock.newCondition();
+
+    /** The last ticket given to a committed transaction */
+    private long lastTicket = 0L;
+
+    /** The last ticket which has been flushed on disk */
+    private long lastFlushedTicket = 0L;
+
+    /** The last ticket of the last group which could not be flushed */
+    private long lastFailedTicket = 0L;
+
+    /** The error which has prevented the last failed group to be flushed */
+    private Throwable failure;
+
+    /** A flag set when a leader is flushing a group */
+    private boolean flushing = false;
+
+    /** The number of group flushes */
+    private AtomicLong nbFlushes = new AtomicLong( 0 );
+
+    /** The number of transactions flushed through a group */
+    private AtomicLong nbGroupedTxns = new AtomicLong( 0 );
+
+    /** The number of transactions in the last flushed group */
+    private volatile int lastGroupSize;
+
+    /** The biggest group flushed so far */
+    private volatile int maxFlushedGroupSize;
+
+
+    /**
+     * Creates a new instance of GroupCommitter.
+     *
+     * @param rm the record manager
+     * @param maxGroupSize The maximum number of transactions in a group
+     * @param maxDelay The maximum time to wait for a group to be filled, in milliseconds
+     */
+    public GroupCommitter( RecordManager rm, int maxGroupSize, long maxDelay )
+    {
+        this.rm = rm;
+        this.maxGroupSize = maxGroupSize;
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos( maxDelay );
+    }
+
+
+    /**
+     * Registers a newly committed transaction. Must be called while holding the
+     * RecordManager transaction lock.
+     *
+     * @return The ticket to wait for
+     */
+    /* no qualifier */long register()
+    {
+        lock.lock();
+
+        try
+        {
+            lastTicket++;
+
+            if ( lastTicket - getLastSettledTicket() >= maxGroupSize )
+            {
+                // The group is full, wake up the leader
+                groupFlushed.signalAll();
+            }
+
+            return lastTicket;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Waits until the transaction associated with the given ticket has been flushed on disk.
+     * The calling thread may become the leader of the group, and do the flush itself.
+     * Must be called after having released the RecordManager transaction lock.
+     *
+     * @param ticket The ticket received when the transaction was registered
+     * @throws FileException If the group containing the transaction could not be flushed
+     */
+    /* no qualifier */void awaitFlush( long ticket )
+    {
+        boolean interrupted = false;
+
+        lock.lock();
+
+        try
+        {
+            while ( lastFlushedTicket < ticket )
+            {
+                if ( ticket <= lastFailedTicket )
+                {
+                    // The group containing this transaction has not been flushed
+                    throw new FileException( "The transaction " + ticket + " could not be flushed", failure );
+                }
+
+                if ( flushing )
+                {
+                    // Someone else is flushing, wait for it
+                    try
+                    {
+                        groupFlushed.await();
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        interrupted = true;
+                    }
+
+                    continue;
+                }
+
+                // We are the leader : wait for the group to be filled, or for the window to expire
+                flushing = true;
+                long remaining = maxDelay;
+
+                while ( ( lastTicket - getLastSettledTicket() < maxGroupSize ) && ( remaining > 0L ) )
+                {
+                    try
+                    {
+                        remaining = groupFlushed.awaitNanos( remaining );
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        interrupted = true;
+                        break;
+                    }
+                }
+
+                // All the transactions registered so far will be flushed
+                long target = lastTicket;
+                int groupSize = ( int ) ( target - getLastSettledTicket() );
+
+                lock.unlock();
+                Throwable error = null;
+
+                try
+                {
+                    rm.flushCommittedGroup();
+                }
+                catch ( RuntimeException re )
+                {
+                    error = re;
+
+                    throw re;
+                }
+                catch ( Error e )
+                {
+                    error = e;
+
+                    throw e;
+                }
+                finally
+                {
+                    lock.lock();
+
+                    if ( error == null )
+                    {
+                        flushed( target, groupSize );
+                    }
+                    else
+                    {
+                        // The leader gets the exception, the other waiters of the group will rethrow it
+                        failed( target, error );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+
+            if ( interrupted )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Marks all the registered transactions as flushed. This is called when the
+     * RecordManager has flushed its header by itself, for instance when it's closed.
+     */
+    /* no qualifier */void flushedAll()
+    {
+        lock.lock();
+
+        try
+        {
+            if ( lastTicket > getLastSettledTicket() )
+            {
+                flushed( lastTicket, ( int ) ( lastTicket - getLastSettledTicket() ) );
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The last ticket which has been either flushed, or has failed to be flushed.
+     * Must be called holding the lock.
+     */
+    private long getLastSettledTicket()
+    {
+        return Math.max( lastFlushedTicket, lastFailedTicket );
+    }
+
+
+    /**
+     * Update the counters and wake up the waiters. Must be called holding the lock.
+     */
+    private void flushed( long target, int groupSize )
+    {
+        if ( target > lastFlushedTicket )
+        {
+            lastFlushedTicket = target;
+        }
+
+        flushing = false;
+
+        nbFlushes.incrementAndGet();
+        nbGroupedTxns.addAndGet( groupSize );
+        lastGroupSize = groupSize;
+
+        if ( groupSize > maxFlushedGroupSize )
+        {
+            maxFlushedGroupSize = groupSize;
+        }
+
+        LOG.debug( "Flushed a group of {} transaction(s)", groupSize );
+
+        groupFlushed.signalAll();
+    }
+
+
+    /**
+     * Records the failure of a group flush, and wake up the waiters. The flushed ticket
+     * is not updated. Must be called holding the lock.
+     */
+    private void failed( long target, Throwable error )
+    {
+        LOG.error( "Failed to flush a group of {} transaction(s)", target - getLastSettledTicket() );
+
+        lastFailedTicket = target;
+        failure = error;
+        flushing = false;
+
+        groupFlushed.signalAll();
+    }
+
+
+    /**
+     * @return The number of group flushes done so far
+     */
+    public long getNbFlushes()
+    {
+        return nbFlushes.get();
+    }
+
+
+    /**
+     * @return The number of transactions which have been flushed in a group so far
+     */
+    public long getNbGroupedTransactions()
+    {
+        return nbGroupedTxns.get();
+    }
+
+
+    /**
+     * @return The number of transactions in the last flushed group
+     */
+    public int getLastGroupSize()
+    {
+        return lastGroupSize;
+    }
+
+
+    /**
+     * @return The biggest number of transactions flushed in one single group
+     */
+    public int getMaxGroupSize()
+    {
+        return maxFlushedGroupSize;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "GroupCommitter[flushes:" + nbFlushes.get() + ", txns:" + nbGroupedTxns.get() + ", last:"
+            + lastGroupSize + ", max:" + maxFlushedGroupSize + "]";
+    }
+}
@@ -26,9 +26,25 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.apache.directory.mavibot.btree.exception.InitializationException;
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
@@ -68,15 +84,42 @@ import org.slf4j.LoggerFactory;
     /** A flag used to tell the BTree that the journal is activated */
     private boolean withJournal;
 
-    /** The associated journal. If null, this is an in-memory btree  */
+    /** The journal segment the modifications are written into. If null, this is an in-memory btree  */
     private File journal;
 
+    /** The name of the journal, suffixed by the segment numbers */
+    private String journalName;
+
     /** The directory where the journal will be stored */
     private File envDir;
 
     /** The Journal channel */
     private FileChannel journalChannel = null;
 
+    /** The writer appending the modifications to the journal */
+    private JournalWriter journalWriter = null;
+
+    /** The number of modifications forced together on disk in the journal */
+    private int journalGroupSize = JournalWriter.DEFAULT_GROUP_SIZE;
+
+    /** The maximum delay before the journal is forced on disk, in milliseconds */
+    private long journalMaxDelay = JournalWriter.DEFAULT_MAX_DELAY;
+
+    /** The size of the blocks of the B-tree file before compression */
+    private int snapshotBlockSize = SnapshotFile.DEFAULT_BLOCK_SIZE;
+
+    /** Tells if the blocks of the B-tree file are compressed */
+    private boolean snapshotCompressed = false;
+
+    /** The number of the journal segment the modifications are written into */
+    private long journalSegment = 1L;
+
+    /** The last started checkpoint */
+    private FutureTask<Long> checkpoint = null;
+
+    /** A lock used to start the checkpoints one after the other */
+    private final Object checkpointLock = new Object();
+
 
     /**
      * Creates a new BTree, with no initialization.
@@ -121,6 +164,10 @@ import org.slf4j.LoggerFactory;
 
         readTimeOut = configuration.getReadTimeOut();
         writeBufferSize = configuration.getWriteBufferSize();
+        journalGroupSize = configuration.getJournalGroupSize();
+        journalMaxDelay = configuration.getJournalMaxDelay();
+        snapshotBlockSize = configuration.getSnapshotBlockSize();
+        snapshotCompressed = configuration.isSnapshotCompressed();
 
         if ( keySerializer.getComparator() == null )
         {
@@ -137,6 +184,7 @@ import org.slf4j.LoggerFactory;
         newBtreeHeader.setNbElems( 0L );
         newBtreeHeader.setRootPage( new InMemoryLeaf<K, V>( this ) );
         newBtreeHeader.setRootPageOffset( 0L );
+        newBtreeHeader.setBtree( this );
 
         btreeRevisions.put( 0L, newBtreeHeader );
         currentBtreeHeader = newBtreeHeader;
@@ -175,15 +223,16 @@ import org.slf4j.LoggerFactory;
 
             this.file = new File( envDir, getName() + DATA_SUFFIX );
 
-            this.journal = new File( envDir, file.getName() + JOURNAL_SUFFIX );
+            this.journalName = file.getName() + JOURNAL_SUFFIX;
             setType( BTreeTypeEnum.BACKED_ON_DISK );
         }
 
-        // Create the queue containing the pending read transactions
-        readTransactions = new ConcurrentLinkedQueue<ReadTransaction<K, V>>();
+        // Create the registry of the revisions used by the pending read transactions
+        readRevisions = new ReadRevisionRegistry();
 
-        // Create the transaction manager
+        // Create the transaction manager, and publish the first revision
         transactionManager = new InMemoryTransactionManager();
+        transactionManager.updateNewBTreeHeaders( currentBtreeHeader );
 
         // Check the files and create them if missing
         // Create the queue containing the modifications, if it's not a in-memory btree
@@ -195,17 +244,63 @@ import org.slf4j.LoggerFactory;
                 load( file );
             }
 
-            withJournal = true;
+            // The existing segments contain the modifications which are not in the file yet : the
+            // last one was written when the B-tree was closed, the previous ones are left by a
+            // checkpoint which has not completed
+            List<File> segments = getJournalSegments();
+
+            if ( !segments.isEmpty() )
+            {
+                journalSegment = getSegmentNumber( segments.get( segments.size() - 1 ) ) + 1;
+            }
+
+            // A journal without segment number has been written by a previous version : it
+            // contains the most recent modifications
+            File unnumberedJournal = new File( envDir, journalName );
+
+            if ( unnumberedJournal.exists() )
+            {
+                File segmentFile = getSegmentFile( journalSegment );
+
+                if ( !unnumberedJournal.renameTo( segmentFile ) )
+                {
+                    throw new IOException( "Cannot rename the journal " + unnumberedJournal + " to " + segmentFile );
+                }
+
+                segments.add( segmentFile );
+                journalSegment++;
+            }
+
+            // The modifications are written into a new segment
+            journal = getSegmentFile( journalSegment );
+            journalChannel = new RandomAccessFile( journal, "rw" ).getChannel();
+            forceDirectory( envDir );
 
-            FileOutputStream stream = new FileOutputStream( journal );
-            journalChannel = stream.getChannel();
+            int bufferSize = ( writeBufferSize > 0 ) ? writeBufferSize : DEFAULT_WRITE_BUFFER_SIZE;
+            journalWriter = new JournalWriter( journalChannel, bufferSize, journalGroupSize, journalMaxDelay );
 
-            // If the journal is not empty, we have to read it
+            long journalSize = 0L;
+
+            for ( File segment : segments )
+            {
+                journalSize += segment.length();
+            }
+
+            // If the segments are not empty, we have to read them
             // and to apply all the modifications to the current file
-            if ( journal.length() > 0 )
+            if ( journalSize > 0L )
+            {
+                applyJournal( segments );
+
+                // The replayed modifications are now stored in the file, and the segments are deleted
+                flush();
+            }
+            else if ( !segments.isEmpty() )
             {
-                applyJournal();
+                deleteJournalSegments( journalSegment - 1 );
             }
+
+            withJournal = true;
         }
         else
         {
@@ -217,10 +312,6 @@ import org.slf4j.LoggerFactory;
             btreeHeader.setBtree( this );
             storeRevision( btreeHeader );
         }
-
-        // Initialize the txnManager thread
-        //FIXME we should NOT create a new transaction manager thread for each BTree
-        //createTransactionManager();
     }
 
 
@@ -231,11 +322,7 @@ import org.slf4j.LoggerFactory;
     {
         BTreeHeader<K, V> btreeHeader = getBtreeHeader();
 
-        ReadTransaction<K, V> readTransaction = new ReadTransaction<K, V>( btreeHeader, readTransactions );
-
-        readTransactions.add( readTransaction );
-
-        return readTransaction;
+        return new ReadTransaction<K, V>( btreeHeader, readRevisions );
     }
 
 
@@ -248,11 +335,7 @@ import org.slf4j.LoggerFactory;
 
         if ( btreeHeader != null )
         {
-            ReadTransaction<K, V> readTransaction = new ReadTransaction<K, V>( btreeHeader, readTransactions );
-
-            readTransactions.add( readTransaction );
-
-            return readTransaction;
+            return new ReadTransaction<K, V>( btreeHeader, readRevisions );
         }
         else
         {
@@ -266,14 +349,11 @@ import org.slf4j.LoggerFactory;
      */
     public void close() throws IOException
     {
-        // Stop the readTransaction thread
-        // readTransactionsThread.interrupt();
-        // readTransactions.clear();
-
         if ( getType() == BTreeTypeEnum.BACKED_ON_DISK )
         {
             // Flush the data
             flush();
+            journalWriter.close();
             journalChannel.close();
         }
     }
@@ -452,187 +532,333 @@ import org.slf4j.LoggerFactory;
 
 
     /**
-     * Write the data in the ByteBuffer, and eventually on disk if needed.
-     *
-     * @param channel The channel we want to write to
-     * @param bb The ByteBuffer we want to feed
-     * @param buffer The data to inject
-     * @throws IOException If the write failed
+     * Flush the latest revision to disk
+     * @param file The file into which the data will be written
      */
-    private void writeBuffer( FileChannel channel, ByteBuffer bb, byte[] buffer ) throws IOException
+    public void flush( File file ) throws IOException
     {
-        int size = buffer.length;
-        int pos = 0;
+        ReadTransaction<K, V> transaction = beginReadTransaction();
 
-        // Loop until we have written all the data
-        do
+        try
         {
-            if ( bb.remaining() >= size )
-            {
-                // No flush, as the ByteBuffer is big enough
-                bb.put( buffer, pos, size );
-                size = 0;
-            }
-            else
-            {
-                // Flush the data on disk, reinitialize the ByteBuffer
-                int len = bb.remaining();
-                size -= len;
-                bb.put( buffer, pos, len );
-                pos += len;
-
-                bb.flip();
-
-                channel.write( bb );
-
-                bb.clear();
-            }
+            writeSnapshot( transaction, file );
+        }
+        finally
+        {
+            transaction.close();
         }
-        while ( size > 0 );
     }
 
 
     /**
-     * Flush the latest revision to disk
+     * Write the revision associated with a read transaction into a file, using the
+     * {@link SnapshotFile} format. The data are first written into a temporary file,
+     * which atomically replaces the file once it's on disk. As the revision's pages
+     * are never modified, the B-tree can be updated while we write them.
+     *
+     * @param transaction The read transaction holding the revision to write
      * @param file The file into which the data will be written
+     * @throws IOException If the file can't be written
      */
-    public void flush( File file ) throws IOException
+    @SuppressWarnings("unchecked")
+    private void writeSnapshot( ReadTransaction<K, V> transaction, File file ) throws IOException
     {
-        File parentFile = file.getParentFile();
-        File baseDirectory = null;
-
-        if ( parentFile != null )
+        if ( keySerializer == null )
         {
-            baseDirectory = new File( file.getParentFile().getAbsolutePath() );
+            throw new MissingSerializerException( "Cannot flush the btree without a Key serializer" );
         }
-        else
+
+        if ( valueSerializer == null )
         {
-            baseDirectory = new File( "." );
+            throw new MissingSerializerException( "Cannot flush the btree without a Value serializer" );
         }
 
+        File baseDirectory = file.getAbsoluteFile().getParentFile();
+
         // Create a temporary file in the same directory to flush the current btree
         File tmpFileFD = File.createTempFile( "mavibot", null, baseDirectory );
-        FileOutputStream stream = new FileOutputStream( tmpFileFD );
-        FileChannel ch = stream.getChannel();
-
-        // Create a buffer containing 200 4Kb pages (around 1Mb)
-        ByteBuffer bb = ByteBuffer.allocateDirect( writeBufferSize );
+        FileChannel ch = new FileOutputStream( tmpFileFD ).getChannel();
 
         try
         {
-            TupleCursor<K, V> cursor = browse();
-
-            if ( keySerializer == null )
-            {
-                throw new MissingSerializerException( "Cannot flush the btree without a Key serializer" );
-            }
+            ParentPos<K, V>[] stack = ( ParentPos<K, V>[] ) Array.newInstance( ParentPos.class, MAX_STACK_DEPTH );
+            TupleCursor<K, V> cursor = transaction.getBtreeHeader().getRootPage().browse( transaction, stack, 0 );
+            cursor.beforeFirst();
 
-            if ( valueSerializer == null )
-            {
-                throw new MissingSerializerException( "Cannot flush the btree without a Value serializer" );
-            }
+            SnapshotFile.write( ch, cursor, keySerializer, valueSerializer, snapshotBlockSize, snapshotCompressed );
+        }
+        catch ( IOException ioe )
+        {
+            ch.close();
+            tmpFileFD.delete();
 
-            // Write the number of elements first
-            bb.putLong( getBtreeHeader().getNbElems() );
+            throw ioe;
+        }
 
-            while ( cursor.hasNext() )
-            {
-                Tuple<K, V> tuple = cursor.next();
+        ch.close();
 
-                byte[] keyBuffer = keySerializer.serialize( tuple.getKey() );
+        // Replace the current file by the temporary file, and make the replacement durable
+        Files.move( tmpFileFD.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE );
+        forceDirectory( baseDirectory );
+    }
 
-                writeBuffer( ch, bb, keyBuffer );
 
-                byte[] valueBuffer = valueSerializer.serialize( tuple.getValue() );
+    /**
+     * Force the entries of a directory on disk, so that the files which have been created,
+     * renamed or deleted in it are still there after a crash. This is not supported on
+     * every platform : on Windows, a directory can't be opened, and the entries are
+     * durable once the files are closed.
+     *
+     * @param directory The directory to force
+     * @throws IOException If the directory can't be forced
+     */
+    private void forceDirectory( File directory ) throws IOException
+    {
+        FileChannel channel;
 
-                writeBuffer( ch, bb, valueBuffer );
-            }
+        try
+        {
+            channel = FileChannel.open( directory.toPath(), StandardOpenOption.READ );
+        }
+        catch ( IOException ioe )
+        {
+            LOG.debug( "The directory {} can't be opened, it won't be forced : {}", directory, ioe.getMessage() );
 
-            // Write the buffer if needed
-            if ( bb.position() > 0 )
-            {
-                bb.flip();
-                ch.write( bb );
-            }
+            return;
+        }
 
-            // Flush to the disk for real
-            ch.force( true );
-            ch.close();
+        try
+        {
+            channel.force( true );
         }
-        catch ( KeyNotFoundException knfe )
+        finally
         {
-            knfe.printStackTrace();
-            throw new IOException( knfe.getMessage() );
+            channel.close();
         }
+    }
 
-        // Rename the current file to save a backup
-        File backupFile = File.createTempFile( "mavibot", null, baseDirectory );
-        file.renameTo( backupFile );
 
-        // Rename the temporary file to the initial file
-        tmpFileFD.renameTo( file );
+    /**
+     * Inject all the modification from the journal segments into the btree. The segments
+     * are read sequentially, the modifications are collapsed per key and sorted, and the
+     * resulting keys are merged with the existing ones into new pages, built from the
+     * bottom in a single revision.
+     *
+     * @param segments The journal segments, from the oldest to the newest
+     * @throws IOException If we had some issue while reading the journal
+     */
+    private void applyJournal( List<File> segments ) throws IOException
+    {
+        // The modifications of each key, sorted
+        TreeMap<K, JournalEntry<V>> entries = new TreeMap<K, JournalEntry<V>>( getKeyComparator() );
+        long nbModifications = 0L;
+
+        for ( File segment : segments )
+        {
+            nbModifications += readJournal( segment, entries );
+        }
+
+        mergeJournal( entries );
 
-        // We can now delete the backup file
-        backupFile.delete();
+        LOG.info( "Journal {} replayed : {} modifications applied on {} keys", journalName, nbModifications,
+            entries.size() );
     }
 
 
     /**
-     * Inject all the modification from the journal into the btree
+     * Read the modifications of a journal segment, and collapse them with the previous ones.
      *
+     * @param segment The journal segment
+     * @param entries The collapsed modifications of each key
+     * @return The number of modifications read in this segment
      * @throws IOException If we had some issue while reading the journal
      */
-    private void applyJournal() throws IOException
+    private long readJournal( File segment, TreeMap<K, JournalEntry<V>> entries ) throws IOException
     {
-        if ( !journal.exists() )
+        if ( !segment.exists() )
         {
             throw new IOException( "The journal does not exist" );
         }
 
-        FileChannel channel =
-            new RandomAccessFile( journal, "rw" ).getChannel();
-        ByteBuffer buffer = ByteBuffer.allocate( 65536 );
+        FileChannel channel = new RandomAccessFile( segment, "r" ).getChannel();
+        int bufferSize = ( writeBufferSize > 0 ) ? writeBufferSize : DEFAULT_WRITE_BUFFER_SIZE;
+        long journalSize = channel.size();
+        long nbModifications = 0L;
+        int progress = 0;
 
-        BufferHandler bufferHandler = new BufferHandler( channel, buffer );
+        LOG.info( "Replaying the journal {} ({} bytes)", segment, journalSize );
 
-        // Loop on all the elements, store them in lists atm
         try
         {
-            while ( true )
+            BufferHandler bufferHandler = new BufferHandler( channel, ByteBuffer.allocate( bufferSize ) );
+
+            while ( bufferHandler.hasRemaining() )
             {
-                // Read the type
+                // Read the type and the key
                 byte[] type = bufferHandler.read( 1 );
+                K key = keySerializer.deserialize( bufferHandler );
 
-                if ( type[0] == Modification.ADDITION )
-                {
-                    // Read the key
-                    K key = keySerializer.deserialize( bufferHandler );
+                JournalEntry<V> entry = entries.get( key );
 
-                    //keys.add( key );
+                if ( entry == null )
+                {
+                    entry = new JournalEntry<V>();
+                    entries.put( key, entry );
+                }
 
+                if ( type[0] == Modification.ADDITION )
+                {
                     // Read the value
                     V value = valueSerializer.deserialize( bufferHandler );
 
-                    //values.add( value );
+                    if ( !isAllowDuplicates() )
+                    {
+                        // The value replaces the existing one
+                        entry.deleted = true;
+                        entry.values.clear();
+                    }
 
-                    // Inject the data in the tree. (to be replaced by a bulk load)
-                    insert( key, value, getBtreeHeader().getRevision() );
+                    entry.values.add( value );
                 }
                 else
                 {
-                    // Read the key
-                    K key = keySerializer.deserialize( bufferHandler );
+                    // The key, and all its values, are removed
+                    entry.deleted = true;
+                    entry.values.clear();
+                }
+
+                nbModifications++;
+
+                // Report the progress every 10% of the journal
+                int newProgress = ( int ) ( ( channel.position() * 10 ) / journalSize );
 
-                    // Remove the key from the tree
-                    delete( key, getBtreeHeader().getRevision() );
+                if ( newProgress > progress )
+                {
+                    progress = newProgress;
+                    LOG.info( "Journal {} : {}% read, {} modifications", segment, progress * 10, nbModifications );
                 }
             }
         }
         catch ( EOFException eofe )
         {
-            eofe.printStackTrace();
-            // Done reading the journal. truncate it
-            journalChannel.truncate( 0 );
+            // The last modification has not been completely written before a crash
+            LOG.warn( "The journal {} ends with an incomplete modification, which has been ignored", segment );
+        }
+        finally
+        {
+            channel.close();
+        }
+
+        return nbModifications;
+    }
+
+
+    /**
+     * Merge the collapsed modifications read from the journal, or from a file, with the
+     * current content of the B-tree, and store the resulting pages in a new revision.
+     */
+    private void mergeJournal( TreeMap<K, JournalEntry<V>> entries ) throws IOException
+    {
+        Comparator<K> keyComparator = getKeyComparator();
+        List<K> keys = new ArrayList<K>();
+        List<ValueHolder<V>> valueHolders = new ArrayList<ValueHolder<V>>();
+        Set<V> values = new TreeSet<V>( getValueComparator() );
+        long nbElems = 0L;
+
+        Iterator<Map.Entry<K, JournalEntry<V>>> entryIterator = entries.entrySet().iterator();
+        Map.Entry<K, JournalEntry<V>> entry = entryIterator.hasNext() ? entryIterator.next() : null;
+        TupleCursor<K, V> cursor = null;
+
+        try
+        {
+            cursor = browse();
+            Tuple<K, V> tuple = cursor.hasNext() ? cursor.next() : null;
+
+            // Both the existing tuples and the journal entries are sorted
+            while ( ( tuple != null ) || ( entry != null ) )
+            {
+                int comparison;
+
+                if ( tuple == null )
+                {
+                    comparison = 1;
+                }
+                else if ( entry == null )
+                {
+                    comparison = -1;
+                }
+                else
+                {
+                    comparison = keyComparator.compare( tuple.getKey(), entry.getKey() );
+                }
+
+                K key = ( comparison <= 0 ) ? tuple.getKey() : entry.getKey();
+
+                // Gather the existing values of the key
+                while ( ( tuple != null ) && ( keyComparator.compare( tuple.getKey(), key ) == 0 ) )
+                {
+                    values.add( tuple.getValue() );
+                    tuple = cursor.hasNext() ? cursor.next() : null;
+                }
+
+                // Apply the modifications of the key
+                if ( comparison >= 0 )
+                {
+                    JournalEntry<V> journalEntry = entry.getValue();
+
+                    if ( journalEntry.deleted )
+                    {
+                        values.clear();
+                    }
+
+                    values.addAll( journalEntry.values );
+                    entry = entryIterator.hasNext() ? entryIterator.next() : null;
+                }
+
+                if ( !values.isEmpty() )
+                {
+                    keys.add( key );
+                    valueHolders.add( InMemoryBTreeBuilder.createValueHolder( this, values ) );
+                    nbElems += values.size();
+                    values.clear();
+                }
+            }
+        }
+        catch ( KeyNotFoundException knfe )
+        {
+            throw new IOException( knfe.getMessage() );
+        }
+        finally
+        {
+            if ( cursor != null )
+            {
+                cursor.close();
+            }
+        }
+
+        storeRootPage( keys, valueHolders, nbElems );
+    }
+
+
+    /**
+     * Build the pages containing the given keys from the bottom, and make them visible
+     * in a new revision.
+     */
+    private void storeRootPage( List<K> keys, List<ValueHolder<V>> valueHolders, long nbElems )
+    {
+        BTreeHeader<K, V> oldBtreeHeader = getBtreeHeader();
+        long revision = oldBtreeHeader.getRevision() + 1;
+        BTreeHeader<K, V> newBtreeHeader = createNewBtreeHeader( oldBtreeHeader, revision );
+        newBtreeHeader.setBtree( this );
+        newBtreeHeader.setRootPage( InMemoryBTreeBuilder.createPages( this, revision, keys, valueHolders ) );
+        newBtreeHeader.setNbElems( nbElems );
+
+        storeRevision( newBtreeHeader );
+
+        if ( oldBtreeHeader.getNbUsers() == 0 )
+        {
+            btreeRevisions.remove( oldBtreeHeader.getRevision() );
         }
     }
 
@@ -651,6 +877,72 @@ import org.slf4j.LoggerFactory;
             throw new IOException( "The file does not exist" );
         }
 
+        if ( !SnapshotFile.isSnapshot( file ) )
+        {
+            // A file written by a previous version
+            loadTuples( file );
+
+            return;
+        }
+
+        SnapshotFile<K, V> snapshot = new SnapshotFile<K, V>( file, keySerializer, valueSerializer );
+        List<SnapshotFile.Block<K, V>> blocks;
+
+        try
+        {
+            // Decode the blocks in parallel
+            blocks = snapshot.readBlocks( Runtime.getRuntime().availableProcessors() );
+        }
+        finally
+        {
+            snapshot.close();
+        }
+
+        if ( getBtreeHeader().getNbElems() == 0L )
+        {
+            // Build the pages from the bottom
+            List<K> keys = new ArrayList<K>();
+            List<ValueHolder<V>> valueHolders = new ArrayList<ValueHolder<V>>();
+
+            for ( SnapshotFile.Block<K, V> block : blocks )
+            {
+                keys.addAll( block.keys );
+
+                for ( V[] values : block.values )
+                {
+                    valueHolders.add( new InMemoryValueHolder<V>( this, values ) );
+                }
+            }
+
+            storeRootPage( keys, valueHolders, snapshot.getNbElems() );
+        }
+        else
+        {
+            // Merge the read keys with the existing ones
+            TreeMap<K, JournalEntry<V>> entries = new TreeMap<K, JournalEntry<V>>( getKeyComparator() );
+
+            for ( SnapshotFile.Block<K, V> block : blocks )
+            {
+                for ( int i = 0; i < block.keys.size(); i++ )
+                {
+                    JournalEntry<V> entry = new JournalEntry<V>();
+                    entry.deleted = !isAllowDuplicates();
+                    Collections.addAll( entry.values, block.values.get( i ) );
+                    entries.put( block.keys.get( i ), entry );
+                }
+            }
+
+            mergeJournal( entries );
+        }
+    }
+
+
+    /**
+     * Read the data from a file containing the number of elements followed by the tuples,
+     * as written by the previous versions, and insert them into this BTree.
+     */
+    private void loadTuples( File file ) throws IOException
+    {
         FileChannel channel =
             new RandomAccessFile( file, "rw" ).getChannel();
         ByteBuffer buffer = ByteBuffer.allocate( 65536 );
@@ -664,24 +956,51 @@ import org.slf4j.LoggerFactory;
 
         withJournal = false;
 
-        // Loop on all the elements, store them in lists atm
-        for ( long i = 0; i < nbElems; i++ )
+        try
         {
-            // Read the key
-            K key = keySerializer.deserialize( bufferHandler );
+            // Loop on all the elements
+            for ( long i = 0; i < nbElems; i++ )
+            {
+                // Read the key
+                K key = keySerializer.deserialize( bufferHandler );
+
+                // Read the value
+                V value = valueSerializer.deserialize( bufferHandler );
 
-            // Read the value
-            V value = valueSerializer.deserialize( bufferHandler );
+                insert( key, value, getBtreeHeader().getRevision() );
+            }
+        }
+        finally
+        {
+            channel.close();
 
-            // Inject the data in the tree. (to be replaced by a bulk load)
-            insert( key, value, getBtreeHeader().getRevision() );
+            // Restore the withJournal value
+            withJournal = isJournalActivated;
         }
+    }
 
-        // Restore the withJournal value
-        withJournal = isJournalActivated;
 
-        // Now, process the lists to create the btree
-        // TODO... BulkLoad
+    /**
+     * {@inheritDoc}
+     * The readers get the BTreeHeader published by the transaction manager when the last
+     * transaction has been committed, without taking any lock. The writers get the one
+     * modified by their transaction.
+     */
+    @SuppressWarnings("unchecked")
+    protected BTreeHeader<K, V> getBtreeHeader()
+    {
+        if ( transactionManager instanceof InMemoryTransactionManager )
+        {
+            BTreeHeader<K, V> btreeHeader = ( BTreeHeader<K, V> ) ( ( InMemoryTransactionManager ) transactionManager )
+                .getTransactionBTreeHeader( getName() );
+
+            if ( btreeHeader != null )
+            {
+                return btreeHeader;
+            }
+        }
+
+        return super.getBtreeHeader();
     }
 
 
@@ -719,16 +1038,229 @@ import org.slf4j.LoggerFactory;
 
     /**
      * Flush the latest revision to disk. We will replace the current file by the new one, as
-     * we flush in a temporary file.
+     * we flush in a temporary file. This is a checkpoint which we wait for.
      */
     public void flush() throws IOException
     {
         if ( getType() == BTreeTypeEnum.BACKED_ON_DISK )
         {
-            // Then flush the file
-            flush( file );
-            journalChannel.truncate( 0 );
+            waitForCheckpoint( checkpoint() );
+        }
+    }
+
+
+    /**
+     * Starts a checkpoint : the latest revision is written to disk by a background thread,
+     * while the B-tree can still be modified. The journal is first rotated, so that the
+     * following modifications are written into a new segment. Once the revision has
+     * replaced the B-tree file on disk, the previous journal segments are deleted. If the
+     * checkpoint does not complete, those segments will be replayed when the B-tree is
+     * opened.<br/>
+     * A checkpoint starts once the previous one is done.
+     *
+     * @return A Future which is done when the checkpoint is complete. Its value is the written revision
+     * @throws IOException If the journal can't be rotated
+     * @throws IllegalStateException If the B-tree has no journal
+     */
+    public Future<Long> checkpoint() throws IOException
+    {
+        if ( journalWriter == null )
+        {
+            throw new IllegalStateException( "The B-tree " + getName() + " has no journal" );
+        }
+
+        synchronized ( checkpointLock )
+        {
+            if ( checkpoint != null )
+            {
+                waitForCheckpoint( checkpoint );
+            }
+
+            final long segment;
+            final ReadTransaction<K, V> transaction;
+
+            // No modification can be done while we rotate the journal, so the revision
+            // we write contains all the modifications stored in the previous segments
+            transactionManager.beginTransaction();
+
+            try
+            {
+                segment = rotateJournal();
+                transaction = beginReadTransaction();
+            }
+            catch ( IOException ioe )
+            {
+                transactionManager.rollback();
+
+                throw ioe;
+            }
+
+            transactionManager.commit();
+
+            checkpoint = new FutureTask<Long>( new Callable<Long>()
+            {
+                public Long call() throws IOException
+                {
+                    try
+                    {
+                        writeSnapshot( transaction, file );
+                    }
+                    finally
+                    {
+                        transaction.close();
+                    }
+
+                    // The revision is on disk, we don't need the previous segments anymore
+                    deleteJournalSegments( segment );
+
+                    LOG.debug( "Checkpoint of the revision {} done", transaction.getRevision() );
+
+                    return transaction.getRevision();
+                }
+            } );
+
+            Thread thread = new Thread( checkpoint, "Mavibot-Checkpoint-" + getName() );
+            thread.setDaemon( true );
+            thread.start();
+
+            return checkpoint;
+        }
+    }
+
+
+    /**
+     * Waits until a checkpoint is done
+     */
+    private void waitForCheckpoint( Future<Long> future ) throws IOException
+    {
+        try
+        {
+            future.get();
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+
+            throw new IOException( "Interrupted while waiting for the checkpoint" );
+        }
+        catch ( ExecutionException ee )
+        {
+            throw new IOException( "The checkpoint has failed : " + ee.getCause().getMessage(), ee.getCause() );
+        }
+    }
+
+
+    /**
+     * Write the next modifications into a new journal segment. The previous segment is
+     * closed, and never renamed : it's deleted once a checkpoint has written its
+     * modifications into the file. Must be called while no modification can be done.
+     *
+     * @return The number of the closed segment
+     */
+    private long rotateJournal() throws IOException
+    {
+        File newJournal = getSegmentFile( journalSegment + 1 );
+        FileChannel newChannel = new RandomAccessFile( newJournal, "rw" ).getChannel();
+
+        // The new segment must survive a crash before we write into it
+        forceDirectory( envDir );
+
+        FileChannel oldChannel = journalWriter.rotate( newChannel );
+        journalChannel = newChannel;
+        journal = newJournal;
+        oldChannel.close();
+
+        return journalSegment++;
+    }
+
+
+    /**
+     * @return The file of a journal segment
+     */
+    private File getSegmentFile( long segment )
+    {
+        return new File( envDir, journalName + "." + segment );
+    }
+
+
+    /**
+     * @return The journal segments, sorted from the oldest to the newest
+     */
+    private List<File> getJournalSegments()
+    {
+        List<File> segments = new ArrayList<File>();
+        File[] files = envDir.listFiles();
+
+        if ( files != null )
+        {
+            for ( File candidate : files )
+            {
+                if ( getSegmentNumber( candidate ) > 0L )
+                {
+                    segments.add( candidate );
+                }
+            }
         }
+
+        Collections.sort( segments, new Comparator<File>()
+        {
+            public int compare( File file1, File file2 )
+            {
+                long segment1 = getSegmentNumber( file1 );
+                long segment2 = getSegmentNumber( file2 );
+
+                return ( segment1 < segment2 ) ? -1 : ( ( segment1 == segment2 ) ? 0 : 1 );
+            }
+        } );
+
+        return segments;
+    }
+
+
+    /**
+     * @return The number of a journal segment, or -1 if the file is not a journal segment
+     */
+    private long getSegmentNumber( File file )
+    {
+        String prefix = journalName + ".";
+        String name = file.getName();
+
+        if ( !name.startsWith( prefix ) || ( name.length() == prefix.length() ) )
+        {
+            return -1L;
+        }
+
+        try
+        {
+            return Long.parseLong( name.substring( prefix.length() ) );
+        }
+        catch ( NumberFormatException nfe )
+        {
+            return -1L;
+        }
+    }
+
+
+    /**
+     * Delete the journal segments up to a given one. The deletions are forced on disk : a
+     * segment reappearing after a crash would be replayed on a more recent file.
+     */
+    private void deleteJournalSegments( long lastSegment ) throws IOException
+    {
+        for ( File segment : getJournalSegments() )
+        {
+            if ( getSegmentNumber( segment ) > lastSegment )
+            {
+                break;
+            }
+
+            if ( !segment.delete() )
+            {
+                throw new IOException( "Cannot delete the journal segment " + segment );
+            }
+        }
+
+        forceDirectory( envDir );
     }
 
 
@@ -756,7 +1288,7 @@ import org.slf4j.LoggerFactory;
 
 
     /**
-     * @return the journal
+     * @return the journal segment the modifications are currently written into
      */
     public File getJournal()
     {
@@ -785,36 +1317,46 @@ import org.slf4j.LoggerFactory;
     private void writeToJournal( Modification<K, V> modification )
         throws IOException
     {
+        byte[] keyBuffer = keySerializer.serialize( modification.getKey() );
+
         if ( modification instanceof Addition )
         {
-            byte[] keyBuffer = keySerializer.serialize( modification.getKey() );
-            ByteBuffer bb = ByteBuffer.allocateDirect( keyBuffer.length + 1 );
-            bb.put( Modification.ADDITION );
-            bb.put( keyBuffer );
-            bb.flip();
-
-            journalChannel.write( bb );
-
             byte[] valueBuffer = valueSerializer.serialize( modification.getValue() );
-            bb = ByteBuffer.allocateDirect( valueBuffer.length );
-            bb.put( valueBuffer );
-            bb.flip();
 
-            journalChannel.write( bb );
+            journalWriter.append( Modification.ADDITION, keyBuffer, valueBuffer );
         }
         else if ( modification instanceof Deletion )
         {
-            byte[] keyBuffer = keySerializer.serialize( modification.getKey() );
-            ByteBuffer bb = ByteBuffer.allocateDirect( keyBuffer.length + 1 );
-            bb.put( Modification.DELETION );
-            bb.put( keyBuffer );
-            bb.flip();
+            journalWriter.append( Modification.DELETION, keyBuffer, null );
+        }
+    }
 
-            journalChannel.write( bb );
+
+    /**
+     * Gets a Future which is done when all the modifications done so far are durable in
+     * the journal. When the journal group size is 1, the modifications are already
+     * durable when they return.
+     *
+     * @return The Future, which value is the sequence of the last modification
+     * @throws IllegalStateException If the B-tree has no journal
+     */
+    public Future<Long> getDurabilityFuture()
+    {
+        if ( journalWriter == null )
+        {
+            throw new IllegalStateException( "The B-tree " + getName() + " has no journal" );
         }
 
-        // Flush to the disk for real
-        journalChannel.force( true );
+        return journalWriter.getFuture( journalWriter.getAppendedSequence() );
+    }
+
+
+    /**
+     * @return The writer appending the modifications to the journal, or null if there is no journal
+     */
+    /* no qualifier */JournalWriter getJournalWriter()
+    {
+        return journalWriter;
     }
 
 
@@ -920,4 +1462,17 @@ import org.slf4j.LoggerFactory;
 
         return sb.toString();
     }
+
+
+    /**
+     * The collapsed modifications of a key read from the journal
+     */
+    private static class JournalEntry<V>
+    {
+        /** Tells if the existing values of the key have been removed */
+        private boolean deleted = false;
+
+        /** The values added after the last removal */
+        private List<V> values = new ArrayList<V>( 1 );
+    }
 }
@@ -24,8 +24,12 @@ package org.apache.directory.mavibot.btree;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
 
@@ -71,431 +75,151 @@ public class InMemoryBTreeBuilder<K, V>
     }
 
 
+    /**
+     * Build a B-tree from some tuples sorted by key. When the same key appears more than once,
+     * its values are all kept if the B-tree allows duplicate values, otherwise the last value wins.
+     *
+     * @param sortedTupleItr An iterator on the sorted tuples
+     * @return The created B-tree
+     * @throws IOException If the B-tree can't be created
+     */
     @SuppressWarnings("unchecked")
     public BTree<K, V> build( Iterator<Tuple<K, V>> sortedTupleItr ) throws IOException
     {
         BTree<K, V> btree = BTreeFactory.createInMemoryBTree( btreeConfiguration );
-        int pageSize = btree.getPageSize();
-        int maxElements = ( pageSize + 1 ) * pageSize;
-
-        // The stack used to store all the levels. No need to have more than 16 levels, 
-        // it will allow the storage of 2^64 elements with pages containing 4 elements each.
-        List<InMemoryNode<K, V>>[] pageStack = new ArrayList[15];
-
-        for ( int i = 0; i < 15; i++ )
-        {
-            pageStack[i] = new ArrayList<InMemoryNode<K, V>>( maxElements );
-        }
+        Comparator<K> keyComparator = btree.getKeyComparator();
+        boolean allowDuplicates = btree.isAllowDuplicates();
 
-        // The number of added elements
-        int nbAdded = 0;
+        List<K> keys = new ArrayList<K>();
+        List<ValueHolder<V>> valueHolders = new ArrayList<ValueHolder<V>>();
+        Set<V> values = new TreeSet<V>( btree.getValueComparator() );
+        K currentKey = null;
+        long nbElems = 0L;
 
-        // The btree height
-        int btreeHeight = 0;
-
-        // An array containing the number of elements necessary to fulfill a layer :
-        // pageSize * (pageSize + 1)
-        List<Tuple<K, V>> tuples = new ArrayList<Tuple<K, V>>( maxElements );
-
-        // A list of nodes that are going to be created
-        List<InMemoryNode<K, V>> nodes = new ArrayList<InMemoryNode<K, V>>();
-
-        // Now, loop on all the elements
+        // Gather the values of each key
         while ( sortedTupleItr.hasNext() )
         {
-            nbAdded++;
-
-            // Get the tuple to inject
             Tuple<K, V> tuple = sortedTupleItr.next();
-            tuples.add( tuple );
 
-            if ( tuples.size() == maxElements )
+            if ( ( currentKey != null ) && ( keyComparator.compare( currentKey, tuple.getKey() ) != 0 ) )
             {
-                // We have enough elements to create pageSize leaves, and the upper node
-                InMemoryNode<K, V> node = ( InMemoryNode<K, V> ) addLeaves( btree, tuples, maxElements );
-                int level = 0;
-
-                if ( node != null )
-                {
-                    while ( true )
-                    {
-                        pageStack[level].add( node );
-
-                        // If the node list has enough elements to fulfill a parent node,
-                        // then process 
-                        if ( pageStack[level].size() > btree.getPageSize() )
-                        {
-                            node = createParentNode( btree, pageStack[level], btree.getPageSize() );
-                            pageStack[level].clear();
-                            level++;
-                        }
-                        else
-                        {
-                            break;
-                        }
-                    }
-
-                    ( ( AbstractBTree<K, V> ) btree ).setRootPage( pageStack[level].get( 0 ) );
-
-                    // Update the btree height
-                    if ( btreeHeight < level )
-                    {
-                        btreeHeight = level;
-                    }
-                }
-
-                tuples.clear();
+                keys.add( currentKey );
+                valueHolders.add( createValueHolder( btree, values ) );
+                nbElems += values.size();
+                values.clear();
             }
-        }
-
-        if ( tuples.size() > 0 )
-        {
-            // Let's deal with the remaining elements
-            Page<K, V> page = addLeaves( btree, tuples, maxElements );
 
-            if ( page instanceof InMemoryNode )
+            if ( !allowDuplicates )
             {
-                nodes.add( ( InMemoryNode<K, V> ) page );
-
-                // If the node list has enough elements to fulfill a parent node,
-                // then process 
-                if ( nodes.size() == maxElements )
-                {
-                    Page<K, V> rootPage = createParentNode( btree, nodes, maxElements );
-
-                    ( ( AbstractBTree<K, V> ) btree ).setRootPage( rootPage );
-                }
+                values.clear();
             }
-            else
-            {
-                InMemoryLeaf<K, V> leaf = ( InMemoryLeaf<K, V> ) page;
 
-                // Its a leaf. That means we may have to balance the btree
-                if ( pageStack[0].size() != 0 )
-                {
-                    // We have some leaves in level 0, which means we just have to add the new leaf
-                    // there, after having check we don't have to borrow some elements from the last leaf
-                    if ( leaf.getNbElems() < btree.getPageSize() / 2 )
-                    {
-                        // Not enough elements in the added leaf. Borrow some from the left.
-                        // TODO
-                    }
-                    else
-                    {
-                        // Enough elements in the added leaf (at least N/2). We just have to update
-                        // the parent's node.
-                        // TODO
-                    }
-                }
-            }
+            currentKey = tuple.getKey();
+            values.add( tuple.getValue() );
+        }
+
+        if ( currentKey != null )
+        {
+            keys.add( currentKey );
+            valueHolders.add( createValueHolder( btree, values ) );
+            nbElems += values.size();
         }
 
-        // Update the number of elements
-        ( ( AbstractBTree<K, V> ) btree ).getBtreeHeader().setNbElems( nbAdded );
+        // Now, create the pages from the bottom
+        BTreeHeader<K, V> btreeHeader = ( ( AbstractBTree<K, V> ) btree ).getBtreeHeader();
+        btreeHeader.setRootPage( createPages( btree, btreeHeader.getRevision(), keys, valueHolders ) );
+        btreeHeader.setNbElems( nbElems );
 
         return btree;
     }
 
 
     /**
-     * Creates all the nodes using the provided node pages, and update the upper laye
+     * Creates a ValueHolder containing some values
      */
-    private InMemoryNode<K, V> createParentNode( BTree<K, V> btree, List<InMemoryNode<K, V>> nodes, int maxElements )
+    @SuppressWarnings("unchecked")
+    /* no qualifier */static <V> ValueHolder<V> createValueHolder( BTree<?, V> btree, Collection<V> values )
     {
-        // We have enough tuples to fulfill the upper node.
-        // First, create the new node
-        InMemoryNode<K, V> parentNode = ( InMemoryNode<K, V> ) BTreeFactory.createNode( btree, 0,
-            btreeConfiguration.getPageSize() );
-
-        int nodePos = 0;
-
-        // Then iterate on the tuples, creating the needed pages
-        for ( InMemoryNode<K, V> node : nodes )
-        {
-            if ( nodePos != 0 )
-            {
-                K key = node.getLeftMostKey();
-                BTreeFactory.setKey( btree, parentNode, nodePos - 1, key );
-            }
-
-            PageHolder<K, V> pageHolder = new PageHolder<K, V>( btree, node );
-            parentNode.setPageHolder( nodePos, pageHolder );
-            nodePos++;
-        }
+        V[] valueArray = ( V[] ) Array.newInstance( btree.getValueSerializer().getType(), values.size() );
 
-        // And return the node
-        return parentNode;
+        return new InMemoryValueHolder<V>( btree, values.toArray( valueArray ) );
     }
 
 
     /**
-     * Creates all the leaves using the provided tuples, and update the upper layer if needed
+     * Creates all the pages of an in-memory B-tree containing the given sorted keys and their
+     * values, starting with the leaves, up to the root page which is returned. The elements are
+     * evenly spread on the pages of each level, so that none of them is less than half full.
+     *
+     * @param btree The in-memory B-tree
+     * @param revision The revision of the created pages
+     * @param keys The sorted keys
+     * @param values The values of each key
+     * @return The root page
      */
-    private Page<K, V> addLeaves( BTree<K, V> btree, List<Tuple<K, V>> tuples, int maxElements )
+    /* no qualifier */static <K, V> Page<K, V> createPages( BTree<K, V> btree, long revision, List<K> keys,
+        List<ValueHolder<V>> values )
     {
-        if ( tuples.size() == 0 )
+        int pageSize = btree.getPageSize();
+        int nbKeys = keys.size();
+
+        if ( nbKeys == 0 )
         {
-            // No element to inject in the BTree
-            return null;
+            return new InMemoryLeaf<K, V>( btree, revision, 0 );
         }
 
-        // The insertion position in the leaf
-        int leafPos = 0;
+        // First create the leaves
+        int nbPages = ( nbKeys + pageSize - 1 ) / pageSize;
+        List<Page<K, V>> pages = new ArrayList<Page<K, V>>( nbPages );
+        int pos = 0;
 
-        // Deal with special cases : 
-        // First, everything will fit in a single page
-        if ( tuples.size() < btree.getPageSize() )
+        for ( int i = 0; i < nbPages; i++ )
         {
-            // The leaf will be the rootPage
-            // creates a first leaf
-            InMemoryLeaf<K, V> leaf = ( InMemoryLeaf<K, V> ) BTreeFactory.createLeaf( btree, 0,
-                btreeConfiguration.getPageSize() );
+            int nbElems = ( nbKeys - pos ) / ( nbPages - i );
+            InMemoryLeaf<K, V> leaf = new InMemoryLeaf<K, V>( btree, revision, nbElems );
 
-            // Iterate on the tuples
-            for ( Tuple<K, V> tuple : tuples )
+            for ( int j = 0; j < nbElems; j++ )
             {
-                injectTuple( btree, leaf, leafPos, tuple );
-                leafPos++;
+                leaf.setKey( j, new KeyHolder<K>( keys.get( pos ) ) );
+                leaf.setValue( j, values.get( pos ) );
+                pos++;
             }
 
-            return leaf;
+            pages.add( leaf );
         }
 
-        // Second, the data will fit into a 2 level tree
-        if ( tuples.size() < maxElements )
+        // Then the nodes, level by level, until we get a single page
+        while ( pages.size() > 1 )
         {
-            // We will just create the necessary leaves and the upper node if needed
-            // We have enough tuples to fulfill the uper node.
-            // First, create the new node
-            InMemoryNode<K, V> node = ( InMemoryNode<K, V> ) BTreeFactory.createNode( btree, 0,
-                btreeConfiguration.getPageSize() );
-
-            // creates a first leaf
-            InMemoryLeaf<K, V> leaf = ( InMemoryLeaf<K, V> ) BTreeFactory.createLeaf( btree, 0,
-                btreeConfiguration.getPageSize() );
+            int nbChildren = pages.size();
+            nbPages = ( nbChildren + pageSize ) / ( pageSize + 1 );
+            List<Page<K, V>> nodes = new ArrayList<Page<K, V>>( nbPages );
+            pos = 0;
 
-            int nodePos = 0;
-
-            // Then iterate on the tuples, creating the needed pages
-            for ( Tuple<K, V> tuple : tuples )
+            for ( int i = 0; i < nbPages; i++ )
             {
-                if ( leafPos == btree.getPageSize() )
-                {
-                    // The leaf is full, we need to attach it to its parent's node
-                    // and to create a new leaf
-                    BTreeFactory.setKey( btree, node, nodePos, tuple.getKey() );
-                    PageHolder<K, V> pageHolder = new PageHolder<K, V>( btree, leaf );
-                    node.setPageHolder( nodePos, pageHolder );
-                    nodePos++;
-
-                    // When done, we need to create a new leaf
-                    leaf = ( InMemoryLeaf<K, V> ) BTreeFactory.createLeaf( btree, 0,
-                        btree.getPageSize() );
-
-                    // and inject the tuple in the leaf
-                    injectTuple( btree, leaf, 0, tuple );
-                    leafPos = 1;
-                }
-                else
-                {
-                    // Inject the tuple in the leaf
-                    injectTuple( btree, leaf, leafPos, tuple );
-                    leafPos++;
-                }
-            }
-
-            // Last, not least, deal with the last created leaf, which has to be injected in its parent's node
-            if ( leafPos > 0 )
-            {
-                PageHolder<K, V> pageHolder = new PageHolder<K, V>( btree, leaf );
-                node.setPageHolder( nodePos, pageHolder );
-            }
-
-            return node;
-        }
-        else
-        {
-            // We have enough tuples to fulfill the upper node.
-            // First, create the new node
-            InMemoryNode<K, V> node = ( InMemoryNode<K, V> ) BTreeFactory.createNode( btree, 0,
-                btreeConfiguration.getPageSize() );
-
-            // creates a first leaf
-            InMemoryLeaf<K, V> leaf = ( InMemoryLeaf<K, V> ) BTreeFactory.createLeaf( btree, 0,
-                btreeConfiguration.getPageSize() );
+                int nbNodeChildren = ( nbChildren - pos ) / ( nbPages - i );
+                InMemoryNode<K, V> node = new InMemoryNode<K, V>( btree, revision, nbNodeChildren - 1 );
 
-            int nodePos = 0;
-
-            // Then iterate on the tuples, creating the needed pages
-            for ( Tuple<K, V> tuple : tuples )
-            {
-                if ( leafPos == btree.getPageSize() )
+                for ( int j = 0; j < nbNodeChildren; j++ )
                 {
-                    // The leaf is full, we need to attach it to its parent's node
-                    // and to create a new node
-                    BTreeFactory.setKey( btree, node, nodePos, tuple.getKey() );
-                    PageHolder<K, V> pageHolder = new PageHolder<K, V>( btree, leaf );
-                    node.setPageHolder( nodePos, pageHolder );
-                    nodePos++;
-
-                    // When done, we need to create a new leaf
-                    leaf = ( InMemoryLeaf<K, V> ) BTreeFactory.createLeaf( btree, 0,
-                        btree.getPageSize() );
-
-                    // and inject the tuple in the leaf
-                    injectTuple( btree, leaf, 0, tuple );
-                    leafPos = 1;
-                }
-                else
-                {
-                    // Inject the tuple in the leaf
-                    injectTuple( btree, leaf, leafPos, tuple );
-                    leafPos++;
-                }
-            }
-
-            // Last, not least, deal with the last created leaf, which has to be injected in its parent's node
-            if ( leafPos > 0 )
-            {
-                PageHolder<K, V> pageHolder = new PageHolder<K, V>( btree, leaf );
-                node.setPageHolder( nodePos, pageHolder );
-            }
-
-            // And return the node
-            return node;
-        }
-    }
-
-
-    private void injectTuple( BTree<K, V> btree, InMemoryLeaf<K, V> leaf, int leafPos, Tuple<K, V> tuple )
-    {
-        BTreeFactory.setKey( btree, leaf, leafPos, tuple.getKey() );
-        ValueHolder<V> valueHolder = new InMemoryValueHolder<V>( btree, tuple.getValue() );
-        BTreeFactory.setValue( btree, leaf, leafPos, valueHolder );
-    }
-
-
-    private int add( BTree<K, V> btree, Page<K, V>[] pageStack, int level, Page<K, V> page, Tuple<K, V> tuple )
-    {
-        if ( page == null )
-        {
-            // No existing page at this level, create a new one
-            if ( level == 0 )
-            {
-                // creates a leaf
-                InMemoryLeaf<K, V> leaf = ( InMemoryLeaf<K, V> ) BTreeFactory.createLeaf( btree, 0,
-                    btreeConfiguration.getPageSize() );
+                    Page<K, V> child = pages.get( pos );
 
-                // Store the new leaf in the stack
-                pageStack[level] = leaf;
+                    if ( j > 0 )
+                    {
+                        node.setKey( j - 1, new KeyHolder<K>( child.getLeftMostKey() ) );
+                    }
 
-                // Inject the tuple in the leaf
-                BTreeFactory.setKey( btree, leaf, 0, tuple.getKey() );
-                ValueHolder<V> valueHolder = new InMemoryValueHolder<V>( btree, tuple.getValue() );
-                BTreeFactory.setValue( btree, leaf, 0, valueHolder );
-            }
-            else
-            {
-                // Create a node
-                InMemoryNode<K, V> node = ( InMemoryNode<K, V> ) BTreeFactory.createNode( btree, 0,
-                    btreeConfiguration.getPageSize() );
-
-                // Inject the tuple key in the node
-                BTreeFactory.setKey( btree, node, 0, tuple.getKey() );
-                PageHolder<K, V> pageHolder = new PageHolder<K, V>( btree, pageStack[level - 1] );
-                node.setPageHolder( 0, pageHolder );
-            }
-        }
-        else
-        {
-            // Check first if the current page is full
-            if ( page.getNbElems() == btree.getPageSize() )
-            {
-                // Ok, it's full. We need to create a new page and to propagate the
-                // added element to the upper level
-                //TODO
-            }
-            else
-            {
-                // We just have to inject the tuple in the current page
-                // be it a leaf or a node
-                if ( page.isLeaf() )
-                {
-                    // It's a leaf
-                    BTreeFactory.setKey( btree, page, page.getNbElems(), tuple.getKey() );
-                    ValueHolder<V> valueHolder = new InMemoryValueHolder<V>( btree, tuple.getValue() );
-                    BTreeFactory.setValue( btree, page, page.getNbElems(), valueHolder );
-                }
-                else
-                {
-                    // It's a node
-                    BTreeFactory.setKey( btree, page, page.getNbElems(), tuple.getKey() );
-                    PageHolder<K, V> pageHolder = new PageHolder<K, V>( btree, pageStack[level - 1] );
-                    ( ( InMemoryNode<K, V> ) page ).setPageHolder( page.getNbElems(), pageHolder );
+                    node.setPageHolder( j, new PageHolder<K, V>( btree, child ) );
+                    pos++;
                 }
-            }
-        }
-
-        return level;
-    }
-
-
-    @SuppressWarnings("unchecked")
-    private Page<K, V> attachNodes( List<Page<K, V>> children, BTree<K, V> btree ) throws IOException
-    {
-        if ( children.size() == 1 )
-        {
-            return children.get( 0 );
-        }
-
-        List<Page<K, V>> lstNodes = new ArrayList<Page<K, V>>();
-
-        int numChildren = btreeConfiguration.getPageSize() + 1;
 
-        InMemoryNode<K, V> node = ( InMemoryNode<K, V> ) BTreeFactory.createNode( btree, 0,
-            btreeConfiguration.getPageSize() );
-        lstNodes.add( node );
-        int i = 0;
-        int totalNodes = 0;
-
-        for ( Page<K, V> p : children )
-        {
-            if ( i != 0 )
-            {
-                BTreeFactory.setKey( btree, node, i - 1, p.getLeftMostKey() );
+                nodes.add( node );
             }
 
-            node.setPageHolder( i, new PageHolder<K, V>( btree, p ) );
-
-            i++;
-            totalNodes++;
-
-            if ( ( totalNodes % numChildren ) == 0 )
-            {
-                i = 0;
-                node = ( InMemoryNode<K, V> ) BTreeFactory.createNode( btree, 0, btreeConfiguration.getPageSize() );
-                lstNodes.add( node );
-            }
-        }
-
-        // remove null keys and values from the last node and resize
-        AbstractPage<K, V> lastNode = ( AbstractPage<K, V> ) lstNodes.get( lstNodes.size() - 1 );
-
-        for ( int j = 0; j < lastNode.getNbElems(); j++ )
-        {
-            if ( lastNode.getKey( j ) == null )
-            {
-                int n = j;
-                lastNode.setNbElems( n );
-                KeyHolder<K>[] keys = lastNode.getKeys();
-
-                lastNode.setKeys( ( KeyHolder[] ) Array.newInstance( KeyHolder.class, n ) );
-                System.arraycopy( keys, 0, lastNode.getKeys(), 0, n );
-
-                break;
-            }
+            pages = nodes;
         }
 
-        return attachNodes( lstNodes, btree );
+        return pages.get( 0 );
     }
 }
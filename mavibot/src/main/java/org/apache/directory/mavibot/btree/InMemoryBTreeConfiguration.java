@@ -81,6 +81,25 @@ public class InMemoryBTreeConfiguration<K, V>
      */
     private long checkPointDelay = 60 * 1000L;
 
+    /**
+     * The number of modifications forced together on disk in the journal. When it's 1,
+     * which is the default, each modification is forced before the operation returns.
+     * Otherwise, a background thread forces the journal for groups of modifications.
+     */
+    private int journalGroupSize = JournalWriter.DEFAULT_GROUP_SIZE;
+
+    /**
+     * The maximum delay a modification waits for its group to be filled before the
+     * journal is forced on disk, in milliseconds. The default value is 10 ms.
+     */
+    private long journalMaxDelay = JournalWriter.DEFAULT_MAX_DELAY;
+
+    /** The size of the blocks of the B-tree file before compression, in bytes. The default value is 64 Kb */
+    private int snapshotBlockSize = SnapshotFile.DEFAULT_BLOCK_SIZE;
+
+    /** Tells if the blocks of the B-tree file are compressed. They aren't by default */
+    private boolean snapshotCompressed = false;
+
     /** Flag to enable duplicate key support */
     private boolean allowDuplicates;
 
@@ -207,6 +226,78 @@ public class InMemoryBTreeConfiguration<K, V>
     }
 
 
+    /**
+     * @return the number of modifications forced together on disk in the journal
+     */
+    public int getJournalGroupSize()
+    {
+        return journalGroupSize;
+    }
+
+
+    /**
+     * @param journalGroupSize the number of modifications forced together on disk in the journal
+     */
+    public void setJournalGroupSize( int journalGroupSize )
+    {
+        this.journalGroupSize = journalGroupSize;
+    }
+
+
+    /**
+     * @return the maximum delay before the journal is forced on disk, in milliseconds
+     */
+    public long getJournalMaxDelay()
+    {
+        return journalMaxDelay;
+    }
+
+
+    /**
+     * @param journalMaxDelay the maximum delay before the journal is forced on disk, in milliseconds
+     */
+    public void setJournalMaxDelay( long journalMaxDelay )
+    {
+        this.journalMaxDelay = journalMaxDelay;
+    }
+
+
+    /**
+     * @return the size of the blocks of the B-tree file before compression, in bytes
+     */
+    public int getSnapshotBlockSize()
+    {
+        return snapshotBlockSize;
+    }
+
+
+    /**
+     * @param snapshotBlockSize the size of the blocks of the B-tree file before compression, in bytes
+     */
+    public void setSnapshotBlockSize( int snapshotBlockSize )
+    {
+        this.snapshotBlockSize = snapshotBlockSize;
+    }
+
+
+    /**
+     * @return true if the blocks of the B-tree file are compressed
+     */
+    public boolean isSnapshotCompressed()
+    {
+        return snapshotCompressed;
+    }
+
+
+    /**
+     * @param snapshotCompressed true if the blocks of the B-tree file have to be compressed
+     */
+    public void setSnapshotCompressed( boolean snapshotCompressed )
+    {
+        this.snapshotCompressed = snapshotCompressed;
+    }
+
+
     /**
      * @return the filePath
      */
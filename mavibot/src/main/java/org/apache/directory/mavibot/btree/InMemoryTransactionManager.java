@@ -19,34 +19,35 @@
  */
 package org.apache.directory.mavibot.btree;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * An implementation of a TransactionManager for in-memory B-trees
+ * An implementation of a TransactionManager for in-memory B-trees. The writers are
+ * serialized by a lock, but the readers never take it : the current BTreeHeaders are
+ * published in an immutable map, which is replaced when a transaction is committed.
+ * Getting a BTreeHeader is a single volatile read.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 public class InMemoryTransactionManager extends AbstractTransactionManager
 {
-    /** A lock to protect the transaction handling */
-    private Lock transactionLock = new ReentrantLock();
-    
-    /** A ThreadLocalStorage used to store the current transaction */
-    private static final ThreadLocal<Integer> context = new ThreadLocal<Integer>();
-    
-    /** A Map keeping the latest revisions for each managed BTree */
-    private Map<String, BTreeHeader<?, ?>> currentBTreeHeaders = new HashMap<String, BTreeHeader<?, ?>>();
-
-    /** A Map storing the new revisions when some change have been made in some BTrees */
+    /** A lock to protect the transaction handling. Its hold count is the transaction level */
+    private ReentrantLock transactionLock = new ReentrantLock();
+
+    /** Set when the current transaction has been rollbacked. Protected by the transaction lock */
+    private boolean rollbacked = false;
+
+    /** The immutable map of the latest revisions for each managed BTree */
+    private AtomicReference<Map<String, BTreeHeader<?, ?>>> currentBTreeHeaders =
+        new AtomicReference<Map<String, BTreeHeader<?, ?>>>( Collections.<String, BTreeHeader<?, ?>> emptyMap() );
+
+    /** A Map storing the new revisions when some change have been made in some BTrees. Protected by the transaction lock */
     private Map<String, BTreeHeader<?, ?>> newBTreeHeaders = new HashMap<String, BTreeHeader<?, ?>>();
-    
-    /** A lock to protect the BtreeHeader maps */
-    private ReadWriteLock btreeHeadersLock = new ReentrantReadWriteLock();
+
 
     /**
      * {@inheritDoc}
@@ -54,21 +55,8 @@ public class InMemoryTransactionManager extends AbstractTransactionManager
     @Override
     public void beginTransaction()
     {
-        // First, take the lock
+        // Take the lock. An inner transaction just increments its hold count
         transactionLock.lock();
-        
-        // Now, check the TLS state
-        Integer nbTxnLevel = context.get();
-        
-        if ( nbTxnLevel == null )
-        {
-            context.set( 1 );
-        }
-        else
-        {
-            // And increment the counter of inner txn.
-            context.set( nbTxnLevel + 1 );
-        }
     }
 
 
@@ -78,20 +66,17 @@ public class InMemoryTransactionManager extends AbstractTransactionManager
     @Override
     public void commit()
     {
-        int nbTxnStarted = context.get();
-        
-        if ( nbTxnStarted == 0 )
+        if ( transactionLock.getHoldCount() == 1 )
         {
-            // The transaction was rollbacked, quit immediatelly
-            transactionLock.unlock();
-            
-            return;
-        }
-        else
-        {
-            
-            // And decrement the number of started transactions
-            context.set( nbTxnStarted - 1 );
+            // This is the outer transaction : make the new revisions visible,
+            // unless the transaction has been rollbacked
+            if ( !rollbacked )
+            {
+                publish( newBTreeHeaders );
+            }
+
+            newBTreeHeaders.clear();
+            rollbacked = false;
         }
 
         // Finally, release the global lock
@@ -105,39 +90,87 @@ public class InMemoryTransactionManager extends AbstractTransactionManager
     @Override
     public void rollback()
     {
-        // Reset the counter
-        context.set( 0 );
+        // The new revisions will never be visible
+        newBTreeHeaders.clear();
+
+        rollbacked = ( transactionLock.getHoldCount() > 1 );
 
         // Finally, release the global lock
         transactionLock.unlock();
     }
-    
-    
+
+
     /**
      * Get the current BTreeHeader for a given Btree. It might not exist
      */
     public BTreeHeader getBTreeHeader( String name )
     {
-        // Get a lock
-        btreeHeadersLock.readLock().lock();
-        
-        // get the current BTree Header for this BTree and revision
-        BTreeHeader<?, ?> btreeHeader = currentBTreeHeaders.get( name );
-        
-        // And unlock 
-        btreeHeadersLock.readLock().unlock();
-
-        return btreeHeader;
+        return currentBTreeHeaders.get().get( name );
+    }
+
+
+    /**
+     * Get the BTreeHeader a thread has to use for a given Btree : the one modified by the
+     * current transaction if the thread is a writer, or the current one.
+     *
+     * @param name The BTree name
+     * @return The BTreeHeader, or null if it does not exist
+     */
+    /* no qualifier */BTreeHeader<?, ?> getTransactionBTreeHeader( String name )
+    {
+        if ( transactionLock.isHeldByCurrentThread() )
+        {
+            BTreeHeader<?, ?> btreeHeader = newBTreeHeaders.get( name );
+
+            if ( btreeHeader != null )
+            {
+                return btreeHeader;
+            }
+        }
+
+        return currentBTreeHeaders.get().get( name );
     }
 
 
-    
-    
     /**
      * {@inheritDoc}
      */
     public void updateNewBTreeHeaders( BTreeHeader btreeHeader )
     {
-        newBTreeHeaders.put( btreeHeader.getBtree().getName(), btreeHeader );
+        String name = btreeHeader.getBtree().getName();
+
+        if ( transactionLock.isHeldByCurrentThread() )
+        {
+            newBTreeHeaders.put( name, btreeHeader );
+        }
+        else
+        {
+            // Not in a transaction : the revision is immediately visible
+            publish( Collections.<String, BTreeHeader<?, ?>> singletonMap( name, btreeHeader ) );
+        }
+    }
+
+
+    /**
+     * Replace the map of the current BTreeHeaders by a copy containing the new ones
+     */
+    private void publish( Map<String, BTreeHeader<?, ?>> btreeHeaders )
+    {
+        if ( btreeHeaders.isEmpty() )
+        {
+            return;
+        }
+
+        while ( true )
+        {
+            Map<String, BTreeHeader<?, ?>> current = currentBTreeHeaders.get();
+            Map<String, BTreeHeader<?, ?>> updated = new HashMap<String, BTreeHeader<?, ?>>( current );
+            updated.putAll( btreeHeaders );
+
+            if ( currentBTreeHeaders.compareAndSet( current, Collections.unmodifiableMap( updated ) ) )
+            {
+                return;
+            }
+        }
     }
 }
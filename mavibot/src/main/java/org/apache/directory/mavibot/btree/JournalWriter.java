@@ -0,0 +1,622 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A class writing the modifications of an InMemoryBTree into its journal. The modifications
+ * are serialized into a reusable append buffer, and each one gets a sequence number.<br/>
+ * When the group size is 1, each modification is written and forced on disk before
+ * the append returns. Otherwise, a background thread writes the buffer and forces the
+ * journal once the group is full, or once the oldest pending modification has waited
+ * for the maximum delay : the callers get a Future which is done when their modification
+ * is durable.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */class JournalWriter implements Runnable
+{
+    /** The LoggerFactory used by this class */
+    protected static final Logger LOG = LoggerFactory.getLogger( JournalWriter.class );
+
+    /** The default number of modifications forced on disk together */
+    public static final int DEFAULT_GROUP_SIZE = 1;
+
+    /** The default maximum delay before the pending modifications are forced on disk, in milliseconds */
+    public static final long DEFAULT_MAX_DELAY = 10L;
+
+    /** The journal channel */
+    private FileChannel channel;
+
+    /** The buffer in which the modifications are serialized */
+    private ByteBuffer buffer;
+
+    /** The maximum number of modifications forced on disk together */
+    private int groupSize;
+
+    /** The maximum delay a modification waits before being forced on disk, in ns */
+    private long maxDelay;
+
+    /** The lock protecting the buffer, the channel writes and the sequences */
+    private ReentrantLock lock = new ReentrantLock();
+
+    /** The condition used to wake up the flusher */
+    private Condition modificationAppended = lock.newCondition();
+
+    /** The condition used to wake up the threads waiting for their modification to be durable */
+    private Condition journalForced = lock.newCondition();
+
+    /** The sequence of the last appended modification */
+    private long appendedSequence = 0L;
+
+    /** The sequence of the last modification which is on disk */
+    private long durableSequence = 0L;
+
+    /** The error which has stopped the flusher, if any */
+    private IOException failure;
+
+    /** The thread running the flusher, null when the modifications are forced synchronously */
+    private Thread thread;
+
+    /** Set while the flusher is forcing the channel without holding the lock */
+    private boolean forcing = false;
+
+    /** Set when the flusher has to stop */
+    private boolean stopped = false;
+
+    /** The number of times the journal has been forced */
+    private AtomicLong nbSyncs = new AtomicLong( 0 );
+
+
+    /**
+     * Creates a new JournalWriter instance
+     *
+     * @param channel The journal channel
+     * @param bufferSize The size of the append buffer
+     * @param groupSize The maximum number of modifications forced on disk together
+     * @param maxDelay The maximum delay before the pending modifications are forced on disk, in milliseconds
+     */
+    /* no qualifier */JournalWriter( FileChannel channel, int bufferSize, int groupSize, long maxDelay )
+    {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect( bufferSize );
+        this.groupSize = Math.max( 1, groupSize );
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos( Math.max( 0L, maxDelay ) );
+
+        if ( this.groupSize > 1 )
+        {
+            thread = new Thread( this, "Mavibot-JournalFlusher" );
+            thread.setDaemon( true );
+            thread.start();
+        }
+    }
+
+
+    /**
+     * Append a modification to the journal.
+     *
+     * @param type The modification type, {@link Modification#ADDITION} or {@link Modification#DELETION}
+     * @param key The serialized key
+     * @param value The serialized value, or null for a deletion
+     * @return The sequence of the modification
+     * @throws IOException If the journal can't be written
+     */
+    /* no qualifier */long append( byte type, byte[] key, byte[] value ) throws IOException
+    {
+        lock.lock();
+
+        try
+        {
+            checkFailure();
+
+            put( new byte[]
+                { type } );
+            put( key );
+
+            if ( value != null )
+            {
+                put( value );
+            }
+
+            appendedSequence++;
+
+            if ( thread == null )
+            {
+                // No group : the modification is durable when we return
+                writeBuffer();
+                channel.force( true );
+                nbSyncs.incrementAndGet();
+                durableSequence = appendedSequence;
+            }
+            else if ( appendedSequence - durableSequence >= groupSize )
+            {
+                // The group is full, wake up the flusher
+                modificationAppended.signal();
+            }
+            else if ( appendedSequence - durableSequence == 1 )
+            {
+                // The first modification of the group starts the delay
+                modificationAppended.signal();
+            }
+
+            return appendedSequence;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Copy some data into the buffer, writing it into the channel when it's full
+     */
+    private void put( byte[] data ) throws IOException
+    {
+        if ( data.length > buffer.remaining() )
+        {
+            writeBuffer();
+
+            if ( data.length > buffer.capacity() )
+            {
+                // Too big to be buffered
+                ByteBuffer bb = ByteBuffer.wrap( data );
+
+                while ( bb.hasRemaining() )
+                {
+                    channel.write( bb );
+                }
+
+                return;
+            }
+        }
+
+        buffer.put( data );
+    }
+
+
+    /**
+     * Write the buffered data into the channel. Must be called holding the lock.
+     */
+    private void writeBuffer() throws IOException
+    {
+        if ( buffer.position() > 0 )
+        {
+            buffer.flip();
+
+            while ( buffer.hasRemaining() )
+            {
+                channel.write( buffer );
+            }
+
+            buffer.clear();
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run()
+    {
+        lock.lock();
+
+        try
+        {
+            while ( true )
+            {
+                if ( appendedSequence == durableSequence )
+                {
+                    if ( stopped )
+                    {
+                        break;
+                    }
+
+                    modificationAppended.awaitUninterruptibly();
+
+                    continue;
+                }
+
+                // Wait for the group to be filled, or for the delay to expire
+                long remaining = maxDelay;
+
+                while ( !stopped && ( appendedSequence - durableSequence < groupSize ) && ( remaining > 0L ) )
+                {
+                    try
+                    {
+                        remaining = modificationAppended.awaitNanos( remaining );
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        // Flush what we have
+                        break;
+                    }
+                }
+
+                if ( !sync() )
+                {
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Write the pending modifications and force them on disk. The lock is released while
+     * the journal is forced, so that the writers can append the next group. Must be
+     * called holding the lock.
+     *
+     * @return <code>false</code> if the journal can't be written anymore
+     */
+    private boolean sync()
+    {
+        long target = appendedSequence;
+
+        try
+        {
+            writeBuffer();
+        }
+        catch ( IOException ioe )
+        {
+            failed( ioe );
+
+            return false;
+        }
+
+        // The journal can't be rotated while we are forcing it : the flag is checked by rotate()
+        FileChannel forcedChannel = channel;
+        forcing = true;
+
+        lock.unlock();
+
+        IOException error = null;
+
+        try
+        {
+            forcedChannel.force( true );
+        }
+        catch ( IOException ioe )
+        {
+            error = ioe;
+        }
+        finally
+        {
+            lock.lock();
+            forcing = false;
+        }
+
+        if ( error != null )
+        {
+            failed( error );
+
+            return false;
+        }
+
+        nbSyncs.incrementAndGet();
+
+        if ( target > durableSequence )
+        {
+            durableSequence = target;
+        }
+
+        LOG.debug( "Journal forced up to the modification {}", target );
+
+        journalForced.signalAll();
+
+        return true;
+    }
+
+
+    /**
+     * Store the error which stops the flusher, and wake up the waiters. Must be called holding the lock.
+     */
+    private void failed( IOException ioe )
+    {
+        LOG.error( "Cannot write the journal", ioe );
+        failure = ioe;
+        journalForced.signalAll();
+    }
+
+
+    /**
+     * Throws the error which has stopped the flusher, if any. Must be called holding the lock.
+     */
+    private void checkFailure() throws IOException
+    {
+        if ( failure != null )
+        {
+            throw new IOException( "The journal can't be written : " + failure.getMessage(), failure );
+        }
+    }
+
+
+    /**
+     * Waits until a modification is on disk
+     *
+     * @param sequence The modification sequence
+     * @throws IOException If the journal can't be written
+     */
+    /* no qualifier */void awaitDurable( long sequence ) throws IOException
+    {
+        lock.lock();
+
+        try
+        {
+            while ( durableSequence < sequence )
+            {
+                checkFailure();
+                journalForced.awaitUninterruptibly();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Waits until a modification is on disk, or until the timeout expires
+     *
+     * @return <code>true</code> if the modification is on disk
+     */
+    private boolean awaitDurable( long sequence, long timeout ) throws IOException, InterruptedException
+    {
+        long remaining = timeout;
+
+        lock.lock();
+
+        try
+        {
+            while ( durableSequence < sequence )
+            {
+                checkFailure();
+
+                if ( remaining <= 0L )
+                {
+                    return false;
+                }
+
+                remaining = journalForced.awaitNanos( remaining );
+            }
+
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Gets a Future which is done when a modification is on disk. Its value is the
+     * modification sequence.
+     *
+     * @param sequence The modification sequence
+     * @return The Future
+     */
+    /* no qualifier */Future<Long> getFuture( final long sequence )
+    {
+        return new Future<Long>()
+        {
+            public boolean cancel( boolean mayInterruptIfRunning )
+            {
+                return false;
+            }
+
+
+            public boolean isCancelled()
+            {
+                return false;
+            }
+
+
+            public boolean isDone()
+            {
+                return getDurableSequence() >= sequence;
+            }
+
+
+            public Long get() throws ExecutionException
+            {
+                try
+                {
+                    awaitDurable( sequence );
+                }
+                catch ( IOException ioe )
+                {
+                    throw new ExecutionException( ioe );
+                }
+
+                return sequence;
+            }
+
+
+            public Long get( long timeout, TimeUnit unit ) throws InterruptedException, ExecutionException,
+                TimeoutException
+            {
+                try
+                {
+                    if ( !awaitDurable( sequence, unit.toNanos( timeout ) ) )
+                    {
+                        throw new TimeoutException( "The modification " + sequence + " is not durable yet" );
+                    }
+                }
+                catch ( IOException ioe )
+                {
+                    throw new ExecutionException( ioe );
+                }
+
+                return sequence;
+            }
+        };
+    }
+
+
+    /**
+     * Switch to a new journal segment. All the pending modifications are written and
+     * forced into the current segment first, so they are all durable when we return.
+     * The next modifications will be appended to the new segment. If the flusher is
+     * forcing the current segment, we wait for it to be done, so that the previous segment
+     * can be closed as soon as we return.
+     *
+     * @param newChannel The channel of the new segment
+     * @return The channel of the previous segment, which is not closed
+     * @throws IOException If the pending modifications can't be forced on disk
+     */
+    /* no qualifier */FileChannel rotate( FileChannel newChannel ) throws IOException
+    {
+        lock.lock();
+
+        try
+        {
+            while ( forcing )
+            {
+                journalForced.awaitUninterruptibly();
+            }
+
+            checkFailure();
+            writeBuffer();
+            channel.force( true );
+            nbSyncs.incrementAndGet();
+            durableSequence = appendedSequence;
+
+            journalForced.signalAll();
+
+            FileChannel oldChannel = channel;
+            channel = newChannel;
+
+            return oldChannel;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Stop the flusher, once all the pending modifications have been forced on disk
+     */
+    /* no qualifier */void close()
+    {
+        if ( thread == null )
+        {
+            return;
+        }
+
+        lock.lock();
+
+        try
+        {
+            stopped = true;
+            modificationAppended.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        try
+        {
+            thread.join();
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * @return The sequence of the last appended modification
+     */
+    /* no qualifier */long getAppendedSequence()
+    {
+        lock.lock();
+
+        try
+        {
+            return appendedSequence;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The sequence of the last modification which is on disk
+     */
+    /* no qualifier */long getDurableSequence()
+    {
+        lock.lock();
+
+        try
+        {
+            return durableSequence;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The number of times the journal has been forced on disk
+     */
+    /* no qualifier */long getNbSyncs()
+    {
+        return nbSyncs.get();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "JournalWriter[groupSize:" + groupSize + ", appended:" + getAppendedSequence() + ", durable:"
+            + getDurableSequence() + ", syncs:" + nbSyncs.get() + "]";
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Encodes and decodes the serialized keys of a page stored with the
+ * {@link PageFormatEnum#PREFIX_COMPRESSED} format. Each key is stored relatively to the previous
+ * key in the page :
+ * <pre>
+ * +------------+
+ * | prefix     | The number of leading bytes shared with the previous key (varint)
+ * +------------+
+ * | patch      | The number of bytes following the prefix, stored in full (varint)
+ * +------------+
+ * | shared     | The number of bytes following the patch, shared with the previous key (varint)
+ * +------------+
+ * | suffix     | The number of remaining bytes, stored in full (varint)
+ * +------------+
+ * | patchBytes | The patch bytes
+ * +------------+
+ * | suffixBytes| The suffix bytes
+ * +------------+
+ * </pre>
+ * The patch allows keys which serialized form starts with their length, like Strings, to share
+ * the bytes following the length, when two adjacent keys don't have the same length.<br/>
+ * The varints are stored on 7 bits per byte, the high bit being set when more bytes follow.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* No qualifier*/final class KeyPrefixCompressor
+{
+    /** The maximum number of bytes in a patch */
+    /* no qualifier */static final int MAX_PATCH_LENGTH = 4;
+
+
+    private KeyPrefixCompressor()
+    {
+    }
+
+
+    /**
+     * Encode a serialized key relatively to the previous key of the page
+     *
+     * @param previousKey The previous serialized key in the page, or null for the first key
+     * @param key The serialized key to encode
+     * @return The encoded key
+     */
+    /* no qualifier */static byte[] compress( byte[] previousKey, byte[] key )
+    {
+        int prefix = 0;
+        int patch = 0;
+        int shared = 0;
+
+        if ( previousKey != null )
+        {
+            prefix = commonLength( previousKey, key, 0 );
+
+            // Check if some bytes after a small patch are shared with the previous key
+            for ( int length = 1; length <= MAX_PATCH_LENGTH; length++ )
+            {
+                int start = prefix + length;
+
+                if ( ( start >= key.length ) || ( start >= previousKey.length ) )
+                {
+                    break;
+                }
+
+                int common = commonLength( previousKey, key, start );
+
+                if ( common - length > shared - patch )
+                {
+                    patch = length;
+                    shared = common;
+                }
+            }
+        }
+
+        int suffix = key.length - prefix - patch - shared;
+
+        byte[] encoded = new byte[varIntSize( prefix ) + varIntSize( patch ) + varIntSize( shared )
+            + varIntSize( suffix ) + patch + suffix];
+
+        int pos = writeVarInt( encoded, 0, prefix );
+        pos = writeVarInt( encoded, pos, patch );
+        pos = writeVarInt( encoded, pos, shared );
+        pos = writeVarInt( encoded, pos, suffix );
+        System.arraycopy( key, prefix, encoded, pos, patch );
+        System.arraycopy( key, prefix + patch + shared, encoded, pos + patch, suffix );
+
+        return encoded;
+    }
+
+
+    /**
+     * Decode a serialized key stored relatively to the previous key of the page
+     *
+     * @param buffer The buffer containing the encoded key, at its current position
+     * @param previousKey The previous serialized key in the page, or null for the first key
+     * @return The serialized key
+     */
+    /* no qualifier */static byte[] decompress( ByteBuffer buffer, byte[] previousKey )
+    {
+        int prefix = readVarInt( buffer );
+        int patch = readVarInt( buffer );
+        int shared = readVarInt( buffer );
+        int suffix = readVarInt( buffer );
+
+        byte[] key = new byte[prefix + patch + shared + suffix];
+
+        if ( prefix > 0 )
+        {
+            System.arraycopy( previousKey, 0, key, 0, prefix );
+        }
+
+        buffer.get( key, prefix, patch );
+
+        if ( shared > 0 )
+        {
+            System.arraycopy( previousKey, prefix + patch, key, prefix + patch, shared );
+        }
+
+        buffer.get( key, prefix + patch + shared, suffix );
+
+        return key;
+    }
+
+
+    /**
+     * @return The number of equal bytes in the two arrays, starting at a given position
+     */
+    private static int commonLength( byte[] bytes1, byte[] bytes2, int start )
+    {
+        int max = Math.min( bytes1.length, bytes2.length );
+        int pos = start;
+
+        while ( ( pos < max ) && ( bytes1[pos] == bytes2[pos] ) )
+        {
+            pos++;
+        }
+
+        return pos - start;
+    }
+
+
+    /**
+     * @return The number of bytes needed to store a positive int as a varint
+     */
+    private static int varIntSize( int value )
+    {
+        int size = 1;
+
+        while ( ( value & ~0x7F ) != 0 )
+        {
+            value >>>= 7;
+            size++;
+        }
+
+        return size;
+    }
+
+
+    /**
+     * Store a positive int as a varint
+     *
+     * @return The position following the stored varint
+     */
+    private static int writeVarInt( byte[] buffer, int pos, int value )
+    {
+        while ( ( value & ~0x7F ) != 0 )
+        {
+            buffer[pos++] = ( byte ) ( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+
+        buffer[pos++] = ( byte ) value;
+
+        return pos;
+    }
+
+
+    /**
+     * Read a varint
+     */
+    private static int readVarInt( ByteBuffer buffer )
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+
+        do
+        {
+            b = buffer.get();
+            value |= ( b & 0x7F ) << shift;
+            shift += 7;
+        }
+        while ( ( b & 0x80 ) != 0 );
+
+        return value;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * A tournament tree of losers, used to merge N sorted sources. Each internal node
+ * stores the source which lost the match played at this node, and the root stores
+ * the overall winner. Pulling an element only replays the matches on the path from
+ * the winner leaf to the root, ie log2(N) comparisons.<br/>
+ * When two sources have equal elements, the source with the lowest index wins.
+ *
+ * @param <E> The type of the merged elements
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */class LoserTree<E>
+{
+    /** The sorted sources */
+    private final Iterator<E>[] sources;
+
+    /** The current element of each source, null if the source is exhausted */
+    private final Object[] heads;
+
+    /** The comparator used to order the elements */
+    private final Comparator<E> comparator;
+
+    /** The losers of each match. The element 0 is the overall winner */
+    private final int[] tree;
+
+
+    /**
+     * Creates a new LoserTree instance
+     *
+     * @param sources The sources to merge, each one of them being sorted
+     * @param comparator The comparator used to order the elements
+     */
+    /* no qualifier */LoserTree( Iterator<E>[] sources, Comparator<E> comparator )
+    {
+        this.sources = sources;
+        this.comparator = comparator;
+        heads = new Object[sources.length];
+        tree = new int[Math.max( 1, sources.length )];
+
+        for ( int i = 0; i < sources.length; i++ )
+        {
+            heads[i] = sources[i].hasNext() ? sources[i].next() : null;
+        }
+
+        if ( sources.length > 0 )
+        {
+            tree[0] = build( 1 );
+        }
+    }
+
+
+    /**
+     * Play the matches of the subtree starting at the given node, and return its winner
+     */
+    private int build( int node )
+    {
+        int nbSources = sources.length;
+
+        if ( node >= nbSources )
+        {
+            // A leaf
+            return node - nbSources;
+        }
+
+        int left = build( 2 * node );
+        int right = build( 2 * node + 1 );
+
+        if ( beats( left, right ) )
+        {
+            tree[node] = right;
+
+            return left;
+        }
+        else
+        {
+            tree[node] = left;
+
+            return right;
+        }
+    }
+
+
+    /**
+     * Tells if the first source wins against the second one. An exhausted source
+     * always loses.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean beats( int source1, int source2 )
+    {
+        Object head1 = heads[source1];
+        Object head2 = heads[source2];
+
+        if ( head1 == null )
+        {
+            return ( head2 == null ) && ( source1 < source2 );
+        }
+
+        if ( head2 == null )
+        {
+            return true;
+        }
+
+        int result = comparator.compare( ( E ) head1, ( E ) head2 );
+
+        return ( result < 0 ) || ( ( result == 0 ) && ( source1 < source2 ) );
+    }
+
+
+    /**
+     * @return <code>true</code> if all the sources are exhausted
+     */
+    /* no qualifier */boolean isEmpty()
+    {
+        return ( sources.length == 0 ) || ( heads[tree[0]] == null );
+    }
+
+
+    /**
+     * @return The smallest element of all the sources, without removing it
+     * @throws NoSuchElementException If all the sources are exhausted
+     */
+    @SuppressWarnings("unchecked")
+    /* no qualifier */E peek()
+    {
+        if ( isEmpty() )
+        {
+            throw new NoSuchElementException();
+        }
+
+        return ( E ) heads[tree[0]];
+    }
+
+
+    /**
+     * Remove the smallest element of all the sources, and return it
+     *
+     * @return The smallest element
+     * @throws NoSuchElementException If all the sources are exhausted
+     */
+    /* no qualifier */E next()
+    {
+        E element = peek();
+        int winner = tree[0];
+
+        heads[winner] = sources[winner].hasNext() ? sources[winner].next() : null;
+
+        // Replay the matches from the leaf up to the root
+        for ( int node = ( winner + sources.length ) / 2; node > 0; node /= 2 )
+        {
+            if ( beats( tree[node], winner ) )
+            {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+
+        tree[0] = winner;
+
+        return element;
+    }
+}
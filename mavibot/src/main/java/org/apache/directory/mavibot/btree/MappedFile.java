@@ -0,0 +1,188 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A read only memory mapping of the database file, used to read the pages without
+ * any system call nor any copy.<br/>
+ * The file is mapped in segments, each one of them containing a whole number of pages.
+ * A segment is mapped up to the end of the file, and mapped again when a page past
+ * its end is requested, after the file has grown.<br/>
+ * The returned buffers are read only views on the file : they must be copied
+ * before being modified (see {@link PageIO#getWritableData()}).
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* No qualifier*/class MappedFile
+{
+    /** The LoggerFactory used by this class */
+    protected static final Logger LOG = LoggerFactory.getLogger( MappedFile.class );
+
+    /** The default maximum size of a segment */
+    /* no qualifier */static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** The mapped file */
+    private final FileChannel fileChannel;
+
+    /** The page size */
+    private final int pageSize;
+
+    /** The size of a segment, a multiple of the page size */
+    private final int segmentSize;
+
+    /** The mapped segments. A segment may be null if it hasn't been mapped yet */
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    /** The number of times a segment has been mapped */
+    private long nbMappings;
+
+
+    /**
+     * Creates a new instance of MappedFile.
+     *
+     * @param fileChannel The file to map
+     * @param pageSize The page size
+     */
+    /* no qualifier */MappedFile( FileChannel fileChannel, int pageSize )
+    {
+        this( fileChannel, pageSize, DEFAULT_SEGMENT_SIZE );
+    }
+
+
+    /**
+     * Creates a new instance of MappedFile.
+     *
+     * @param fileChannel The file to map
+     * @param pageSize The page size
+     * @param segmentSize The maximum size of a segment. It will be rounded down to a multiple of the page size
+     */
+    /* no qualifier */MappedFile( FileChannel fileChannel, int pageSize, int segmentSize )
+    {
+        this.fileChannel = fileChannel;
+        this.pageSize = pageSize;
+        this.segmentSize = Math.max( 1, segmentSize / pageSize ) * pageSize;
+    }
+
+
+    /**
+     * Get a read only view on the page stored at the given offset.
+     *
+     * @param offset The page offset
+     * @return The page data, or null if the page is past the end of the file
+     * @throws IOException If the file can't be mapped
+     */
+    /* no qualifier */ByteBuffer getPage( long offset ) throws IOException
+    {
+        int segmentNb = ( int ) ( offset / segmentSize );
+        int segmentPos = ( int ) ( offset % segmentSize );
+        int needed = segmentPos + pageSize;
+
+        MappedByteBuffer[] current = segments;
+        MappedByteBuffer segment = null;
+
+        if ( segmentNb < current.length )
+        {
+            segment = current[segmentNb];
+        }
+
+        if ( ( segment == null ) || ( segment.capacity() < needed ) )
+        {
+            segment = map( segmentNb, needed );
+
+            if ( segment == null )
+            {
+                return null;
+            }
+        }
+
+        // The segment is shared : work on a duplicate to set the position and limit
+        ByteBuffer page = segment.duplicate();
+        page.limit( needed );
+        page.position( segmentPos );
+
+        return page.slice();
+    }
+
+
+    /**
+     * Map a segment, up to the end of the file. Returns null if the file is too small
+     * to contain the needed number of bytes.
+     */
+    private synchronized MappedByteBuffer map( int segmentNb, int needed ) throws IOException
+    {
+        MappedByteBuffer[] current = segments;
+
+        // Someone else may have mapped the segment in the meantime
+        if ( ( segmentNb < current.length ) && ( current[segmentNb] != null )
+            && ( current[segmentNb].capacity() >= needed ) )
+        {
+            return current[segmentNb];
+        }
+
+        long start = ( long ) segmentNb * segmentSize;
+        long fileSize = fileChannel.size();
+
+        if ( fileSize < start + needed )
+        {
+            return null;
+        }
+
+        int length = ( int ) Math.min( segmentSize, fileSize - start );
+        MappedByteBuffer segment = fileChannel.map( FileChannel.MapMode.READ_ONLY, start, length );
+        nbMappings++;
+
+        LOG.debug( "Mapped {} bytes of the segment {}", length, segmentNb );
+
+        MappedByteBuffer[] newSegments = Arrays.copyOf( current, Math.max( current.length, segmentNb + 1 ) );
+        newSegments[segmentNb] = segment;
+        segments = newSegments;
+
+        return segment;
+    }
+
+
+    /**
+     * Release all the mapped segments
+     */
+    /* no qualifier */synchronized void close()
+    {
+        segments = new MappedByteBuffer[0];
+    }
+
+
+    /**
+     * @return The number of times a segment has been mapped
+     */
+    /* no qualifier */synchronized long getNbMappings()
+    {
+        return nbMappings;
+    }
+}
@@ -549,8 +549,9 @@ public class MavibotInspector
 
         dataPos += RecordManager.INT_SIZE + valueSerializerBytes.limit();
 
-        // The B-tree allowDuplicates flag
-        recordManager.readInt( btreeInfoPagesIos, dataPos );
+        // The B-tree flags : the allowDuplicates flag and the page format version
+        int flags = recordManager.readInt( btreeInfoPagesIos, dataPos );
+        btreeInfo.pageFormat = PageFormatEnum.fromVersion( flags >>> RecordManager.PAGE_FORMAT_SHIFT );
         dataPos += RecordManager.INT_SIZE;
 
         // update the checkedPages
@@ -758,6 +759,8 @@ public class MavibotInspector
         Map<String, int[]> checkedPages, int nbElems, long revision, ByteBuffer byteBuffer, PageIO[] pageIos )
         throws Exception
     {
+        byte[] previousKey = null;
+
         // Read each key and value
         for ( int i = 0; i < nbElems; i++ )
         {
@@ -775,11 +778,7 @@ public class MavibotInspector
                     checkBtree( recordManager, subBtreeOffset, checkedPages );
 
                     // Now, process the key
-                    // The key length
-                    byteBuffer.getInt();
-
-                    // The key itself
-                    btreeInfo.keySerializer.deserialize( byteBuffer );
+                    previousKey = checkKey( btreeInfo, byteBuffer, previousKey );
                 }
                 else
                 {
@@ -789,9 +788,7 @@ public class MavibotInspector
                     btreeInfo.valueSerializer.deserialize( byteBuffer );
 
                     // the key
-                    byteBuffer.getInt();
-
-                    btreeInfo.keySerializer.deserialize( byteBuffer );
+                    previousKey = checkKey( btreeInfo, byteBuffer, previousKey );
                 }
             }
             catch ( BufferUnderflowException bue )
@@ -869,6 +866,31 @@ public class MavibotInspector
     }
 
 
+    /**
+     * Check a key of a Btree page. If the page keys are prefix compressed, the
+     * serialized key is returned, as it's needed to decode the next key.
+     */
+    private static <K, V> byte[] checkKey( BtreeInfo<K, V> btreeInfo, ByteBuffer byteBuffer, byte[] previousKey )
+        throws IOException
+    {
+        if ( btreeInfo.pageFormat == PageFormatEnum.PREFIX_COMPRESSED )
+        {
+            byte[] key = KeyPrefixCompressor.decompress( byteBuffer, previousKey );
+            btreeInfo.keySerializer.fromBytes( key );
+
+            return key;
+        }
+
+        // The key length
+        byteBuffer.getInt();
+
+        // The key itself
+        btreeInfo.keySerializer.deserialize( byteBuffer );
+
+        return null;
+    }
+
+
     /**
      * Check a Btree node.
      */
@@ -877,6 +899,7 @@ public class MavibotInspector
         throws Exception
     {
         long[] children = new long[nbElems + 1];
+        byte[] previousKey = null;
 
         // Read each key and value
         for ( int i = 0; i < nbElems; i++ )
@@ -895,11 +918,7 @@ public class MavibotInspector
                 children[i] = firstOffset;
 
                 // Now, read the key
-                // The key lenth
-                byteBuffer.getInt();
-
-                // The key itself
-                btreeInfo.keySerializer.deserialize( byteBuffer );
+                previousKey = checkKey( btreeInfo, byteBuffer, previousKey );
             }
             catch ( BufferUnderflowException bue )
             {
@@ -1442,6 +1461,9 @@ final class BtreeInfo<K, V>
     // The value serializer
     /* no qualifier */ElementSerializer<V> valueSerializer;
 
+    // The format used to store the keys in the pages
+    /* no qualifier */PageFormatEnum pageFormat = PageFormatEnum.PLAIN;
+
 
     public String toString()
     {
@@ -1451,6 +1473,7 @@ final class BtreeInfo<K, V>
         sb.append( "\n    name              : " ).append( btreeName );
         sb.append( "\n    key serializer    : " ).append( keySerializer.getClass().getName() );
         sb.append( "\n    value serializer  : " ).append( valueSerializer.getClass().getName() );
+        sb.append( "\n    page format       : " ).append( pageFormat );
 
         return sb.toString();
     }
@@ -0,0 +1,501 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Shrinks the file of a RecordManager while the B-trees are being used. Each pass :
+ * <ul>
+ * <li>removes the free pages found at the end of the file</li>
+ * <li>relocates the leaves of the managed B-trees stored after the size the file would have
+ * without any free page : each leaf is copied, with its parents, in a write transaction of its own,
+ * and the RecordManager allocates the free pages with the lowest offsets first</li>
+ * <li>runs the page reclaimer, which frees the relocated pages once no reader uses them</li>
+ * </ul>
+ * The relocations are done in batches, with a pause between two batches, so that the writers
+ * get the transaction lock regularly.<br/>
+ * The B-trees allowing duplicate values, the B-tree of B-trees and the copied pages B-tree are
+ * not relocated : their pages are only removed when they have been freed.<br/>
+ * The file can't be truncated while it's memory mapped (see {@link RecordManager#setMemoryMapped(boolean)}) :
+ * nothing is done in this case.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class OnlineCompactor
+{
+    /** The LoggerFactory used by this class */
+    protected static final Logger LOG = LoggerFactory.getLogger( OnlineCompactor.class );
+
+    /** The default number of leaves relocated between two pauses */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    /** The default maximum number of passes */
+    public static final int DEFAULT_MAX_PASSES = 4;
+
+    /** The compacted RecordManager */
+    private final RecordManager recordManager;
+
+    /** The number of leaves relocated between two pauses */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** The pause between two batches, in milliseconds */
+    private long pause = 0L;
+
+    /** The maximum number of passes */
+    private int maxPasses = DEFAULT_MAX_PASSES;
+
+    /** The listener informed of the progress, if any */
+    private CompactionListener listener;
+
+    /** Set when the compaction has to be stopped */
+    private volatile boolean stopped;
+
+    /** The file size when the compaction started */
+    private volatile long initialFileSize;
+
+    /** The current pass */
+    private volatile int pass;
+
+    /** The number of leaves to relocate in the current pass */
+    private volatile long nbLeavesToRelocate;
+
+    /** The number of relocated leaves */
+    private volatile long nbRelocatedLeaves;
+
+    /** The number of pages removed from the file */
+    private volatile long nbRemovedPages;
+
+
+    /**
+     * Creates a new OnlineCompactor instance
+     *
+     * @param recordManager The RecordManager to compact
+     */
+    public OnlineCompactor( RecordManager recordManager )
+    {
+        this.recordManager = recordManager;
+    }
+
+
+    /**
+     * Compact the file. The B-trees can be read and modified by other threads meanwhile.
+     *
+     * @return The number of pages removed from the file
+     * @throws IOException If the pages can't be read or written
+     */
+    public long compact() throws IOException
+    {
+        if ( recordManager.isMemoryMapped() )
+        {
+            LOG.info( "The file is memory mapped, it can't be compacted" );
+
+            return 0L;
+        }
+
+        stopped = false;
+        initialFileSize = recordManager.getEndOfFileOffset();
+        nbRelocatedLeaves = 0L;
+        nbRemovedPages = 0L;
+
+        for ( pass = 1; ( pass <= maxPasses ) && !stopped; pass++ )
+        {
+            compactFreePages();
+
+            // The size the file would have without any free page : the pages after it have to move
+            int nbFreePages = recordManager.getNbFreePages();
+            long limit = recordManager.getEndOfFileOffset() - ( long ) nbFreePages * recordManager.getPageSize();
+
+            if ( nbFreePages == 0 )
+            {
+                break;
+            }
+
+            List<Relocation<?, ?>> relocations = new ArrayList<Relocation<?, ?>>();
+
+            for ( String name : recordManager.getManagedTrees() )
+            {
+                BTree<Object, Object> btree = recordManager.getManagedTree( name );
+
+                if ( !btree.isAllowDuplicates() )
+                {
+                    findRelocations( btree, limit, relocations );
+                }
+            }
+
+            LOG.debug( "Pass {} : {} leaves to relocate after offset {}", pass, relocations.size(), limit );
+
+            if ( relocations.isEmpty() )
+            {
+                break;
+            }
+
+            nbLeavesToRelocate = relocations.size();
+            relocate( relocations );
+
+            // The relocated pages are freed by the reclaimer
+            recordManager.beginTransaction();
+
+            try
+            {
+                recordManager.runReclaimer();
+            }
+            finally
+            {
+                recordManager.commit();
+            }
+
+            fireProgress();
+        }
+
+        compactFreePages();
+        nbLeavesToRelocate = 0L;
+        fireProgress();
+
+        LOG.info( "Compaction done : {} pages removed, {} leaves relocated", nbRemovedPages, nbRelocatedLeaves );
+
+        return nbRemovedPages;
+    }
+
+
+    /**
+     * Remove the free pages found at the end of the file
+     */
+    private void compactFreePages() throws IOException
+    {
+        recordManager.beginTransaction();
+
+        try
+        {
+            nbRemovedPages += recordManager.compactFreePages();
+        }
+        finally
+        {
+            recordManager.commit();
+        }
+    }
+
+
+    /**
+     * Find the leaves of a B-tree which have to be relocated, ie the leaves stored after the
+     * given limit, and the leaves under the nodes stored after this limit.
+     */
+    private <K, V> void findRelocations( BTree<K, V> btree, long limit, List<Relocation<?, ?>> relocations )
+        throws IOException
+    {
+        Page<K, V> rootPage = btree.getRootPage();
+
+        if ( rootPage.getNbElems() == 0 )
+        {
+            return;
+        }
+
+        // All the leaves are at the same depth
+        int depth = 0;
+
+        for ( Page<K, V> page = rootPage; page.isNode(); page = ( ( AbstractPage<K, V> ) page ).getPage( 0 ) )
+        {
+            depth++;
+        }
+
+        List<K> keys = new ArrayList<K>();
+        AbstractPage<K, V> root = ( AbstractPage<K, V> ) rootPage;
+
+        if ( !findKeys( root, depth, limit, keys ) && isAfter( root.getOffset(), root.getLastOffset(), limit ) )
+        {
+            keys.add( root.findLeftMost().getKey() );
+        }
+
+        for ( K key : keys )
+        {
+            relocations.add( new Relocation<K, V>( btree, key ) );
+        }
+    }
+
+
+    /**
+     * Find the keys of the leaves to relocate under a node. The leaves which are not
+     * relocated are not read.
+     *
+     * @return <code>true</code> if a leaf has been selected under this node
+     */
+    private <K, V> boolean findKeys( AbstractPage<K, V> page, int depth, long limit, List<K> keys )
+        throws IOException
+    {
+        boolean found = false;
+
+        if ( depth == 0 )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i <= page.getNbElems(); i++ )
+        {
+            PersistedPageHolder<K, V> holder = ( PersistedPageHolder<K, V> ) page.children[i];
+            boolean isAfter = isAfter( holder.getOffset(), holder.getLastOffset(), limit );
+
+            if ( depth == 1 )
+            {
+                if ( isAfter )
+                {
+                    keys.add( holder.getValue().getKey( 0 ) );
+                    found = true;
+                }
+            }
+            else
+            {
+                AbstractPage<K, V> child = ( AbstractPage<K, V> ) holder.getValue();
+
+                if ( findKeys( child, depth - 1, limit, keys ) )
+                {
+                    found = true;
+                }
+                else if ( isAfter )
+                {
+                    // Relocating one leaf is enough to relocate the node
+                    keys.add( child.findLeftMost().getKey() );
+                    found = true;
+                }
+            }
+        }
+
+        return found;
+    }
+
+
+    /**
+     * Tells if a page is stored, at least partially, after the given limit
+     */
+    private boolean isAfter( long offset, long lastOffset, long limit )
+    {
+        return ( offset >= limit ) || ( lastOffset >= limit );
+    }
+
+
+    /**
+     * Relocate the leaves, pausing after each batch
+     */
+    private void relocate( List<Relocation<?, ?>> relocations ) throws IOException
+    {
+        int inBatch = 0;
+
+        for ( Relocation<?, ?> relocation : relocations )
+        {
+            if ( stopped )
+            {
+                return;
+            }
+
+            relocation.relocate();
+            nbRelocatedLeaves++;
+            nbLeavesToRelocate--;
+            inBatch++;
+
+            if ( inBatch == batchSize )
+            {
+                inBatch = 0;
+                fireProgress();
+                pause();
+            }
+        }
+    }
+
+
+    /**
+     * Wait between two batches
+     */
+    private void pause()
+    {
+        if ( pause <= 0L )
+        {
+            return;
+        }
+
+        try
+        {
+            Thread.sleep( pause );
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+    }
+
+
+    private void fireProgress()
+    {
+        if ( listener != null )
+        {
+            listener.progress( this );
+        }
+    }
+
+
+    /**
+     * Stop the running compaction after the current relocation. The free pages already found at
+     * the end of the file are still removed.
+     */
+    public void stop()
+    {
+        stopped = true;
+    }
+
+
+    /**
+     * @param batchSize The number of leaves relocated between two pauses
+     */
+    public void setBatchSize( int batchSize )
+    {
+        this.batchSize = Math.max( 1, batchSize );
+    }
+
+
+    /**
+     * @param pause The pause between two batches, in milliseconds
+     */
+    public void setPause( long pause )
+    {
+        this.pause = pause;
+    }
+
+
+    /**
+     * @param maxPasses The maximum number of passes
+     */
+    public void setMaxPasses( int maxPasses )
+    {
+        this.maxPasses = maxPasses;
+    }
+
+
+    /**
+     * @param listener The listener informed of the progress
+     */
+    public void setListener( CompactionListener listener )
+    {
+        this.listener = listener;
+    }
+
+
+    /**
+     * @return The file size when the compaction started
+     */
+    public long getInitialFileSize()
+    {
+        return initialFileSize;
+    }
+
+
+    /**
+     * @return The current file size
+     */
+    public long getFileSize()
+    {
+        return recordManager.getEndOfFileOffset();
+    }
+
+
+    /**
+     * @return The current pass
+     */
+    public int getPass()
+    {
+        return pass;
+    }
+
+
+    /**
+     * @return The number of leaves which remain to be relocated in the current pass
+     */
+    public long getNbLeavesToRelocate()
+    {
+        return nbLeavesToRelocate;
+    }
+
+
+    /**
+     * @return The number of relocated leaves
+     */
+    public long getNbRelocatedLeaves()
+    {
+        return nbRelocatedLeaves;
+    }
+
+
+    /**
+     * @return The number of pages removed from the file
+     */
+    public long getNbRemovedPages()
+    {
+        return nbRemovedPages;
+    }
+
+
+    /**
+     * A leaf to relocate, identified by one of its keys
+     */
+    private static class Relocation<K, V>
+    {
+        private final BTree<K, V> btree;
+
+        private final K key;
+
+
+        private Relocation( BTree<K, V> btree, K key )
+        {
+            this.btree = btree;
+            this.key = key;
+        }
+
+
+        /**
+         * Write the value back, in a transaction of its own : the leaf and its parents are copied
+         * in new pages. The value is read within the transaction, so that we don't overwrite a
+         * concurrent modification.
+         */
+        private void relocate() throws IOException
+        {
+            RecordManager recordManager = ( ( PersistedBTree<K, V> ) btree ).getRecordManager();
+            recordManager.beginTransaction();
+
+            try
+            {
+                btree.insert( key, btree.get( key ) );
+            }
+            catch ( KeyNotFoundException knfe )
+            {
+                // The key has been removed in the meantime, so its leaf has already been copied
+            }
+            finally
+            {
+                recordManager.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A pool of direct buffers, each one of them having the size of a page. The RecordManager
+ * takes the buffers of the PageIOs it reads and creates from this pool, and gives them back
+ * once the pages have been deserialized or written on disk. The pool holds at most a given
+ * number of buffers : the buffers released when it's full are left to the GC.<br/>
+ * This class is thread safe.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PageBufferPool
+{
+    /** The default maximum number of buffers kept in the pool */
+    public static final int DEFAULT_POOL_SIZE = 1024;
+
+    /** The buffer size */
+    private final int bufferSize;
+
+    /** The maximum number of buffers kept in the pool */
+    private final int maxBuffers;
+
+    /** The available buffers */
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+    /** The number of buffers taken from the pool */
+    private final LongAdder hits = new LongAdder();
+
+    /** The number of buffers allocated because the pool was empty */
+    private final LongAdder misses = new LongAdder();
+
+    /** The number of buffers given back to the pool */
+    private final LongAdder recycled = new LongAdder();
+
+    /** The number of buffers dropped because the pool was full */
+    private final LongAdder dropped = new LongAdder();
+
+
+    /**
+     * Creates a new PageBufferPool instance
+     *
+     * @param bufferSize The size of the buffers, ie the page size
+     * @param maxBuffers The maximum number of buffers kept in the pool
+     */
+    public PageBufferPool( int bufferSize, int maxBuffers )
+    {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = Math.max( 1, maxBuffers );
+        buffers = new ArrayBlockingQueue<ByteBuffer>( this.maxBuffers );
+    }
+
+
+    /**
+     * Get a buffer from the pool, or allocate a new one if the pool is empty. The
+     * buffer content is undefined.
+     *
+     * @return A buffer, with its position set to 0 and its limit to its capacity
+     */
+    /* no qualifier */ByteBuffer acquire()
+    {
+        ByteBuffer buffer = buffers.poll();
+
+        if ( buffer == null )
+        {
+            misses.increment();
+
+            return ByteBuffer.allocateDirect( bufferSize );
+        }
+
+        hits.increment();
+        buffer.clear();
+
+        return buffer;
+    }
+
+
+    /**
+     * Get a buffer from the pool, filled with zeroes.
+     *
+     * @return A buffer, with its position set to 0 and its limit to its capacity
+     */
+    /* no qualifier */ByteBuffer acquireZeroed()
+    {
+        ByteBuffer buffer = acquire();
+
+        while ( buffer.remaining() >= 8 )
+        {
+            buffer.putLong( 0L );
+        }
+
+        while ( buffer.hasRemaining() )
+        {
+            buffer.put( ( byte ) 0 );
+        }
+
+        buffer.clear();
+
+        return buffer;
+    }
+
+
+    /**
+     * Give a buffer back to the pool. The buffer must not be used anymore by the caller.
+     * Buffers which have not been allocated by a pool with the same buffer size are ignored.
+     *
+     * @param buffer The buffer to release
+     */
+    /* no qualifier */void release( ByteBuffer buffer )
+    {
+        if ( ( buffer == null ) || !buffer.isDirect() || buffer.isReadOnly() || ( buffer.capacity() != bufferSize ) )
+        {
+            return;
+        }
+
+        if ( buffers.offer( buffer ) )
+        {
+            recycled.increment();
+        }
+        else
+        {
+            dropped.increment();
+        }
+    }
+
+
+    /**
+     * @return The number of buffers currently available in the pool
+     */
+    public int getOccupancy()
+    {
+        return buffers.size();
+    }
+
+
+    /**
+     * @return The maximum number of buffers kept in the pool
+     */
+    public int getMaxBuffers()
+    {
+        return maxBuffers;
+    }
+
+
+    /**
+     * @return The number of buffers taken from the pool
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+
+    /**
+     * @return The number of buffers allocated because the pool was empty
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+
+    /**
+     * @return The number of buffers given back to the pool
+     */
+    public long getRecycled()
+    {
+        return recycled.sum();
+    }
+
+
+    /**
+     * @return The number of released buffers dropped because the pool was full
+     */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "PageBufferPool[occupancy:" + buffers.size() + "/" + maxBuffers + ", hits:" + hits.sum() + ", misses:"
+            + misses.sum() + ", recycled:" + recycled.sum() + ", dropped:" + dropped.sum() + "]";
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A page cache shared by all the B-trees managed by a RecordManager. The pages are
+ * stored using their offset in the file as a key, and the cache is bounded by the
+ * estimated number of bytes the cached pages are using.<br/>
+ * Lookups are lock free : they just set the referenced flag of the found entry. The
+ * cache is split in stripes, each one of them having its own lock, its own share
+ * of the maximum size, and its own CLOCK hand used to select the pages to evict.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PageCache
+{
+    /** The default cache size, in bytes */
+    public static final long DEFAULT_CACHE_SIZE = 16L * 1024L * 1024L;
+
+    /** The number of stripes. Must be a power of 2 */
+    private static final int NB_STRIPES = 16;
+
+    /** The estimated number of bytes used by a page, without its elements */
+    private static final int PAGE_OVERHEAD = 64;
+
+    /** The estimated number of bytes used by an element, without its serialized key and values */
+    private static final int ELEMENT_OVERHEAD = 48;
+
+    /** The cached pages */
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+    /** The stripes */
+    private final Stripe[] stripes;
+
+    /** The maximum size of each stripe, in bytes */
+    private volatile long maxStripeWeight;
+
+
+    /**
+     * The counters associated with a B-tree and all its sub-B-trees.
+     */
+    public static class Statistics
+    {
+        /** The number of pages found in the cache */
+        private final LongAdder hits = new LongAdder();
+
+        /** The number of pages not found in the cache */
+        private final LongAdder misses = new LongAdder();
+
+        /** The number of pages evicted from the cache */
+        private final LongAdder evictions = new LongAdder();
+
+
+        /**
+         * @return The number of pages found in the cache
+         */
+        public long getHits()
+        {
+            return hits.sum();
+        }
+
+
+        /**
+         * @return The number of pages not found in the cache
+         */
+        public long getMisses()
+        {
+            return misses.sum();
+        }
+
+
+        /**
+         * @return The number of pages evicted from the cache
+         */
+        public long getEvictions()
+        {
+            return evictions.sum();
+        }
+
+
+        /**
+         * @see Object#toString()
+         */
+        public String toString()
+        {
+            return "hits:" + hits.sum() + ", misses:" + misses.sum() + ", evictions:" + evictions.sum();
+        }
+    }
+
+
+    /**
+     * A cached page
+     */
+    private static class Entry
+    {
+        /** The page offset */
+        private final long offset;
+
+        /** The cached page */
+        private final Page<?, ?> page;
+
+        /** The counters of the B-tree owning the page */
+        private final Statistics statistics;
+
+        /** The estimated page size */
+        private final int weight;
+
+        /** Set when the page has been accessed since the last CLOCK visit */
+        private volatile boolean referenced;
+
+        /** Set when the entry is not anymore in the cache */
+        private boolean removed;
+
+
+        private Entry( long offset, Page<?, ?> page, Statistics statistics, int weight )
+        {
+            this.offset = offset;
+            this.page = page;
+            this.statistics = statistics;
+            this.weight = weight;
+        }
+    }
+
+
+    /**
+     * A part of the cache, with its own lock and CLOCK hand
+     */
+    private static class Stripe
+    {
+        /** The lock protecting the modifications of this stripe */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** The CLOCK : the head of the queue is the next candidate for eviction */
+        private final ArrayDeque<Entry> clock = new ArrayDeque<Entry>();
+
+        /** The current size of this stripe, in bytes */
+        private long weight;
+
+        /** The number of pages in this stripe */
+        private int count;
+    }
+
+
+    /**
+     * Creates a new PageCache instance
+     *
+     * @param maxWeight The maximum number of bytes the cached pages can use
+     */
+    public PageCache( long maxWeight )
+    {
+        stripes = new Stripe[NB_STRIPES];
+
+        for ( int i = 0; i < NB_STRIPES; i++ )
+        {
+            stripes[i] = new Stripe();
+        }
+
+        setMaxWeight( maxWeight );
+    }
+
+
+    /**
+     * Get a page from the cache.
+     *
+     * @param offset The page offset
+     * @param btree The B-tree the page belongs to
+     * @param statistics The counters to update
+     * @return The cached page, or null if it's not in the cache
+     */
+    /* no qualifier */<K, V> Page<K, V> get( long offset, BTree<K, V> btree, Statistics statistics )
+    {
+        Entry entry = entries.get( offset );
+
+        // The offset may have been reused by another B-tree : just ignore the page then
+        if ( ( entry != null ) && ( ( ( AbstractPage<?, ?> ) entry.page ).getBtree() == btree ) )
+        {
+            entry.referenced = true;
+            statistics.hits.increment();
+
+            return ( Page<K, V> ) entry.page;
+        }
+
+        statistics.misses.increment();
+
+        return null;
+    }
+
+
+    /**
+     * Store a page in the cache, replacing the page previously stored at the same offset.
+     * Some pages may be evicted.
+     *
+     * @param offset The page offset
+     * @param page The page to store
+     * @param statistics The counters of the B-tree owning the page
+     */
+    /* no qualifier */void put( long offset, Page<?, ?> page, Statistics statistics )
+    {
+        if ( page == null )
+        {
+            return;
+        }
+
+        Entry entry = new Entry( offset, page, statistics, weigh( page ) );
+        Stripe stripe = stripeFor( offset );
+
+        stripe.lock.lock();
+
+        try
+        {
+            Entry old = entries.put( offset, entry );
+
+            if ( old != null )
+            {
+                old.removed = true;
+                stripe.weight -= old.weight;
+                stripe.count--;
+            }
+
+            stripe.clock.addLast( entry );
+            stripe.weight += entry.weight;
+            stripe.count++;
+
+            evict( stripe );
+
+            // The replaced pages are still in the CLOCK : get rid of them if they are too many
+            if ( stripe.clock.size() > 2 * stripe.count + NB_STRIPES )
+            {
+                purge( stripe );
+            }
+        }
+        finally
+        {
+            stripe.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Evict the pages from a stripe until its size is below the limit. Must be called
+     * holding the stripe lock.
+     */
+    private void evict( Stripe stripe )
+    {
+        long limit = maxStripeWeight;
+
+        while ( stripe.weight > limit )
+        {
+            Entry candidate = stripe.clock.pollFirst();
+
+            if ( candidate == null )
+            {
+                break;
+            }
+
+            if ( candidate.removed )
+            {
+                // Already replaced
+                continue;
+            }
+
+            if ( candidate.referenced )
+            {
+                // Give it a second chance
+                candidate.referenced = false;
+                stripe.clock.addLast( candidate );
+
+                continue;
+            }
+
+            entries.remove( candidate.offset, candidate );
+            candidate.removed = true;
+            stripe.weight -= candidate.weight;
+            stripe.count--;
+            candidate.statistics.evictions.increment();
+        }
+    }
+
+
+    /**
+     * Remove the replaced pages from the CLOCK of a stripe. Must be called holding
+     * the stripe lock.
+     */
+    private void purge( Stripe stripe )
+    {
+        Iterator<Entry> iterator = stripe.clock.iterator();
+
+        while ( iterator.hasNext() )
+        {
+            if ( iterator.next().removed )
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Remove all the pages associated with some counters from the cache. This is
+     * used when a B-tree is closed.
+     *
+     * @param statistics The counters of the B-tree
+     */
+    /* no qualifier */void removeAll( Statistics statistics )
+    {
+        for ( Stripe stripe : stripes )
+        {
+            stripe.lock.lock();
+
+            try
+            {
+                Iterator<Entry> iterator = stripe.clock.iterator();
+
+                while ( iterator.hasNext() )
+                {
+                    Entry entry = iterator.next();
+
+                    if ( entry.statistics == statistics )
+                    {
+                        iterator.remove();
+
+                        if ( !entry.removed )
+                        {
+                            entries.remove( entry.offset, entry );
+                            entry.removed = true;
+                            stripe.weight -= entry.weight;
+                            stripe.count--;
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Remove all the pages from the cache
+     */
+    public void clear()
+    {
+        for ( Stripe stripe : stripes )
+        {
+            stripe.lock.lock();
+
+            try
+            {
+                for ( Entry entry : stripe.clock )
+                {
+                    if ( !entry.removed )
+                    {
+                        entries.remove( entry.offset, entry );
+                        entry.removed = true;
+                    }
+                }
+
+                stripe.clock.clear();
+                stripe.weight = 0L;
+                stripe.count = 0;
+            }
+            finally
+            {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Change the maximum size of the cache, evicting pages if needed.
+     *
+     * @param maxWeight The maximum number of bytes the cached pages can use
+     */
+    public void setMaxWeight( long maxWeight )
+    {
+        if ( maxWeight < NB_STRIPES )
+        {
+            maxWeight = NB_STRIPES;
+        }
+
+        maxStripeWeight = maxWeight / NB_STRIPES;
+
+        for ( Stripe stripe : stripes )
+        {
+            stripe.lock.lock();
+
+            try
+            {
+                evict( stripe );
+            }
+            finally
+            {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * @return The maximum number of bytes the cached pages can use
+     */
+    public long getMaxWeight()
+    {
+        return maxStripeWeight * NB_STRIPES;
+    }
+
+
+    /**
+     * @return The estimated number of bytes used by the cached pages
+     */
+    public long getWeight()
+    {
+        long weight = 0L;
+
+        for ( Stripe stripe : stripes )
+        {
+            stripe.lock.lock();
+
+            try
+            {
+                weight += stripe.weight;
+            }
+            finally
+            {
+                stripe.lock.unlock();
+            }
+        }
+
+        return weight;
+    }
+
+
+    /**
+     * @return The number of cached pages
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+
+    /**
+     * Select the stripe for a given offset. The offsets are multiples of the page size,
+     * so we have to mix the bits before selecting the stripe.
+     */
+    private Stripe stripeFor( long offset )
+    {
+        long hash = offset * 0x9E3779B97F4A7C15L;
+
+        return stripes[( int ) ( hash >>> 60 ) & ( NB_STRIPES - 1 )];
+    }
+
+
+    /**
+     * Estimate the number of bytes used by a page in memory, using the size of its
+     * serialized keys and, for a leaf, of its serialized values. The children of a
+     * node only use the per element overhead.
+     */
+    private int weigh( Page<?, ?> page )
+    {
+        int nbElems = page.getNbElems();
+        long weight = PAGE_OVERHEAD + ( long ) nbElems * ELEMENT_OVERHEAD;
+
+        if ( page instanceof AbstractPage )
+        {
+            KeyHolder<?>[] keys = ( ( AbstractPage<?, ?> ) page ).getKeys();
+
+            for ( int i = 0; ( keys != null ) && ( i < nbElems ) && ( i < keys.length ); i++ )
+            {
+                if ( keys[i] instanceof PersistedKeyHolder )
+                {
+                    weight += ( ( PersistedKeyHolder<?> ) keys[i] ).getRawLength();
+                }
+            }
+        }
+
+        if ( page instanceof PersistedLeaf )
+        {
+            // The leaves of a sub-B-tree don't have values
+            ValueHolder<?>[] values = ( ( PersistedLeaf<?, ?> ) page ).values;
+
+            for ( int i = 0; ( values != null ) && ( i < nbElems ) && ( i < values.length ); i++ )
+            {
+                if ( values[i] instanceof PersistedValueHolder )
+                {
+                    weight += ( ( PersistedValueHolder<?> ) values[i] ).getRawLength();
+                }
+            }
+        }
+
+        return ( int ) Math.min( weight, Integer.MAX_VALUE );
+    }
+}
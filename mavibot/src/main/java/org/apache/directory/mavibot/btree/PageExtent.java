@@ -0,0 +1,143 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+/**
+ * A range of contiguous pages reserved at the end of the file by the RecordManager,
+ * in which the pages are allocated sequentially. It's used by the bulk operations to
+ * store the leaves in key order, so that a full scan of the B-tree reads the file
+ * sequentially.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */class PageExtent
+{
+    /** The offset of the first page of the extent */
+    private final long start;
+
+    /** The offset following the last page of the extent */
+    private long end;
+
+    /** The offset of the next page to allocate */
+    private long next;
+
+
+    /**
+     * Creates a new PageExtent instance
+     *
+     * @param start The offset of the first page
+     * @param end The offset following the last page
+     */
+    /* no qualifier */PageExtent( long start, long end )
+    {
+        this.start = start;
+        this.end = end;
+        next = start;
+    }
+
+
+    /**
+     * Allocate the next page of the extent
+     *
+     * @param pageSize The page size
+     * @return The offset of the allocated page
+     */
+    /* no qualifier */long allocate( int pageSize )
+    {
+        long offset = next;
+        next += pageSize;
+
+        return offset;
+    }
+
+
+    /**
+     * @return <code>true</code> if all the pages of the extent have been allocated
+     */
+    /* no qualifier */boolean isFull()
+    {
+        return next >= end;
+    }
+
+
+    /**
+     * Add some pages to a full extent. If the new pages don't follow the current last page,
+     * the allocations continue with the new pages.
+     *
+     * @param newStart The offset of the first added page
+     * @param newEnd The offset following the last added page
+     */
+    /* no qualifier */void extend( long newStart, long newEnd )
+    {
+        if ( newStart != end )
+        {
+            next = newStart;
+        }
+
+        end = newEnd;
+    }
+
+
+    /**
+     * @return The offset of the first page of the extent
+     */
+    /* no qualifier */long getStart()
+    {
+        return start;
+    }
+
+
+    /**
+     * @return The offset of the next page to allocate
+     */
+    /* no qualifier */long getNext()
+    {
+        return next;
+    }
+
+
+    /**
+     * @return The offset following the last page of the extent
+     */
+    /* no qualifier */long getEnd()
+    {
+        return end;
+    }
+
+
+    /**
+     * Mark all the pages as allocated
+     */
+    /* no qualifier */void close()
+    {
+        next = end;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "PageExtent[0x" + Long.toHexString( start ) + ", next:0x" + Long.toHexString( next ) + ", end:0x"
+            + Long.toHexString( end ) + "]";
+    }
+}
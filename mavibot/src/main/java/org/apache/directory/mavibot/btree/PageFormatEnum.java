@@ -0,0 +1,83 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+/**
+ * An enum to describe how the keys of a persisted B-tree are stored in its pages. We have
+ * two possible formats :
+ * <ul>
+ * <li>PLAIN : each key is stored in full, prefixed by its length</li>
+ * <li>PREFIX_COMPRESSED : each key is stored as the number of bytes it shares with the previous
+ * key in the page, followed by the remaining bytes. This is useful when adjacent keys share long
+ * prefixes, like DNs</li>
+ * </ul>
+ * The format version is stored in the B-tree info, so it can't be changed once the B-tree has
+ * been created.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public enum PageFormatEnum
+{
+    /** The keys are stored in full */
+    PLAIN( 0 ),
+
+    /** The keys are stored relatively to the previous key in the page */
+    PREFIX_COMPRESSED( 1 );
+
+    /** The version stored in the B-tree info */
+    private final int version;
+
+
+    private PageFormatEnum( int version )
+    {
+        this.version = version;
+    }
+
+
+    /**
+     * @return The format version, as stored on disk
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+
+    /**
+     * Get the page format from its version
+     *
+     * @param version The stored version
+     * @return The associated page format
+     * @throws IllegalArgumentException If the version is unknown
+     */
+    public static PageFormatEnum fromVersion( int version )
+    {
+        for ( PageFormatEnum pageFormat : values() )
+        {
+            if ( pageFormat.version == version )
+            {
+                return pageFormat;
+            }
+        }
+
+        throw new IllegalArgumentException( "Unknown page format version " + version );
+    }
+}
@@ -52,11 +52,19 @@ import org.apache.directory.mavibot.btree.util.Strings;
  *
  * In any case, the page length is always PageSize.
  * </pre>
+ * When the high bit of the size is set, the last 4 bytes of the data contain a CRC32
+ * checksum of the data which precedes them. The size includes those 4 bytes.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 /* No qualifier*/class PageIO
 {
+    /**
+     * The flag set in the size of the first page when the last 4 bytes of the data are
+     * a checksum of the data which precedes them
+     */
+    /* no qualifier */static final int CHECKSUM_FLAG = 0x80000000;
+
     /** The contain data */
     private ByteBuffer data;
 
@@ -69,6 +77,9 @@ import org.apache.directory.mavibot.btree.util.Strings;
     /** The position of the page on disk */
     private long offset;
 
+    /** Tells if the buffer can be given back to the buffer pool once the page has been written */
+    private boolean recyclable;
+
 
     /**
      * A default constructor for a PageIO
@@ -101,6 +112,31 @@ import org.apache.directory.mavibot.btree.util.Strings;
     }
 
 
+    /**
+     * Get the data, ready to be modified. If the data is a read only view on the
+     * memory mapped file, it's copied in a private buffer first.
+     *
+     * @return the data
+     */
+    /* no qualifier */ByteBuffer getWritableData()
+    {
+        if ( data.isReadOnly() )
+        {
+            ByteBuffer source = data.duplicate();
+            source.clear();
+
+            ByteBuffer copy = ByteBuffer.allocateDirect( source.capacity() );
+            copy.put( source );
+            copy.limit( data.limit() );
+            copy.position( data.position() );
+
+            data = copy;
+        }
+
+        return data;
+    }
+
+
     /**
      * @param data the data to set
      */
@@ -111,6 +147,39 @@ import org.apache.directory.mavibot.btree.util.Strings;
     }
 
 
+    /**
+     * Detach the data from this PageIO, so that it can be given back to the buffer pool.
+     * The PageIO can't be used anymore after this call.
+     *
+     * @return the data
+     */
+    /* no qualifier */ByteBuffer releaseData()
+    {
+        ByteBuffer released = data;
+        data = null;
+
+        return released;
+    }
+
+
+    /**
+     * @return <code>true</code> if the buffer can be recycled once the page has been written
+     */
+    /* no qualifier */boolean isRecyclable()
+    {
+        return recyclable;
+    }
+
+
+    /**
+     * @param recyclable <code>true</code> if the buffer can be recycled once the page has been written
+     */
+    /* no qualifier */void setRecyclable( boolean recyclable )
+    {
+        this.recyclable = recyclable;
+    }
+
+
     /**
      * Get the NextPage value from the PageIO. If it's -1, there is no next page<br/>
      * @return the nextPage
@@ -128,16 +197,30 @@ import org.apache.directory.mavibot.btree.util.Strings;
     {
         this.nextPage = nextPage;
 
-        data.putLong( 0, nextPage );
+        getWritableData().putLong( 0, nextPage );
     }
 
 
     /**
-     * @return the size
+     * @return the size, including the checksum if any
      */
     /* no qualifier */long getSize()
     {
-        return size;
+        if ( size == -1 )
+        {
+            return size;
+        }
+
+        return size & ~CHECKSUM_FLAG;
+    }
+
+
+    /**
+     * @return <code>true</code> if the data of this page and of the following ones end with a checksum
+     */
+    /* no qualifier */boolean hasChecksum()
+    {
+        return ( size != -1 ) && ( ( size & CHECKSUM_FLAG ) != 0 );
     }
 
 
@@ -146,7 +229,7 @@ import org.apache.directory.mavibot.btree.util.Strings;
      */
     /* no qualifier */void setSize( int size )
     {
-        data.putInt( 8, size );
+        getWritableData().putInt( 8, size );
 
         this.size = size;
     }
@@ -181,8 +264,12 @@ import org.apache.directory.mavibot.btree.util.Strings;
 
     /* no qualifier */PageIO copy( PageIO copy )
     {
-        // The data
-        if ( data.isDirect() )
+        // The data. Reuse the copy buffer if it's big enough
+        if ( ( copy.data != null ) && !copy.data.isReadOnly() && ( copy.data.capacity() == data.capacity() ) )
+        {
+            copy.data.clear();
+        }
+        else if ( data.isDirect() )
         {
             copy.data = ByteBuffer.allocateDirect( data.capacity() );
         }
@@ -229,7 +316,12 @@ import org.apache.directory.mavibot.btree.util.Strings;
 
         if ( size != -1 )
         {
-            sb.append( ", size:" ).append( size );
+            sb.append( ", size:" ).append( getSize() );
+
+            if ( hasChecksum() )
+            {
+                sb.append( ", checksum" );
+            }
         }
 
         if ( nextPage != -1L )
@@ -22,10 +22,9 @@ package org.apache.directory.mavibot.btree;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,53 +61,86 @@ public class PageReclaimer
      * relcaims the copied pages
      */
     /* no qualifier */ void reclaim()
+    {
+        reclaim( Long.MAX_VALUE );
+    }
+
+
+    /**
+     * relcaims the copied pages, until the deadline is reached. The pages are reclaimed
+     * by revision order for each B-tree, so the next call will continue where this one stopped.
+     * 
+     * @param deadline the time, in milliseconds, after which no new revision is reclaimed
+     * @return true if all the reclaimable pages have been reclaimed
+     */
+    /* no qualifier */ boolean reclaim( long deadline )
     {
         //System.out.println( "reclaiming pages" );
         try
         {
             if ( running )
             {
-                return;
+                return true;
             }
             
             running = true;
             
-            Set<String> managed = rm.getManagedTrees();
+            // The low-water mark of each managed B-tree : the copied pages of the older
+            // revisions aren't used by any reader anymore
+            Map<String, Long> lowWaterMarks = new HashMap<String, Long>();
+            long maxLowWaterMark = -1L;
 
-            for ( String name : managed )
+            for ( String name : rm.getManagedTrees() )
             {
                 PersistedBTree tree = ( PersistedBTree ) rm.getManagedTree( name );
 
-                long latestRev = tree.getRevision();
-                
-                Set<Long> inUseRevisions = new TreeSet<Long>();
-                
                 // the tree might have been removed
                 if ( tree != null )
                 {
-                    Iterator<ReadTransaction> txnItr = tree.getReadTransactions().iterator();
-                    while ( txnItr.hasNext() )
-                    {
-                        inUseRevisions.add( txnItr.next().getRevision() );
-                    }
+                    long lowWaterMark = tree.getReadRevisions().getOldestRevision();
+                    lowWaterMarks.put( name, lowWaterMark );
+                    maxLowWaterMark = Math.max( maxLowWaterMark, lowWaterMark );
                 }
+            }
+
+            // Keep half of the remaining time to reclaim the collected revisions
+            long now = System.currentTimeMillis();
+            long collectDeadline = ( deadline == Long.MAX_VALUE ) ? deadline : now + ( deadline - now ) / 2;
+            Map<String, List<RevisionOffset>> copiedRevisions = new HashMap<String, List<RevisionOffset>>();
+            boolean done = getRevisions( lowWaterMarks, maxLowWaterMark, collectDeadline, copiedRevisions );
+
+            // At least one revision is reclaimed by each call
+            boolean progress = false;
 
-                List<RevisionOffset> copiedRevisions = getRevisions( name );
+            for ( Map.Entry<String, List<RevisionOffset>> entry : copiedRevisions.entrySet() )
+            {
+                if ( progress && ( System.currentTimeMillis() >= deadline ) )
+                {
+                    done = false;
+                    break;
+                }
+
+                String name = entry.getKey();
+                PersistedBTree tree = ( PersistedBTree ) rm.getManagedTree( name );
+
+                // The revision of a B-tree being modified by a striped transaction is not committed yet
+                long latestRev = rm.getBTreeHeader( name ).getRevision();
 
                 // the revision last removed from copiedPage BTree
                 long lastRemovedRev = -1;
 
                 List<Long> freeList = new ArrayList<Long>();
                 
-                for ( RevisionOffset ro : copiedRevisions )
+                for ( RevisionOffset ro : entry.getValue() )
                 {
-                    long rv = ro.getRevision();
-                    if ( inUseRevisions.contains( rv ) )
+                    if ( progress && ( System.currentTimeMillis() >= deadline ) )
                     {
-                        //System.out.println( "Revision " + rv + " of BTree " + name + " is in use, not reclaiming pages" );
+                        // The remaining revisions will be reclaimed by the next call
+                        done = false;
                         break;
                     }
 
+                    long rv = ro.getRevision();
                     long[] offsets = ro.getOffsets();
 
                     //System.out.println( "Reclaiming " + Arrays.toString( offsets ) + "( " + offsets.length + " ) pages of the revision " + rv + " of BTree " + name );
@@ -123,6 +155,7 @@ public class PageReclaimer
                     //System.out.println( "delete cpb key " + key );
                     rm.copiedPageBtree.delete( key );
                     lastRemovedRev = rv;
+                    progress = true;
                 }
 
                 // no new txn is needed for the operations on BoB
@@ -133,17 +166,32 @@ public class PageReclaimer
                     NameRevision nr = new NameRevision( name, latestRev );
                     TupleCursor<NameRevision, Long> cursor = rm.btreeOfBtrees.browseFrom( nr );
                     
+                    List<NameRevision> btreeHeaderKeys = new ArrayList<NameRevision>();
                     List<Long> btreeHeaderOffsets = new ArrayList<Long>();
                     
                     while ( cursor.hasPrev() )
                     {
                         Tuple<NameRevision, Long> t = cursor.prev();
-                        //System.out.println( "deleting BoB rev " + t.getKey()  + " latest rev " + latestRev );
-                        rm.btreeOfBtrees.delete( t.getKey() );
+
+                        // The previous keys belong to the other B-trees
+                        if ( !name.equals( t.getKey().getName() ) )
+                        {
+                            break;
+                        }
+
+                        btreeHeaderKeys.add( t.getKey() );
                         btreeHeaderOffsets.add( t.value );
                     }
 
                     cursor.close();
+
+                    // Don't modify the BoB while browsing it : the cursor may have to reload
+                    // some pages which would have been freed by the deletions
+                    for ( NameRevision key : btreeHeaderKeys )
+                    {
+                        //System.out.println( "deleting BoB rev " + key  + " latest rev " + latestRev );
+                        rm.btreeOfBtrees.delete( key );
+                    }
                     
                     for( Long l : btreeHeaderOffsets )
                     {
@@ -173,6 +221,8 @@ public class PageReclaimer
             }
 
             running = false;
+
+            return done;
         }
         catch ( Exception e )
         {
@@ -185,24 +235,54 @@ public class PageReclaimer
 
 
     /**
-     * gets a list of all the copied pages of a given B-Tree.
+     * Gets the copied pages which can be reclaimed, grouped by B-Tree name. The copied pages
+     * B-Tree is ordered by revision first, so it's browsed once for all the B-Trees, and
+     * the browsing stops at the highest low-water mark, or at the deadline.
      * 
-     * @param name the name of the B-Tree
-     * @return list of RevisionOffset
+     * @param lowWaterMarks the low-water mark of each managed B-Tree
+     * @param maxLowWaterMark the highest low-water mark
+     * @param deadline the time, in milliseconds, after which the browsing stops, once
+     * a revision has been found
+     * @param revisions the reclaimable RevisionOffsets of each B-Tree, ordered by revision
+     * @return true if all the reclaimable revisions have been found
      * @throws Exception
      */
-    private List<RevisionOffset> getRevisions( String name ) throws Exception
+    private boolean getRevisions( Map<String, Long> lowWaterMarks, long maxLowWaterMark, long deadline,
+        Map<String, List<RevisionOffset>> revisions ) throws Exception
     {
-        TupleCursor<RevisionName, long[]> cursor = rm.copiedPageBtree.browse();
+        boolean done = true;
 
-        List<RevisionOffset> lst = new ArrayList<RevisionOffset>();
+        TupleCursor<RevisionName, long[]> cursor = rm.copiedPageBtree.browse();
 
         while ( cursor.hasNext() )
         {
+            if ( !revisions.isEmpty() && ( System.currentTimeMillis() >= deadline ) )
+            {
+                done = false;
+                break;
+            }
+
             Tuple<RevisionName, long[]> t = cursor.next();
             RevisionName rn = t.getKey();
-            if ( name.equals( rn.getName() ) )
+
+            if ( rn.getRevision() >= maxLowWaterMark )
             {
+                break;
+            }
+
+            Long lowWaterMark = lowWaterMarks.get( rn.getName() );
+
+            // The pages of the sub-btrees and of the revisions in use are kept
+            if ( ( lowWaterMark != null ) && ( rn.getRevision() < lowWaterMark ) )
+            {
+                List<RevisionOffset> lst = revisions.get( rn.getName() );
+
+                if ( lst == null )
+                {
+                    lst = new ArrayList<RevisionOffset>();
+                    revisions.put( rn.getName(), lst );
+                }
+
                 //System.out.println( t.getValue() );
                 lst.add( new RevisionOffset( rn.getRevision(), t.getValue() ) );
             }
@@ -210,6 +290,6 @@ public class PageReclaimer
 
         cursor.close();
         
-        return lst;
+        return done;
     }
 }
@@ -24,9 +24,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,13 +45,22 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
 
     protected static final Logger LOG_PAGES = LoggerFactory.getLogger( "org.apache.directory.mavibot.LOG_PAGES" );
 
-    /** The cache associated with this B-tree */
-    protected LRUMap cache;
+    /** The page cache counters for this B-tree and its sub-B-trees */
+    protected PageCache.Statistics cacheStatistics;
 
-    /** The default number of pages to keep in memory */
+    /**
+     * The default number of pages to keep in memory
+     * @deprecated The pages are cached in the RecordManager page cache, see {@link PageCache#DEFAULT_CACHE_SIZE}
+     */
+    @Deprecated
     public static final int DEFAULT_CACHE_SIZE = 1000;
 
-    /** The cache size, default to 1000 elements */
+    /**
+     * The cache size, default to 1000 elements.
+     * @deprecated The pages are stored in the RecordManager page cache, which is shared by all
+     * the B-trees, and which size is set with {@link RecordManager#setPageCacheSize(long)}
+     */
+    @Deprecated
     protected int cacheSize = DEFAULT_CACHE_SIZE;
 
     /** The number of stored Values before we switch to a B-tree */
@@ -69,6 +76,9 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
     /** The BtreeInfo offset */
     private long btreeInfoOffset = RecordManager.NO_PAGE;
 
+    /** The format used to store the keys in the pages */
+    private PageFormatEnum pageFormat = PageFormatEnum.PLAIN;
+
     /** The internal recordManager */
     private RecordManager recordManager;
 
@@ -104,10 +114,10 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
         setValueSerializer( configuration.getValueSerializer() );
         setAllowDuplicates( configuration.isAllowDuplicates() );
         setType( configuration.getBtreeType() );
+        pageFormat = configuration.getPageFormat();
 
         readTimeOut = configuration.getReadTimeOut();
         writeBufferSize = configuration.getWriteBufferSize();
-        cacheSize = configuration.getCacheSize();
 
         if ( keySerializer.getComparator() == null )
         {
@@ -127,7 +137,7 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
         {
             case BTREE_OF_BTREES:
             case COPIED_PAGES_BTREE:
-                // We will create a new cache and a new readTransactions map 
+                // We will create a new cache and a new read revisions registry
                 init( null );
                 currentBtreeHeader = btreeHeader;
                 break;
@@ -139,7 +149,7 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
                 break;
 
             default:
-                // We will create a new cache and a new readTransactions map 
+                // We will create a new cache and a new read revisions registry
                 init( null );
                 btreeRevisions.put( 0L, btreeHeader );
                 currentBtreeHeader = btreeHeader;
@@ -157,45 +167,47 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
     {
         if ( parentBTree == null )
         {
-            // This is not a subBtree, we have to initialize the cache
+            // This is not a subBtree, we have to initialize the cache counters
 
-            // Create the queue containing the pending read transactions
-            readTransactions = new ConcurrentLinkedQueue<ReadTransaction<K, V>>();
+            // Create the registry of the revisions used by the pending read transactions
+            readRevisions = new ReadRevisionRegistry();
 
-            if ( cacheSize < 1 )
-            {
-                cacheSize = DEFAULT_CACHE_SIZE;
-            }
-
-            cache = new LRUMap( cacheSize );
+            cacheStatistics = new PageCache.Statistics();
         }
         else
         {
-            this.cache = ( ( PersistedBTree<K, V> ) parentBTree ).getCache();
-            this.readTransactions = ( ( PersistedBTree<K, V> ) parentBTree ).getReadTransactions();
+            this.cacheStatistics = ( ( PersistedBTree<K, V> ) parentBTree ).getCacheStatistics();
+            this.readRevisions = ( ( PersistedBTree<K, V> ) parentBTree ).getReadRevisions();
         }
+    }
+
 
-        // Initialize the txnManager thread
-        //FIXME we should NOT create a new transaction manager thread for each BTree
-        //createTransactionManager();
+    /**
+     * Return the cache we use in this BTree. It's shared by all the B-trees
+     * managed by the RecordManager.
+     */
+    /* No qualifier */PageCache getCache()
+    {
+        return recordManager.getPageCache();
     }
 
 
     /**
-     * Return the cache we use in this BTree
+     * @return The page cache hits, misses and evictions counters for this B-tree,
+     * including its sub-B-trees
      */
-    /* No qualifier */LRUMap getCache()
+    public PageCache.Statistics getCacheStatistics()
     {
-        return cache;
+        return cacheStatistics;
     }
 
 
     /**
-     * Return the cache we use in this BTree
+     * Return the revisions used by the read transactions of this BTree and of its sub-BTrees
      */
-    /* No qualifier */ConcurrentLinkedQueue<ReadTransaction<K, V>> getReadTransactions()
+    /* No qualifier */ReadRevisionRegistry getReadRevisions()
     {
-        return readTransactions;
+        return readRevisions;
     }
 
 
@@ -204,12 +216,11 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
      */
     public void close() throws IOException
     {
-        // Stop the readTransaction thread
-        // readTransactionsThread.interrupt();
-        // readTransactions.clear();
-
-        // Clean the cache
-        cache.clear();
+        // Remove the B-tree pages from the cache
+        if ( recordManager != null )
+        {
+            recordManager.getPageCache().removeAll( cacheStatistics );
+        }
     }
 
 
@@ -324,6 +335,12 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
      */
     private DeleteResult<K, V> processDelete( K key, V value, long revision ) throws IOException
     {
+        // A striped transaction can only modify the B-trees it has declared
+        if ( btreeType == BTreeTypeEnum.PERSISTED )
+        {
+            recordManager.checkWritable( getName() );
+        }
+
         // Get the current B-tree header, and delete the value from it
         BTreeHeader<K, V> btreeHeader = getBTreeHeader( getName() );
 
@@ -505,6 +522,12 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
      */
     private InsertResult<K, V> processInsert( K key, V value, long revision ) throws IOException
     {
+        // A striped transaction can only modify the B-trees it has declared
+        if ( btreeType == BTreeTypeEnum.PERSISTED )
+        {
+            recordManager.checkWritable( getName() );
+        }
+
         // Get the current B-tree header, and insert the value into it
         BTreeHeader<K, V> btreeHeader = getBTreeHeader( getName() );
         InsertResult<K, V> result = btreeHeader.getRootPage().insert( key, value, revision );
@@ -738,6 +761,24 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
     }
 
 
+    /**
+     * @return the format used to store the keys in the pages
+     */
+    public PageFormatEnum getPageFormat()
+    {
+        return pageFormat;
+    }
+
+
+    /**
+     * @param pageFormat the format used to store the keys in the pages
+     */
+    /* no qualifier */void setPageFormat( PageFormatEnum pageFormat )
+    {
+        this.pageFormat = pageFormat;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -745,11 +786,7 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
     {
         BTreeHeader<K, V> btreeHeader = getBTreeHeader( getName() );
 
-        ReadTransaction<K, V> readTransaction = new ReadTransaction<K, V>( recordManager, btreeHeader, readTransactions );
-
-        readTransactions.add( readTransaction );
-
-        return readTransaction;
+        return new ReadTransaction<K, V>( recordManager, btreeHeader, readRevisions );
     }
 
 
@@ -762,12 +799,7 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
 
         if ( btreeHeader != null )
         {
-            ReadTransaction<K, V> readTransaction = new ReadTransaction<K, V>( recordManager, btreeHeader,
-                readTransactions );
-
-            readTransactions.add( readTransaction );
-
-            return readTransaction;
+            return new ReadTransaction<K, V>( recordManager, btreeHeader, readRevisions );
         }
         else
         {
@@ -808,6 +840,7 @@ public class PersistedBTree<K, V> extends AbstractBTree<K, V> implements Closeab
         }
 
         sb.append( ", DuplicatesAllowed: " ).append( isAllowDuplicates() );
+        sb.append( ", PageFormat: " ).append( pageFormat );
 
         sb.append( ") : \n" );
         sb.append( getBTreeHeader( getName() ).getRootPage().dumpPage( "" ) );
@@ -66,10 +66,13 @@ public class PersistedBTreeConfiguration<K, V>
     /** Flag to enable duplicate key support */
     private boolean allowDuplicates;
 
+    /** The format used to store the keys in the pages */
+    private PageFormatEnum pageFormat = PageFormatEnum.PLAIN;
+
     /** The B-tree type */
     private BTreeTypeEnum btreeType = BTreeTypeEnum.PERSISTED;
 
-    /** The cache size, if it's <= 0, we don't have cache */
+    /** The cache size. It's not used anymore, see {@link #setCacheSize(int)} */
     private int cacheSize;
 
     /** The inherited B-tree if we create a sub B-tree */
@@ -235,9 +238,32 @@ public class PersistedBTreeConfiguration<K, V>
     }
 
 
+    /**
+     * @return the format used to store the keys in the pages
+     */
+    public PageFormatEnum getPageFormat()
+    {
+        return pageFormat;
+    }
+
+
+    /**
+     * Set the format used to store the keys in the pages. It can't be modified once
+     * the B-tree has been created.
+     *
+     * @param pageFormat the page format
+     */
+    public void setPageFormat( PageFormatEnum pageFormat )
+    {
+        this.pageFormat = pageFormat;
+    }
+
+
     /**
      * @return the cacheSize
+     * @deprecated The cache size is not used anymore, see {@link #setCacheSize(int)}
      */
+    @Deprecated
     public int getCacheSize()
     {
         return cacheSize;
@@ -246,7 +272,10 @@ public class PersistedBTreeConfiguration<K, V>
 
     /**
      * @param cacheSize the cacheSize to set.
+     * @deprecated The pages are cached in the page cache shared by all the B-trees of a RecordManager,
+     * which size is set with {@link RecordManager#setPageCacheSize(long)} : this value is ignored
      */
+    @Deprecated
     public void setCacheSize( int cacheSize )
     {
         this.cacheSize = cacheSize;
@@ -21,6 +21,7 @@ package org.apache.directory.mavibot.btree;
 
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
 
@@ -34,8 +35,18 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
  */
 /* No qualifier */class PersistedKeyHolder<K> extends KeyHolder<K>
 {
-    /** The ByteBuffer storing the key */
-    private byte[] raw;
+    /** The ByteBuffer storing the key. It's volatile as it may be extracted by concurrent readers */
+    private volatile byte[] raw;
+
+    /** The page data containing the serialized key, when it has not yet been extracted. It's only
+     * cleared once the key has been extracted into the raw field */
+    private volatile byte[] pageData;
+
+    /** The position of the serialized key in the page data */
+    private final int rawOffset;
+
+    /** The serialized key length */
+    private final int rawLength;
 
     /** The Key serializer */
     private ElementSerializer<K> keySerializer;
@@ -51,6 +62,8 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
         super( key );
         this.keySerializer = keySerializer;
         raw = keySerializer.serialize( key );
+        rawOffset = 0;
+        rawLength = 0;
     }
 
 
@@ -64,6 +77,28 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
         super( null );
         this.keySerializer = keySerializer;
         this.raw = raw;
+        rawOffset = 0;
+        rawLength = 0;
+    }
+
+
+    /**
+     * Create a new KeyHolder instance referencing a serialized key stored in the
+     * data of a page. The key bytes will only be extracted when needed.
+     *
+     * @param keySerializer The KeySerializer instance
+     * @param pageData the bytes containing the serialized key
+     * @param rawOffset the position of the serialized key in the page data
+     * @param rawLength the serialized key length
+     */
+    /* no qualifier */PersistedKeyHolder( ElementSerializer<K> keySerializer, byte[] pageData, int rawOffset,
+        int rawLength )
+    {
+        super( null );
+        this.keySerializer = keySerializer;
+        this.pageData = pageData;
+        this.rawOffset = rawOffset;
+        this.rawLength = rawLength;
     }
 
 
@@ -76,7 +111,7 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
         {
             try
             {
-                key = keySerializer.fromBytes( raw );
+                key = keySerializer.fromBytes( getRaw() );
             }
             catch ( IOException ioe )
             {
@@ -95,6 +130,7 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
     {
         this.key = key;
         raw = keySerializer.serialize( key );
+        pageData = null;
     }
 
 
@@ -103,10 +139,63 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
      */
     /* No qualifier */byte[] getRaw()
     {
+        byte[] data = pageData;
+
+        if ( data != null )
+        {
+            // Extract the key from the page data now. The holder may be shared by many
+            // readers : the raw key is published before the page data is released, so
+            // a reader seeing a null page data always sees the extracted key.
+            byte[] extracted = Arrays.copyOfRange( data, rawOffset, rawOffset + rawLength );
+            raw = extracted;
+            pageData = null;
+
+            return extracted;
+        }
+
         return raw;
     }
 
 
+    /**
+     * Compares the serialized key with another serialized key, without deserializing
+     * nor extracting it from the page data.
+     *
+     * @param otherRaw The other serialized key
+     * @return The comparison result, as given by the key serializer
+     * @throws IOException If the keys can't be compared
+     */
+    /* No qualifier */int compareRaw( byte[] otherRaw ) throws IOException
+    {
+        byte[] data = pageData;
+
+        if ( data != null )
+        {
+            return keySerializer.compareRaw( data, rawOffset, rawLength, otherRaw, 0, otherRaw.length );
+        }
+
+        byte[] key = raw;
+
+        return keySerializer.compareRaw( key, 0, key.length, otherRaw, 0, otherRaw.length );
+    }
+
+
+    /**
+     * @return The serialized key length, without extracting it from the page data
+     */
+    /* No qualifier */int getRawLength()
+    {
+        if ( pageData != null )
+        {
+            return rawLength;
+        }
+
+        byte[] key = raw;
+
+        return ( key == null ) ? 0 : key.length;
+    }
+
+
     /**
      * @see Object#toString()
      */
@@ -121,7 +210,7 @@ import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
             sb.append( key );
             sb.append( ", " );
         }
-        else if ( raw != null )
+        else if ( ( raw != null ) || ( pageData != null ) )
         {
             K key = getKey();
             sb.append( ":" ).append( key ).append( ":," );
@@ -22,7 +22,6 @@ package org.apache.directory.mavibot.btree;
 
 import java.io.IOException;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.directory.mavibot.btree.exception.BTreeOperationException;
 import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
 
@@ -44,7 +43,10 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
     private RecordManager recordManager;
 
     /** The cache */
-    private LRUMap cache;
+    private PageCache cache;
+
+    /** The cache counters */
+    private PageCache.Statistics cacheStatistics;
 
     /** The offset of the first {@link PageIO} storing the page on disk */
     private long offset;
@@ -63,6 +65,7 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
         // DO NOT keep the reference to Page, it will be fetched from cache when needed 
         super( btree, null );
         cache = ( ( PersistedBTree<K, V> ) btree ).getCache();
+        cacheStatistics = ( ( PersistedBTree<K, V> ) btree ).getCacheStatistics();
         recordManager = ( ( PersistedBTree<K, V> ) btree ).getRecordManager();
         offset = ( ( AbstractPage<K, V> ) page ).getOffset();
         lastOffset = ( ( AbstractPage<K, V> ) page ).getLastOffset();
@@ -70,7 +73,7 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
         ( ( AbstractPage<K, V> ) page ).setOffset( offset );
         ( ( AbstractPage<K, V> ) page ).setLastOffset( lastOffset );
 
-        cache.put( offset, page );
+        cache.put( offset, page, cacheStatistics );
     }
 
 
@@ -84,6 +87,7 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
         // DO NOT keep the reference to Page, it will be fetched from cache when needed
         super( btree, null );
         cache = ( ( PersistedBTree<K, V> ) btree ).getCache();
+        cacheStatistics = ( ( PersistedBTree<K, V> ) btree ).getCacheStatistics();
         recordManager = ( ( PersistedBTree<K, V> ) btree ).getRecordManager();
         this.offset = offset;
         this.lastOffset = lastOffset;
@@ -94,7 +98,7 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
             ( ( AbstractPage<K, V> ) page ).setLastOffset( lastOffset );
         }
 
-        cache.put( offset, page );
+        cache.put( offset, page, cacheStatistics );
     }
 
 
@@ -105,7 +109,7 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
      */
     public Page<K, V> getValue()
     {
-        Page<K, V> page = ( Page<K, V> ) cache.get( offset );
+        Page<K, V> page = cache.get( offset, btree, cacheStatistics );
 
         if ( page == null )
         {
@@ -115,7 +119,7 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
             ( ( AbstractPage<K, V> ) page ).setOffset( offset );
             ( ( AbstractPage<K, V> ) page ).setLastOffset( lastOffset );
 
-            cache.put( offset, page );
+            cache.put( offset, page, cacheStatistics );
         }
 
         return page;
@@ -140,7 +144,7 @@ import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
         }
         catch ( IOException ioe )
         {
-            throw new BTreeOperationException( ioe.getMessage() );
+            throw new BTreeOperationException( ioe.getMessage(), ioe );
         }
     }
 
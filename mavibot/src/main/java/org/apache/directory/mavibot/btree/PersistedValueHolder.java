@@ -22,6 +22,7 @@ package org.apache.directory.mavibot.btree;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.UUID;
@@ -53,6 +54,12 @@ import org.slf4j.LoggerFactory;
     /** The serialized value */
     private byte[] raw;
 
+    /** The position of the serialized value in the raw data */
+    private int rawOffset;
+
+    /** The serialized value length */
+    private int rawLength;
+
     /** A flag set to true when the raw value has been deserialized */
     private boolean isDeserialized = false;
 
@@ -69,10 +76,29 @@ import org.slf4j.LoggerFactory;
      * @param raw the byte[] containing either the serialized array of values or the sub-btree offset
      */
     PersistedValueHolder( BTree<?, V> parentBtree, int nbValues, byte[] raw )
+    {
+        this( parentBtree, nbValues, raw, 0, raw.length );
+    }
+
+
+    /**
+     * Creates a new instance of a ValueHolder, containing the serialized values stored in
+     * a part of a bigger buffer, like the data of a page. The buffer is not copied, and
+     * must not be modified.
+     *
+     * @param parentBtree the parent BTree
+     * @param nbValues the number of stored values
+     * @param raw the byte[] containing either the serialized array of values or the sub-btree offset
+     * @param rawOffset the position of the serialized values in the buffer
+     * @param rawLength the serialized values length
+     */
+    PersistedValueHolder( BTree<?, V> parentBtree, int nbValues, byte[] raw, int rawOffset, int rawLength )
     {
         this.parentBtree = ( PersistedBTree<V, V> ) parentBtree;
         this.valueSerializer = parentBtree.getValueSerializer();
         this.raw = raw;
+        this.rawOffset = rawOffset;
+        this.rawLength = rawLength;
         isRawUpToDate = true;
         valueThresholdUp = PersistedBTree.valueThresholdUp;
         valueThresholdLow = PersistedBTree.valueThresholdLow;
@@ -170,15 +196,26 @@ import org.slf4j.LoggerFactory;
     {
         if ( isRawUpToDate )
         {
+            byte[] data = raw;
+            int offset = rawOffset;
+            int length = rawLength;
+
+            if ( ( offset != 0 ) || ( length != data.length ) )
+            {
+                // The raw value is a part of a page : return a copy of it. The holder is not
+                // modified, as it may be shared by concurrent readers through the page cache
+                return Arrays.copyOfRange( data, offset, offset + length );
+            }
+
             // Just have to return the raw value
-            return raw;
+            return data;
         }
 
         if ( isSubBtree() )
         {
             // The values are stored into a subBtree, return the offset of this subBtree
             long btreeOffset = ( ( PersistedBTree<V, V> ) valueBtree ).getBtreeOffset();
-            raw = LongSerializer.serialize( btreeOffset );
+            setRaw( LongSerializer.serialize( btreeOffset ) );
         }
         else
         {
@@ -205,14 +242,16 @@ import org.slf4j.LoggerFactory;
 
             // Last, not least, create a buffer large enough to contain all the created byte[],
             // and copy all those byte[] into this buffer
-            raw = new byte[length];
+            byte[] newRaw = new byte[length];
             pos = 0;
 
             for ( byte[] bytes : valueBytes )
             {
-                System.arraycopy( bytes, 0, raw, pos, bytes.length );
+                System.arraycopy( bytes, 0, newRaw, pos, bytes.length );
                 pos += bytes.length;
             }
+
+            setRaw( newRaw );
         }
 
         // Update the flags
@@ -222,6 +261,27 @@ import org.slf4j.LoggerFactory;
     }
 
 
+    /**
+     * @return The serialized values length, without serializing them. It's 0 if the values
+     * have been modified since they were serialized
+     */
+    /* No qualifier */int getRawLength()
+    {
+        return isRawUpToDate ? rawLength : 0;
+    }
+
+
+    /**
+     * Set the serialized value, which uses the whole given buffer
+     */
+    private void setRaw( byte[] raw )
+    {
+        this.raw = raw;
+        rawOffset = 0;
+        rawLength = ( raw == null ) ? 0 : raw.length;
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -266,7 +326,7 @@ import org.slf4j.LoggerFactory;
         try
         {
             parentBtree.getRecordManager().manageSubBtree( valueBtree );
-            raw = null;
+            setRaw( null );
         }
         catch ( BTreeAlreadyManagedException e )
         {
@@ -286,7 +346,7 @@ import org.slf4j.LoggerFactory;
     /* No qualifier*/void setSubBtree( BTree<V, V> subBtree )
     {
         valueBtree = subBtree;
-        raw = null;
+        setRaw( null );
         valueArray = null;
         isDeserialized = true;
         isRawUpToDate = false;
@@ -329,7 +389,7 @@ import org.slf4j.LoggerFactory;
 
         // The raw value is not anymore up to date with the content
         isRawUpToDate = false;
-        raw = null;
+        setRaw( null );
     }
 
 
@@ -463,7 +523,7 @@ import org.slf4j.LoggerFactory;
 
         // The raw value is not anymore up to date wth the content
         isRawUpToDate = false;
-        raw = null;
+        setRaw( null );
 
         return removedValue;
     }
@@ -627,8 +687,7 @@ import org.slf4j.LoggerFactory;
         // Also clone the raw value if its up to date
         if ( isRawUpToDate )
         {
-            copy.raw = new byte[raw.length];
-            System.arraycopy( raw, 0, copy.raw, 0, raw.length );
+            copy.setRaw( Arrays.copyOfRange( raw, rawOffset, rawOffset + rawLength ) );
         }
 
         return copy;
@@ -654,9 +713,10 @@ import org.slf4j.LoggerFactory;
         // We haven't yet deserialized the values. Let's do it now. The values are
         // necessarily stored in an array at this point
         int index = 0;
-        int pos = 0;
+        int pos = rawOffset;
+        int end = rawOffset + rawLength;
 
-        while ( pos < raw.length )
+        while ( pos < end )
         {
             try
             {
@@ -681,7 +741,7 @@ import org.slf4j.LoggerFactory;
     private void deserializeSubBtree()
     {
         // Get the sub-btree offset
-        long offset = LongSerializer.deserialize( raw );
+        long offset = LongSerializer.deserialize( raw, rawOffset );
 
         // and reload the sub btree
         valueBtree = parentBtree.getRecordManager().loadDupsBtree( offset, parentBtree );
@@ -762,7 +822,7 @@ import org.slf4j.LoggerFactory;
 
         if ( !isDeserialized )
         {
-            sb.append( ", isRaw[" ).append( raw.length ).append( "]" );
+            sb.append( ", isRaw[" ).append( rawLength ).append( "]" );
         }
         else
         {
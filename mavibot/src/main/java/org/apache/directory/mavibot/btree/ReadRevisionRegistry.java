@@ -0,0 +1,153 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The revisions of a B-tree used by the opened read transactions. Each revision has a
+ * counter of readers, and the revisions are sorted, so that the oldest revision still
+ * in use is the first one.<br/>
+ * A revision is removed when its counter reaches zero. A counter at zero is never
+ * incremented again : a reader getting it helps removing it, and creates a new one.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */class ReadRevisionRegistry
+{
+    /** The number of readers of each revision */
+    private final ConcurrentNavigableMap<Long, AtomicInteger> readers = new ConcurrentSkipListMap<Long, AtomicInteger>();
+
+
+    /**
+     * Register a reader of a revision
+     *
+     * @param revision The revision
+     */
+    /* no qualifier */void acquire( long revision )
+    {
+        while ( true )
+        {
+            AtomicInteger counter = readers.get( revision );
+
+            if ( counter == null )
+            {
+                counter = readers.putIfAbsent( revision, new AtomicInteger( 1 ) );
+
+                if ( counter == null )
+                {
+                    return;
+                }
+            }
+
+            if ( incrementIfUsed( counter ) )
+            {
+                return;
+            }
+
+            // The counter has reached zero, and is being removed
+            readers.remove( revision, counter );
+        }
+    }
+
+
+    /**
+     * Unregister a reader of a revision
+     *
+     * @param revision The revision
+     */
+    /* no qualifier */void release( long revision )
+    {
+        AtomicInteger counter = readers.get( revision );
+
+        if ( ( counter != null ) && ( counter.decrementAndGet() == 0 ) )
+        {
+            readers.remove( revision, counter );
+        }
+    }
+
+
+    /**
+     * Increment a counter, unless it has reached zero
+     */
+    private boolean incrementIfUsed( AtomicInteger counter )
+    {
+        while ( true )
+        {
+            int nbReaders = counter.get();
+
+            if ( nbReaders == 0 )
+            {
+                return false;
+            }
+
+            if ( counter.compareAndSet( nbReaders, nbReaders + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * @return The oldest revision in use, or Long.MAX_VALUE if there is no reader
+     */
+    /* no qualifier */long getOldestRevision()
+    {
+        Map.Entry<Long, AtomicInteger> first = readers.firstEntry();
+
+        return ( first == null ) ? Long.MAX_VALUE : first.getKey();
+    }
+
+
+    /**
+     * @param revision The revision
+     * @return The number of readers of the revision
+     */
+    /* no qualifier */int getNbReaders( long revision )
+    {
+        AtomicInteger counter = readers.get( revision );
+
+        return ( counter == null ) ? 0 : counter.get();
+    }
+
+
+    /**
+     * @return <code>true</code> if no revision is in use
+     */
+    /* no qualifier */boolean isEmpty()
+    {
+        return readers.isEmpty();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "ReadRevisionRegistry" + readers;
+    }
+}
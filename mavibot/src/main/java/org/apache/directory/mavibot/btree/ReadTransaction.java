@@ -21,7 +21,7 @@ package org.apache.directory.mavibot.btree;
 
 
 import java.util.Date;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -54,10 +54,10 @@ public class ReadTransaction<K, V>
     private BTreeHeader<K, V> btreeHeader;
 
     /** A flag used to tell if a transaction is closed or not */
-    private volatile boolean closed;
+    private final AtomicBoolean closed = new AtomicBoolean( false );
     
-    /** The list of read transactions being executed */
-    private ConcurrentLinkedQueue<ReadTransaction<K, V>> readTransactions;
+    /** The revisions used by the read transactions being executed */
+    private ReadRevisionRegistry readRevisions;
 
     /** The reference to the recordManager, if any */
     private RecordManager recordManager;
@@ -66,19 +66,16 @@ public class ReadTransaction<K, V>
      * Creates a new transaction instance
      *
      * @param btreeHeader The BtreeHeader we will use for this read transaction
+     * @param readRevisions The registry in which the revision is registered until the transaction is closed
      */
-    public ReadTransaction( RecordManager recordManager, BTreeHeader<K, V> btreeHeader, ConcurrentLinkedQueue<ReadTransaction<K, V>> readTransactions )
+    /* no qualifier */ReadTransaction( RecordManager recordManager, BTreeHeader<K, V> btreeHeader, ReadRevisionRegistry readRevisions )
     {
+        this( btreeHeader, readRevisions );
+        
         if ( btreeHeader != null )
         {
-            this.revision = btreeHeader.getRevision();
-            this.creationDate = System.currentTimeMillis();
-            this.btreeHeader = btreeHeader;
             this.recordManager = recordManager;
-            closed = false;
         }
-        
-        this.readTransactions = readTransactions;
     }
     
     
@@ -86,18 +83,19 @@ public class ReadTransaction<K, V>
      * Creates a new transaction instance
      *
      * @param btreeHeader The BtreeHeader we will use for this read transaction
+     * @param readRevisions The registry in which the revision is registered until the transaction is closed
      */
-    public ReadTransaction( BTreeHeader<K, V> btreeHeader, ConcurrentLinkedQueue<ReadTransaction<K, V>> readTransactions )
+    /* no qualifier */ReadTransaction( BTreeHeader<K, V> btreeHeader, ReadRevisionRegistry readRevisions )
     {
         if ( btreeHeader != null )
         {
             this.revision = btreeHeader.getRevision();
             this.creationDate = System.currentTimeMillis();
             this.btreeHeader = btreeHeader;
-            closed = false;
+            this.readRevisions = readRevisions;
+            
+            readRevisions.acquire( revision );
         }
-        
-        this.readTransactions = readTransactions;
     }
 
 
@@ -133,10 +131,17 @@ public class ReadTransaction<K, V>
      */
     public void close()
     {
-        closed = true;
+        // The revision must be released only once
+        if ( !closed.compareAndSet( false, true ) )
+        {
+            return;
+        }
         
-        // Remove the transaction from the list of opened transactions
-        readTransactions.remove( this );
+        // Unregister the revision of the transaction
+        if ( readRevisions != null )
+        {
+            readRevisions.release( revision );
+        }
         
         // and push the 
         if ( recordManager != null )
@@ -153,7 +158,7 @@ public class ReadTransaction<K, V>
      */
     public boolean isClosed()
     {
-        return closed;
+        return closed.get();
     }
 
 
@@ -162,6 +167,6 @@ public class ReadTransaction<K, V>
      */
     public String toString()
     {
-        return "Transaction[" + revision + ":" + new Date( creationDate ) + ", closed :" + closed + "]";
+        return "Transaction[" + revision + ":" + new Date( creationDate ) + ", closed :" + closed.get() + "]";
     }
 }
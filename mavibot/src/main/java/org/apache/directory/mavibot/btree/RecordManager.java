@@ -26,23 +26,29 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 import org.apache.directory.mavibot.btree.exception.BTreeAlreadyManagedException;
 import org.apache.directory.mavibot.btree.exception.BTreeCreationException;
 import org.apache.directory.mavibot.btree.exception.EndOfFileExceededException;
 import org.apache.directory.mavibot.btree.exception.FileException;
+import org.apache.directory.mavibot.btree.exception.InvalidChecksumException;
 import org.apache.directory.mavibot.btree.exception.InvalidOffsetException;
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
 import org.apache.directory.mavibot.btree.exception.RecordManagerException;
@@ -87,9 +93,12 @@ public class RecordManager extends AbstractTransactionManager
     /** The number of managed B-trees */
     /* no qualifier */int nbBtree;
 
-    /** The first and last free page */
+    /** The first free page, as stored on disk */
     /* no qualifier */long firstFreePage;
 
+    /** The free pages. They are linked on disk when the RMHeader is updated */
+    private FreePageMap freePageMap;
+
     /** Some counters to track the number of free pages */
     public AtomicLong nbFreedPages = new AtomicLong( 0 );
     public AtomicLong nbCreatedPages = new AtomicLong( 0 );
@@ -97,9 +106,13 @@ public class RecordManager extends AbstractTransactionManager
     public AtomicLong nbUpdateRMHeader = new AtomicLong( 0 );
     public AtomicLong nbUpdateBtreeHeader = new AtomicLong( 0 );
     public AtomicLong nbUpdatePageIOs = new AtomicLong( 0 );
+    public AtomicLong nbPageWrites = new AtomicLong( 0 );
+    public AtomicLong nbForces = new AtomicLong( 0 );
+    public AtomicLong nbChecksumChecks = new AtomicLong( 0 );
+    public AtomicLong nbChecksumErrors = new AtomicLong( 0 );
 
     /** The offset of the end of the file */
-    private long endOfFileOffset;
+    private volatile long endOfFileOffset;
 
     /**
      * A B-tree used to manage the page that has been copied in a new version.
@@ -121,6 +134,12 @@ public class RecordManager extends AbstractTransactionManager
     /* no qualifier */static final int INT_SIZE = 4;
     /* no qualifier */static final int LONG_SIZE = 8;
 
+    /** The B-tree info flag telling if the duplicate keys are allowed */
+    /* no qualifier */static final int ALLOW_DUPLICATES_FLAG = 0x01;
+
+    /** The position of the page format version in the B-tree info flags */
+    /* no qualifier */static final int PAGE_FORMAT_SHIFT = 8;
+
     /** The default page size */
     public static final int DEFAULT_PAGE_SIZE = 512;
 
@@ -146,8 +165,8 @@ public class RecordManager extends AbstractTransactionManager
     /** The set of managed B-trees */
     private Map<String, BTree<Object, Object>> managedBtrees;
 
-    /** The queue of recently closed transactions */
-    private Queue<RevisionName> closedTransactionsQueue = new LinkedBlockingQueue<RevisionName>();
+    /** The queue of recently closed transactions, consumed by the background reclaimer */
+    private BlockingQueue<RevisionName> closedTransactionsQueue = new LinkedBlockingQueue<RevisionName>();
 
     /** The default file name */
     private static final String DEFAULT_FILE_NAME = "mavibot.db";
@@ -188,6 +207,15 @@ public class RecordManager extends AbstractTransactionManager
     /** A ThreadLocalStorage used to store the current transaction */
     private static final ThreadLocal<Integer> CONTEXT = new ThreadLocal<Integer>();
 
+    /** The number of stripes of the B-tree locks */
+    private static final int NB_STRIPES = 64;
+
+    /** The locks of the B-trees, hashed by name, when the striped locking is enabled */
+    private volatile ReentrantLock[] btreeLocks;
+
+    /** A ThreadLocalStorage used to store the current striped transaction, if any */
+    private static final ThreadLocal<StripedTransaction> STRIPED_CONTEXT = new ThreadLocal<StripedTransaction>();
+
     /** The list of PageIO that can be freed after a commit */
     List<PageIO> freedPages = new ArrayList<PageIO>();
 
@@ -223,8 +251,71 @@ public class RecordManager extends AbstractTransactionManager
     /* a flag used to disable the free page reclaimer (used for internal testing only) */
     private boolean disableReclaimer = false;
 
+    /** The thread reclaiming the copied pages in the background, if any */
+    private volatile BackgroundReclaimer backgroundReclaimer;
+
     public Map<Long, Integer> writeCounter = new HashMap<Long, Integer>();
 
+    /** The page cache shared by all the managed B-trees */
+    private PageCache pageCache = new PageCache( PageCache.DEFAULT_CACHE_SIZE );
+
+    /** The maximum number of pages kept in memory before being written on disk */
+    private static final int MAX_DIRTY_PAGES = 1024;
+
+    /** The pages written by the current transaction which are not yet on disk, ordered by offset */
+    private ConcurrentSkipListMap<Long, PageIO> dirtyPages = new ConcurrentSkipListMap<Long, PageIO>();
+
+    /** The number of pages added in the dirty pages since they were last written */
+    private AtomicInteger nbDirtyPages = new AtomicInteger( 0 );
+
+    /** A lock to protect the writing of the dirty pages */
+    private ReentrantLock dirtyPagesLock = new ReentrantLock();
+
+    /** The default interval between two flushes when the durability level is FLUSH_EVERY_N_MS, in ms */
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+
+    /** The durability level of the commits */
+    private DurabilityLevel durabilityLevel = DurabilityLevel.NONE;
+
+    /** The durability level of the current transaction, when it has been overridden */
+    private DurabilityLevel txnDurabilityLevel;
+
+    /** The interval between two flushes when the durability level is FLUSH_EVERY_N_MS, in ms */
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    /** The last time a commit has been forced on disk */
+    private long lastFlushTime = 0L;
+
+    /** Tells if the pages have been forced on disk before the last RMHeader write */
+    private boolean lastHeaderOrdered = false;
+
+    /** The default number of reads for one checksum check, when the checks are sampled */
+    public static final int DEFAULT_CHECKSUM_SAMPLE_RATE = 16;
+
+    /** Tells if a checksum is added to the written pages */
+    private volatile boolean checksumEnabled = false;
+
+    /** Tells when the checksum of the read pages are checked */
+    private volatile ChecksumVerification checksumVerification = ChecksumVerification.OFF;
+
+    /** The number of reads for one checksum check, when the checks are sampled */
+    private volatile int checksumSampleRate = DEFAULT_CHECKSUM_SAMPLE_RATE;
+
+    /** The number of checksummed reads, used to sample the checks */
+    private final AtomicLong nbChecksummedReads = new AtomicLong( 0 );
+
+    /** The pool of buffers used by the PageIOs */
+    private volatile PageBufferPool bufferPool;
+
+    /** The memory mapping used to read the pages, if the reads are memory mapped */
+    private volatile MappedFile mappedFile;
+
+    /** The group committer, if the commits are grouped */
+    private GroupCommitter groupCommitter;
+
+    /** The list of PageIO freed by committed transactions which have not yet been flushed */
+    private List<PageIO> pendingFreedPages = new ArrayList<PageIO>();
+
 
     /**
      * Create a Record manager which will either create the underlying file
@@ -264,6 +355,8 @@ public class RecordManager extends AbstractTransactionManager
         RECORD_MANAGER_HEADER_BYTES = new byte[this.pageSize];
         RECORD_MANAGER_HEADER_SIZE = this.pageSize;
 
+        bufferPool = new PageBufferPool( this.pageSize, PageBufferPool.DEFAULT_POOL_SIZE );
+
         // Open the file or create it
         File tmpFile = new File( fileName );
 
@@ -308,28 +401,136 @@ public class RecordManager extends AbstractTransactionManager
     /**
      * runs the PageReclaimer to free the copied pages
      */
-    private void runReclaimer()
+    /* no qualifier */void runReclaimer()
+    {
+        runReclaimer( Long.MAX_VALUE );
+    }
+
+
+    /**
+     * runs the PageReclaimer to free the copied pages, until the deadline is reached
+     *
+     * @param deadline The time, in milliseconds, after which no new revision is reclaimed
+     * @return true if all the reclaimable pages have been freed
+     */
+    /* no qualifier */boolean runReclaimer( long deadline )
     {
         if ( disableReclaimer )
         {
             LOG.warn( "Free page reclaimer is disabled, this should not be disabled on production systems." );
-            return;
+            return true;
         }
 
         try
         {
             commitCount = 0;
-            reclaimer.reclaim();
+            boolean done = reclaimer.reclaim( deadline );
+
+            // The reclaimer modifications of the management B-trees are nested transactions,
+            // which leave the pages they have replaced to the outer transaction
+            releaseReclaimedPages();
+
             // must update the headers after reclaim operation
             updateRecordManagerHeader();
+
+            return done;
         }
         catch ( Exception e )
         {
             LOG.warn( "PageReclaimer failed to free the pages", e );
+
+            return true;
+        }
+    }
+
+
+    /**
+     * Free the pages replaced by the PageReclaimer while it was updating the B-tree of B-trees
+     * and the copied pages B-tree. With the group commit, they are freed with the pages of the
+     * group, once the RMHeader is on disk.
+     */
+    private void releaseReclaimedPages() throws IOException
+    {
+        if ( groupCommitter != null )
+        {
+            pendingFreedPages.addAll( freedPages );
+        }
+        else
+        {
+            for ( PageIO pageIo : freedPages )
+            {
+                free( pageIo );
+            }
+        }
+
+        freedPages.clear();
+        allocatedPages.clear();
+    }
+
+
+    /**
+     * Count a commit, and run the PageReclaimer every pageReclaimerThreshold commits. When the
+     * background reclaimer is enabled, the pages are only reclaimed here if the background
+     * thread hasn't been able to get the transaction lock during those commits, and only
+     * for the time budget of a slice.
+     */
+    private void reclaimIfNeeded()
+    {
+        commitCount++;
+
+        if ( commitCount >= pageReclaimerThreshold )
+        {
+            BackgroundReclaimer background = backgroundReclaimer;
+
+            if ( background == null )
+            {
+                runReclaimer();
+            }
+            else
+            {
+                runReclaimer( System.currentTimeMillis() + background.getTimeBudget() );
+            }
+        }
+    }
+
+
+    /**
+     * Run the PageReclaimer in a background thread instead of running it in the committing
+     * thread every pageReclaimerThreshold commits. The thread reclaims the pages when a
+     * read transaction is closed, or when the interval has expired, in slices which are
+     * transactions of their own.
+     *
+     * @param timeBudget The time, in milliseconds, a slice can use before releasing the
+     * transaction lock. A value below 1 disables the background reclaimer
+     * @param interval The maximum time, in milliseconds, between two passes
+     */
+    public void setBackgroundReclaimer( long timeBudget, long interval )
+    {
+        // The current slice must be done before we stop the thread : don't hold the lock
+        if ( backgroundReclaimer != null )
+        {
+            backgroundReclaimer.stop();
+            backgroundReclaimer = null;
+        }
+
+        if ( timeBudget > 0 )
+        {
+            closedTransactionsQueue.clear();
+            backgroundReclaimer = new BackgroundReclaimer( this, closedTransactionsQueue, timeBudget, interval );
+            backgroundReclaimer.start();
         }
     }
 
 
+    /**
+     * @return The background reclaimer, or null if the reclaimer runs in the committing threads
+     */
+    public BackgroundReclaimer getBackgroundReclaimer()
+    {
+        return backgroundReclaimer;
+    }
+
+
     /**
      * Create the mavibot file if it does not exist
      */
@@ -392,6 +593,7 @@ public class RecordManager extends AbstractTransactionManager
         // Create a new Header
         nbBtree = 0;
         firstFreePage = NO_PAGE;
+        freePageMap = new FreePageMap( pageSize );
         currentBtreeOfBtreesOffset = NO_PAGE;
 
         updateRecordManagerHeader();
@@ -457,7 +659,6 @@ public class RecordManager extends AbstractTransactionManager
         configuration.setName( BTREE_OF_BTREES_NAME );
         configuration.setValueSerializer( LongSerializer.INSTANCE );
         configuration.setBtreeType( BTreeTypeEnum.BTREE_OF_BTREES );
-        configuration.setCacheSize( PersistedBTree.DEFAULT_CACHE_SIZE );
 
         btreeOfBtrees = BTreeFactory.createPersistedBTree( configuration );
     }
@@ -473,7 +674,6 @@ public class RecordManager extends AbstractTransactionManager
         configuration.setName( COPIED_PAGE_BTREE_NAME );
         configuration.setValueSerializer( LongArraySerializer.INSTANCE );
         configuration.setBtreeType( BTreeTypeEnum.COPIED_PAGES_BTREE );
-        configuration.setCacheSize( PersistedBTree.DEFAULT_CACHE_SIZE );
 
         copiedPageBtree = BTreeFactory.createPersistedBTree( configuration );
     }
@@ -520,6 +720,7 @@ public class RecordManager extends AbstractTransactionManager
 
             // The page size
             pageSize = recordManagerHeader.getInt();
+            bufferPool = new PageBufferPool( pageSize, bufferPool.getMaxBuffers() );
 
             // The number of managed B-trees
             nbBtree = recordManagerHeader.getInt();
@@ -528,7 +729,7 @@ public class RecordManager extends AbstractTransactionManager
             firstFreePage = recordManagerHeader.getLong();
 
             // Read all the free pages
-            checkFreePages();
+            loadFreePages();
 
             // The current BOB offset
             currentBtreeOfBtreesOffset = recordManagerHeader.getLong();
@@ -627,18 +828,150 @@ public class RecordManager extends AbstractTransactionManager
         }
 
         // First, take the lock if it's not already taken
-        if ( !( ( ReentrantLock ) transactionLock ).isHeldByCurrentThread() )
+        if ( ( ( ReentrantLock ) transactionLock ).isHeldByCurrentThread() )
         {
-            TXN_LOG.debug( "--> Lock taken" );
-            transactionLock.lock();
+            TXN_LOG.debug( "..o The current thread already holds the lock" );
+        }
+        else if ( STRIPED_CONTEXT.get() != null )
+        {
+            TXN_LOG.debug( "..o The current thread already holds the locks of its B-trees" );
         }
         else
         {
-            TXN_LOG.debug( "..o The current thread already holds the lock" );
+            TXN_LOG.debug( "--> Lock taken" );
+            lockTransaction();
         }
 
         // Now, check the TLS state
         incrementTxnLevel();
+
+        if ( getTxnLevel() == 1 )
+        {
+            // A new transaction uses the default durability level
+            txnDurabilityLevel = null;
+        }
+    }
+
+
+    /**
+     * Starts a transaction which only takes the transaction lock, even when the striped
+     * locking is enabled : it must not modify any other B-tree than the B-tree of B-trees
+     * and the copied pages B-tree. This is used to reclaim the copied pages.
+     */
+    /* no qualifier */void beginManagementTransaction()
+    {
+        if ( !transactionLock.isHeldByCurrentThread() )
+        {
+            transactionLock.lock();
+        }
+
+        incrementTxnLevel();
+
+        if ( getTxnLevel() == 1 )
+        {
+            txnDurabilityLevel = null;
+        }
+    }
+
+
+    /**
+     * Starts a transaction which will only modify the given B-trees. When the striped
+     * locking is enabled, only the locks of those B-trees are taken : the transactions
+     * modifying other B-trees can run concurrently. The B-tree of B-trees, the copied
+     * pages B-tree and the RecordManager header are updated when the transaction is
+     * committed, while holding the transaction lock.<br/>
+     * When the striped locking is disabled, this is a plain transaction.
+     *
+     * @param btreeNames The names of the B-trees the transaction will modify
+     */
+    public void beginTransaction( String... btreeNames )
+    {
+        // Within a transaction, the B-trees are already locked
+        if ( transactionLock.isHeldByCurrentThread() || ( STRIPED_CONTEXT.get() != null ) )
+        {
+            beginTransaction();
+
+            return;
+        }
+
+        for ( String name : btreeNames )
+        {
+            if ( BTREE_OF_BTREES_NAME.equals( name ) || COPIED_PAGE_BTREE_NAME.equals( name ) )
+            {
+                throw new IllegalArgumentException( "The management B-tree " + name + " can't be locked" );
+            }
+        }
+
+        // Take the locks in the same order in all the threads, to avoid any deadlock
+        int[] stripes = getStripes( btreeNames );
+
+        while ( true )
+        {
+            ReentrantLock[] locks = btreeLocks;
+
+            if ( locks == null )
+            {
+                // No striped locking
+                beginTransaction();
+
+                return;
+            }
+
+            for ( int stripe : stripes )
+            {
+                locks[stripe].lock();
+            }
+
+            if ( locks == btreeLocks )
+            {
+                break;
+            }
+
+            // The striped locking has been disabled in the meantime
+            for ( int stripe : stripes )
+            {
+                locks[stripe].unlock();
+            }
+        }
+
+        if ( TXN_LOG.isDebugEnabled() )
+        {
+            TXN_LOG.debug( "Begining a new striped transaction on thread {}, B-trees {}",
+                Thread.currentThread().getName(), Arrays.toString( btreeNames ) );
+        }
+
+        STRIPED_CONTEXT.set( new StripedTransaction( btreeNames ) );
+        incrementTxnLevel();
+    }
+
+
+    /**
+     * Starts a transaction, with a specific durability level. The durability level
+     * is ignored if the transaction is started within another transaction.
+     *
+     * @param durabilityLevel The durability level of this transaction
+     */
+    public void beginTransaction( DurabilityLevel durabilityLevel )
+    {
+        beginTransaction();
+
+        if ( getTxnLevel() == 1 )
+        {
+            txnDurabilityLevel = durabilityLevel;
+        }
+    }
+
+
+    /**
+     * Creates a write transaction. Its modifications are buffered, and applied all together
+     * when it's committed : no lock is taken until then. They are applied one by one, so
+     * they don't write fewer pages than the same modifications done in a plain transaction.
+     *
+     * @return A new WriteTransaction
+     */
+    public WriteTransaction beginWriteTransaction()
+    {
+        return new WriteTransaction( this );
     }
 
 
@@ -647,6 +980,15 @@ public class RecordManager extends AbstractTransactionManager
      */
     public void commit()
     {
+        StripedTransaction stripedTransaction = getStripedTransaction();
+
+        if ( stripedTransaction != null )
+        {
+            commitStriped( stripedTransaction );
+
+            return;
+        }
+
         // We *must* own the transactionLock
         if ( !transactionLock.isHeldByCurrentThread() )
         {
@@ -671,7 +1013,7 @@ public class RecordManager extends AbstractTransactionManager
             {
                 // We can safely release the lock
                 // The file has been closed, nothing remains to commit, let's get out
-                transactionLock.unlock();
+                unlockTransaction();
             }
 
             return;
@@ -683,11 +1025,19 @@ public class RecordManager extends AbstractTransactionManager
         {
             case ROLLBACKED_TXN:
                 // The transaction was rollbacked, quit immediatelly
-                transactionLock.unlock();
+                unlockTransaction();
 
                 return;
 
             case 1:
+                if ( groupCommitter != null )
+                {
+                    // The RMHeader will be updated for a group of transactions
+                    commitInGroup();
+
+                    return;
+                }
+
                 // We are done with the transaction, we can update the RMHeader and swap the BTreeHeaders
                 // First update the RMHeader to be sure that we have a way to restore from a crash
                 updateRecordManagerHeader();
@@ -716,12 +1066,10 @@ public class RecordManager extends AbstractTransactionManager
                 // here, we have to erase the old references to keep only the new ones.
                 updateRecordManagerHeader();
 
-                commitCount++;
+                // Make the commit durable, if needed
+                forceCommit();
 
-                if ( commitCount >= pageReclaimerThreshold )
-                {
-                    runReclaimer();
-                }
+                reclaimIfNeeded();
 
                 // Finally, decrement the number of started transactions
                 // and release the global lock if possible
@@ -729,7 +1077,7 @@ public class RecordManager extends AbstractTransactionManager
 
                 if ( txnLevel == 0 )
                 {
-                    transactionLock.unlock();
+                    unlockTransaction();
                 }
 
                 return;
@@ -742,109 +1090,790 @@ public class RecordManager extends AbstractTransactionManager
                 // Swap the BtreeHeaders maps
                 //swapCurrentBtreeHeaders();
 
-                // We can now free pages
-                for ( PageIO pageIo : freedPages )
-                {
-                    try
-                    {
-                        free( pageIo );
-                    }
-                    catch ( IOException ioe )
-                    {
-                        throw new RecordManagerException( ioe.getMessage() );
-                    }
-                }
-
-                // Release the allocated and freed pages list
-                freedPages.clear();
-                allocatedPages.clear();
+                // The freed pages are still referenced by the committed revisions, and the
+                // allocated pages must be released if the transaction is rollbacked : both
+                // lists are kept until the outer transaction is committed or rollbacked
 
                 // And update the RMHeader again, removing the old references to BOB and CPB b-tree headers
                 // here, we have to erase the old references to keep only the new ones.
                 updateRecordManagerHeader();
 
-                commitCount++;
-
-                if ( commitCount >= pageReclaimerThreshold )
-                {
-                    runReclaimer();
-                }
+                // The pages are reclaimed when the outer transaction is committed : the copied
+                // pages of the committed revision are still referenced by the RMHeader on disk
 
                 // Finally, decrement the number of started transactions
                 // and release the global lock
                 txnLevel = decrementTxnLevel();
 
-                if ( txnLevel == 0 )
-                {
-                    transactionLock.unlock();
-                }
+                if ( txnLevel == 0 )
+                {
+                    unlockTransaction();
+                }
+
+                return;
+        }
+    }
+
+
+    /**
+     * Commits a transaction when the group commit is enabled. The modifications are made
+     * visible, then the transaction lock is released and we wait for the group leader to
+     * flush the RMHeader for all the transactions committed in the same window.
+     */
+    private void commitInGroup()
+    {
+        // Swap the BtreeHeaders maps
+        swapCurrentBtreeHeaders();
+
+        // The freed pages can't be reused until the RMHeader referencing the new
+        // B-tree of B-trees is on disk : keep them aside until the group is flushed
+        pendingFreedPages.addAll( freedPages );
+
+        // Release the allocated and freed pages list
+        freedPages.clear();
+        allocatedPages.clear();
+
+        long ticket = groupCommitter.register();
+
+        reclaimIfNeeded();
+
+        // Decrement the number of started transactions and release the global lock
+        int txnLevel = decrementTxnLevel();
+
+        if ( txnLevel == 0 )
+        {
+            unlockTransaction();
+        }
+
+        // Now, wait for the group to be flushed
+        groupCommitter.awaitFlush( ticket );
+    }
+
+
+    /**
+     * Flush the RMHeader on behalf of a group of committed transactions. The header is
+     * written and forced on disk, then the pages freed by those transactions are moved
+     * to the free page list.
+     */
+    /* no qualifier */void flushCommittedGroup()
+    {
+        transactionLock.lock();
+
+        try
+        {
+            if ( !fileChannel.isOpen() )
+            {
+                // The RecordManager has been closed, everything has already been flushed
+                return;
+            }
+
+            flushPendingCommits();
+        }
+        catch ( IOException ioe )
+        {
+            throw new FileException( ioe.getMessage() );
+        }
+        finally
+        {
+            transactionLock.unlock();
+        }
+    }
+
+
+    /**
+     * Write the RMHeader for the pending committed transactions, force it on disk,
+     * and release the pages they have freed.
+     */
+    private void flushPendingCommits() throws IOException
+    {
+        // First update the RMHeader to be sure that we have a way to restore from a crash
+        updateRecordManagerHeader();
+
+        // This is the durability barrier for the whole group
+        fileChannel.force( false );
+        nbForces.incrementAndGet();
+        lastFlushTime = System.currentTimeMillis();
+
+        if ( !pendingFreedPages.isEmpty() )
+        {
+            // We can now free pages
+            for ( PageIO pageIo : pendingFreedPages )
+            {
+                free( pageIo );
+            }
+
+            pendingFreedPages.clear();
+
+            // And update the RMHeader again, to store the new free page list
+            updateRecordManagerHeader();
+        }
+    }
+
+
+    /**
+     * Enable the group commit : the commits of the write transactions arriving in the same
+     * window will be flushed with one single RecordManager header update and one single
+     * durability barrier. Each caller will still wait in commit() until its transaction has
+     * been flushed.
+     *
+     * @param maxGroupSize The maximum number of transactions in a group. A value below 2
+     * disables the group commit
+     * @param maxDelay The maximum time, in milliseconds, a group leader will wait for other
+     * transactions to join the group
+     */
+    public void setGroupCommit( int maxGroupSize, long maxDelay )
+    {
+        beginTransaction();
+
+        try
+        {
+            if ( groupCommitter != null )
+            {
+                // Flush what has been committed with the previous configuration
+                flushPendingCommits();
+                groupCommitter.flushedAll();
+            }
+
+            if ( maxGroupSize < 2 )
+            {
+                groupCommitter = null;
+            }
+            else
+            {
+                groupCommitter = new GroupCommitter( this, maxGroupSize, maxDelay );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            throw new FileException( ioe.getMessage() );
+        }
+        finally
+        {
+            // Nothing has been modified, just release the lock
+            if ( decrementTxnLevel() == 0 )
+            {
+                unlockTransaction();
+            }
+        }
+    }
+
+
+    /**
+     * @return The page cache shared by all the managed B-trees
+     */
+    public PageCache getPageCache()
+    {
+        return pageCache;
+    }
+
+
+    /**
+     * Set the maximum size of the page cache shared by all the managed B-trees.
+     *
+     * @param cacheSize The maximum number of bytes the cached pages can use
+     */
+    public void setPageCacheSize( long cacheSize )
+    {
+        pageCache.setMaxWeight( cacheSize );
+    }
+
+
+    /**
+     * @return The pool of buffers used to read and write the pages
+     */
+    public PageBufferPool getPageBufferPool()
+    {
+        return bufferPool;
+    }
+
+
+    /**
+     * Tells if the pages must be forced on disk before the RMHeader is written, so
+     * that the header never reaches the disk before the pages it references.
+     */
+    private boolean isHeaderBarrierNeeded()
+    {
+        if ( groupCommitter != null )
+        {
+            // The group commits are always durable
+            return true;
+        }
+
+        DurabilityLevel level = ( txnDurabilityLevel != null ) ? txnDurabilityLevel : durabilityLevel;
+
+        switch ( level )
+        {
+            case FLUSH_HEADER_ONLY:
+            case FLUSH_ON_COMMIT:
+                return true;
+
+            case FLUSH_EVERY_N_MS:
+                return System.currentTimeMillis() - lastFlushTime >= flushInterval;
+
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Force the RMHeader written by a commit on disk, if the durability level requires it.
+     */
+    private void forceCommit()
+    {
+        DurabilityLevel level = ( txnDurabilityLevel != null ) ? txnDurabilityLevel : durabilityLevel;
+
+        // With FLUSH_EVERY_N_MS, the commit is forced only if the pages have been forced
+        // before the header, otherwise the header could be on disk before the pages
+        if ( lastHeaderOrdered && ( ( level == DurabilityLevel.FLUSH_ON_COMMIT )
+            || ( level == DurabilityLevel.FLUSH_EVERY_N_MS ) ) )
+        {
+            try
+            {
+                fileChannel.force( false );
+                nbForces.incrementAndGet();
+                lastFlushTime = System.currentTimeMillis();
+            }
+            catch ( IOException ioe )
+            {
+                throw new FileException( ioe.getMessage() );
+            }
+        }
+    }
+
+
+    /**
+     * Set the durability level of the commits. It can be overridden for a transaction
+     * using {@link #beginTransaction(DurabilityLevel)}.
+     *
+     * @param durabilityLevel The durability level
+     */
+    public void setDurabilityLevel( DurabilityLevel durabilityLevel )
+    {
+        this.durabilityLevel = durabilityLevel;
+    }
+
+
+    /**
+     * @return The durability level of the commits
+     */
+    public DurabilityLevel getDurabilityLevel()
+    {
+        return durabilityLevel;
+    }
+
+
+    /**
+     * Set the interval between two flushes when the durability level is FLUSH_EVERY_N_MS.
+     *
+     * @param flushInterval The interval, in milliseconds
+     */
+    public void setFlushInterval( long flushInterval )
+    {
+        this.flushInterval = flushInterval;
+    }
+
+
+    /**
+     * @return The interval between two flushes when the durability level is FLUSH_EVERY_N_MS, in milliseconds
+     */
+    public long getFlushInterval()
+    {
+        return flushInterval;
+    }
+
+
+    /**
+     * Add a CRC32 checksum at the end of every page written from now on. The pages written
+     * before are not modified.
+     *
+     * @param checksumEnabled <code>true</code> to add a checksum to the written pages
+     */
+    public void setChecksumEnabled( boolean checksumEnabled )
+    {
+        this.checksumEnabled = checksumEnabled;
+    }
+
+
+    /**
+     * @return <code>true</code> if a checksum is added to the written pages
+     */
+    public boolean isChecksumEnabled()
+    {
+        return checksumEnabled;
+    }
+
+
+    /**
+     * Set when the checksum of the read pages is checked. A page with an invalid checksum
+     * is reported with an {@link InvalidChecksumException}.
+     *
+     * @param checksumVerification The checksum verification level
+     */
+    public void setChecksumVerification( ChecksumVerification checksumVerification )
+    {
+        this.checksumVerification = checksumVerification;
+    }
+
+
+    /**
+     * @return when the checksum of the read pages is checked
+     */
+    public ChecksumVerification getChecksumVerification()
+    {
+        return checksumVerification;
+    }
+
+
+    /**
+     * Set the number of reads for one checksum check, when the checks are sampled.
+     *
+     * @param checksumSampleRate The sample rate. Must be strictly positive
+     */
+    public void setChecksumSampleRate( int checksumSampleRate )
+    {
+        if ( checksumSampleRate <= 0 )
+        {
+            throw new IllegalArgumentException( "The checksum sample rate must be strictly positive" );
+        }
+
+        this.checksumSampleRate = checksumSampleRate;
+    }
+
+
+    /**
+     * @return The number of reads for one checksum check, when the checks are sampled
+     */
+    public int getChecksumSampleRate()
+    {
+        return checksumSampleRate;
+    }
+
+
+    /**
+     * Read the pages through a memory mapping of the file, instead of reading them
+     * with a system call. The file is mapped in segments, which are extended when
+     * the file grows.<br/>
+     * The file is never truncated while it's mapped : a reader accessing a mapped page
+     * past the end of the file would crash the JVM, and a mapping can't be released
+     * while some readers may still use it. The free pages at the end of the file are
+     * kept as free pages instead.
+     *
+     * @param memoryMapped <code>true</code> to use a memory mapping to read the pages
+     */
+    public void setMemoryMapped( boolean memoryMapped )
+    {
+        // The file may be truncated by a running transaction
+        transactionLock.lock();
+
+        try
+        {
+            if ( memoryMapped )
+            {
+                if ( mappedFile == null )
+                {
+                    mappedFile = new MappedFile( fileChannel, pageSize );
+                }
+            }
+            else if ( mappedFile != null )
+            {
+                mappedFile.close();
+                mappedFile = null;
+            }
+        }
+        finally
+        {
+            transactionLock.unlock();
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if the pages are read through a memory mapping of the file
+     */
+    public boolean isMemoryMapped()
+    {
+        return mappedFile != null;
+    }
+
+
+    /**
+     * @return The group committer, or null if the commits aren't grouped
+     */
+    public GroupCommitter getGroupCommitter()
+    {
+        return groupCommitter;
+    }
+
+
+    public boolean isContextOk()
+    {
+        return ( CONTEXT == null ? true : ( CONTEXT.get() == 0 ) );
+    }
+
+
+    /**
+     * Get the transactionLevel, ie the number of encapsulated update ops
+     */
+    private int getTxnLevel()
+    {
+        Integer nbTxnLevel = CONTEXT.get();
+
+        if ( nbTxnLevel == null )
+        {
+            return -1;
+        }
+
+        return nbTxnLevel;
+    }
+
+
+    /**
+     * Increment the transactionLevel
+     */
+    private void incrementTxnLevel()
+    {
+        Integer nbTxnLevel = CONTEXT.get();
+
+        if ( nbTxnLevel == null )
+        {
+            CONTEXT.set( 1 );
+        }
+        else
+        {
+            // And increment the counter of inner txn.
+            CONTEXT.set( nbTxnLevel + 1 );
+        }
+
+        if ( TXN_LOG.isDebugEnabled() )
+        {
+            TXN_LOG.debug( "Incrementing the TxnLevel : {}", CONTEXT.get() );
+        }
+    }
+
+
+    /**
+     * Decrement the transactionLevel
+     */
+    private int decrementTxnLevel()
+    {
+        int nbTxnStarted = CONTEXT.get() - 1;
+
+        CONTEXT.set( nbTxnStarted );
+
+        if ( TXN_LOG.isDebugEnabled() )
+        {
+            TXN_LOG.debug( "Decrementing the TxnLevel : {}", CONTEXT.get() );
+        }
+
+        return nbTxnStarted;
+    }
+
+
+    /**
+     * Take the transaction lock. When the striped locking is enabled, the locks of all
+     * the B-trees are taken first, so that no striped transaction is running.
+     */
+    private void lockTransaction()
+    {
+        while ( true )
+        {
+            ReentrantLock[] locks = btreeLocks;
+
+            if ( locks != null )
+            {
+                for ( ReentrantLock lock : locks )
+                {
+                    lock.lock();
+                }
+            }
+
+            transactionLock.lock();
+
+            if ( locks == btreeLocks )
+            {
+                return;
+            }
+
+            // The striped locking has been enabled or disabled in the meantime
+            transactionLock.unlock();
+            unlockStripes( locks );
+        }
+    }
+
+
+    /**
+     * Release the transaction lock, and the locks of the B-trees held by the current thread
+     */
+    private void unlockTransaction()
+    {
+        transactionLock.unlock();
+        unlockStripes( btreeLocks );
+    }
+
+
+    /**
+     * Release the locks of the B-trees held by the current thread
+     */
+    private void unlockStripes( ReentrantLock[] locks )
+    {
+        if ( locks != null )
+        {
+            for ( ReentrantLock lock : locks )
+            {
+                if ( lock.isHeldByCurrentThread() )
+                {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Get the sorted stripes of some B-trees
+     */
+    private int[] getStripes( String... btreeNames )
+    {
+        boolean[] selected = new boolean[NB_STRIPES];
+        int nbStripes = 0;
+
+        for ( String name : btreeNames )
+        {
+            int stripe = ( name.hashCode() & 0x7FFFFFFF ) % NB_STRIPES;
+
+            if ( !selected[stripe] )
+            {
+                selected[stripe] = true;
+                nbStripes++;
+            }
+        }
+
+        int[] stripes = new int[nbStripes];
+        int pos = 0;
+
+        for ( int stripe = 0; stripe < NB_STRIPES; stripe++ )
+        {
+            if ( selected[stripe] )
+            {
+                stripes[pos++] = stripe;
+            }
+        }
+
+        return stripes;
+    }
+
+
+    /**
+     * @return The striped transaction of the current thread, unless it's being committed
+     * while holding the transaction lock, or null
+     */
+    private StripedTransaction getStripedTransaction()
+    {
+        StripedTransaction stripedTransaction = STRIPED_CONTEXT.get();
+
+        if ( ( stripedTransaction == null ) || transactionLock.isHeldByCurrentThread() )
+        {
+            return null;
+        }
+
+        return stripedTransaction;
+    }
+
+
+    /**
+     * Check that the current thread can modify a B-tree : a striped transaction can only
+     * modify the B-trees it has declared.
+     *
+     * @param name The B-tree name
+     */
+    /* no qualifier */void checkWritable( String name )
+    {
+        StripedTransaction stripedTransaction = getStripedTransaction();
+
+        if ( ( stripedTransaction != null ) && !stripedTransaction.isDeclared( name ) )
+        {
+            String err = "The B-tree " + name + " has not been declared by the transaction";
+            TXN_LOG.error( err );
+            throw new RecordManagerException( err );
+        }
+    }
+
+
+    /**
+     * Commits a striped transaction. The inner transactions are just closed. For the
+     * outer transaction, the transaction lock is taken and the B-tree of B-trees and the
+     * copied pages B-tree are updated, then the transaction is committed as any other.
+     */
+    private void commitStriped( StripedTransaction stripedTransaction )
+    {
+        if ( TXN_LOG.isDebugEnabled() )
+        {
+            TXN_LOG.debug( "Committing a striped transaction on thread {}, TxnLevel {}",
+                Thread.currentThread().getName(), getTxnLevel() );
+        }
+
+        if ( decrementTxnLevel() > 0 )
+        {
+            // The modifications will be published by the outer transaction
+            return;
+        }
+
+        transactionLock.lock();
+        STRIPED_CONTEXT.remove();
+        incrementTxnLevel();
+
+        if ( !fileChannel.isOpen() )
+        {
+            // The file has been closed, nothing remains to commit
+            decrementTxnLevel();
+            unlockTransaction();
+
+            return;
+        }
+
+        try
+        {
+            // The durability level of the transaction is the default one
+            txnDurabilityLevel = null;
+
+            for ( Map.Entry<NameRevision, Long> entry : stripedTransaction.getBtreeHeaderOffsets().entrySet() )
+            {
+                NameRevision nameRevision = entry.getKey();
+                addInBtreeOfBtrees( nameRevision.getName(), nameRevision.getRevision(), entry.getValue() );
+            }
+
+            for ( Map.Entry<RevisionName, long[]> entry : stripedTransaction.getCopiedPages().entrySet() )
+            {
+                addInCopiedPagesBtree( entry.getKey(), entry.getValue() );
+            }
 
-                return;
+            for ( BTreeHeader<?, ?> btreeHeader : stripedTransaction.getBTreeHeaders() )
+            {
+                updateNewBTreeHeaders( btreeHeader );
+            }
         }
-    }
+        catch ( IOException ioe )
+        {
+            restoreRevisions( stripedTransaction );
+            rollback();
 
+            throw new RecordManagerException( ioe.getMessage() );
+        }
 
-    public boolean isContextOk()
-    {
-        return ( CONTEXT == null ? true : ( CONTEXT.get() == 0 ) );
+        // Now, this is a plain transaction
+        commit();
     }
 
 
     /**
-     * Get the transactionLevel, ie the number of encapsulated update ops
+     * Rollback a striped transaction. Nothing has been published, the B-trees are
+     * just reset to their current revision.
      */
-    private int getTxnLevel()
+    private void rollbackStriped( StripedTransaction stripedTransaction )
     {
-        Integer nbTxnLevel = CONTEXT.get();
-
-        if ( nbTxnLevel == null )
+        if ( TXN_LOG.isDebugEnabled() )
         {
-            return -1;
+            TXN_LOG.debug( "Rollbacking a striped transaction on thread {}, TxnLevel {}",
+                Thread.currentThread().getName(), getTxnLevel() );
         }
 
-        return nbTxnLevel;
+        // Reset the counter
+        CONTEXT.set( ROLLBACKED_TXN );
+        STRIPED_CONTEXT.remove();
+
+        restoreRevisions( stripedTransaction );
+
+        // This is an all-of-nothing operation, as for the plain transactions
+        unlockStripes( btreeLocks );
     }
 
 
     /**
-     * Increment the transactionLevel
+     * Reset the B-trees modified by a striped transaction to their current revision
      */
-    private void incrementTxnLevel()
+    private void restoreRevisions( StripedTransaction stripedTransaction )
     {
-        Integer nbTxnLevel = CONTEXT.get();
+        restoreRevisions( stripedTransaction.getBTreeHeaders() );
+    }
 
-        if ( nbTxnLevel == null )
-        {
-            CONTEXT.set( 1 );
-        }
-        else
+
+    /**
+     * Reset the B-trees of some new BTreeHeaders to their current revision. The B-trees
+     * created by the transaction have no current revision, they are left untouched.
+     */
+    private void restoreRevisions( Collection<BTreeHeader<?, ?>> btreeHeaders )
+    {
+        btreeHeadersLock.readLock().lock();
+
+        try
         {
-            // And increment the counter of inner txn.
-            CONTEXT.set( nbTxnLevel + 1 );
-        }
+            for ( BTreeHeader<?, ?> btreeHeader : btreeHeaders )
+            {
+                AbstractBTree btree = ( AbstractBTree ) btreeHeader.getBtree();
+                BTreeHeader currentBtreeHeader = currentBTreeHeaders.get( btree.getName() );
 
-        if ( TXN_LOG.isDebugEnabled() )
+                if ( ( btree.getType() == BTreeTypeEnum.PERSISTED ) && ( currentBtreeHeader != null )
+                    && ( currentBtreeHeader != btreeHeader ) )
+                {
+                    btree.currentRevision.set( currentBtreeHeader.getRevision() );
+                    btree.currentBtreeHeader = currentBtreeHeader;
+                }
+            }
+        }
+        finally
         {
-            TXN_LOG.debug( "Incrementing the TxnLevel : {}", CONTEXT.get() );
+            btreeHeadersLock.readLock().unlock();
         }
     }
 
 
     /**
-     * Decrement the transactionLevel
+     * Enable or disable the striped locking. When it's enabled, the write transactions
+     * started with {@link #beginTransaction(String...)} only lock the B-trees they have
+     * declared, and can run concurrently. The other write transactions lock all the B-trees.
+     *
+     * @param stripedLocking <code>true</code> to enable the striped locking
      */
-    private int decrementTxnLevel()
+    public void setStripedLocking( boolean stripedLocking )
     {
-        int nbTxnStarted = CONTEXT.get() - 1;
+        // Wait for all the transactions to be done
+        lockTransaction();
 
-        CONTEXT.set( nbTxnStarted );
+        ReentrantLock[] locks = btreeLocks;
 
-        if ( TXN_LOG.isDebugEnabled() )
+        try
         {
-            TXN_LOG.debug( "Decrementing the TxnLevel : {}", CONTEXT.get() );
+            if ( stripedLocking && ( locks == null ) )
+            {
+                ReentrantLock[] newLocks = new ReentrantLock[NB_STRIPES];
+
+                for ( int i = 0; i < NB_STRIPES; i++ )
+                {
+                    newLocks[i] = new ReentrantLock();
+                }
+
+                btreeLocks = newLocks;
+            }
+            else if ( !stripedLocking )
+            {
+                btreeLocks = null;
+            }
+        }
+        finally
+        {
+            transactionLock.unlock();
+            unlockStripes( locks );
         }
+    }
 
-        return nbTxnStarted;
+
+    /**
+     * @return <code>true</code> if the striped locking is enabled
+     */
+    public boolean isStripedLocking()
+    {
+        return btreeLocks != null;
     }
 
 
@@ -853,6 +1882,15 @@ public class RecordManager extends AbstractTransactionManager
      */
     public void rollback()
     {
+        StripedTransaction stripedTransaction = getStripedTransaction();
+
+        if ( stripedTransaction != null )
+        {
+            rollbackStriped( stripedTransaction );
+
+            return;
+        }
+
         // We *must* own the transactionLock
         if ( !transactionLock.isHeldByCurrentThread() )
         {
@@ -886,15 +1924,24 @@ public class RecordManager extends AbstractTransactionManager
         freedPages.clear();
         allocatedPages.clear();
 
-        // And update the RMHeader
-        updateRecordManagerHeader();
+        // The modified B-trees go back to their current revision
+        restoreRevisions( newBTreeHeaders.values() );
 
         // And restore the BTreeHeaders new Map to the current state
         revertBtreeHeaders();
 
+        // The RMHeader references the committed B-tree of B-trees and copied pages B-tree
+        currentBtreeOfBtreesOffset = getNewBTreeHeader( BTREE_OF_BTREES_NAME ).getBTreeHeaderOffset();
+        previousBtreeOfBtreesOffset = -1L;
+        currentCopiedPagesBtreeOffset = getNewBTreeHeader( COPIED_PAGE_BTREE_NAME ).getBTreeHeaderOffset();
+        previousCopiedPagesBtreeOffset = -1L;
+
+        // And update the RMHeader
+        updateRecordManagerHeader();
+
         // This is an all-of-nothing operation : we can't have a transaction within
         // a transaction that would survive an inner transaction rollback.
-        transactionLock.unlock();
+        unlockTransaction();
     }
 
 
@@ -907,6 +1954,24 @@ public class RecordManager extends AbstractTransactionManager
      * @return An array of pages
      */
     /*no qualifier*/PageIO[] readPageIOs( long position, long limit ) throws IOException, EndOfFileExceededException
+    {
+        return readPageIOs( position, limit, null );
+    }
+
+
+    /**
+     * Reads all the PageIOs that are linked to the page at the given position, including
+     * the first page. If all the pages are read, their checksum is checked, depending on
+     * the checksum verification level.
+     *
+     * @param position The position of the first page
+     * @param limit The maximum bytes to read. Set this value to -1 when the size is unknown.
+     * @param btreeName The name of the B-tree the pages belong to, used to report an invalid checksum
+     * @return An array of pages
+     * @throws InvalidChecksumException If the pages checksum is invalid
+     */
+    private PageIO[] readPageIOs( long position, long limit, String btreeName ) throws IOException,
+        EndOfFileExceededException
     {
         LOG.debug( "Read PageIOs at position {}", position );
 
@@ -935,7 +2000,6 @@ public class RecordManager extends AbstractTransactionManager
 
                 if ( nextPage == NO_PAGE )
                 {
-                    page.setNextPage( NO_PAGE );
                     break;
                 }
             }
@@ -943,9 +2007,129 @@ public class RecordManager extends AbstractTransactionManager
 
         LOG.debug( "Nb of PageIOs read : {}", listPages.size() );
 
-        // Return
-        return listPages.toArray( new PageIO[]
+        PageIO[] pageIos = listPages.toArray( new PageIO[]
             {} );
+
+        // The checksum can only be checked if we have read all the pages
+        if ( firstPage.hasChecksum() && ( nextPage == NO_PAGE ) && isChecksumCheckNeeded() )
+        {
+            checkChecksum( pageIos, btreeName );
+        }
+
+        return pageIos;
+    }
+
+
+    /**
+     * Tells if the checksum of the pages being read must be checked
+     */
+    private boolean isChecksumCheckNeeded()
+    {
+        switch ( checksumVerification )
+        {
+            case ALWAYS:
+                return true;
+
+            case SAMPLED:
+                return ( nbChecksummedReads.incrementAndGet() % checksumSampleRate ) == 0;
+
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Check the checksum stored at the end of the data of some linked pages
+     *
+     * @param pageIos The linked pages
+     * @param btreeName The name of the B-tree the pages belong to, if known
+     * @throws InvalidChecksumException If the checksum is invalid
+     */
+    private void checkChecksum( PageIO[] pageIos, String btreeName ) throws IOException
+    {
+        nbChecksumChecks.incrementAndGet();
+
+        int length = ( int ) pageIos[0].getSize() - INT_SIZE;
+
+        if ( ( length < 0 ) || ( computeNbPages( length + INT_SIZE ) > pageIos.length )
+            || ( computeChecksum( pageIos, 0, length ) != readInt( pageIos, length ) ) )
+        {
+            nbChecksumErrors.incrementAndGet();
+            LOG.error( "Invalid checksum for the page at offset 0x{} of the B-tree {}",
+                Long.toHexString( pageIos[0].getOffset() ), btreeName );
+
+            throw new InvalidChecksumException( pageIos[0].getOffset(), btreeName );
+        }
+    }
+
+
+    /**
+     * Compute the CRC32 checksum of the data stored in some linked pages
+     *
+     * @param pageIos The pages
+     * @param start The position of the first page in the array
+     * @param length The number of bytes to include in the checksum
+     * @return The checksum
+     */
+    private int computeChecksum( PageIO[] pageIos, int start, int length )
+    {
+        CRC32 crc = new CRC32();
+        int headerSize = LONG_SIZE + INT_SIZE;
+        int remaining = length;
+
+        for ( int i = start; remaining > 0; i++ )
+        {
+            int nbBytes = Math.min( remaining, pageSize - headerSize );
+
+            ByteBuffer data = pageIos[i].getData().duplicate();
+            data.clear();
+            data.position( headerSize );
+            data.limit( headerSize + nbBytes );
+            crc.update( data );
+
+            remaining -= nbBytes;
+
+            // The next pages only have a link
+            headerSize = LONG_SIZE;
+        }
+
+        return ( int ) crc.getValue();
+    }
+
+
+    /**
+     * Store the checksum at the end of the data of the linked pages which have one.
+     * The pages of a record are expected to be contiguous in the array, and they must all
+     * be present : otherwise, the checksum can't be computed.
+     *
+     * @param pageIos The pages
+     * @throws IOException If some pages of a record with a checksum are missing
+     */
+    private void updateChecksums( PageIO[] pageIos ) throws IOException
+    {
+        for ( int i = 0; i < pageIos.length; i++ )
+        {
+            if ( !pageIos[i].hasChecksum() )
+            {
+                continue;
+            }
+
+            int length = ( int ) pageIos[i].getSize() - INT_SIZE;
+            int nbPages = computeNbPages( length + INT_SIZE );
+
+            if ( i + nbPages > pageIos.length )
+            {
+                // We can't leave the checksum flag set without a valid checksum
+                throw new IOException( "Cannot compute the checksum of the record at offset 0x"
+                    + Long.toHexString( pageIos[i].getOffset() ) + " : only " + ( pageIos.length - i ) + " of its "
+                    + nbPages + " pages are written" );
+            }
+
+            PageIO[] record = ( ( i == 0 ) && ( nbPages == pageIos.length ) ) ? pageIos : Arrays.copyOfRange(
+                pageIos, i, i + nbPages );
+            store( length, computeChecksum( record, 0, length ), record );
+        }
     }
 
 
@@ -1076,9 +2260,10 @@ public class RecordManager extends AbstractTransactionManager
 
         BTreeFactory.setValueSerializer( btree, valueSerializerFqcn );
 
-        // The B-tree allowDuplicates flag
-        int allowDuplicates = readInt( infoPageIos, dataPos );
-        ( ( PersistedBTree<K, V> ) btree ).setAllowDuplicates( allowDuplicates != 0 );
+        // The B-tree flags : the allowDuplicates flag, and the page format version
+        int flags = readInt( infoPageIos, dataPos );
+        ( ( PersistedBTree<K, V> ) btree ).setAllowDuplicates( ( flags & ALLOW_DUPLICATES_FLAG ) != 0 );
+        ( ( PersistedBTree<K, V> ) btree ).setPageFormat( PageFormatEnum.fromVersion( flags >>> PAGE_FORMAT_SHIFT ) );
         dataPos += INT_SIZE;
 
         // Set the recordManager in the btree
@@ -1092,12 +2277,16 @@ public class RecordManager extends AbstractTransactionManager
         // Now, init the B-tree
         ( ( PersistedBTree<K, V> ) btree ).init( parentBTree );
 
-        // Update the BtreeHeaders Maps
-        currentBTreeHeaders.put( btree.getName(), ( ( PersistedBTree<K, V> ) btree ).getBtreeHeader() );
-        newBTreeHeaders.put( btree.getName(), ( ( PersistedBTree<K, V> ) btree ).getBtreeHeader() );
+        // Update the BtreeHeaders Maps. The sub-btrees, which may be loaded by any reader
+        // or writer, have their own header
+        if ( btree.getType() != BTreeTypeEnum.PERSISTED_SUB )
+        {
+            currentBTreeHeaders.put( btree.getName(), ( ( PersistedBTree<K, V> ) btree ).getBtreeHeader() );
+            newBTreeHeaders.put( btree.getName(), ( ( PersistedBTree<K, V> ) btree ).getBtreeHeader() );
+        }
 
         // Read the rootPage pages on disk
-        PageIO[] rootPageIos = readPageIOs( rootPageOffset, Long.MAX_VALUE );
+        PageIO[] rootPageIos = readPageIOs( rootPageOffset, Long.MAX_VALUE, btree.getName() );
 
         Page<K, V> btreeRoot = readPage( btree, rootPageIos );
         BTreeFactory.setRecordManager( btree, this );
@@ -1118,10 +2307,16 @@ public class RecordManager extends AbstractTransactionManager
         IOException
     {
         checkOffset( offset );
-        PageIO[] rootPageIos = readPageIOs( offset, Long.MAX_VALUE );
+        PageIO[] rootPageIos = readPageIOs( offset, Long.MAX_VALUE, btree.getName() );
 
         Page<K, V> page = readPage( btree, rootPageIos );
 
+        // The page has been deserialized, the buffers can be reused
+        for ( PageIO pageIo : rootPageIos )
+        {
+            bufferPool.release( pageIo.releaseData() );
+        }
+
         return page;
     }
 
@@ -1192,10 +2387,18 @@ public class RecordManager extends AbstractTransactionManager
         leaf.setOffset( pageIos[0].getOffset() );
         leaf.setLastOffset( pageIos[pageIos.length - 1].getOffset() );
 
-        int[] keyLengths = new int[nbElems];
-        int[] valueLengths = new int[nbElems];
+        if ( nbElems == 0 )
+        {
+            return leaf;
+        }
+
+        // The keys and values reference the page data, they are not copied
+        byte[] data = byteBuffer.array();
+        int base = byteBuffer.arrayOffset();
 
         boolean isNotSubTree = ( btree.getType() != BTreeTypeEnum.PERSISTED_SUB );
+        boolean isPrefixCompressed = isPrefixCompressed( btree );
+        byte[] previousKey = null;
 
         // Read each key and value
         for ( int i = 0; i < nbElems; i++ )
@@ -1209,32 +2412,41 @@ public class RecordManager extends AbstractTransactionManager
                 if ( nbValues < 0 )
                 {
                     // This is a sub-btree
-                    byte[] btreeOffsetBytes = new byte[LONG_SIZE];
-                    byteBuffer.get( btreeOffsetBytes );
+                    int position = byteBuffer.position();
+                    byteBuffer.position( position + LONG_SIZE );
 
                     // Create the valueHolder. As the number of values is negative, we have to switch
                     // to a positive value but as we start at -1 for 0 value, add 1.
-                    valueHolder = new PersistedValueHolder<V>( btree, 1 - nbValues, btreeOffsetBytes );
+                    valueHolder = new PersistedValueHolder<V>( btree, 1 - nbValues, data, base + position, LONG_SIZE );
                 }
                 else
                 {
                     // This is an array
                     // Read the value's array length
-                    valueLengths[i] = byteBuffer.getInt();
+                    int valueLength = byteBuffer.getInt();
 
-                    // This is an Array of values, read the byte[] associated with it
-                    byte[] arrayBytes = new byte[valueLengths[i]];
-                    byteBuffer.get( arrayBytes );
-                    valueHolder = new PersistedValueHolder<V>( btree, nbValues, arrayBytes );
+                    // This is an Array of values, reference the bytes associated with it
+                    int position = byteBuffer.position();
+                    byteBuffer.position( position + valueLength );
+                    valueHolder = new PersistedValueHolder<V>( btree, nbValues, data, base + position, valueLength );
                 }
 
                 BTreeFactory.setValue( btree, leaf, i, valueHolder );
             }
 
-            keyLengths[i] = byteBuffer.getInt();
-            byte[] data = new byte[keyLengths[i]];
-            byteBuffer.get( data );
-            BTreeFactory.setKey( btree, leaf, i, data );
+            if ( isPrefixCompressed )
+            {
+                // The key has to be rebuilt from the previous one
+                previousKey = KeyPrefixCompressor.decompress( byteBuffer, previousKey );
+                BTreeFactory.setKey( btree, leaf, i, previousKey );
+            }
+            else
+            {
+                int keyLength = byteBuffer.getInt();
+                int position = byteBuffer.position();
+                byteBuffer.position( position + keyLength );
+                BTreeFactory.setKey( btree, leaf, i, data, base + position, keyLength );
+            }
         }
 
         return leaf;
@@ -1248,6 +2460,8 @@ public class RecordManager extends AbstractTransactionManager
         ByteBuffer byteBuffer, PageIO[] pageIos ) throws IOException
     {
         PersistedNode<K, V> node = ( PersistedNode<K, V> ) BTreeFactory.createNode( btree, revision, nbElems );
+        boolean isPrefixCompressed = isPrefixCompressed( btree );
+        byte[] previousKey = null;
 
         // Read each value and key
         for ( int i = 0; i < nbElems; i++ )
@@ -1259,6 +2473,15 @@ public class RecordManager extends AbstractTransactionManager
             PersistedPageHolder<K, V> valueHolder = new PersistedPageHolder<K, V>( btree, null, offset, lastOffset );
             node.setValue( i, valueHolder );
 
+            if ( isPrefixCompressed )
+            {
+                // The key has to be rebuilt from the previous one
+                previousKey = KeyPrefixCompressor.decompress( byteBuffer, previousKey );
+                BTreeFactory.setKey( btree, node, i, previousKey );
+
+                continue;
+            }
+
             // Read the key length
             int keyLength = byteBuffer.getInt();
 
@@ -1565,6 +2788,9 @@ public class RecordManager extends AbstractTransactionManager
      */
     public synchronized <K, V> void manage( BTree<K, V> btree ) throws BTreeAlreadyManagedException, IOException
     {
+        // A striped transaction can't modify the B-tree of B-trees
+        checkWritable( BTREE_OF_BTREES_NAME );
+
         beginTransaction();
 
         try
@@ -1642,7 +2868,7 @@ public class RecordManager extends AbstractTransactionManager
      * @throws BTreeAlreadyManagedException If the B-tree is already managed
      * @throws IOException
      */
-    public synchronized <K, V> void manageSubBtree( BTree<K, V> btree )
+    public <K, V> void manageSubBtree( BTree<K, V> btree )
         throws BTreeAlreadyManagedException, IOException
     {
         LOG.debug( "Managing the sub-btree {}", btree.getName() );
@@ -1690,6 +2916,14 @@ public class RecordManager extends AbstractTransactionManager
             managedBtrees.put( name, ( BTree<Object, Object> ) btree );
         }
 
+        // A striped transaction creates the sub-btrees concurrently with the other
+        // transactions : it does not touch the shared structures, the sub-btree has
+        // its own header, and the RMHeader will be updated when it's committed
+        if ( getStripedTransaction() != null )
+        {
+            return;
+        }
+
         // And in the Map of currentBtreeHeaders and newBtreeHeaders
         currentBTreeHeaders.put( name, btreeHeader );
         newBTreeHeaders.put( name, btreeHeader );
@@ -1712,6 +2946,16 @@ public class RecordManager extends AbstractTransactionManager
     }
 
 
+    /**
+     * Tells if the keys of a B-tree are stored with the {@link PageFormatEnum#PREFIX_COMPRESSED} format
+     */
+    private <K, V> boolean isPrefixCompressed( BTree<K, V> btree )
+    {
+        return ( btree instanceof PersistedBTree )
+            && ( ( ( PersistedBTree<K, V> ) btree ).getPageFormat() == PageFormatEnum.PREFIX_COMPRESSED );
+    }
+
+
     /**
      * Serialize a new Page. It will contain the following data :<br/>
      * <ul>
@@ -1734,94 +2978,151 @@ public class RecordManager extends AbstractTransactionManager
     {
         int nbElems = page.getNbElems();
 
-        boolean isNotSubTree = ( btree.getType() != BTreeTypeEnum.PERSISTED_SUB );
-
         if ( nbElems == 0 )
         {
             return serializeRootPage( revision );
         }
         else
         {
-            // Prepare a list of byte[] that will contain the serialized page
-            int nbBuffers = 1 + 1 + 1 + nbElems * 3;
-            int dataSize = 0;
-            int serializedSize = 0;
+            List<byte[]> serializedData = serializePageData( btree, revision, page );
 
-            if ( page.isNode() )
+            // We are done. Allocate the pages we need to store the data
+            PageIO[] pageIos = getFreePageIOs( computeSerializedSize( serializedData ) );
+
+            // And store the data into those pages
+            long position = 0L;
+
+            for ( byte[] bytes : serializedData )
             {
-                // A Node has one more value to store
-                nbBuffers++;
+                position = storeRaw( position, bytes, pageIos );
             }
 
-            // Now, we can create the list with the right size
-            List<byte[]> serializedData = new ArrayList<byte[]>( nbBuffers );
+            return pageIos;
+        }
+    }
 
-            // The revision
-            byte[] buffer = LongSerializer.serialize( revision );
-            serializedData.add( buffer );
-            serializedSize += buffer.length;
 
-            // The number of elements
-            // Make it a negative value if it's a Node
-            int pageNbElems = nbElems;
+    /**
+     * Serialize a page which is not empty into a list of byte[], without allocating the
+     * pages to store them. This method does not modify the RecordManager, so it can be
+     * called concurrently for different pages, as long as the values of the page don't
+     * have to be stored in a new sub-btree.
+     *
+     * @param btree The B-tree the page belongs to
+     * @param revision The page revision
+     * @param page The page to serialize
+     * @return The list of byte[] to store, in this order
+     * @throws IOException If the page can't be serialized
+     */
+    /* no qualifier */<K, V> List<byte[]> serializePageData( BTree<K, V> btree, long revision, Page<K, V> page )
+        throws IOException
+    {
+        int nbElems = page.getNbElems();
 
-            if ( page.isNode() )
-            {
-                pageNbElems = -nbElems;
-            }
+        boolean isNotSubTree = ( btree.getType() != BTreeTypeEnum.PERSISTED_SUB );
+        boolean isPrefixCompressed = isPrefixCompressed( btree );
 
-            buffer = IntSerializer.serialize( pageNbElems );
-            serializedData.add( buffer );
-            serializedSize += buffer.length;
+        // Prepare a list of byte[] that will contain the serialized page
+        int nbBuffers = 1 + 1 + 1 + nbElems * 3;
+        int dataSize = 0;
+
+        if ( page.isNode() )
+        {
+            // A Node has one more value to store
+            nbBuffers++;
+        }
+
+        // Now, we can create the list with the right size
+        List<byte[]> serializedData = new ArrayList<byte[]>( nbBuffers );
+
+        // The revision
+        byte[] buffer = LongSerializer.serialize( revision );
+        serializedData.add( buffer );
 
-            // Iterate on the keys and values. We first serialize the value, then the key
-            // until we are done with all of them. If we are serializing a page, we have
-            // to serialize one more value
-            for ( int pos = 0; pos < nbElems; pos++ )
+        // The number of elements
+        // Make it a negative value if it's a Node
+        int pageNbElems = nbElems;
+
+        if ( page.isNode() )
+        {
+            pageNbElems = -nbElems;
+        }
+
+        buffer = IntSerializer.serialize( pageNbElems );
+        serializedData.add( buffer );
+
+        // Iterate on the keys and values. We first serialize the value, then the key
+        // until we are done with all of them. If we are serializing a page, we have
+        // to serialize one more value
+        byte[] previousKey = null;
+
+        for ( int pos = 0; pos < nbElems; pos++ )
+        {
+            // Start with the value
+            if ( page.isNode() )
             {
-                // Start with the value
-                if ( page.isNode() )
+                dataSize += serializeNodeValue( ( PersistedNode<K, V> ) page, pos, serializedData );
+
+                if ( isPrefixCompressed )
                 {
-                    dataSize += serializeNodeValue( ( PersistedNode<K, V> ) page, pos, serializedData );
-                    dataSize += serializeNodeKey( ( PersistedNode<K, V> ) page, pos, serializedData );
+                    byte[] key = ( ( PersistedKeyHolder<K> ) ( ( PersistedNode<K, V> ) page ).getKeyHolder( pos ) )
+                        .getRaw();
+                    dataSize += serializeCompressedKey( previousKey, key, serializedData );
+                    previousKey = key;
                 }
                 else
                 {
-                    if ( isNotSubTree )
-                    {
-                        dataSize += serializeLeafValue( ( PersistedLeaf<K, V> ) page, pos, serializedData );
-                    }
+                    dataSize += serializeNodeKey( ( PersistedNode<K, V> ) page, pos, serializedData );
+                }
+            }
+            else
+            {
+                if ( isNotSubTree )
+                {
+                    dataSize += serializeLeafValue( ( PersistedLeaf<K, V> ) page, pos, serializedData );
+                }
 
+                if ( isPrefixCompressed )
+                {
+                    byte[] key = ( ( PersistedKeyHolder<K> ) ( ( PersistedLeaf<K, V> ) page ).getKeyHolder( pos ) )
+                        .getRaw();
+                    dataSize += serializeCompressedKey( previousKey, key, serializedData );
+                    previousKey = key;
+                }
+                else
+                {
                     dataSize += serializeLeafKey( ( PersistedLeaf<K, V> ) page, pos, serializedData );
                 }
             }
+        }
 
-            // Nodes have one more value to serialize
-            if ( page.isNode() )
-            {
-                dataSize += serializeNodeValue( ( PersistedNode<K, V> ) page, nbElems, serializedData );
-            }
-
-            // Store the data size
-            buffer = IntSerializer.serialize( dataSize );
-            serializedData.add( 2, buffer );
-            serializedSize += buffer.length;
+        // Nodes have one more value to serialize
+        if ( page.isNode() )
+        {
+            dataSize += serializeNodeValue( ( PersistedNode<K, V> ) page, nbElems, serializedData );
+        }
 
-            serializedSize += dataSize;
+        // Store the data size
+        buffer = IntSerializer.serialize( dataSize );
+        serializedData.add( 2, buffer );
 
-            // We are done. Allocate the pages we need to store the data
-            PageIO[] pageIos = getFreePageIOs( serializedSize );
+        return serializedData;
+    }
 
-            // And store the data into those pages
-            long position = 0L;
 
-            for ( byte[] bytes : serializedData )
-            {
-                position = storeRaw( position, bytes, pageIos );
-            }
+    /**
+     * Compute the number of bytes needed to store some serialized data
+     */
+    private int computeSerializedSize( List<byte[]> serializedData )
+    {
+        int serializedSize = 0;
 
-            return pageIos;
+        for ( byte[] bytes : serializedData )
+        {
+            serializedSize += bytes.length;
         }
+
+        return serializedSize;
     }
 
 
@@ -1847,6 +3148,19 @@ public class RecordManager extends AbstractTransactionManager
     }
 
 
+    /**
+     * Serialize a key of a page stored with the {@link PageFormatEnum#PREFIX_COMPRESSED}
+     * format, relatively to the previous key in the page
+     */
+    private int serializeCompressedKey( byte[] previousKey, byte[] key, List<byte[]> serializedData )
+    {
+        byte[] buffer = KeyPrefixCompressor.compress( previousKey, key );
+        serializedData.add( buffer );
+
+        return buffer.length;
+    }
+
+
     /**
      * Serialize a Node's Value. We store the two offsets of the child page.
      */
@@ -1972,14 +3286,22 @@ public class RecordManager extends AbstractTransactionManager
 
         // We need first to create a byte[] that will contain all the data
         // For the root page, this is easy, as we only have to store the revision,
-        // and the number of elements, which is 0.
+        // the number of elements, which is 0, and the size of the keys and values, which is 0 too.
         long position = 0L;
 
         position = store( position, revision, newPage );
         position = store( position, 0, newPage );
+        position = store( position, 0, newPage );
 
         // Update the page size now
-        newPage.setSize( ( int ) position );
+        if ( checksumEnabled )
+        {
+            newPage.setSize( ( ( int ) position + INT_SIZE ) | PageIO.CHECKSUM_FLAG );
+        }
+        else
+        {
+            newPage.setSize( ( int ) position );
+        }
 
         // Insert the result into the array of PageIO
         pageIos[0] = newPage;
@@ -2011,6 +3333,16 @@ public class RecordManager extends AbstractTransactionManager
      */
     public void updateRecordManagerHeader()
     {
+        // The free pages list must be up to date on disk before the header referencing it
+        try
+        {
+            flushFreePages();
+        }
+        catch ( IOException ioe )
+        {
+            throw new FileException( ioe.getMessage() );
+        }
+
         // The page size
         int position = writeData( RECORD_MANAGER_HEADER_BYTES, 0, pageSize );
 
@@ -2102,8 +3434,23 @@ public class RecordManager extends AbstractTransactionManager
 
             if ( ( nbTxnStarted == null ) || ( nbTxnStarted <= 1 ) )
             {
+                // The pages must be on disk before the header referencing them
+                writeDirtyPages();
+
+                lastHeaderOrdered = isHeaderBarrierNeeded();
+
+                if ( lastHeaderOrdered )
+                {
+                    fileChannel.force( false );
+                    nbForces.incrementAndGet();
+                }
+
                 //System.out.println( "Writing page at 0000" );
-                writeCounter.put( 0L, writeCounter.containsKey( 0L ) ? writeCounter.get( 0L ) + 1 : 1 );
+                if ( LOG.isDebugEnabled() )
+                {
+                    writeCounter.put( 0L, writeCounter.containsKey( 0L ) ? writeCounter.get( 0L ) + 1 : 1 );
+                }
+
                 fileChannel.write( RECORD_MANAGER_HEADER_BUFFER, 0 );
             }
         }
@@ -2205,6 +3552,16 @@ public class RecordManager extends AbstractTransactionManager
         checkOffset( btreeHeaderOffset );
         NameRevision nameRevision = new NameRevision( name, revision );
 
+        // The B-tree of B-trees is updated when a striped transaction is committed
+        StripedTransaction stripedTransaction = getStripedTransaction();
+
+        if ( stripedTransaction != null )
+        {
+            stripedTransaction.addBtreeHeaderOffset( nameRevision, btreeHeaderOffset );
+
+            return;
+        }
+
         btreeOfBtrees.insert( nameRevision, btreeHeaderOffset );
 
         // Update the B-tree of B-trees offset
@@ -2233,6 +3590,29 @@ public class RecordManager extends AbstractTransactionManager
             pageOffsets[pos++] = ( ( AbstractPage<K, V> ) page ).getOffset();
         }
 
+        // The copied pages B-tree is updated when a striped transaction is committed
+        StripedTransaction stripedTransaction = getStripedTransaction();
+
+        if ( stripedTransaction != null )
+        {
+            stripedTransaction.addCopiedPages( revisionName, pageOffsets );
+
+            return;
+        }
+
+        addInCopiedPagesBtree( revisionName, pageOffsets );
+    }
+
+
+    /**
+     * Add the offsets of some copied pages into the CopiedPages B-tree.
+     *
+     * @param revisionName The revision and the B-tree name
+     * @param pageOffsets The copied pages offsets
+     * @throws IOException If the update failed
+     */
+    private void addInCopiedPagesBtree( RevisionName revisionName, long[] pageOffsets ) throws IOException
+    {
         copiedPageBtree.insert( revisionName, pageOffsets );
 
         // Update the CopiedPageBtree offset
@@ -2350,7 +3730,7 @@ public class RecordManager extends AbstractTransactionManager
      * +------------+
      * | valSerKQCN | The valueSerializer FQCN
      * +------------+
-     * | dups       | The flags that tell if the dups are allowed
+     * | flags      | The flag that tells if the dups are allowed, and the page format version
      * +------------+
      * </pre>
      * @param btree The B-tree which header has to be written
@@ -2372,7 +3752,7 @@ public class RecordManager extends AbstractTransactionManager
                 keySerializerBytes.length + // The keySerializerBytes
                 INT_SIZE + // The valueSerializerBytes size
                 valueSerializerBytes.length + // The valueSerializerBytes
-                INT_SIZE; // The allowDuplicates flag
+                INT_SIZE; // The flags
 
         // Get the pageIOs we need to store the data. We may need more than one.
         PageIO[] btreeHeaderPageIos = getFreePageIOs( bufferSize );
@@ -2385,7 +3765,7 @@ public class RecordManager extends AbstractTransactionManager
         // - the B-tree name
         // - the keySerializer FQCN
         // - the valueSerializer FQCN
-        // - the flags that tell if the dups are allowed
+        // - the flags that tell if the dups are allowed, and the page format
         // Starts at 0
         long position = 0L;
 
@@ -2401,8 +3781,15 @@ public class RecordManager extends AbstractTransactionManager
         // The valueSerialier FQCN
         position = store( position, valueSerializerBytes, btreeHeaderPageIos );
 
-        // The allowDuplicates flag
-        position = store( position, ( btree.isAllowDuplicates() ? 1 : 0 ), btreeHeaderPageIos );
+        // The allowDuplicates flag and the page format version
+        int flags = ( btree.isAllowDuplicates() ? ALLOW_DUPLICATES_FLAG : 0 );
+
+        if ( btree instanceof PersistedBTree )
+        {
+            flags |= ( ( PersistedBTree<K, V> ) btree ).getPageFormat().getVersion() << PAGE_FORMAT_SHIFT;
+        }
+
+        position = store( position, flags, btreeHeaderPageIos );
 
         // And flush the pages to disk now
         LOG.debug( "Flushing the newly managed '{}' btree header", btree.getName() );
@@ -2495,10 +3882,9 @@ public class RecordManager extends AbstractTransactionManager
 
         if ( onPlace )
         {
-            // We just have to update the existing BTreeHeader
-            long headerSize = LONG_SIZE + LONG_SIZE + LONG_SIZE;
-
-            pageIos = readPageIOs( offset, headerSize );
+            // We just have to update the existing BTreeHeader. All its pages are read, as
+            // its checksum, if any, covers the whole record
+            pageIos = readPageIOs( offset, Long.MAX_VALUE );
 
             // Now, update the revision
             long position = 0;
@@ -2582,8 +3968,9 @@ public class RecordManager extends AbstractTransactionManager
 
 
     /**
-     * Write the pages on disk, either at the end of the file, or at
-     * the position they were taken from.
+     * Write the pages on disk, at the position they were taken from. When we are within
+     * a transaction, the pages are only kept in memory : they will be written in one
+     * batch before the RecordManager header is updated.
      *
      * @param pageIos The list of pages to write
      * @throws IOException If the write failed
@@ -2598,33 +3985,135 @@ public class RecordManager extends AbstractTransactionManager
             }
         }
 
+        updateChecksums( pageIos );
+
         for ( PageIO pageIo : pageIos )
         {
             pageIo.getData().rewind();
-            long pos = pageIo.getOffset();
+            dirtyPages.put( pageIo.getOffset(), pageIo );
+        }
+
+        int nbPages = nbDirtyPages.addAndGet( pageIos.length );
+
+        // Outside of a transaction, nobody will write the pages later. Inside a transaction,
+        // the pages can be written before the commit if they are too many : they are not
+        // referenced by the RecordManager header yet.
+        boolean inTransaction = transactionLock.isHeldByCurrentThread() || ( STRIPED_CONTEXT.get() != null );
+
+        if ( !inTransaction || ( nbPages >= MAX_DIRTY_PAGES ) )
+        {
+            writeDirtyPages();
+        }
+    }
+
+
+    /**
+     * Write the dirty pages on disk. The pages are sorted by offset, and the
+     * contiguous pages are written with one single gathering write.
+     *
+     * @throws IOException If the write failed
+     */
+    private void writeDirtyPages() throws IOException
+    {
+        // The striped transactions may write their pages concurrently
+        dirtyPagesLock.lock();
+
+        try
+        {
+            nbDirtyPages.set( 0 );
 
-            if ( fileChannel.size() < ( pageIo.getOffset() + pageSize ) )
+            if ( !dirtyPages.isEmpty() )
             {
-                LOG.debug( "Adding a page at the end of the file" );
-                // This is a page we have to add to the file
-                pos = fileChannel.size();
-                fileChannel.write( pageIo.getData(), pos );
-                //fileChannel.force( false );
+                writeDirtyPageRuns();
             }
-            else
+        }
+        finally
+        {
+            dirtyPagesLock.unlock();
+        }
+    }
+
+
+    /**
+     * Write all the dirty pages, gathering the contiguous ones.
+     */
+    private void writeDirtyPageRuns() throws IOException
+    {
+
+        List<PageIO> written = new ArrayList<PageIO>();
+        List<ByteBuffer> run = new ArrayList<ByteBuffer>();
+        long runStart = NO_PAGE;
+        long runEnd = NO_PAGE;
+
+        for ( PageIO pageIo : dirtyPages.values() )
+        {
+            long offset = pageIo.getOffset();
+
+            if ( offset != runEnd )
             {
-                LOG.debug( "Writing a page at position {}", pageIo.getOffset() );
-                fileChannel.write( pageIo.getData(), pageIo.getOffset() );
-                //fileChannel.force( false );
+                // Not contiguous with the previous pages : write them
+                writeRun( runStart, run );
+                runStart = offset;
             }
 
-            //System.out.println( "Writing page at " + Long.toHexString( pos ) );
-            writeCounter.put( pos, writeCounter.containsKey( pos ) ? writeCounter.get( pos ) + 1 : 1 );
+            // The page is kept in the dirty pages until it's written : use a duplicate
+            ByteBuffer data = pageIo.getData().duplicate();
+            data.rewind();
+            run.add( data );
+            written.add( pageIo );
+            runEnd = offset + data.remaining();
 
-            nbUpdatePageIOs.incrementAndGet();
+            LOG.debug( "Writing a page at position {}", offset );
 
-            pageIo.getData().rewind();
+            if ( LOG.isDebugEnabled() )
+            {
+                writeCounter.put( offset, writeCounter.containsKey( offset ) ? writeCounter.get( offset ) + 1 : 1 );
+            }
+        }
+
+        writeRun( runStart, run );
+
+        // The pages are now on disk : they can be read from there. A page which has
+        // been modified in the meantime is kept
+        for ( PageIO pageIo : written )
+        {
+            if ( dirtyPages.remove( pageIo.getOffset(), pageIo ) && pageIo.isRecyclable() )
+            {
+                bufferPool.release( pageIo.releaseData() );
+            }
+        }
+
+        nbUpdatePageIOs.addAndGet( written.size() );
+    }
+
+
+    /**
+     * Write some contiguous pages on disk, starting at the given offset, and clear the list.
+     */
+    private void writeRun( long start, List<ByteBuffer> run ) throws IOException
+    {
+        if ( run.isEmpty() )
+        {
+            return;
+        }
+
+        ByteBuffer[] buffers = run.toArray( new ByteBuffer[run.size()] );
+        long remaining = 0L;
+
+        for ( ByteBuffer buffer : buffers )
+        {
+            remaining += buffer.remaining();
+        }
+
+        fileChannel.position( start );
+
+        while ( remaining > 0L )
+        {
+            remaining -= fileChannel.write( buffers );
+            nbPageWrites.incrementAndGet();
         }
+
+        run.clear();
     }
 
 
@@ -2673,7 +4162,7 @@ public class RecordManager extends AbstractTransactionManager
             int pageNb = computePageNb( position );
 
             // Get back the buffer in this page
-            ByteBuffer pageData = pageIos[pageNb].getData();
+            ByteBuffer pageData = pageIos[pageNb].getWritableData();
 
             // Compute the position in the current page
             int pagePos = ( int ) ( position + ( pageNb + 1 ) * LONG_SIZE + INT_SIZE ) - pageNb * pageSize;
@@ -2700,7 +4189,7 @@ public class RecordManager extends AbstractTransactionManager
                     pageData.put( bytes, bytes.length - nbStored, remaining );
                     pageData.reset();
                     pageNb++;
-                    pageData = pageIos[pageNb].getData();
+                    pageData = pageIos[pageNb].getWritableData();
                     pagePos = LINK_SIZE;
                     nbStored -= remaining;
                     remaining = pageData.capacity() - pagePos;
@@ -2739,7 +4228,7 @@ public class RecordManager extends AbstractTransactionManager
             int pageNb = computePageNb( position );
 
             // Get back the buffer in this page
-            ByteBuffer pageData = pageIos[pageNb].getData();
+            ByteBuffer pageData = pageIos[pageNb].getWritableData();
 
             // Compute the position in the current page
             int pagePos = ( int ) ( position + ( pageNb + 1 ) * LONG_SIZE + INT_SIZE ) - pageNb * pageSize;
@@ -2773,7 +4262,7 @@ public class RecordManager extends AbstractTransactionManager
                         break;
                     }
 
-                    pageData = pageIos[pageNb].getData();
+                    pageData = pageIos[pageNb].getWritableData();
                     pagePos = LINK_SIZE;
                     nbStored -= remaining;
                     remaining = pageData.capacity() - pagePos;
@@ -2812,7 +4301,7 @@ public class RecordManager extends AbstractTransactionManager
         int pagePos = ( int ) ( position + ( pageNb + 1 ) * LONG_SIZE + INT_SIZE ) - pageNb * pageSize;
 
         // Get back the buffer in this page
-        ByteBuffer pageData = pageIos[pageNb].getData();
+        ByteBuffer pageData = pageIos[pageNb].getWritableData();
 
         // Compute the remaining size in the page
         int remaining = pageData.capacity() - pagePos;
@@ -2837,7 +4326,7 @@ public class RecordManager extends AbstractTransactionManager
             }
 
             // Now deal with the next page
-            pageData = pageIos[pageNb + 1].getData();
+            pageData = pageIos[pageNb + 1].getWritableData();
             pagePos = LINK_SIZE;
 
             switch ( remaining )
@@ -2887,7 +4376,7 @@ public class RecordManager extends AbstractTransactionManager
         int pagePos = ( int ) ( position + ( pageNb + 1 ) * LONG_SIZE + INT_SIZE ) - pageNb * pageSize;
 
         // Get back the buffer in this page
-        ByteBuffer pageData = pageIos[pageNb].getData();
+        ByteBuffer pageData = pageIos[pageNb].getWritableData();
 
         // Compute the remaining size in the page
         int remaining = pageData.capacity() - pagePos;
@@ -2928,7 +4417,7 @@ public class RecordManager extends AbstractTransactionManager
             }
 
             // Now deal with the next page
-            pageData = pageIos[pageNb + 1].getData();
+            pageData = pageIos[pageNb + 1].getWritableData();
             pagePos = LINK_SIZE;
 
             switch ( remaining )
@@ -2964,49 +4453,278 @@ public class RecordManager extends AbstractTransactionManager
         }
         else
         {
-            // Store the value in the page at the selected position
-            pageData.putLong( pagePos, value );
+            // Store the value in the page at the selected position
+            pageData.putLong( pagePos, value );
+        }
+
+        // Increment the position to reflect the addition of an Long (8 bytes)
+        position += LONG_SIZE;
+
+        return position;
+    }
+
+
+    /**
+     * Write the page in a serialized form.
+     *
+     * @param btree The persistedBtree we will create a new PageHolder for
+     * @param newPage The page to write on disk
+     * @param newRevision The page's revision
+     * @return A PageHolder containing the copied page
+     * @throws IOException If the page can't be written on disk
+     */
+    /* No qualifier*/<K, V> PageHolder<K, V> writePage( BTree<K, V> btree, Page<K, V> newPage,
+        long newRevision ) throws IOException
+    {
+        // We first need to save the new page on disk
+        PageIO[] pageIos = serializePage( btree, newRevision, newPage );
+
+        if ( LOG_PAGES.isDebugEnabled() )
+        {
+            LOG_PAGES.debug( "Write data for '{}' btree", btree.getName() );
+
+            logPageIos( pageIos );
+        }
+
+        // Nobody else references those pages : their buffers can be recycled once written
+        for ( PageIO pageIo : pageIos )
+        {
+            pageIo.setRecyclable( true );
+        }
+
+        // Write the page on disk
+        flushPages( pageIos );
+
+        // Build the resulting reference
+        long offset = pageIos[0].getOffset();
+        long lastOffset = pageIos[pageIos.length - 1].getOffset();
+        PersistedPageHolder<K, V> pageHolder = new PersistedPageHolder<K, V>( btree, newPage, offset,
+            lastOffset );
+
+        return pageHolder;
+    }
+
+
+    /**
+     * Compute the number of PageIOs needed to store some serialized pages
+     *
+     * @param serializedPages The serialized pages, as returned by {@link #serializePageData(BTree, long, Page)}
+     * @return The number of PageIOs
+     */
+    /* No qualifier*/int computeNbPageIos( List<List<byte[]>> serializedPages )
+    {
+        int nbPageIos = 0;
+
+        for ( List<byte[]> serializedPage : serializedPages )
+        {
+            int dataSize = computeSerializedSize( serializedPage );
+            nbPageIos += computeNbPages( checksumEnabled ? dataSize + INT_SIZE : dataSize );
+        }
+
+        return nbPageIos;
+    }
+
+
+    /**
+     * Reserve some contiguous pages, taken from the free pages if a range large enough
+     * is available, otherwise at the end of the file. The pages which are not used
+     * must be given back with {@link #releaseExtent(PageExtent)}.<br/>
+     * Like {@link #fetchNewPage()}, the free pages and the end of the file are updated
+     * holding the freePageLock, as pages may be allocated concurrently. The returned
+     * extent is not thread safe, it must be used by one single thread.
+     *
+     * @param nbPages The number of pages to reserve
+     * @return The reserved extent
+     */
+    /* No qualifier*/PageExtent reserveExtent( int nbPages )
+    {
+        long start;
+
+        freePageLock.lock();
+
+        try
+        {
+            start = freePageMap.allocate( nbPages );
+
+            if ( start == NO_PAGE )
+            {
+                start = endOfFileOffset;
+                endOfFileOffset += ( long ) nbPages * pageSize;
+                nbCreatedPages.addAndGet( nbPages );
+            }
+            else
+            {
+                nbReusedPages.addAndGet( nbPages );
+            }
+        }
+        finally
+        {
+            freePageLock.unlock();
+        }
+
+        LOG.debug( "Reserved {} pages at offset {}", nbPages, start );
+
+        return new PageExtent( start, start + ( long ) nbPages * pageSize );
+    }
+
+
+    /**
+     * Give back the pages of an extent which haven't been allocated. They are removed
+     * from the end of the file if nothing has been allocated after them, otherwise they
+     * are added to the free pages.
+     *
+     * @param extent The extent to release
+     * @throws IOException If the free pages can't be written
+     */
+    /* No qualifier*/void releaseExtent( PageExtent extent ) throws IOException
+    {
+        freePageLock.lock();
+
+        try
+        {
+            if ( extent.getEnd() == endOfFileOffset )
+            {
+                nbCreatedPages.addAndGet( -( ( extent.getEnd() - extent.getNext() ) / pageSize ) );
+                endOfFileOffset = extent.getNext();
+            }
+            else
+            {
+                for ( long offset = extent.getNext(); offset < extent.getEnd(); offset += pageSize )
+                {
+                    PageIO pageIo = new PageIO( offset );
+                    pageIo.setData( bufferPool.acquireZeroed() );
+                    pageIo.setSize( 0 );
+
+                    free( pageIo );
+                }
+            }
+        }
+        finally
+        {
+            freePageLock.unlock();
+        }
+
+        extent.close();
+    }
+
+
+    /**
+     * Allocate a page in an extent. A full extent is extended at the end of the file,
+     * holding the freePageLock.
+     */
+    private long allocateInExtent( PageExtent extent )
+    {
+        if ( extent.isFull() )
+        {
+            freePageLock.lock();
+
+            try
+            {
+                long newStart = endOfFileOffset;
+                endOfFileOffset += pageSize;
+                nbCreatedPages.incrementAndGet();
+                extent.extend( newStart, endOfFileOffset );
+            }
+            finally
+            {
+                freePageLock.unlock();
+            }
         }
 
-        // Increment the position to reflect the addition of an Long (8 bytes)
-        position += LONG_SIZE;
+        return extent.allocate( pageSize );
+    }
 
-        return position;
+
+    /**
+     * Write some serialized pages in new PageIOs, appended at the end of the file. All the
+     * PageIOs are contiguous, and the pages are stored in the given order.
+     *
+     * @param btree The persistedBtree we will create the new PageHolders for
+     * @param pages The pages to write on disk
+     * @param serializedPages The serialized pages, as returned by {@link #serializePageData(BTree, long, Page)}
+     * @return The PageHolders referencing the written pages
+     * @throws IOException If the pages can't be written on disk
+     */
+    /* No qualifier*/<K, V> List<PageHolder<K, V>> writeContiguousPages( BTree<K, V> btree, List<Page<K, V>> pages,
+        List<List<byte[]>> serializedPages ) throws IOException
+    {
+        return writeContiguousPages( btree, pages, serializedPages,
+            reserveExtent( computeNbPageIos( serializedPages ) ) );
     }
 
 
     /**
-     * Write the page in a serialized form.
+     * Write some serialized pages in the next PageIOs of an extent, in the given order. The
+     * extent is extended at the end of the file if it's full.
      *
-     * @param btree The persistedBtree we will create a new PageHolder for
-     * @param newPage The page to write on disk
-     * @param newRevision The page's revision
-     * @return A PageHolder containing the copied page
-     * @throws IOException If the page can't be written on disk
+     * @param btree The persistedBtree we will create the new PageHolders for
+     * @param pages The pages to write on disk
+     * @param serializedPages The serialized pages, as returned by {@link #serializePageData(BTree, long, Page)}
+     * @param extent The extent in which the PageIOs are allocated
+     * @return The PageHolders referencing the written pages
+     * @throws IOException If the pages can't be written on disk
      */
-    /* No qualifier*/<K, V> PageHolder<K, V> writePage( BTree<K, V> btree, Page<K, V> newPage,
-        long newRevision ) throws IOException
+    /* No qualifier*/<K, V> List<PageHolder<K, V>> writeContiguousPages( BTree<K, V> btree, List<Page<K, V>> pages,
+        List<List<byte[]>> serializedPages, PageExtent extent ) throws IOException
     {
-        // We first need to save the new page on disk
-        PageIO[] pageIos = serializePage( btree, newRevision, newPage );
+        int nbPages = pages.size();
+        int[] recordSizes = new int[nbPages];
+        int nbPageIos = 0;
 
-        if ( LOG_PAGES.isDebugEnabled() )
+        for ( int i = 0; i < nbPages; i++ )
         {
-            LOG_PAGES.debug( "Write data for '{}' btree", btree.getName() );
+            int dataSize = computeSerializedSize( serializedPages.get( i ) );
+            recordSizes[i] = checksumEnabled ? dataSize + INT_SIZE : dataSize;
+            nbPageIos += computeNbPages( recordSizes[i] );
+        }
 
-            logPageIos( pageIos );
+        PageIO[] pageIos = new PageIO[nbPageIos];
+        List<PageHolder<K, V>> pageHolders = new ArrayList<PageHolder<K, V>>( nbPages );
+        int first = 0;
+
+        for ( int i = 0; i < nbPages; i++ )
+        {
+            int nbRecordPageIos = computeNbPages( recordSizes[i] );
+            PageIO[] recordPageIos = new PageIO[nbRecordPageIos];
+
+            for ( int j = 0; j < nbRecordPageIos; j++ )
+            {
+                PageIO pageIo = new PageIO( allocateInExtent( extent ) );
+
+                // Nobody else references those pages : their buffers can be recycled once written
+                pageIo.setData( bufferPool.acquireZeroed() );
+                pageIo.setNextPage( NO_PAGE );
+                pageIo.setSize( 0 );
+                pageIo.setRecyclable( true );
+
+                if ( j > 0 )
+                {
+                    recordPageIos[j - 1].setNextPage( pageIo.getOffset() );
+                }
+
+                recordPageIos[j] = pageIo;
+            }
+
+            recordPageIos[0].setSize( checksumEnabled ? recordSizes[i] | PageIO.CHECKSUM_FLAG : recordSizes[i] );
+
+            long position = 0L;
+
+            for ( byte[] bytes : serializedPages.get( i ) )
+            {
+                position = storeRaw( position, bytes, recordPageIos );
+            }
+
+            System.arraycopy( recordPageIos, 0, pageIos, first, nbRecordPageIos );
+            first += nbRecordPageIos;
+
+            pageHolders.add( new PersistedPageHolder<K, V>( btree, pages.get( i ), recordPageIos[0].getOffset(),
+                recordPageIos[nbRecordPageIos - 1].getOffset() ) );
         }
 
-        // Write the page on disk
+        // Write the pages on disk
         flushPages( pageIos );
 
-        // Build the resulting reference
-        long offset = pageIos[0].getOffset();
-        long lastOffset = pageIos[pageIos.length - 1].getOffset();
-        PersistedPageHolder<K, V> pageHolder = new PersistedPageHolder<K, V>( btree, newPage, offset,
-            lastOffset );
-
-        return pageHolder;
+        return pageHolders;
     }
 
 
@@ -3128,13 +4846,15 @@ public class RecordManager extends AbstractTransactionManager
                 {};
         }
 
-        int nbNeededPages = computeNbPages( dataSize );
+        // Keep some room for the checksum, which will be computed when the pages are flushed
+        int recordSize = checksumEnabled ? dataSize + INT_SIZE : dataSize;
+        int nbNeededPages = computeNbPages( recordSize );
 
         PageIO[] pageIOs = new PageIO[nbNeededPages];
 
         // The first page : set the size
         pageIOs[0] = fetchNewPage();
-        pageIOs[0].setSize( dataSize );
+        pageIOs[0].setSize( checksumEnabled ? recordSize | PageIO.CHECKSUM_FLAG : recordSize );
 
         for ( int i = 1; i < nbNeededPages; i++ )
         {
@@ -3156,52 +4876,45 @@ public class RecordManager extends AbstractTransactionManager
      */
     private PageIO fetchNewPage() throws IOException
     {
-        //System.out.println( "Fetching new page" );
-        if ( firstFreePage == NO_PAGE )
-        {
-            nbCreatedPages.incrementAndGet();
-
-            // We don't have any free page. Reclaim some new page at the end
-            // of the file
-            PageIO newPage = new PageIO( endOfFileOffset );
-
-            endOfFileOffset += pageSize;
-
-            ByteBuffer data = ByteBuffer.allocateDirect( pageSize );
-
-            newPage.setData( data );
-            newPage.setNextPage( NO_PAGE );
-            newPage.setSize( 0 );
+        freePageLock.lock();
 
-            LOG.debug( "Requiring a new page at offset {}", newPage.getOffset() );
+        long offset;
 
-            return newPage;
-        }
-        else
+        try
         {
-            nbReusedPages.incrementAndGet();
-
-            freePageLock.lock();
+            offset = freePageMap.allocate();
 
-                // We have some existing free page. Fetch it from disk
-            PageIO pageIo = fetchPage( firstFreePage );
+            if ( offset == NO_PAGE )
+            {
+                nbCreatedPages.incrementAndGet();
 
-                // Update the firstFreePage pointer
-                firstFreePage = pageIo.getNextPage();
+                // We don't have any free page. Reclaim some new page at the end
+                // of the file
+                offset = endOfFileOffset;
 
-                freePageLock.unlock();
+                endOfFileOffset += pageSize;
 
-            // overwrite the data of old page
-            ByteBuffer data = ByteBuffer.allocateDirect( pageSize );
-            pageIo.setData( data );
+                LOG.debug( "Requiring a new page at offset {}", offset );
+            }
+            else
+            {
+                nbReusedPages.incrementAndGet();
 
-            pageIo.setNextPage( NO_PAGE );
-            pageIo.setSize( 0 );
+                LOG.debug( "Reused page at offset {}", offset );
+            }
+        }
+        finally
+        {
+            freePageLock.unlock();
+        }
 
-            LOG.debug( "Reused page at offset {}", pageIo.getOffset() );
+        // No need to read a free page : its content is overwritten
+        PageIO pageIo = new PageIO( offset );
+        pageIo.setData( bufferPool.acquireZeroed() );
+        pageIo.setNextPage( NO_PAGE );
+        pageIo.setSize( 0 );
 
-            return pageIo;
-        }
+        return pageIo;
     }
 
 
@@ -3215,6 +4928,41 @@ public class RecordManager extends AbstractTransactionManager
     {
         checkOffset( offset );
 
+        // The page may have been written by the current transaction, and not be on disk yet
+        PageIO dirtyPage = dirtyPages.get( offset );
+
+        if ( dirtyPage != null )
+        {
+            // Copy the page : its buffer will be recycled once it has been written
+            ByteBuffer source = dirtyPage.getData().duplicate();
+            source.clear();
+
+            ByteBuffer data = bufferPool.acquire();
+            data.put( source );
+            data.clear();
+
+            PageIO readPage = new PageIO( offset );
+            readPage.setData( data );
+
+            return readPage;
+        }
+
+        MappedFile mapped = mappedFile;
+
+        if ( mapped != null )
+        {
+            // Use a view on the mapped file, no need to read anything
+            ByteBuffer data = mapped.getPage( offset );
+
+            if ( data != null )
+            {
+                PageIO readPage = new PageIO( offset );
+                readPage.setData( data );
+
+                return readPage;
+            }
+        }
+
         if ( fileChannel.size() < offset + pageSize )
         {
             // Error : we are past the end of the file
@@ -3224,10 +4972,21 @@ public class RecordManager extends AbstractTransactionManager
         else
         {
             // Read the page
-            fileChannel.position( offset );
+            ByteBuffer data = bufferPool.acquire();
+            long position = offset;
+
+            while ( data.hasRemaining() )
+            {
+                int nbRead = fileChannel.read( data, position );
+
+                if ( nbRead < 0 )
+                {
+                    break;
+                }
+
+                position += nbRead;
+            }
 
-            ByteBuffer data = ByteBuffer.allocate( pageSize );
-            fileChannel.read( data );
             data.rewind();
 
             PageIO readPage = new PageIO( offset );
@@ -3262,6 +5021,8 @@ public class RecordManager extends AbstractTransactionManager
         {
             this.pageSize = DEFAULT_PAGE_SIZE;
         }
+
+        bufferPool = new PageBufferPool( this.pageSize, bufferPool.getMaxBuffers() );
     }
 
 
@@ -3270,6 +5031,9 @@ public class RecordManager extends AbstractTransactionManager
      */
     public void close() throws IOException
     {
+        // Stop the background reclaimer first : it needs the transaction lock to end its slice
+        setBackgroundReclaimer( 0L, 0L );
+
         beginTransaction();
 
         // Close all the managed B-trees
@@ -3283,13 +5047,32 @@ public class RecordManager extends AbstractTransactionManager
         btreeOfBtrees.close();
 
         managedBtrees.clear();
+        pageCache.clear();
+
+        // Flush the transactions committed in a group which are still pending
+        if ( groupCommitter != null )
+        {
+            flushPendingCommits();
+        }
 
         // Write the data
+        writeDirtyPages();
         fileChannel.force( true );
 
-        // And close the channel
+        // Release the mapping, if any, and close the channel
+        if ( mappedFile != null )
+        {
+            mappedFile.close();
+            mappedFile = null;
+        }
+
         fileChannel.close();
 
+        if ( groupCommitter != null )
+        {
+            groupCommitter.flushedAll();
+        }
+
         commit();
     }
 
@@ -3817,23 +5600,19 @@ public class RecordManager extends AbstractTransactionManager
     {
         freePageLock.lock();
 
-            // We add the Page's PageIOs before the
-            // existing free pages.
-            // Link it to the first free page
-            pageIo.setNextPage( firstFreePage );
-
-            LOG.debug( "Flushing the first free page" );
-
-            // And flush it to disk
-            //FIXME can be flushed last after releasing the lock
-            flushPages( pageIo );
-
-            // We can update the firstFreePage offset
-            firstFreePage = pageIo.getOffset();
-
+        try
+        {
+            releasePage( pageIo.getOffset() );
+        }
+        finally
+        {
             freePageLock.unlock();
         }
 
+        // The page is not used anymore : its buffer can be recycled
+        bufferPool.release( pageIo.releaseData() );
+    }
+
 
     /**
      * Add an array of PageIOs to the list of free PageIOs
@@ -3845,40 +5624,79 @@ public class RecordManager extends AbstractTransactionManager
     {
         freePageLock.lock();
 
-        List<PageIO> pageIos = new ArrayList<PageIO>();
-        int pageIndex = 0;
-            for ( int i = 0; i < offsets.length; i++ )
+        try
+        {
+            for ( long offset : offsets )
             {
-                PageIO[] ios = readPageIOs( offsets[i], Long.MAX_VALUE );
+                PageIO[] pageIos = readPageIOs( offset, Long.MAX_VALUE );
 
-                for ( PageIO io : ios )
+                for ( PageIO pageIo : pageIos )
                 {
-                    pageIos.add( io );
-
-                    if ( pageIndex > 0 )
-                    {
-                        pageIos.get( pageIndex - 1 ).setNextPage( io.getOffset() );
-                    }
-
-                    pageIndex++;
+                    releasePage( pageIo.getOffset() );
+                    bufferPool.release( pageIo.releaseData() );
                 }
             }
+        }
+        finally
+        {
+            freePageLock.unlock();
+        }
+    }
+
+
+    /**
+     * Add a page to the free pages map. The free pages list on disk is updated with
+     * the RMHeader.
+     */
+    private void releasePage( long offset )
+    {
+        if ( freePageMap.release( offset ) )
+        {
+            nbFreedPages.incrementAndGet();
+        }
+        else
+        {
+            LOG.warn( "The page at offset 0x{} has already been freed", Long.toHexString( offset ) );
+        }
+    }
 
-        // We add the Page's PageIOs before the
-        // existing free pages.
-        // Link it to the first free page
-        pageIos.get( pageIndex - 1 ).setNextPage( firstFreePage );
 
-        LOG.debug( "Flushing the first free page" );
+    /**
+     * Write the links between the free pages which have been modified since the last update,
+     * and set the first free page to store in the RMHeader. All the links are written in one
+     * single batch. The free pages only link to higher offsets, in the list referenced by the
+     * current RMHeader as in the new one, so the list can't have a cycle if we crash in the middle.
+     */
+    private void flushFreePages() throws IOException
+    {
+        freePageLock.lock();
+
+        try
+        {
+            if ( freePageMap.isDirty() )
+            {
+                long[] offsets = freePageMap.pollDirtyPages();
+                PageIO[] pageIos = new PageIO[offsets.length];
 
-        // And flush it to disk
-        //FIXME can be flushed last after releasing the lock
-        flushPages( pageIos.toArray( new PageIO[0] ) );
+                for ( int i = 0; i < offsets.length; i++ )
+                {
+                    PageIO pageIo = new PageIO( offsets[i] );
+                    pageIo.setData( bufferPool.acquireZeroed() );
+                    pageIo.setNextPage( freePageMap.getNext( offsets[i] ) );
+                    pageIo.setSize( 0 );
+                    pageIo.setRecyclable( true );
+                    pageIos[i] = pageIo;
+                }
 
-        // We can update the firstFreePage offset
-        firstFreePage = pageIos.get( 0 ).getOffset();
+                flushPages( pageIos );
+            }
 
-        freePageLock.unlock();
+            firstFreePage = freePageMap.getFirst();
+        }
+        finally
+        {
+            freePageLock.unlock();
+        }
     }
 
 
@@ -3936,14 +5754,21 @@ public class RecordManager extends AbstractTransactionManager
 
 
     /**
-     * Add a newly closd transaction into the closed transaction queue
+     * Add a newly closd transaction into the closed transaction queue, so that the
+     * background reclaimer can free the pages of its revision
      */
     /* no qualifier */<K, V> void releaseTransaction( ReadTransaction<K, V> readTransaction )
     {
-        RevisionName revisionName = new RevisionName(
-            readTransaction.getRevision(),
-            readTransaction.getBtreeHeader().getBtree().getName() );
-        //closedTransactionsQueue.add( revisionName );
+        BTree<K, V> btree = readTransaction.getBtreeHeader().getBtree();
+
+        // The readers of the management B-trees don't retain any copied page
+        if ( ( backgroundReclaimer == null ) || ( btree.getType() != BTreeTypeEnum.PERSISTED ) )
+        {
+            return;
+        }
+
+        RevisionName revisionName = new RevisionName( readTransaction.getRevision(), btree.getName() );
+        closedTransactionsQueue.add( revisionName );
     }
 
 
@@ -3952,6 +5777,29 @@ public class RecordManager extends AbstractTransactionManager
      */
     public BTreeHeader getBTreeHeader( String name )
     {
+        // A striped transaction sees its own modifications
+        StripedTransaction stripedTransaction = getStripedTransaction();
+
+        if ( stripedTransaction != null )
+        {
+            BTreeHeader<?, ?> btreeHeader = stripedTransaction.getBTreeHeader( name );
+
+            if ( btreeHeader != null )
+            {
+                return btreeHeader;
+            }
+        }
+        else if ( transactionLock.isHeldByCurrentThread() && ( getTxnLevel() > 0 ) )
+        {
+            // The writer sees the modifications done by the previous operations of its transaction
+            BTreeHeader<?, ?> btreeHeader = newBTreeHeaders.get( name );
+
+            if ( btreeHeader != null )
+            {
+                return btreeHeader;
+            }
+        }
+
         // Get a lock
         btreeHeadersLock.readLock().lock();
 
@@ -3982,6 +5830,16 @@ public class RecordManager extends AbstractTransactionManager
      */
     public void updateNewBTreeHeaders( BTreeHeader btreeHeader )
     {
+        // The BTreeHeaders of a striped transaction are published when it's committed
+        StripedTransaction stripedTransaction = getStripedTransaction();
+
+        if ( stripedTransaction != null )
+        {
+            stripedTransaction.updateBTreeHeader( btreeHeader );
+
+            return;
+        }
+
         newBTreeHeaders.put( btreeHeader.getBtree().getName(), btreeHeader );
     }
 
@@ -4054,37 +5912,141 @@ public class RecordManager extends AbstractTransactionManager
     }
 
 
-    private void checkFreePages() throws EndOfFileExceededException, IOException
+    /**
+     * Read the free pages list, and load it into the free pages map. The list is checked
+     * on the fly, to be sure we don't have a cycle.
+     */
+    private void loadFreePages() throws EndOfFileExceededException, IOException
     {
-        //System.out.println( "Checking the free pages, starting from " + Long.toHexString( firstFreePage ) );
+        freePageMap = new FreePageMap( pageSize );
 
-        // read all the free pages, add them into a set, to be sure we don't have a cycle
-        Set<Long> freePageOffsets = new HashSet<Long>();
+        // The pages correctly linked on disk won't be written again
+        Map<Long, Long> links = new HashMap<Long, Long>();
 
         long currentFreePageOffset = firstFreePage;
 
         while ( currentFreePageOffset != NO_PAGE )
         {
-            //System.out.println( "Next page offset :" + Long.toHexString( currentFreePageOffset ) );
-
             if ( ( currentFreePageOffset % pageSize ) != 0 )
             {
                 throw new InvalidOffsetException( "Wrong offset : " + Long.toHexString( currentFreePageOffset ) );
             }
 
-            if ( freePageOffsets.contains( currentFreePageOffset ) )
+            if ( !freePageMap.release( currentFreePageOffset ) )
             {
                 throw new InvalidOffsetException( "Offset : " + Long.toHexString( currentFreePageOffset )
                     + " already read, there is a cycle" );
             }
 
-            freePageOffsets.add( currentFreePageOffset );
             PageIO pageIO = fetchPage( currentFreePageOffset );
+            long nextFreePageOffset = pageIO.getNextPage();
+            bufferPool.release( pageIO.releaseData() );
+
+            links.put( currentFreePageOffset, nextFreePageOffset );
+            currentFreePageOffset = nextFreePageOffset;
+        }
+
+        for ( Map.Entry<Long, Long> link : links.entrySet() )
+        {
+            freePageMap.setLink( link.getKey(), link.getValue() );
+        }
+    }
+
+
+    /**
+     * @return The number of free pages
+     */
+    /* no qualifier */int getNbFreePages()
+    {
+        freePageLock.lock();
+
+        try
+        {
+            return freePageMap.size();
+        }
+        finally
+        {
+            freePageLock.unlock();
+        }
+    }
+
+
+    /**
+     * @param offset The page offset
+     * @return <code>true</code> if the page is free
+     */
+    /* no qualifier */boolean isFreePage( long offset )
+    {
+        freePageLock.lock();
+
+        try
+        {
+            return freePageMap.isFree( offset );
+        }
+        finally
+        {
+            freePageLock.unlock();
+        }
+    }
+
+
+    /**
+     * Remove the free pages found at the end of the file, and truncate it. This method
+     * must be called within a transaction. Nothing is done when the file is memory mapped
+     * (see {@link #setMemoryMapped(boolean)}).
+     *
+     * @return The number of pages removed from the file
+     * @throws IOException If the free pages can't be written
+     */
+    /* no qualifier */long compactFreePages() throws IOException
+    {
+        long newEndOfFileOffset;
+        long nbRemovedPages;
+
+        if ( mappedFile != null )
+        {
+            // The mapped segments may cover the free pages : keep them
+            LOG.debug( "The file is memory mapped, it can't be truncated" );
+
+            return 0L;
+        }
+
+        freePageLock.lock();
+
+        try
+        {
+            newEndOfFileOffset = freePageMap.truncate( endOfFileOffset );
+            nbRemovedPages = ( endOfFileOffset - newEndOfFileOffset ) / pageSize;
+            endOfFileOffset = newEndOfFileOffset;
+        }
+        finally
+        {
+            freePageLock.unlock();
+        }
+
+        if ( nbRemovedPages > 0 )
+        {
+            // The RMHeader must not reference the removed pages anymore when we truncate the file
+            updateRecordManagerHeader();
+            writeDirtyPages();
+            fileChannel.force( false );
+            nbForces.incrementAndGet();
+
+            fileChannel.truncate( newEndOfFileOffset );
 
-            currentFreePageOffset = pageIO.getNextPage();
+            LOG.debug( "Removed {} free pages from the end of the file", nbRemovedPages );
         }
 
-        return;
+        return nbRemovedPages;
+    }
+
+
+    /**
+     * @return The offset of the end of the file, including the pages not written yet
+     */
+    /* no qualifier */long getEndOfFileOffset()
+    {
+        return endOfFileOffset;
     }
 
 
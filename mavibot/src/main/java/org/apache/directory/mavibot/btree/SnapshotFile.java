@@ -0,0 +1,781 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.directory.mavibot.btree.serializer.ElementSerializer;
+import org.apache.directory.mavibot.btree.serializer.IntSerializer;
+
+
+/**
+ * A snapshot of an in-memory B-tree stored in a file. The keys are stored sorted, with
+ * all their values, in blocks which may be compressed. An index containing the first key,
+ * the position and the number of keys of each block is stored at the end of the file :
+ * <pre>
+ * +---------------------+
+ * | magic (8 bytes)     |
+ * | version (1 byte)    |
+ * | flags (1 byte)      |  bit 0 : the blocks are compressed
+ * | nbBlocks (4 bytes)  |
+ * | nbElems (8 bytes)   |  the number of values
+ * | index pos (8 bytes) |
+ * +---------------------+
+ * | block 0             |  for each key : key, nbValues (4 bytes), values
+ * | ...                 |
+ * | block N             |
+ * +---------------------+
+ * | index               |  for each block : position (8 bytes), stored length (4 bytes),
+ * +---------------------+  raw length (4 bytes), nbKeys (4 bytes), first key
+ * </pre>
+ * The blocks can be read independently : a B-tree is loaded by reading them in parallel,
+ * and a range of keys can be read without loading the whole file.
+ *
+ * @param <K> The type for the keys
+ * @param <V> The type for the stored values
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SnapshotFile<K, V> implements Closeable
+{
+    /** The magic number starting a snapshot file. It's negative, so it can't be the
+     * number of elements which starts the files written by the previous versions */
+    /* no qualifier */static final long MAGIC = 0xCAFE4D4156534E50L;
+
+    /** The current version of the format */
+    /* no qualifier */static final byte VERSION = 1;
+
+    /** The flag set when the blocks are compressed */
+    private static final byte COMPRESSED = 0x01;
+
+    /** The size of the header */
+    private static final int HEADER_SIZE = 8 + 1 + 1 + 4 + 8 + 8;
+
+    /** The default size of a block before compression, in bytes */
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /** The snapshot file */
+    private File file;
+
+    /** The channel used to read the blocks */
+    private FileChannel channel;
+
+    /** The key serializer */
+    private ElementSerializer<K> keySerializer;
+
+    /** The value serializer */
+    private ElementSerializer<V> valueSerializer;
+
+    /** Tells if the blocks are compressed */
+    private boolean compressed;
+
+    /** The number of values */
+    private long nbElems;
+
+    /** The position of each block */
+    private long[] blockPositions;
+
+    /** The stored length of each block */
+    private int[] storedLengths;
+
+    /** The length of each block before compression */
+    private int[] rawLengths;
+
+    /** The number of keys in each block */
+    private int[] nbKeys;
+
+    /** The first key of each block */
+    private List<K> firstKeys;
+
+
+    /**
+     * Opens a snapshot file, reading its index.
+     *
+     * @param file The snapshot file
+     * @param keySerializer The key serializer
+     * @param valueSerializer The value serializer
+     * @throws IOException If the file can't be read, or is not a snapshot file
+     */
+    public SnapshotFile( File file, ElementSerializer<K> keySerializer, ElementSerializer<V> valueSerializer )
+        throws IOException
+    {
+        this.file = file;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+
+        channel = new RandomAccessFile( file, "r" ).getChannel();
+
+        try
+        {
+            readIndex();
+        }
+        catch ( IOException ioe )
+        {
+            channel.close();
+
+            throw ioe;
+        }
+    }
+
+
+    /**
+     * Tells if a file is a snapshot file
+     *
+     * @param file The file to check
+     * @return <code>true</code> if the file starts with the snapshot magic number
+     * @throws IOException If the file can't be read
+     */
+    public static boolean isSnapshot( File file ) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+        try
+        {
+            return ( raf.length() >= HEADER_SIZE ) && ( raf.readLong() == MAGIC );
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * Read the header and the index
+     */
+    private void readIndex() throws IOException
+    {
+        ByteBuffer header = read( 0L, HEADER_SIZE );
+
+        if ( header.getLong() != MAGIC )
+        {
+            throw new IOException( "The file " + file + " is not a snapshot file" );
+        }
+
+        byte version = header.get();
+
+        if ( version != VERSION )
+        {
+            throw new IOException( "Unsupported snapshot version " + version + " in the file " + file );
+        }
+
+        compressed = ( header.get() & COMPRESSED ) != 0;
+        int nbBlocks = header.getInt();
+        nbElems = header.getLong();
+        long indexPosition = header.getLong();
+
+        blockPositions = new long[nbBlocks];
+        storedLengths = new int[nbBlocks];
+        rawLengths = new int[nbBlocks];
+        nbKeys = new int[nbBlocks];
+        firstKeys = new ArrayList<K>( nbBlocks );
+
+        ByteBuffer index = read( indexPosition, ( int ) ( channel.size() - indexPosition ) );
+
+        for ( int i = 0; i < nbBlocks; i++ )
+        {
+            blockPositions[i] = index.getLong();
+            storedLengths[i] = index.getInt();
+            rawLengths[i] = index.getInt();
+            nbKeys[i] = index.getInt();
+            firstKeys.add( keySerializer.deserialize( index ) );
+        }
+    }
+
+
+    /**
+     * Read some bytes from the file
+     */
+    private ByteBuffer read( long position, int length ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( length );
+
+        while ( buffer.hasRemaining() )
+        {
+            if ( channel.read( buffer, position + buffer.position() ) < 0 )
+            {
+                throw new EOFException( "Unexpected end of the snapshot file " + file );
+            }
+        }
+
+        buffer.flip();
+
+        return buffer;
+    }
+
+
+    /**
+     * Read and decode a block. This method can be called by many threads at the same time.
+     *
+     * @param blockNumber The block number
+     * @return The keys and values stored in the block
+     * @throws IOException If the block can't be read
+     */
+    @SuppressWarnings("unchecked")
+    /* no qualifier */Block<K, V> readBlock( int blockNumber ) throws IOException
+    {
+        ByteBuffer stored = read( blockPositions[blockNumber], storedLengths[blockNumber] );
+        ByteBuffer raw = stored;
+
+        if ( compressed )
+        {
+            Inflater inflater = new Inflater();
+            byte[] data = new byte[rawLengths[blockNumber]];
+
+            try
+            {
+                inflater.setInput( stored.array(), 0, storedLengths[blockNumber] );
+
+                if ( inflater.inflate( data ) != data.length )
+                {
+                    throw new IOException( "The block " + blockNumber + " of the file " + file + " is corrupted" );
+                }
+            }
+            catch ( DataFormatException dfe )
+            {
+                throw new IOException( "The block " + blockNumber + " of the file " + file + " is corrupted", dfe );
+            }
+            finally
+            {
+                inflater.end();
+            }
+
+            raw = ByteBuffer.wrap( data );
+        }
+
+        int nbBlockKeys = nbKeys[blockNumber];
+        Block<K, V> block = new Block<K, V>( nbBlockKeys );
+
+        for ( int i = 0; i < nbBlockKeys; i++ )
+        {
+            K key = keySerializer.deserialize( raw );
+            int nbValues = raw.getInt();
+            V[] values = ( V[] ) Array.newInstance( valueSerializer.getType(), nbValues );
+
+            for ( int j = 0; j < nbValues; j++ )
+            {
+                values[j] = valueSerializer.deserialize( raw );
+            }
+
+            block.keys.add( key );
+            block.values.add( values );
+        }
+
+        return block;
+    }
+
+
+    /**
+     * Read all the blocks, in parallel.
+     *
+     * @param nbThreads The number of threads decoding the blocks
+     * @return The blocks, in the file order
+     * @throws IOException If a block can't be read
+     */
+    /* no qualifier */List<Block<K, V>> readBlocks( int nbThreads ) throws IOException
+    {
+        int nbBlocks = getNbBlocks();
+        List<Block<K, V>> blocks = new ArrayList<Block<K, V>>( nbBlocks );
+
+        if ( ( nbThreads <= 1 ) || ( nbBlocks <= 1 ) )
+        {
+            for ( int i = 0; i < nbBlocks; i++ )
+            {
+                blocks.add( readBlock( i ) );
+            }
+
+            return blocks;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( nbThreads, nbBlocks ) );
+
+        try
+        {
+            List<Future<Block<K, V>>> futures = new ArrayList<Future<Block<K, V>>>( nbBlocks );
+
+            for ( int i = 0; i < nbBlocks; i++ )
+            {
+                final int blockNumber = i;
+
+                futures.add( executor.submit( new Callable<Block<K, V>>()
+                {
+                    public Block<K, V> call() throws IOException
+                    {
+                        return readBlock( blockNumber );
+                    }
+                } ) );
+            }
+
+            for ( Future<Block<K, V>> future : futures )
+            {
+                blocks.add( future.get() );
+            }
+
+            return blocks;
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+
+            throw new IOException( "Interrupted while reading the file " + file );
+        }
+        catch ( ExecutionException ee )
+        {
+            throw new IOException( "Cannot read the file " + file + " : " + ee.getCause().getMessage(),
+                ee.getCause() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Get the first value of a key, reading a single block.
+     *
+     * @param key The key
+     * @return The first value of the key, or null if the key is not present
+     * @throws IOException If the block can't be read
+     */
+    public V get( K key ) throws IOException
+    {
+        int blockNumber = findBlock( key );
+
+        if ( blockNumber < 0 )
+        {
+            return null;
+        }
+
+        Block<K, V> block = readBlock( blockNumber );
+        int pos = findKey( block.keys, key );
+
+        if ( ( pos < block.keys.size() ) && ( keySerializer.compare( block.keys.get( pos ), key ) == 0 ) )
+        {
+            return block.values.get( pos )[0];
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Get the tuples which keys are in a range, reading only the blocks containing them.
+     *
+     * @param from The lowest key, included. If null, the range starts with the first key
+     * @param to The highest key, excluded. If null, the range ends with the last key
+     * @return The tuples, sorted, with one tuple per value
+     * @throws IOException If the blocks can't be read
+     */
+    public List<Tuple<K, V>> browse( K from, K to ) throws IOException
+    {
+        List<Tuple<K, V>> tuples = new ArrayList<Tuple<K, V>>();
+        Comparator<K> comparator = keySerializer.getComparator();
+        int blockNumber = ( from == null ) ? 0 : Math.max( 0, findBlock( from ) );
+
+        for ( ; blockNumber < getNbBlocks(); blockNumber++ )
+        {
+            if ( ( to != null ) && ( comparator.compare( firstKeys.get( blockNumber ), to ) >= 0 ) )
+            {
+                break;
+            }
+
+            Block<K, V> block = readBlock( blockNumber );
+            int pos = ( from == null ) ? 0 : findKey( block.keys, from );
+
+            for ( ; pos < block.keys.size(); pos++ )
+            {
+                K key = block.keys.get( pos );
+
+                if ( ( to != null ) && ( comparator.compare( key, to ) >= 0 ) )
+                {
+                    return tuples;
+                }
+
+                for ( V value : block.values.get( pos ) )
+                {
+                    tuples.add( new Tuple<K, V>( key, value ) );
+                }
+            }
+        }
+
+        return tuples;
+    }
+
+
+    /**
+     * Find the block which may contain a key : the last one which first key is not above it.
+     *
+     * @return The block number, or -1 if the key is below the first key
+     */
+    private int findBlock( K key )
+    {
+        Comparator<K> comparator = keySerializer.getComparator();
+        int low = 0;
+        int high = firstKeys.size() - 1;
+        int result = -1;
+
+        while ( low <= high )
+        {
+            int middle = ( low + high ) >>> 1;
+
+            if ( comparator.compare( firstKeys.get( middle ), key ) <= 0 )
+            {
+                result = middle;
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle - 1;
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * @return The position of the first key which is not below the given key
+     */
+    private int findKey( List<K> keys, K key )
+    {
+        Comparator<K> comparator = keySerializer.getComparator();
+        int low = 0;
+        int high = keys.size();
+
+        while ( low < high )
+        {
+            int middle = ( low + high ) >>> 1;
+
+            if ( comparator.compare( keys.get( middle ), key ) < 0 )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+
+    /**
+     * Write the tuples read from a cursor into a channel, using the snapshot format.
+     *
+     * @param channel The channel, positioned at the beginning of the file
+     * @param cursor The cursor on the sorted tuples
+     * @param keySerializer The key serializer
+     * @param valueSerializer The value serializer
+     * @param blockSize The size of a block before compression
+     * @param compress Tells if the blocks have to be compressed
+     * @return The number of written values
+     * @throws IOException If the file can't be written
+     */
+    /* no qualifier */static <K, V> long write( FileChannel channel, TupleCursor<K, V> cursor,
+        ElementSerializer<K> keySerializer, ElementSerializer<V> valueSerializer, int blockSize, boolean compress )
+        throws IOException
+    {
+        BlockWriter<K> writer = new BlockWriter<K>( channel, keySerializer, blockSize, compress );
+        Comparator<K> comparator = keySerializer.getComparator();
+        List<byte[]> values = new ArrayList<byte[]>();
+        K currentKey = null;
+        long nbElems = 0L;
+
+        // Group the values of each key
+        while ( cursor.hasNext() )
+        {
+            Tuple<K, V> tuple = cursor.next();
+
+            if ( ( currentKey != null ) && ( comparator.compare( currentKey, tuple.getKey() ) != 0 ) )
+            {
+                writer.add( currentKey, values );
+                values.clear();
+            }
+
+            currentKey = tuple.getKey();
+            values.add( valueSerializer.serialize( tuple.getValue() ) );
+            nbElems++;
+        }
+
+        if ( currentKey != null )
+        {
+            writer.add( currentKey, values );
+        }
+
+        writer.finish( nbElems );
+
+        return nbElems;
+    }
+
+
+    /**
+     * @return The number of values stored in the snapshot
+     */
+    public long getNbElems()
+    {
+        return nbElems;
+    }
+
+
+    /**
+     * @return The number of blocks
+     */
+    public int getNbBlocks()
+    {
+        return firstKeys.size();
+    }
+
+
+    /**
+     * @return <code>true</code> if the blocks are compressed
+     */
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+
+
+    /**
+     * Close the snapshot file
+     */
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "SnapshotFile[" + file + ", " + getNbBlocks() + " blocks, " + nbElems + " elements, compressed:"
+            + compressed + "]";
+    }
+
+    /**
+     * The keys and values of a block
+     */
+    /* no qualifier */static class Block<K, V>
+    {
+        /** The sorted keys */
+        /* no qualifier */List<K> keys;
+
+        /** The values of each key */
+        /* no qualifier */List<V[]> values;
+
+
+        private Block( int nbKeys )
+        {
+            keys = new ArrayList<K>( nbKeys );
+            values = new ArrayList<V[]>( nbKeys );
+        }
+    }
+
+    /**
+     * Write the blocks and the index of a snapshot file
+     */
+    private static class BlockWriter<K>
+    {
+        /** The written channel */
+        private FileChannel channel;
+
+        /** The key serializer */
+        private ElementSerializer<K> keySerializer;
+
+        /** The size of a block before compression */
+        private int blockSize;
+
+        /** The compressor, null if the blocks are not compressed */
+        private Deflater deflater;
+
+        /** The data of the current block */
+        private ByteArrayOutputStream block;
+
+        /** The number of keys in the current block */
+        private int nbBlockKeys = 0;
+
+        /** The first key of the current block */
+        private byte[] firstKey;
+
+        /** The index being built */
+        private ByteArrayOutputStream index = new ByteArrayOutputStream();
+
+        /** The number of written blocks */
+        private int nbBlocks = 0;
+
+        /** The position of the next block */
+        private long position = HEADER_SIZE;
+
+
+        private BlockWriter( FileChannel channel, ElementSerializer<K> keySerializer, int blockSize, boolean compress )
+        {
+            this.channel = channel;
+            this.keySerializer = keySerializer;
+            this.blockSize = ( blockSize > 0 ) ? blockSize : DEFAULT_BLOCK_SIZE;
+            block = new ByteArrayOutputStream( this.blockSize + 1024 );
+
+            if ( compress )
+            {
+                deflater = new Deflater( Deflater.BEST_SPEED );
+            }
+        }
+
+
+        /**
+         * Add a key and its serialized values to the current block
+         */
+        private void add( K key, List<byte[]> values ) throws IOException
+        {
+            byte[] keyBytes = keySerializer.serialize( key );
+
+            if ( nbBlockKeys == 0 )
+            {
+                firstKey = keyBytes;
+            }
+
+            block.write( keyBytes );
+            block.write( IntSerializer.serialize( values.size() ) );
+
+            for ( byte[] value : values )
+            {
+                block.write( value );
+            }
+
+            nbBlockKeys++;
+
+            // The keys are never split across blocks
+            if ( block.size() >= blockSize )
+            {
+                writeBlock();
+            }
+        }
+
+
+        /**
+         * Write the current block, and add it to the index
+         */
+        private void writeBlock() throws IOException
+        {
+            byte[] raw = block.toByteArray();
+            byte[] stored = raw;
+            int storedLength = raw.length;
+
+            if ( deflater != null )
+            {
+                deflater.reset();
+                deflater.setInput( raw );
+                deflater.finish();
+
+                stored = new byte[raw.length + 64];
+                storedLength = 0;
+
+                while ( !deflater.finished() )
+                {
+                    if ( storedLength == stored.length )
+                    {
+                        byte[] larger = new byte[stored.length * 2];
+                        System.arraycopy( stored, 0, larger, 0, storedLength );
+                        stored = larger;
+                    }
+
+                    storedLength += deflater.deflate( stored, storedLength, stored.length - storedLength );
+                }
+            }
+
+            writeFully( ByteBuffer.wrap( stored, 0, storedLength ), position );
+
+            ByteBuffer entry = ByteBuffer.allocate( 8 + 4 + 4 + 4 );
+            entry.putLong( position );
+            entry.putInt( storedLength );
+            entry.putInt( raw.length );
+            entry.putInt( nbBlockKeys );
+            index.write( entry.array() );
+            index.write( firstKey );
+
+            position += storedLength;
+            nbBlocks++;
+            nbBlockKeys = 0;
+            block.reset();
+        }
+
+
+        /**
+         * Write the last block, the index and the header, and force the file on disk
+         */
+        private void finish( long nbElems ) throws IOException
+        {
+            if ( nbBlockKeys > 0 )
+            {
+                writeBlock();
+            }
+
+            if ( deflater != null )
+            {
+                deflater.end();
+            }
+
+            writeFully( ByteBuffer.wrap( index.toByteArray() ), position );
+
+            ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+            header.putLong( MAGIC );
+            header.put( VERSION );
+            header.put( ( deflater != null ) ? COMPRESSED : 0 );
+            header.putInt( nbBlocks );
+            header.putLong( nbElems );
+            header.putLong( position );
+            header.flip();
+
+            writeFully( header, 0L );
+            channel.force( true );
+        }
+
+
+        private void writeFully( ByteBuffer buffer, long writePosition ) throws IOException
+        {
+            while ( buffer.hasRemaining() )
+            {
+                channel.write( buffer, writePosition + buffer.position() );
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * A write transaction which has only locked the B-trees it has declared. The pages of
+ * those B-trees are modified and written concurrently with the other striped transactions,
+ * but the updates of the B-tree of B-trees, of the copied pages B-tree and of the
+ * BTreeHeaders Map are kept here : they are applied when the transaction is committed,
+ * while holding the RecordManager transaction lock.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+/* no qualifier */class StripedTransaction
+{
+    /** The names of the B-trees this transaction can modify */
+    private Set<String> btreeNames;
+
+    /** The new BTreeHeaders, visible to this transaction only */
+    private Map<String, BTreeHeader<?, ?>> newBTreeHeaders = new LinkedHashMap<String, BTreeHeader<?, ?>>();
+
+    /** The B-tree headers offsets to add in the B-tree of B-trees */
+    private Map<NameRevision, Long> btreeHeaderOffsets = new LinkedHashMap<NameRevision, Long>();
+
+    /** The copied pages to add in the copied pages B-tree */
+    private Map<RevisionName, long[]> copiedPages = new LinkedHashMap<RevisionName, long[]>();
+
+
+    /**
+     * Creates a new StripedTransaction instance
+     *
+     * @param btreeNames The names of the B-trees this transaction can modify
+     */
+    /* no qualifier */StripedTransaction( String[] btreeNames )
+    {
+        this.btreeNames = new HashSet<String>( Arrays.asList( btreeNames ) );
+    }
+
+
+    /**
+     * @param name The B-tree name
+     * @return <code>true</code> if the B-tree has been declared by this transaction
+     */
+    /* no qualifier */boolean isDeclared( String name )
+    {
+        return btreeNames.contains( name );
+    }
+
+
+    /**
+     * @param name The B-tree name
+     * @return The BTreeHeader of the B-tree modified by this transaction, or null if it hasn't been modified
+     */
+    /* no qualifier */BTreeHeader<?, ?> getBTreeHeader( String name )
+    {
+        return newBTreeHeaders.get( name );
+    }
+
+
+    /**
+     * Store the new BTreeHeader of a B-tree modified by this transaction
+     *
+     * @param btreeHeader The new BTreeHeader
+     */
+    /* no qualifier */void updateBTreeHeader( BTreeHeader<?, ?> btreeHeader )
+    {
+        newBTreeHeaders.put( btreeHeader.getBtree().getName(), btreeHeader );
+    }
+
+
+    /**
+     * @return The new BTreeHeaders of the B-trees modified by this transaction
+     */
+    /* no qualifier */Collection<BTreeHeader<?, ?>> getBTreeHeaders()
+    {
+        return newBTreeHeaders.values();
+    }
+
+
+    /**
+     * Keep a new B-tree header offset, to be added in the B-tree of B-trees
+     *
+     * @param nameRevision The B-tree name and revision
+     * @param btreeHeaderOffset The B-tree header offset
+     */
+    /* no qualifier */void addBtreeHeaderOffset( NameRevision nameRevision, long btreeHeaderOffset )
+    {
+        btreeHeaderOffsets.put( nameRevision, btreeHeaderOffset );
+    }
+
+
+    /**
+     * @return The B-tree headers offsets to add in the B-tree of B-trees
+     */
+    /* no qualifier */Map<NameRevision, Long> getBtreeHeaderOffsets()
+    {
+        return btreeHeaderOffsets;
+    }
+
+
+    /**
+     * Keep the pages copied by a revision, to be added in the copied pages B-tree. The
+     * pages copied by a B-tree and its sub-btrees for the same revision are merged.
+     *
+     * @param revisionName The revision and the B-tree name
+     * @param pageOffsets The copied pages offsets
+     */
+    /* no qualifier */void addCopiedPages( RevisionName revisionName, long[] pageOffsets )
+    {
+        long[] previous = copiedPages.get( revisionName );
+
+        if ( previous != null )
+        {
+            long[] merged = Arrays.copyOf( previous, previous.length + pageOffsets.length );
+            System.arraycopy( pageOffsets, 0, merged, previous.length, pageOffsets.length );
+            pageOffsets = merged;
+        }
+
+        copiedPages.put( revisionName, pageOffsets );
+    }
+
+
+    /**
+     * @return The copied pages to add in the copied pages B-tree
+     */
+    /* no qualifier */Map<RevisionName, long[]> getCopiedPages()
+    {
+        return copiedPages;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "StripedTransaction" + btreeNames;
+    }
+}
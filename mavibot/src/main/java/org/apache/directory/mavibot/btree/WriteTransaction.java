@@ -19,74 +19,325 @@
  */
 package org.apache.directory.mavibot.btree;
 
-import java.util.concurrent.locks.ReentrantLock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.directory.mavibot.btree.exception.BadTransactionStateException;
 
+
 /**
- * A data structure used to manage a write transaction
+ * A write transaction modifying one or more B-trees managed by a RecordManager. The
+ * modifications are buffered until the transaction is committed : they are then applied
+ * within a single RecordManager transaction, B-tree per B-tree, in key order.<br/>
+ * This is an API grouping the modifications, not a write optimization : each modification
+ * is still applied as a B-tree insert or delete, which copies the pages from the root to
+ * the modified leaf.<br/>
+ * When a key is inserted or deleted more than once in a B-tree which does not allow
+ * duplicate values, only the last modification is applied.<br/>
+ * If a modification fails, the whole transaction is rollbacked. A WriteTransaction
+ * instance is not thread safe, and can only be committed or rollbacked once.
+ * <pre>
+ * WriteTransaction transaction = recordManager.beginWriteTransaction();
+ * transaction.insert( btree1, 1L, "one" );
+ * transaction.delete( btree2, 2L );
+ * transaction.commit();
+ * </pre>
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
-/* no qualifier */ class WriteTransaction
+public class WriteTransaction
 {
-    /** A lock used to protect the write operation against concurrent access */
-    protected ReentrantLock writeLock;
+    /** The RecordManager managing the modified B-trees */
+    private RecordManager recordManager;
+
+    /** The pending modifications, per B-tree name */
+    private Map<String, BTreeModifications<?, ?>> modifications = new LinkedHashMap<String, BTreeModifications<?, ?>>();
+
+    /** Tells if the transaction has been committed or rollbacked */
+    private boolean closed = false;
 
-    /* no qualifier */WriteTransaction()
+
+    /**
+     * Creates a new WriteTransaction instance
+     *
+     * @param recordManager The RecordManager managing the modified B-trees
+     */
+    /* no qualifier */WriteTransaction( RecordManager recordManager )
     {
-        //System.out.println( "Creating the transaction oject" );
-        writeLock = new ReentrantLock();
+        this.recordManager = recordManager;
     }
 
 
-    /* no qualifier */ void start()
+    /**
+     * Insert an entry in a B-tree when the transaction is committed.
+     *
+     * @param btree The B-tree to modify
+     * @param key The inserted key
+     * @param value The inserted value
+     */
+    public <K, V> void insert( BTree<K, V> btree, K key, V value )
     {
-        /*
-        if ( writeLock.isLocked() )
+        if ( key == null )
         {
-            throw new BadTransactionStateException( "Cannot start a write transaction when it's already started" );
+            throw new IllegalArgumentException( "Key must not be null" );
         }
-        */
 
-        //System.out.println( "Start a TXN [" + Thread.currentThread().getName() + "]" );
+        getModifications( btree ).add( new Addition<K, V>( key, value ) );
+    }
+
 
-        writeLock.lock();
-        //System.out.println( "WriteTransaction " + Thread.currentThread().getName() );
+    /**
+     * Delete a key, and all its values, from a B-tree when the transaction is committed.
+     *
+     * @param btree The B-tree to modify
+     * @param key The deleted key
+     */
+    public <K, V> void delete( BTree<K, V> btree, K key )
+    {
+        if ( key == null )
+        {
+            throw new IllegalArgumentException( "Key must not be null" );
+        }
+
+        getModifications( btree ).add( new Deletion<K, V>( key ) );
     }
 
 
-    /* no qualifier */ void commit()
+    /**
+     * Delete a value of a key from a B-tree when the transaction is committed.
+     *
+     * @param btree The B-tree to modify
+     * @param key The deleted key
+     * @param value The deleted value
+     */
+    public <K, V> void delete( BTree<K, V> btree, K key, V value )
     {
-        if ( !writeLock.isLocked() )
+        if ( key == null )
         {
-            throw new BadTransactionStateException( "Cannot commit a write transaction when it's not started" );
+            throw new IllegalArgumentException( "Key must not be null" );
         }
 
-        //System.out.println( "Commit a TXN[" + Thread.currentThread().getName() + "]" );
+        if ( value == null )
+        {
+            throw new IllegalArgumentException( "Value must not be null" );
+        }
+
+        getModifications( btree ).add( new Deletion<K, V>( key, value ) );
+    }
+
+
+    /**
+     * Apply all the pending modifications. The B-trees are modified in a single transaction,
+     * which only locks those B-trees when the RecordManager striped locking is enabled.
+     *
+     * @throws IOException If the modifications can't be written. The transaction is rollbacked.
+     */
+    public void commit() throws IOException
+    {
+        checkNotClosed();
+        closed = true;
+
+        if ( modifications.isEmpty() )
+        {
+            return;
+        }
+
+        String[] btreeNames = modifications.keySet().toArray( new String[modifications.size()] );
+
+        recordManager.beginTransaction( btreeNames );
+
+        try
+        {
+            for ( BTreeModifications<?, ?> btreeModifications : modifications.values() )
+            {
+                btreeModifications.apply();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            recordManager.rollback();
+
+            throw ioe;
+        }
+        catch ( RuntimeException re )
+        {
+            recordManager.rollback();
+
+            throw re;
+        }
+        finally
+        {
+            modifications.clear();
+        }
+
+        recordManager.commit();
+    }
+
+
+    /**
+     * Discard all the pending modifications. Nothing has been written.
+     */
+    public void rollback()
+    {
+        checkNotClosed();
+        closed = true;
+
+        modifications.clear();
+    }
+
 
-        writeLock.unlock();
+    /**
+     * @return <code>true</code> if the transaction has been committed or rollbacked
+     */
+    public boolean isClosed()
+    {
+        return closed;
     }
 
 
-    /* no qualifier */ void rollback()
+    /**
+     * @return The number of modifications which will be applied when the transaction is committed
+     */
+    public int getNbModifications()
     {
-        if ( !writeLock.isLocked() )
+        int nbModifications = 0;
+
+        for ( BTreeModifications<?, ?> btreeModifications : modifications.values() )
         {
-            throw new BadTransactionStateException( "Cannot commit a write transaction when it's not started" );
+            nbModifications += btreeModifications.getNbModifications();
         }
 
-        //System.out.println( "Rollback a TXN" );
-        writeLock.unlock();
+        return nbModifications;
+    }
+
+
+    /**
+     * Get the pending modifications of a B-tree, creating them if needed
+     */
+    @SuppressWarnings("unchecked")
+    private <K, V> BTreeModifications<K, V> getModifications( BTree<K, V> btree )
+    {
+        checkNotClosed();
+
+        String name = btree.getName();
+        BTreeModifications<K, V> btreeModifications = ( BTreeModifications<K, V> ) modifications.get( name );
+
+        if ( btreeModifications == null )
+        {
+            if ( recordManager.getManagedTree( name ) != btree )
+            {
+                throw new IllegalArgumentException( "The B-tree " + name + " is not managed by the RecordManager" );
+            }
+
+            btreeModifications = new BTreeModifications<K, V>( ( AbstractBTree<K, V> ) btree );
+            modifications.put( name, btreeModifications );
+        }
+
+        return btreeModifications;
+    }
+
+
+    /**
+     * Check that the transaction can still be used
+     */
+    private void checkNotClosed()
+    {
+        if ( closed )
+        {
+            throw new BadTransactionStateException( "The write transaction has already been committed or rollbacked" );
+        }
     }
 
 
     /**
-     * Tells if the transaction has started
-     * @return true if the transaction has started
+     * @see Object#toString()
      */
-    /* no qualifier */ boolean isStarted()
+    public String toString()
     {
-        return writeLock.isLocked();
+        return "WriteTransaction[" + modifications.keySet() + ", closed:" + closed + "]";
+    }
+
+    /**
+     * The pending modifications of a B-tree, sorted by key. The modifications of
+     * a key are kept in the order they have been done.
+     */
+    private static class BTreeModifications<K, V>
+    {
+        /** The modified B-tree */
+        private AbstractBTree<K, V> btree;
+
+        /** The modifications of each key */
+        private TreeMap<K, List<Modification<K, V>>> keyModifications;
+
+
+        private BTreeModifications( AbstractBTree<K, V> btree )
+        {
+            this.btree = btree;
+            keyModifications = new TreeMap<K, List<Modification<K, V>>>( btree.getKeyComparator() );
+        }
+
+
+        /**
+         * Add a modification. Without duplicate values, an insertion or the deletion of
+         * a key makes the previous modifications of this key useless.
+         */
+        private void add( Modification<K, V> modification )
+        {
+            List<Modification<K, V>> modifications = keyModifications.get( modification.getKey() );
+
+            if ( modifications == null )
+            {
+                modifications = new ArrayList<Modification<K, V>>( 1 );
+                keyModifications.put( modification.getKey(), modifications );
+            }
+            else if ( !btree.isAllowDuplicates()
+                && ( ( modification instanceof Addition ) || ( modification.getValue() == null ) ) )
+            {
+                modifications.clear();
+            }
+
+            modifications.add( modification );
+        }
+
+
+        /**
+         * Apply the modifications, within the current transaction. Each of them creates
+         * a new revision of the B-tree.
+         */
+        private void apply() throws IOException
+        {
+            for ( List<Modification<K, V>> modifications : keyModifications.values() )
+            {
+                for ( Modification<K, V> modification : modifications )
+                {
+                    if ( modification instanceof Addition )
+                    {
+                        btree.insert( modification.getKey(), modification.getValue(), -1L );
+                    }
+                    else
+                    {
+                        btree.delete( modification.getKey(), modification.getValue(), -1L );
+                    }
+                }
+            }
+        }
+
+
+        private int getNbModifications()
+        {
+            int nbModifications = 0;
+
+            for ( List<Modification<K, V>> modifications : keyModifications.values() )
+            {
+                nbModifications += modifications.size();
+            }
+
+            return nbModifications;
+        }
     }
 }
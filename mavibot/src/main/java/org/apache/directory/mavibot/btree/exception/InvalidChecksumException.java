@@ -0,0 +1,75 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.mavibot.btree.exception;
+
+
+import java.io.IOException;
+
+
+/**
+ * An exception thrown when the checksum stored with some pages does not match their content,
+ * meaning the pages are corrupted or have been partially written.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class InvalidChecksumException extends IOException
+{
+    /** The serial version UUID */
+    private static final long serialVersionUID = 1L;
+
+    /** The offset of the first corrupted page */
+    private final long offset;
+
+    /** The name of the B-tree the pages belong to, if known */
+    private final String btreeName;
+
+
+    /**
+     * Creates a new instance of InvalidChecksumException.
+     *
+     * @param offset The offset of the first corrupted page
+     * @param btreeName The name of the B-tree the pages belong to, or null if unknown
+     */
+    public InvalidChecksumException( long offset, String btreeName )
+    {
+        super( "Invalid checksum for the page at offset 0x" + Long.toHexString( offset )
+            + ( btreeName == null ? "" : " of the B-tree '" + btreeName + "'" ) );
+        this.offset = offset;
+        this.btreeName = btreeName;
+    }
+
+
+    /**
+     * @return The offset of the first corrupted page
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+
+    /**
+     * @return The name of the B-tree the pages belong to, or null if unknown
+     */
+    public String getBtreeName()
+    {
+        return btreeName;
+    }
+}
@@ -85,6 +85,23 @@ public class BufferHandler
     }
 
 
+    /**
+     * Tells if some bytes remain to be read, either in the buffer or in the channel
+     *
+     * @return <code>true</code> if we haven't reached the end of the data yet
+     * @throws IOException If the channel can't be accessed
+     */
+    public boolean hasRemaining() throws IOException
+    {
+        if ( buffer.hasRemaining() )
+        {
+            return true;
+        }
+
+        return ( channel != null ) && ( channel.position() < channel.size() );
+    }
+
+
     /**
      * Read a buffer containing the given number of bytes
      * @param len The number of bytes to read
@@ -341,4 +341,71 @@ public class ByteArraySerializer extends AbstractElementSerializer<byte[]>
                 return bytes;
         }
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRawComparable()
+    {
+        // A user provided comparator may not follow the bytes order
+        return getComparator() == ByteArrayComparator.INSTANCE;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compareRaw( byte[] buffer1, int pos1, int length1, byte[] buffer2, int pos2, int length2 )
+        throws IOException
+    {
+        if ( !isRawComparable() )
+        {
+            return super.compareRaw( buffer1, pos1, length1, buffer2, pos2, length2 );
+        }
+
+        int len1 = IntSerializer.readInt( buffer1, pos1 );
+        int len2 = IntSerializer.readInt( buffer2, pos2 );
+
+        // A null byte[] is stored with a -1 length, and is lower than any other byte[]
+        if ( ( len1 == -1 ) || ( len2 == -1 ) )
+        {
+            return ( len1 == len2 ) ? 0 : ( ( len1 == -1 ) ? -1 : 1 );
+        }
+
+        int start1 = pos1 + 4;
+        int start2 = pos2 + 4;
+        int min = Math.min( len1, len2 );
+
+        // The bytes are compared as signed values, as the ByteArrayComparator does
+        for ( int i = 0; i < min; i++ )
+        {
+            byte b1 = buffer1[start1 + i];
+            byte b2 = buffer2[start2 + i];
+
+            if ( b1 < b2 )
+            {
+                return -1;
+            }
+            else if ( b1 > b2 )
+            {
+                return 1;
+            }
+        }
+
+        if ( len1 < len2 )
+        {
+            return -1;
+        }
+        else if ( len1 > len2 )
+        {
+            return 1;
+        }
+        else
+        {
+            return 0;
+        }
+    }
 }
@@ -22,6 +22,7 @@ package org.apache.directory.mavibot.btree.serializer;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Comparator;
 
 
@@ -98,6 +99,42 @@ public interface ElementSerializer<T>
     int compare( T type1, T type2 );
 
 
+    /**
+     * Tells if the serialized elements can be compared with {@link #compareRaw}
+     * without being deserialized. The default implementation returns false.
+     *
+     * @return true if the serialized elements can be compared directly
+     */
+    default boolean isRawComparable()
+    {
+        return false;
+    }
+
+
+    /**
+     * Compares two serialized elements, with the same result as {@link #compare} would
+     * produce on the deserialized elements. The default implementation deserializes the
+     * elements, and compares them with {@link #compare}.
+     *
+     * @param buffer1 The buffer containing the first serialized element
+     * @param pos1 The position of the first element in its buffer
+     * @param length1 The first serialized element length
+     * @param buffer2 The buffer containing the second serialized element
+     * @param pos2 The position of the second element in its buffer
+     * @param length2 The second serialized element length
+     * @return The comparison result
+     * @throws IOException If one of the elements can't be deserialized
+     */
+    default int compareRaw( byte[] buffer1, int pos1, int length1, byte[] buffer2, int pos2, int length2 )
+        throws IOException
+    {
+        T element1 = fromBytes( Arrays.copyOfRange( buffer1, pos1, pos1 + length1 ) );
+        T element2 = fromBytes( Arrays.copyOfRange( buffer2, pos2, pos2 + length2 ) );
+
+        return compare( element1, element2 );
+    }
+
+
     /**
      * @return the comparator for the used type
      */
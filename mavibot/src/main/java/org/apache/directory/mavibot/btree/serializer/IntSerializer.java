@@ -168,4 +168,50 @@ public class IntSerializer extends AbstractElementSerializer<Integer>
 
         return buffer;
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRawComparable()
+    {
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compareRaw( byte[] buffer1, int pos1, int length1, byte[] buffer2, int pos2, int length2 )
+    {
+        int int1 = readInt( buffer1, pos1 );
+        int int2 = readInt( buffer2, pos2 );
+
+        if ( int1 < int2 )
+        {
+            return -1;
+        }
+        else if ( int1 > int2 )
+        {
+            return 1;
+        }
+        else
+        {
+            return 0;
+        }
+    }
+
+
+    /**
+     * Read an int from a byte[], without creating an Integer
+     */
+    /* no qualifier */static int readInt( byte[] in, int start )
+    {
+        return ( in[start] << 24 ) +
+            ( ( in[start + 1] & 0xFF ) << 16 ) +
+            ( ( in[start + 2] & 0xFF ) << 8 ) +
+            ( in[start + 3] & 0xFF );
+    }
 }
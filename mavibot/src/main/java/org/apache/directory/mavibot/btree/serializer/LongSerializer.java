@@ -186,4 +186,54 @@ public class LongSerializer extends AbstractElementSerializer<Long>
     {
         return buffer.getLong();
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRawComparable()
+    {
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compareRaw( byte[] buffer1, int pos1, int length1, byte[] buffer2, int pos2, int length2 )
+    {
+        long long1 = readLong( buffer1, pos1 );
+        long long2 = readLong( buffer2, pos2 );
+
+        if ( long1 < long2 )
+        {
+            return -1;
+        }
+        else if ( long1 > long2 )
+        {
+            return 1;
+        }
+        else
+        {
+            return 0;
+        }
+    }
+
+
+    /**
+     * Read a long from a byte[], without creating a Long
+     */
+    private static long readLong( byte[] in, int start )
+    {
+        return ( ( long ) in[start] << 56 ) +
+            ( ( in[start + 1] & 0x00FFL ) << 48 ) +
+            ( ( in[start + 2] & 0x00FFL ) << 40 ) +
+            ( ( in[start + 3] & 0x00FFL ) << 32 ) +
+            ( ( in[start + 4] & 0x00FFL ) << 24 ) +
+            ( ( in[start + 5] & 0x00FFL ) << 16 ) +
+            ( ( in[start + 6] & 0x00FFL ) << 8 ) +
+            ( in[start + 7] & 0x00FFL );
+    }
 }
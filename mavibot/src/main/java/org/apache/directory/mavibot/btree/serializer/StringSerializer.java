@@ -378,4 +378,79 @@ public class StringSerializer extends AbstractElementSerializer<String>
             }
         }
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRawComparable()
+    {
+        // A user provided comparator may not follow the chars order
+        return getComparator() == StringComparator.INSTANCE;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * The ASCII chars are compared directly in the serialized Strings. If a non ASCII
+     * char is met, both Strings are deserialized and compared.
+     */
+    @Override
+    public int compareRaw( byte[] buffer1, int pos1, int length1, byte[] buffer2, int pos2, int length2 )
+        throws IOException
+    {
+        if ( !isRawComparable() )
+        {
+            return super.compareRaw( buffer1, pos1, length1, buffer2, pos2, length2 );
+        }
+
+        int len1 = IntSerializer.readInt( buffer1, pos1 );
+        int len2 = IntSerializer.readInt( buffer2, pos2 );
+
+        // A null String is stored with a -1 length, and is lower than any other String
+        if ( ( len1 == -1 ) || ( len2 == -1 ) )
+        {
+            return ( len1 == len2 ) ? 0 : ( ( len1 == -1 ) ? -1 : 1 );
+        }
+
+        int start1 = pos1 + 4;
+        int start2 = pos2 + 4;
+        int min = Math.min( len1, len2 );
+
+        for ( int i = 0; i < min; i++ )
+        {
+            byte b1 = buffer1[start1 + i];
+            byte b2 = buffer2[start2 + i];
+
+            if ( ( b1 < 0 ) || ( b2 < 0 ) )
+            {
+                // Not an ASCII char : we have to decode the Strings
+                return super.compareRaw( buffer1, pos1, length1, buffer2, pos2, length2 );
+            }
+
+            if ( b1 < b2 )
+            {
+                return -1;
+            }
+            else if ( b1 > b2 )
+            {
+                return 1;
+            }
+        }
+
+        // One String is a prefix of the other : the shortest is the lowest
+        if ( len1 < len2 )
+        {
+            return -1;
+        }
+        else if ( len1 > len2 )
+        {
+            return 1;
+        }
+        else
+        {
+            return 0;
+        }
+    }
 }
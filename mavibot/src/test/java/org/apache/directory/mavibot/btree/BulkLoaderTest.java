@@ -29,6 +29,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -36,6 +37,9 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.directory.mavibot.btree.BulkLoader.LevelEnum;
 import org.apache.directory.mavibot.btree.exception.BTreeAlreadyManagedException;
@@ -1186,4 +1190,270 @@ public class BulkLoaderTest
             e.printStackTrace();
         }
     }
+
+
+    /**
+     * Test a load sorting many chunks in a dedicated pool, with keys present in more than one chunk
+     */
+    @Test
+    public void testPersistedBulkLoadParallelChunks() throws Exception
+    {
+        File file = File.createTempFile( "managedbtreebuilder", ".data" );
+        file.deleteOnExit();
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+
+        try
+        {
+            RecordManager rm = new RecordManager( file.getAbsolutePath() );
+            PersistedBTree<Long, String> btree = ( PersistedBTree<Long, String> ) rm.addBTree( "test",
+                LongSerializer.INSTANCE, StringSerializer.INSTANCE, true );
+
+            // Each key has 2 values, stored in two different halves of the data
+            List<Tuple<Long, String>> elems = new ArrayList<Tuple<Long, String>>();
+
+            for ( int i = 0; i < 2; i++ )
+            {
+                List<Tuple<Long, String>> half = new ArrayList<Tuple<Long, String>>();
+
+                for ( long key = 0; key < 5000L; key++ )
+                {
+                    half.add( new Tuple<Long, String>( key, "V" + i + "-" + key ) );
+                }
+
+                Collections.shuffle( half, new Random( i ) );
+                elems.addAll( half );
+            }
+
+            BTree<Long, String> result = BulkLoader.load( btree, elems.iterator(), 256, pool );
+
+            assertEquals( 5000L, result.getNbElems() );
+
+            for ( long key = 0; key < 5000L; key++ )
+            {
+                ValueCursor<String> values = result.getValues( key );
+
+                assertTrue( values.hasNext() );
+                assertEquals( "V0-" + key, values.next() );
+                assertTrue( values.hasNext() );
+                assertEquals( "V1-" + key, values.next() );
+                assertFalse( values.hasNext() );
+            }
+
+            rm.close();
+        }
+        finally
+        {
+            pool.shutdown();
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Test that the leaves built in parallel are correctly written on disk
+     */
+    @Test
+    public void testPersistedBulkLoadParallelLeaves() throws Exception
+    {
+        File file = File.createTempFile( "managedbtreebuilder", ".data" );
+        file.deleteOnExit();
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        int nbElems = 10000;
+
+        try
+        {
+            RecordManager rm = new RecordManager( file.getAbsolutePath() );
+            BTree<Long, String> btree = rm.addBTree( "test", LongSerializer.INSTANCE, StringSerializer.INSTANCE,
+                false );
+
+            List<Tuple<Long, String>> elems = new ArrayList<Tuple<Long, String>>();
+
+            for ( long key = 0; key < nbElems; key++ )
+            {
+                elems.add( new Tuple<Long, String>( key, "V" + key ) );
+            }
+
+            BTree<Long, String> result = BulkLoader.load( btree, elems.iterator(), nbElems, pool );
+
+            // Browse the tree : the leaves are read from the disk
+            ( ( PersistedBTree<Long, String> ) result ).getRecordManager().getPageCache().clear();
+            TupleCursor<Long, String> cursor = result.browse();
+            long expected = 0L;
+
+            while ( cursor.hasNext() )
+            {
+                Tuple<Long, String> tuple = cursor.next();
+
+                assertEquals( Long.valueOf( expected ), tuple.getKey() );
+                assertEquals( "V" + expected, tuple.getValue() );
+                expected++;
+            }
+
+            assertEquals( nbElems, expected );
+            rm.close();
+        }
+        finally
+        {
+            pool.shutdown();
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Collect the leaves of a page, in key order
+     */
+    private void collectLeaves( Page<Long, String> page, List<AbstractPage<Long, String>> leaves )
+    {
+        AbstractPage<Long, String> abstractPage = ( AbstractPage<Long, String> ) page;
+
+        if ( page.isLeaf() )
+        {
+            leaves.add( abstractPage );
+        }
+        else
+        {
+            for ( int i = 0; i <= page.getNbElems(); i++ )
+            {
+                collectLeaves( abstractPage.getPage( i ), leaves );
+            }
+        }
+    }
+
+
+    /**
+     * Test that the bulk loaded leaves are stored in contiguous pages, in key order
+     */
+    @Test
+    public void testBulkLoadedLeavesAreContiguous() throws Exception
+    {
+        File file = File.createTempFile( "managedbtreebuilder", ".data" );
+        file.deleteOnExit();
+        ForkJoinPool pool = new ForkJoinPool( 2 );
+
+        try
+        {
+            RecordManager rm = new RecordManager( file.getAbsolutePath() );
+            BTree<Long, String> btree = rm.addBTree( "test", LongSerializer.INSTANCE, StringSerializer.INSTANCE,
+                false );
+
+            List<Tuple<Long, String>> elems = new ArrayList<Tuple<Long, String>>();
+
+            for ( long key = 0; key < 10000L; key++ )
+            {
+                elems.add( new Tuple<Long, String>( key, "V" + key ) );
+            }
+
+            BTree<Long, String> result = BulkLoader.load( btree, elems.iterator(), 10000, pool );
+
+            List<AbstractPage<Long, String>> leaves = new ArrayList<AbstractPage<Long, String>>();
+            collectLeaves( result.getRootPage(), leaves );
+
+            assertEquals( 625, leaves.size() );
+
+            for ( int i = 1; i < leaves.size(); i++ )
+            {
+                assertEquals( leaves.get( i - 1 ).getLastOffset() + rm.getPageSize(), leaves.get( i ).getOffset() );
+            }
+
+            rm.close();
+        }
+        finally
+        {
+            pool.shutdown();
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Test that the extents reserved concurrently, while other pages are allocated and
+     * released, never overlap
+     */
+    @Test
+    public void testConcurrentExtents() throws Exception
+    {
+        File file = File.createTempFile( "managedbtreebuilder", ".data" );
+        file.deleteOnExit();
+
+        try
+        {
+            final RecordManager rm = new RecordManager( file.getAbsolutePath() );
+            final int nbThreads = 4;
+            final int nbExtents = 5000;
+            final List<PageExtent> extents = Collections.synchronizedList( new ArrayList<PageExtent>() );
+            final CountDownLatch start = new CountDownLatch( 1 );
+            final CountDownLatch latch = new CountDownLatch( nbThreads );
+            final AtomicInteger nbErrors = new AtomicInteger( 0 );
+
+            for ( int t = 0; t < nbThreads; t++ )
+            {
+                final int nbPages = t + 1;
+
+                Thread thread = new Thread( new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            start.await();
+
+                            for ( int i = 0; i < nbExtents; i++ )
+                            {
+                                PageExtent extent = rm.reserveExtent( nbPages );
+
+                                if ( i % 2 == 0 )
+                                {
+                                    // Keep the extent
+                                    extent.close();
+                                    extents.add( extent );
+                                }
+                                else
+                                {
+                                    // Use a part of it, and give back the rest
+                                    extent.allocate( rm.getPageSize() );
+                                    extents.add( new PageExtent( extent.getStart(), extent.getNext() ) );
+                                    rm.releaseExtent( extent );
+                                }
+                            }
+                        }
+                        catch ( Exception e )
+                        {
+                            nbErrors.incrementAndGet();
+                        }
+                        finally
+                        {
+                            latch.countDown();
+                        }
+                    }
+                } );
+
+                thread.start();
+            }
+
+            start.countDown();
+            latch.await();
+
+            assertEquals( 0, nbErrors.get() );
+
+            // No page has been given twice
+            Set<Long> offsets = new TreeSet<Long>();
+
+            for ( PageExtent extent : extents )
+            {
+                for ( long offset = extent.getStart(); offset < extent.getEnd(); offset += rm.getPageSize() )
+                {
+                    assertTrue( offsets.add( offset ) );
+                    assertFalse( rm.isFreePage( offset ) );
+                    assertTrue( offset < rm.getEndOfFileOffset() );
+                }
+            }
+
+            rm.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
 }
@@ -0,0 +1,187 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the FreePageMap
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class FreePageMapTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+
+    @Test
+    public void testAllocateRelease()
+    {
+        FreePageMap map = new FreePageMap( 512 );
+
+        assertEquals( RecordManager.NO_PAGE, map.allocate() );
+
+        assertTrue( map.release( 5 * 512L ) );
+        assertTrue( map.release( 2 * 512L ) );
+        assertTrue( map.release( 3 * 512L ) );
+        assertFalse( map.release( 3 * 512L ) );
+        assertEquals( 3, map.size() );
+
+        // The links are written from the last page to the first one
+        assertArrayEquals( new long[]
+            { 5 * 512L, 3 * 512L, 2 * 512L }, map.pollDirtyPages() );
+        assertFalse( map.isDirty() );
+        assertEquals( 2 * 512L, map.getFirst() );
+        assertEquals( 3 * 512L, map.getNext( 2 * 512L ) );
+        assertEquals( 5 * 512L, map.getNext( 3 * 512L ) );
+        assertEquals( RecordManager.NO_PAGE, map.getNext( 5 * 512L ) );
+
+        // The lowest page is allocated first
+        assertEquals( 2 * 512L, map.allocate() );
+        assertEquals( 3 * 512L, map.getFirst() );
+        assertFalse( map.isDirty() );
+
+        // Allocating the page 3 changes the link of no remaining page but the first one
+        assertEquals( 3 * 512L, map.allocate() );
+        assertEquals( 5 * 512L, map.getFirst() );
+        assertEquals( 1, map.size() );
+
+        // Releasing the page 4 changes its link, and the link of no other page
+        map.release( 4 * 512L );
+        assertArrayEquals( new long[]
+            { 4 * 512L }, map.pollDirtyPages() );
+
+        // Releasing the page 6 changes the link of the page 5
+        map.release( 6 * 512L );
+        assertArrayEquals( new long[]
+            { 6 * 512L, 5 * 512L }, map.pollDirtyPages() );
+    }
+
+
+    @Test
+    public void testContiguousAllocation()
+    {
+        FreePageMap map = new FreePageMap( 512 );
+
+        map.release( 1 * 512L );
+        map.release( 3 * 512L );
+        map.release( 4 * 512L );
+        map.release( 6 * 512L );
+        map.release( 7 * 512L );
+        map.release( 8 * 512L );
+
+        assertEquals( 6 * 512L, map.allocate( 3 ) );
+        assertEquals( RecordManager.NO_PAGE, map.allocate( 3 ) );
+        assertEquals( 3 * 512L, map.allocate( 2 ) );
+        assertEquals( 1, map.size() );
+        assertEquals( 1 * 512L, map.getFirst() );
+    }
+
+
+    @Test
+    public void testTruncate()
+    {
+        FreePageMap map = new FreePageMap( 512 );
+
+        map.release( 2 * 512L );
+        map.release( 7 * 512L );
+        map.release( 8 * 512L );
+        map.release( 9 * 512L );
+
+        assertEquals( 7 * 512L, map.truncate( 10 * 512L ) );
+        assertEquals( 1, map.size() );
+        assertEquals( RecordManager.NO_PAGE, map.getNext( 2 * 512L ) );
+        assertEquals( 7 * 512L, map.truncate( 7 * 512L ) );
+    }
+
+
+    @Test
+    public void testFreePagesReload() throws Exception
+    {
+        File dataDir = tempFolder.newFolder( "freepages" );
+        RecordManager recordManager = new RecordManager( dataDir.getAbsolutePath() );
+
+        try
+        {
+            BTree<Long, String> btree = recordManager.addBTree( "test", LongSerializer.INSTANCE,
+                StringSerializer.INSTANCE, false );
+
+            for ( long i = 0; i < 1000; i++ )
+            {
+                btree.insert( i, Long.toString( i ) );
+            }
+
+            for ( long i = 0; i < 1000; i += 2 )
+            {
+                btree.delete( i );
+            }
+
+            assertTrue( recordManager.getNbFreePages() > 0 );
+        }
+        finally
+        {
+            recordManager.close();
+        }
+
+        // The free pages linked on disk are loaded back, and reused
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+
+        try
+        {
+            int nbFreePages = recordManager.getNbFreePages();
+            long endOfFileOffset = recordManager.getEndOfFileOffset();
+            assertTrue( nbFreePages > 0 );
+
+            BTree<Long, String> btree = recordManager.getManagedTree( "test" );
+
+            for ( long i = 0; i < 1000; i += 2 )
+            {
+                btree.insert( i, Long.toString( i ) );
+            }
+
+            assertTrue( recordManager.getNbFreePages() < nbFreePages );
+            assertTrue( recordManager.getEndOfFileOffset() - endOfFileOffset < ( long ) nbFreePages
+                * recordManager.getPageSize() );
+
+            for ( long i = 0; i < 1000; i++ )
+            {
+                assertEquals( Long.toString( i ), btree.get( i ) );
+            }
+        }
+        finally
+        {
+            recordManager.close();
+        }
+    }
+}
@@ -22,6 +22,7 @@ package org.apache.directory.mavibot.btree;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -29,7 +30,6 @@ import java.util.List;
 
 import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
 import org.apache.directory.mavibot.btree.serializer.IntSerializer;
-import org.junit.Ignore;
 import org.junit.Test;
 
 
@@ -41,7 +41,6 @@ import org.junit.Test;
 public class InMemoryBTreeBuilderTest
 {
     @Test
-    @Ignore
     public void testIntegerTree() throws IOException, KeyNotFoundException
     {
         List<Tuple<Integer, Integer>> sortedTuple = new ArrayList<Tuple<Integer, Integer>>();
@@ -79,4 +78,57 @@ public class InMemoryBTreeBuilderTest
         btree.close();
     }
 
+
+    /**
+     * Check that all the tuples are kept whatever their number, and that the values
+     * of a key are gathered when the B-tree allows duplicate values
+     */
+    @Test
+    public void testBuildWithDuplicates() throws IOException, KeyNotFoundException
+    {
+        IntSerializer ser = IntSerializer.INSTANCE;
+
+        for ( int nbKeys = 0; nbKeys < 300; nbKeys += 7 )
+        {
+            List<Tuple<Integer, Integer>> sortedTuple = new ArrayList<Tuple<Integer, Integer>>();
+
+            for ( int i = 0; i < nbKeys; i++ )
+            {
+                sortedTuple.add( new Tuple<Integer, Integer>( i, i ) );
+                sortedTuple.add( new Tuple<Integer, Integer>( i, -i - 1 ) );
+            }
+
+            InMemoryBTreeConfiguration<Integer, Integer> configuration = new InMemoryBTreeConfiguration<Integer, Integer>();
+            configuration.setName( "dups" );
+            configuration.setPageSize( 4 );
+            configuration.setSerializers( ser, ser );
+            configuration.setAllowDuplicates( true );
+
+            BTree<Integer, Integer> btree = new InMemoryBTreeBuilder<Integer, Integer>( configuration )
+                .build( sortedTuple.iterator() );
+
+            assertEquals( 2 * nbKeys, btree.getNbElems() );
+
+            for ( int i = 0; i < nbKeys; i++ )
+            {
+                assertTrue( btree.contains( i, i ) );
+                assertTrue( btree.contains( i, -i - 1 ) );
+            }
+
+            // The built B-tree can be modified
+            for ( int i = 0; i < nbKeys; i += 2 )
+            {
+                btree.delete( i );
+            }
+
+            btree.insert( nbKeys, nbKeys );
+
+            for ( int i = 0; i <= nbKeys; i++ )
+            {
+                assertEquals( ( i % 2 != 0 ) || ( i == nbKeys ), btree.hasKey( i ) );
+            }
+
+            btree.close();
+        }
+    }
 }
@@ -0,0 +1,384 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the InMemoryBTree checkpoints
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class InMemoryBTreeCheckpointTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private InMemoryBTreeConfiguration<Long, String> config;
+
+
+    @Before
+    public void createConfiguration() throws IOException
+    {
+        config = new InMemoryBTreeConfiguration<Long, String>();
+        config.setSerializers( LongSerializer.INSTANCE, StringSerializer.INSTANCE );
+        config.setFilePath( tempFolder.newFolder().getAbsolutePath() );
+        config.setName( "checkpoint" );
+    }
+
+
+    /**
+     * Check that the B-tree can be modified while a checkpoint is running, and that the
+     * modifications done meanwhile are kept in the new journal segment
+     */
+    @Test
+    public void testCheckpointWhileModifying() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = new InMemoryBTree<Long, String>( config );
+
+        for ( long i = 0; i < 1000; i++ )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        Future<Long> future = btree.checkpoint();
+
+        for ( long i = 1000; i < 2000; i++ )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        btree.delete( 10L );
+
+        long revision = future.get();
+
+        assertTrue( revision >= 1000L );
+        assertTrue( revision <= 2001L );
+        assertEquals( 0, getNbSegments( btree ) );
+
+        // Simulate a crash : the B-tree is not closed
+        File journalFile = btree.getJournal();
+        byte[] data = readFile( btree.getFile() );
+        byte[] journal = readFile( journalFile );
+
+        btree.close();
+        writeFile( btree.getFile(), data );
+        writeFile( journalFile, journal );
+
+        btree = new InMemoryBTree<Long, String>( config );
+
+        assertEquals( 1999, btree.getNbElems() );
+        assertFalse( btree.hasKey( 10L ) );
+
+        for ( long i = 0; i < 2000; i++ )
+        {
+            if ( i != 10L )
+            {
+                assertEquals( "V" + i, btree.get( i ) );
+            }
+        }
+
+        btree.close();
+    }
+
+
+    /**
+     * Check that the journal segments left by a checkpoint which has not completed are
+     * replayed in order
+     */
+    @Test
+    public void testReplaySegments() throws Exception
+    {
+        testReplaySegments( ".8" );
+    }
+
+
+    /**
+     * Check that a journal without segment number, written by a previous version, is
+     * replayed after the segments
+     */
+    @Test
+    public void testReplayUnnumberedJournal() throws Exception
+    {
+        testReplaySegments( "" );
+    }
+
+
+    private void testReplaySegments( String lastSuffix ) throws Exception
+    {
+        InMemoryBTree<Long, String> btree = new InMemoryBTree<Long, String>( config );
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        btree.flush();
+        byte[] data = readFile( btree.getFile() );
+
+        for ( long i = 100; i < 200; i++ )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        btree.insert( 0L, "W0" );
+        int segmentSize = ( int ) btree.getJournal().length();
+
+        for ( long i = 200; i < 300; i++ )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        btree.insert( 0L, "X0" );
+        byte[] journal = readFile( btree.getJournal() );
+        btree.close();
+
+        // Split the journal in two segments
+        byte[] segment = new byte[segmentSize];
+        byte[] lastJournal = new byte[journal.length - segmentSize];
+        System.arraycopy( journal, 0, segment, 0, segmentSize );
+        System.arraycopy( journal, segmentSize, lastJournal, 0, lastJournal.length );
+
+        for ( File file : getSegments( btree ) )
+        {
+            assertTrue( file.delete() );
+        }
+
+        String journalPath = btree.getFile().getPath() + InMemoryBTree.JOURNAL_SUFFIX;
+
+        writeFile( btree.getFile(), data );
+        writeFile( new File( journalPath + ".7" ), segment );
+        writeFile( new File( journalPath + lastSuffix ), lastJournal );
+
+        btree = new InMemoryBTree<Long, String>( config );
+
+        assertEquals( 300, btree.getNbElems() );
+        assertEquals( "X0", btree.get( 0L ) );
+        assertEquals( "V299", btree.get( 299L ) );
+        assertEquals( 0, getNbSegments( btree ) );
+        assertEquals( 0L, btree.getJournal().length() );
+
+        // The next checkpoint uses a new segment
+        btree.insert( 300L, "V300" );
+        btree.checkpoint().get();
+        btree.close();
+
+        btree = new InMemoryBTree<Long, String>( config );
+
+        assertEquals( 301, btree.getNbElems() );
+        assertEquals( "V300", btree.get( 300L ) );
+
+        btree.close();
+    }
+
+
+    /**
+     * Check that a checkpoint starts once the previous one is done
+     */
+    @Test
+    public void testSuccessiveCheckpoints() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = new InMemoryBTree<Long, String>( config );
+
+        File journal = btree.getJournal();
+
+        btree.insert( 1L, "V1" );
+        Future<Long> future1 = btree.checkpoint();
+
+        btree.insert( 2L, "V2" );
+        Future<Long> future2 = btree.checkpoint();
+
+        assertTrue( future1.isDone() );
+        assertTrue( future2.get() > future1.get() );
+        assertEquals( 0, getNbSegments( btree ) );
+        assertEquals( 0L, btree.getJournal().length() );
+
+        // Each checkpoint writes the next modifications into a new segment
+        assertFalse( journal.equals( btree.getJournal() ) );
+        assertFalse( journal.exists() );
+
+        btree.close();
+
+        btree = new InMemoryBTree<Long, String>( config );
+
+        assertEquals( 2, btree.getNbElems() );
+
+        btree.close();
+    }
+
+
+    /**
+     * Check that the journal can be rotated while the modifications are forced on disk by
+     * groups, without breaking the journal writer
+     */
+    @Test
+    public void testCheckpointWithGroupCommit() throws Exception
+    {
+        final int nbThreads = 4;
+        final int nbInserts = 500;
+
+        config.setJournalGroupSize( nbThreads );
+        config.setJournalMaxDelay( 1L );
+
+        final InMemoryBTree<Long, String> btree = new InMemoryBTree<Long, String>( config );
+        final CountDownLatch latch = new CountDownLatch( nbThreads );
+        final AtomicInteger nbErrors = new AtomicInteger( 0 );
+
+        for ( int t = 0; t < nbThreads; t++ )
+        {
+            final long base = t * nbInserts;
+
+            Thread writer = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for ( long i = 0; i < nbInserts; i++ )
+                        {
+                            btree.insert( base + i, "V" + ( base + i ) );
+                        }
+                    }
+                    catch ( IOException ioe )
+                    {
+                        nbErrors.incrementAndGet();
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                }
+            } );
+
+            writer.start();
+        }
+
+        // Checkpoint while the writers are running
+        while ( latch.getCount() > 0 )
+        {
+            btree.checkpoint().get();
+        }
+
+        latch.await();
+
+        assertEquals( 0, nbErrors.get() );
+
+        // The journal is still writable
+        btree.insert( -1L, "V-1" );
+        btree.close();
+
+        InMemoryBTree<Long, String> reloaded = new InMemoryBTree<Long, String>( config );
+
+        assertEquals( nbThreads * nbInserts + 1, reloaded.getNbElems() );
+
+        for ( long i = -1; i < nbThreads * nbInserts; i++ )
+        {
+            assertEquals( "V" + i, reloaded.get( i ) );
+        }
+
+        reloaded.close();
+    }
+
+
+    /**
+     * @return The journal segments, including the one being written
+     */
+    private List<File> getSegments( InMemoryBTree<Long, String> btree )
+    {
+        List<File> segments = new ArrayList<File>();
+        String prefix = btree.getFile().getName() + InMemoryBTree.JOURNAL_SUFFIX;
+
+        for ( File file : btree.getFile().getParentFile().listFiles() )
+        {
+            if ( file.getName().startsWith( prefix ) )
+            {
+                segments.add( file );
+            }
+        }
+
+        return segments;
+    }
+
+
+    /**
+     * @return The number of journal segments left, besides the one being written
+     */
+    private int getNbSegments( InMemoryBTree<Long, String> btree )
+    {
+        List<File> segments = getSegments( btree );
+        segments.remove( btree.getJournal() );
+
+        return segments.size();
+    }
+
+
+    private byte[] readFile( File file ) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+        try
+        {
+            byte[] bytes = new byte[( int ) raf.length()];
+            raf.readFully( bytes );
+
+            return bytes;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    private void writeFile( File file, byte[] bytes ) throws IOException
+    {
+        FileOutputStream stream = new FileOutputStream( file );
+
+        try
+        {
+            stream.write( bytes );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the InMemoryBTree journal writes
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class InMemoryBTreeJournalTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+
+    private InMemoryBTree<Long, String> createBTree( int groupSize, long maxDelay ) throws Exception
+    {
+        File dir = tempFolder.newFolder();
+
+        InMemoryBTreeConfiguration<Long, String> config = new InMemoryBTreeConfiguration<Long, String>();
+        config.setSerializers( LongSerializer.INSTANCE, StringSerializer.INSTANCE );
+        config.setFilePath( dir.getAbsolutePath() );
+        config.setName( "journal" );
+        config.setJournalGroupSize( groupSize );
+        config.setJournalMaxDelay( maxDelay );
+
+        return new InMemoryBTree<Long, String>( config );
+    }
+
+
+    /**
+     * The size of the journal record of an addition : the type, the key, and the value length and bytes
+     */
+    private long getAdditionSize( String value )
+    {
+        return 1 + 8 + 4 + value.length();
+    }
+
+
+    /**
+     * Check that each modification is forced on disk when there is no group
+     */
+    @Test
+    public void testSynchronousJournal() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree( 1, 0L );
+        JournalWriter journalWriter = btree.getJournalWriter();
+        long expectedSize = 0L;
+
+        for ( long i = 0; i < 10; i++ )
+        {
+            btree.insert( i, "V" + i );
+            expectedSize += getAdditionSize( "V" + i );
+
+            // The modification is already on disk
+            assertEquals( i + 1, journalWriter.getDurableSequence() );
+            assertEquals( expectedSize, btree.getJournal().length() );
+        }
+
+        btree.delete( 5L );
+
+        assertEquals( 11, journalWriter.getNbSyncs() );
+        assertEquals( expectedSize + 1 + 8, btree.getJournal().length() );
+        assertTrue( btree.getDurabilityFuture().isDone() );
+
+        btree.close();
+    }
+
+
+    /**
+     * Check that the modifications are forced on disk in groups
+     */
+    @Test
+    public void testGroupedJournal() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree( 100, 1000L );
+        JournalWriter journalWriter = btree.getJournalWriter();
+        long expectedSize = 0L;
+
+        for ( long i = 0; i < 250; i++ )
+        {
+            btree.insert( i, "V" + i );
+            expectedSize += getAdditionSize( "V" + i );
+        }
+
+        Future<Long> future = btree.getDurabilityFuture();
+
+        // Two groups are full, the last one is waiting for the delay
+        assertEquals( Long.valueOf( 250L ), future.get( 30, TimeUnit.SECONDS ) );
+        assertTrue( future.isDone() );
+        assertTrue( journalWriter.getNbSyncs() <= 3 );
+        assertEquals( expectedSize, btree.getJournal().length() );
+
+        btree.close();
+    }
+
+
+    /**
+     * Check that an incomplete group is forced on disk once the delay has expired
+     */
+    @Test
+    public void testJournalMaxDelay() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree( 1000, 20L );
+
+        btree.insert( 1L, "V1" );
+
+        Future<Long> future = btree.getDurabilityFuture();
+
+        assertEquals( Long.valueOf( 1L ), future.get( 30, TimeUnit.SECONDS ) );
+        assertEquals( getAdditionSize( "V1" ), btree.getJournal().length() );
+        assertEquals( 1, btree.getJournalWriter().getNbSyncs() );
+
+        btree.close();
+    }
+
+
+    /**
+     * Check that the pending modifications are durable once the B-tree has been flushed
+     */
+    @Test
+    public void testFlushTruncatesJournal() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree( 1000, 10000L );
+
+        for ( long i = 0; i < 10; i++ )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        Future<Long> future = btree.getDurabilityFuture();
+
+        btree.flush();
+
+        assertTrue( future.isDone() );
+        assertEquals( 0L, btree.getJournal().length() );
+
+        btree.insert( 10L, "V10" );
+        btree.close();
+
+        // All the modifications have been flushed
+        btree = new InMemoryBTree<Long, String>( createConfiguration( btree ) );
+
+        assertEquals( 11, btree.getNbElems() );
+        assertEquals( "V10", btree.get( 10L ) );
+
+        btree.close();
+    }
+
+
+    /**
+     * Check that the modifications found in the journal when the B-tree is opened are
+     * applied, as if the B-tree had not been closed properly
+     */
+    @Test
+    public void testReplayJournal() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree( 1, 0L );
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        btree.flush();
+        byte[] data = readFile( btree.getFile() );
+
+        // Modify the B-tree, many times for some keys
+        for ( long i = 0; i < 200; i += 2 )
+        {
+            btree.insert( i, "W" + i );
+        }
+
+        for ( long i = 0; i < 50; i += 3 )
+        {
+            btree.delete( i );
+        }
+
+        btree.insert( 3L, "X3" );
+        btree.delete( 150L );
+
+        byte[] journal = readFile( btree.getJournal() );
+
+        // Get back the files as they were before the B-tree has been closed
+        btree.close();
+        writeFile( btree.getFile(), data );
+        writeFile( btree.getJournal(), journal );
+
+        InMemoryBTree<Long, String> replayed = new InMemoryBTree<Long, String>( createConfiguration( btree ) );
+
+        checkReplayedBTree( replayed );
+        assertEquals( 0L, replayed.getJournal().length() );
+        replayed.close();
+
+        // The replayed modifications have been stored in the file
+        replayed = new InMemoryBTree<Long, String>( createConfiguration( btree ) );
+
+        checkReplayedBTree( replayed );
+        replayed.close();
+    }
+
+
+    /**
+     * Check that an incomplete modification at the end of the journal is ignored
+     */
+    @Test
+    public void testReplayIncompleteJournal() throws Exception
+    {
+        InMemoryBTree<Long, String> btree = createBTree( 1, 0L );
+
+        btree.insert( 1L, "V1" );
+        btree.insert( 2L, "V2" );
+
+        byte[] journal = readFile( btree.getJournal() );
+        btree.close();
+
+        // Only keep the type and a part of the key of the second addition
+        byte[] incompleteJournal = new byte[( int ) getAdditionSize( "V1" ) + 5];
+        System.arraycopy( journal, 0, incompleteJournal, 0, incompleteJournal.length );
+        btree.getFile().delete();
+        writeFile( btree.getJournal(), incompleteJournal );
+
+        btree = new InMemoryBTree<Long, String>( createConfiguration( btree ) );
+
+        assertEquals( 1, btree.getNbElems() );
+        assertEquals( "V1", btree.get( 1L ) );
+        assertFalse( btree.hasKey( 2L ) );
+
+        btree.close();
+    }
+
+
+    /**
+     * Check that the values of the keys are replayed when the B-tree allows duplicate values
+     */
+    @Test
+    public void testReplayJournalWithDuplicates() throws Exception
+    {
+        File dir = tempFolder.newFolder();
+
+        InMemoryBTreeConfiguration<Long, String> config = new InMemoryBTreeConfiguration<Long, String>();
+        config.setSerializers( LongSerializer.INSTANCE, StringSerializer.INSTANCE );
+        config.setFilePath( dir.getAbsolutePath() );
+        config.setName( "duplicates" );
+        config.setAllowDuplicates( true );
+
+        InMemoryBTree<Long, String> btree = new InMemoryBTree<Long, String>( config );
+
+        btree.insert( 1L, "a" );
+        btree.insert( 2L, "a" );
+        btree.flush();
+        byte[] data = readFile( btree.getFile() );
+
+        btree.insert( 1L, "b" );
+        btree.insert( 1L, "c" );
+        btree.insert( 1L, "b" );
+        btree.delete( 2L );
+        btree.insert( 2L, "d" );
+        btree.insert( 3L, "e" );
+
+        byte[] journal = readFile( btree.getJournal() );
+        btree.close();
+        writeFile( btree.getFile(), data );
+        writeFile( btree.getJournal(), journal );
+
+        btree = new InMemoryBTree<Long, String>( config );
+
+        assertEquals( 5, btree.getNbElems() );
+        assertTrue( btree.contains( 1L, "a" ) );
+        assertTrue( btree.contains( 1L, "b" ) );
+        assertTrue( btree.contains( 1L, "c" ) );
+        assertFalse( btree.contains( 2L, "a" ) );
+        assertTrue( btree.contains( 2L, "d" ) );
+        assertTrue( btree.contains( 3L, "e" ) );
+
+        btree.close();
+    }
+
+
+    private void checkReplayedBTree( InMemoryBTree<Long, String> btree ) throws Exception
+    {
+        long nbElems = 0L;
+
+        for ( long i = 0; i < 200; i++ )
+        {
+            String expected;
+
+            if ( i == 3L )
+            {
+                expected = "X3";
+            }
+            else if ( ( ( i < 50 ) && ( i % 3 == 0 ) ) || ( i == 150L ) || ( ( i >= 100 ) && ( i % 2 != 0 ) ) )
+            {
+                expected = null;
+            }
+            else if ( i % 2 == 0 )
+            {
+                expected = "W" + i;
+            }
+            else
+            {
+                expected = "V" + i;
+            }
+
+            if ( expected == null )
+            {
+                assertFalse( btree.hasKey( i ) );
+            }
+            else
+            {
+                assertEquals( expected, btree.get( i ) );
+                nbElems++;
+            }
+        }
+
+        assertEquals( nbElems, btree.getNbElems() );
+    }
+
+
+    private byte[] readFile( File file ) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+        try
+        {
+            byte[] bytes = new byte[( int ) raf.length()];
+            raf.readFully( bytes );
+
+            return bytes;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    private void writeFile( File file, byte[] bytes ) throws IOException
+    {
+        FileOutputStream stream = new FileOutputStream( file );
+
+        try
+        {
+            stream.write( bytes );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+
+    private InMemoryBTreeConfiguration<Long, String> createConfiguration( InMemoryBTree<Long, String> btree )
+    {
+        InMemoryBTreeConfiguration<Long, String> config = new InMemoryBTreeConfiguration<Long, String>();
+        config.setSerializers( LongSerializer.INSTANCE, StringSerializer.INSTANCE );
+        config.setFilePath( btree.getFile().getParent() );
+        config.setName( btree.getName() );
+
+        return config;
+    }
+}
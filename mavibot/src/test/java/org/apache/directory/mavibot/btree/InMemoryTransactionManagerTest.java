@@ -0,0 +1,201 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Test the InMemoryTransactionManager
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class InMemoryTransactionManagerTest
+{
+    private InMemoryBTree<Long, String> btree;
+
+    private InMemoryTransactionManager transactionManager;
+
+
+    @Before
+    public void createBTree()
+    {
+        btree = ( InMemoryBTree<Long, String> ) BTreeFactory.createInMemoryBTree( "test", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+        transactionManager = ( InMemoryTransactionManager ) btree.transactionManager;
+    }
+
+
+    @After
+    public void closeBTree() throws Exception
+    {
+        btree.close();
+    }
+
+
+    /**
+     * Check if a key is present, from another thread
+     */
+    private boolean hasKeyInOtherThread( final long key ) throws Exception
+    {
+        FutureTask<Boolean> reader = new FutureTask<Boolean>( new Callable<Boolean>()
+        {
+            public Boolean call() throws Exception
+            {
+                return btree.hasKey( key );
+            }
+        } );
+
+        new Thread( reader ).start();
+
+        // The reader must not wait for the writer
+        return reader.get( 10, TimeUnit.SECONDS );
+    }
+
+
+    /**
+     * Check that the readers don't wait for the pending transaction, and only see its
+     * modifications once it's committed
+     */
+    @Test
+    public void testReadersDontWaitForTheWriter() throws Exception
+    {
+        transactionManager.beginTransaction();
+
+        btree.insert( 1L, "V1" );
+        btree.insert( 2L, "V2" );
+
+        // The writer sees its modifications, the readers don't
+        assertEquals( "V2", btree.get( 2L ) );
+        assertEquals( 2, btree.getNbElems() );
+        assertFalse( hasKeyInOtherThread( 1L ) );
+        assertEquals( 0, transactionManager.getBTreeHeader( "test" ).getNbElems() );
+
+        transactionManager.commit();
+
+        assertTrue( hasKeyInOtherThread( 1L ) );
+        assertTrue( hasKeyInOtherThread( 2L ) );
+        assertEquals( 2, transactionManager.getBTreeHeader( "test" ).getNbElems() );
+    }
+
+
+    /**
+     * Check that the modifications of a rollbacked transaction are never visible
+     */
+    @Test
+    public void testRollback() throws Exception
+    {
+        btree.insert( 1L, "V1" );
+
+        transactionManager.beginTransaction();
+        btree.insert( 2L, "V2" );
+        transactionManager.beginTransaction();
+        btree.insert( 3L, "V3" );
+        transactionManager.rollback();
+        transactionManager.commit();
+
+        assertTrue( btree.hasKey( 1L ) );
+        assertFalse( btree.hasKey( 2L ) );
+        assertFalse( btree.hasKey( 3L ) );
+        assertEquals( 1, btree.getNbElems() );
+
+        // The next transaction starts from the last committed revision
+        btree.insert( 4L, "V4" );
+
+        assertEquals( 2, btree.getNbElems() );
+        assertTrue( hasKeyInOtherThread( 4L ) );
+        assertFalse( hasKeyInOtherThread( 2L ) );
+    }
+
+
+    /**
+     * Check that the readers always see a consistent revision while a writer modifies the B-tree
+     */
+    @Test
+    public void testConcurrentReaders() throws Exception
+    {
+        final int nbKeys = 5000;
+        final AtomicBoolean done = new AtomicBoolean( false );
+        final AtomicBoolean failed = new AtomicBoolean( false );
+        Thread[] readers = new Thread[4];
+
+        for ( int i = 0; i < readers.length; i++ )
+        {
+            readers[i] = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        long previous = 0L;
+
+                        while ( !done.get() )
+                        {
+                            long nbElems = transactionManager.getBTreeHeader( "test" ).getNbElems();
+
+                            // The keys are inserted in order, so the last one is present
+                            if ( ( nbElems < previous ) || ( ( nbElems > 0 ) && !btree.hasKey( nbElems - 1 ) ) )
+                            {
+                                failed.set( true );
+                            }
+
+                            previous = nbElems;
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        failed.set( true );
+                    }
+                }
+            } );
+
+            readers[i].start();
+        }
+
+        for ( long i = 0; i < nbKeys; i++ )
+        {
+            btree.insert( i, "V" + i );
+        }
+
+        done.set( true );
+
+        for ( Thread reader : readers )
+        {
+            reader.join();
+        }
+
+        assertFalse( failed.get() );
+        assertEquals( nbKeys, btree.getNbElems() );
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the JournalWriter
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JournalWriterTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+
+    /**
+     * A FileChannel whose first force blocks until it's released
+     */
+    private static class BlockingChannel extends FileChannel
+    {
+        private FileChannel channel;
+
+        private AtomicBoolean blocked = new AtomicBoolean( false );
+
+        private CountDownLatch forceStarted = new CountDownLatch( 1 );
+
+        private CountDownLatch forceReleased = new CountDownLatch( 1 );
+
+
+        private BlockingChannel( FileChannel channel )
+        {
+            this.channel = channel;
+        }
+
+
+        public void force( boolean metaData ) throws IOException
+        {
+            if ( blocked.compareAndSet( false, true ) )
+            {
+                forceStarted.countDown();
+
+                try
+                {
+                    forceReleased.await();
+                }
+                catch ( InterruptedException ie )
+                {
+                    throw new IOException( ie );
+                }
+            }
+
+            channel.force( metaData );
+        }
+
+
+        public int read( ByteBuffer dst ) throws IOException
+        {
+            return channel.read( dst );
+        }
+
+
+        public long read( ByteBuffer[] dsts, int offset, int length ) throws IOException
+        {
+            return channel.read( dsts, offset, length );
+        }
+
+
+        public int write( ByteBuffer src ) throws IOException
+        {
+            return channel.write( src );
+        }
+
+
+        public long write( ByteBuffer[] srcs, int offset, int length ) throws IOException
+        {
+            return channel.write( srcs, offset, length );
+        }
+
+
+        public long position() throws IOException
+        {
+            return channel.position();
+        }
+
+
+        public FileChannel position( long newPosition ) throws IOException
+        {
+            channel.position( newPosition );
+
+            return this;
+        }
+
+
+        public long size() throws IOException
+        {
+            return channel.size();
+        }
+
+
+        public FileChannel truncate( long size ) throws IOException
+        {
+            channel.truncate( size );
+
+            return this;
+        }
+
+
+        public long transferTo( long position, long count, WritableByteChannel target ) throws IOException
+        {
+            return channel.transferTo( position, count, target );
+        }
+
+
+        public long transferFrom( ReadableByteChannel src, long position, long count ) throws IOException
+        {
+            return channel.transferFrom( src, position, count );
+        }
+
+
+        public int read( ByteBuffer dst, long position ) throws IOException
+        {
+            return channel.read( dst, position );
+        }
+
+
+        public int write( ByteBuffer src, long position ) throws IOException
+        {
+            return channel.write( src, position );
+        }
+
+
+        public MappedByteBuffer map( MapMode mode, long position, long size ) throws IOException
+        {
+            return channel.map( mode, position, size );
+        }
+
+
+        public FileLock lock( long position, long size, boolean shared ) throws IOException
+        {
+            return channel.lock( position, size, shared );
+        }
+
+
+        public FileLock tryLock( long position, long size, boolean shared ) throws IOException
+        {
+            return channel.tryLock( position, size, shared );
+        }
+
+
+        protected void implCloseChannel() throws IOException
+        {
+            channel.close();
+        }
+    }
+
+
+    private FileChannel openChannel( String name ) throws IOException
+    {
+        return new RandomAccessFile( new File( tempFolder.getRoot(), name ), "rw" ).getChannel();
+    }
+
+
+    /**
+     * Check that the journal can be rotated, and the previous segment closed, while the
+     * flusher is forcing it
+     */
+    @Test
+    public void testRotateWhileForcing() throws Exception
+    {
+        final BlockingChannel segment = new BlockingChannel( openChannel( "journal.1" ) );
+        final FileChannel newChannel = openChannel( "journal.2" );
+        final JournalWriter journalWriter = new JournalWriter( segment, 1024, 2, 1000L );
+
+        // Fill a group : the flusher starts forcing the segment
+        journalWriter.append( Modification.ADDITION, new byte[]
+            { 1 }, new byte[]
+            { 2 } );
+        journalWriter.append( Modification.ADDITION, new byte[]
+            { 3 }, new byte[]
+            { 4 } );
+
+        assertTrue( segment.forceStarted.await( 10, TimeUnit.SECONDS ) );
+
+        final CountDownLatch rotated = new CountDownLatch( 1 );
+
+        Thread rotator = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    journalWriter.rotate( newChannel ).close();
+                }
+                catch ( IOException ioe )
+                {
+                    // The test will fail below
+                }
+                finally
+                {
+                    rotated.countDown();
+                }
+            }
+        } );
+
+        rotator.start();
+
+        // The rotation waits for the flusher
+        assertFalse( rotated.await( 200, TimeUnit.MILLISECONDS ) );
+
+        segment.forceReleased.countDown();
+        assertTrue( rotated.await( 10, TimeUnit.SECONDS ) );
+        assertEquals( 2L, journalWriter.getDurableSequence() );
+
+        // The writer is still usable, and writes into the new segment
+        long sequence = journalWriter.append( Modification.DELETION, new byte[]
+            { 5 }, null );
+        journalWriter.getFuture( sequence ).get( 10, TimeUnit.SECONDS );
+        journalWriter.close();
+
+        assertEquals( 2L, newChannel.size() );
+        newChannel.close();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.directory.mavibot.btree.comparator.IntComparator;
+import org.junit.Test;
+
+
+/**
+ * Test the LoserTree class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LoserTreeTest
+{
+    /**
+     * Merge the given number of random sorted lists, and check the result is sorted
+     */
+    private void checkMerge( int nbSources ) throws Exception
+    {
+        Random random = new Random( nbSources );
+        Iterator<Integer>[] sources = new Iterator[nbSources];
+        List<Integer> expected = new ArrayList<Integer>();
+
+        for ( int i = 0; i < nbSources; i++ )
+        {
+            List<Integer> source = new ArrayList<Integer>();
+            int size = random.nextInt( 50 );
+
+            for ( int j = 0; j < size; j++ )
+            {
+                source.add( random.nextInt( 100 ) );
+            }
+
+            Collections.sort( source );
+            expected.addAll( source );
+            sources[i] = source.iterator();
+        }
+
+        Collections.sort( expected );
+
+        LoserTree<Integer> loserTree = new LoserTree<Integer>( sources, IntComparator.INSTANCE );
+        List<Integer> merged = new ArrayList<Integer>();
+
+        while ( !loserTree.isEmpty() )
+        {
+            merged.add( loserTree.next() );
+        }
+
+        assertEquals( expected, merged );
+    }
+
+
+    @Test
+    public void testMerge() throws Exception
+    {
+        for ( int nbSources = 0; nbSources < 20; nbSources++ )
+        {
+            checkMerge( nbSources );
+        }
+    }
+
+
+    /**
+     * Check that the first source wins when the elements are equal
+     */
+    @Test
+    public void testEqualElements() throws Exception
+    {
+        Iterator<int[]>[] sources = new Iterator[3];
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            List<int[]> source = new ArrayList<int[]>();
+            source.add( new int[]
+                { 1, i } );
+            sources[i] = source.iterator();
+        }
+
+        LoserTree<int[]> loserTree = new LoserTree<int[]>( sources, new Comparator<int[]>()
+        {
+            @Override
+            public int compare( int[] o1, int[] o2 )
+            {
+                return Integer.compare( o1[0], o2[0] );
+            }
+        } );
+
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertEquals( i, loserTree.peek()[1] );
+            assertEquals( i, loserTree.next()[1] );
+        }
+
+        assertTrue( loserTree.isEmpty() );
+    }
+}
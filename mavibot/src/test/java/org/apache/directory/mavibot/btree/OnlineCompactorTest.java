@@ -0,0 +1,277 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the OnlineCompactor
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class OnlineCompactorTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final int NB_ELEMS = 5000;
+
+
+    /**
+     * Fill a B-tree, then remove most of its elements : the file is full of free pages. Check that
+     * the compaction shrinks it, and that the remaining elements can still be read after a reload.
+     */
+    @Test
+    public void testCompactFragmentedFile() throws Exception
+    {
+        File dataDir = tempFolder.newFolder( "compact" );
+        File file = new File( dataDir, "mavibot.db" );
+        RecordManager recordManager = new RecordManager( dataDir.getAbsolutePath() );
+
+        try
+        {
+            BTree<Long, String> btree = recordManager.addBTree( "test", LongSerializer.INSTANCE,
+                StringSerializer.INSTANCE, false );
+
+            for ( long i = 0; i < NB_ELEMS; i++ )
+            {
+                btree.insert( i, "value " + i );
+            }
+
+            // Keep one element out of ten
+            for ( long i = 0; i < NB_ELEMS; i++ )
+            {
+                if ( ( i % 10 ) != 0 )
+                {
+                    btree.delete( i );
+                }
+            }
+
+            long sizeBefore = file.length();
+            final AtomicInteger nbProgress = new AtomicInteger();
+
+            OnlineCompactor compactor = new OnlineCompactor( recordManager );
+            compactor.setBatchSize( 10 );
+            compactor.setListener( new CompactionListener()
+            {
+                public void progress( OnlineCompactor compactor )
+                {
+                    nbProgress.incrementAndGet();
+                }
+            } );
+
+            long nbRemovedPages = compactor.compact();
+
+            assertTrue( nbRemovedPages > 0 );
+            assertTrue( compactor.getNbRelocatedLeaves() > 0 );
+            assertTrue( nbProgress.get() > 0 );
+            // The relocations may have appended some pages, which have been removed too
+            assertTrue( file.length() < sizeBefore );
+            assertTrue( file.length() >= sizeBefore - nbRemovedPages * recordManager.getPageSize() );
+            assertEquals( file.length(), compactor.getFileSize() );
+
+            // The B-tree is still usable
+            for ( long i = 0; i < NB_ELEMS; i += 10 )
+            {
+                assertEquals( "value " + i, btree.get( i ) );
+            }
+
+            btree.insert( ( long ) NB_ELEMS, "new" );
+        }
+        finally
+        {
+            recordManager.close();
+        }
+
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+
+        try
+        {
+            BTree<Long, String> btree = recordManager.getManagedTree( "test" );
+
+            assertEquals( NB_ELEMS / 10 + 1, btree.getNbElems() );
+
+            for ( long i = 0; i < NB_ELEMS; i += 10 )
+            {
+                assertEquals( "value " + i, btree.get( i ) );
+            }
+
+            assertEquals( "new", btree.get( ( long ) NB_ELEMS ) );
+        }
+        finally
+        {
+            recordManager.close();
+        }
+    }
+
+
+    /**
+     * Check that a writer can modify the B-tree while it's being compacted
+     */
+    @Test
+    public void testCompactWithConcurrentWriter() throws Exception
+    {
+        File dataDir = tempFolder.newFolder( "concurrent" );
+        RecordManager recordManager = new RecordManager( dataDir.getAbsolutePath() );
+
+        try
+        {
+            final BTree<Long, String> btree = recordManager.addBTree( "test", LongSerializer.INSTANCE,
+                StringSerializer.INSTANCE, false );
+
+            for ( long i = 0; i < NB_ELEMS; i++ )
+            {
+                btree.insert( i, "value " + i );
+            }
+
+            for ( long i = 0; i < NB_ELEMS; i++ )
+            {
+                if ( ( i % 10 ) != 0 )
+                {
+                    btree.delete( i );
+                }
+            }
+
+            final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+            Thread writer = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for ( long i = 0; i < NB_ELEMS; i += 10 )
+                        {
+                            btree.insert( i, "modified " + i );
+                            btree.insert( NB_ELEMS + i, "added " + i );
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        error.set( e );
+                    }
+                }
+            };
+
+            OnlineCompactor compactor = new OnlineCompactor( recordManager );
+            compactor.setBatchSize( 4 );
+            compactor.setPause( 1L );
+
+            writer.start();
+            compactor.compact();
+            writer.join();
+
+            assertNull( error.get() );
+            assertEquals( NB_ELEMS / 5, btree.getNbElems() );
+
+            for ( long i = 0; i < NB_ELEMS; i += 10 )
+            {
+                assertEquals( "modified " + i, btree.get( i ) );
+                assertEquals( "added " + i, btree.get( NB_ELEMS + i ) );
+            }
+        }
+        finally
+        {
+            recordManager.close();
+        }
+    }
+
+
+    /**
+     * Check that the file is not truncated while it's memory mapped
+     */
+    @Test
+    public void testNoTruncationWhenMemoryMapped() throws Exception
+    {
+        File dataDir = tempFolder.newFolder( "mapped" );
+        File file = new File( dataDir, "mavibot.db" );
+        RecordManager recordManager = new RecordManager( dataDir.getAbsolutePath() );
+
+        try
+        {
+            recordManager.setMemoryMapped( true );
+
+            BTree<Long, String> btree = recordManager.addBTree( "test", LongSerializer.INSTANCE,
+                StringSerializer.INSTANCE, false );
+
+            for ( long i = 0; i < NB_ELEMS; i++ )
+            {
+                btree.insert( i, "value " + i );
+            }
+
+            for ( long i = 0; i < NB_ELEMS; i++ )
+            {
+                if ( ( i % 10 ) != 0 )
+                {
+                    btree.delete( i );
+                }
+            }
+
+            long sizeBefore = file.length();
+            int nbFreePages = recordManager.getNbFreePages();
+
+            assertEquals( 0L, new OnlineCompactor( recordManager ).compact() );
+
+            recordManager.beginTransaction();
+
+            try
+            {
+                assertEquals( 0L, recordManager.compactFreePages() );
+            }
+            finally
+            {
+                recordManager.commit();
+            }
+
+            // The free pages are kept, and can still be reused
+            assertEquals( sizeBefore, file.length() );
+            assertEquals( nbFreePages, recordManager.getNbFreePages() );
+
+            for ( long i = 0; i < NB_ELEMS; i += 10 )
+            {
+                assertEquals( "value " + i, btree.get( i ) );
+            }
+
+            // Once the mapping is disabled, the file can be compacted
+            recordManager.setMemoryMapped( false );
+
+            assertTrue( new OnlineCompactor( recordManager ).compact() > 0 );
+            assertTrue( file.length() < sizeBefore );
+        }
+        finally
+        {
+            recordManager.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the PageBufferPool
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PageBufferPoolTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+
+    @Test
+    public void testBoundedPool()
+    {
+        PageBufferPool pool = new PageBufferPool( 512, 2 );
+
+        ByteBuffer b1 = pool.acquire();
+        ByteBuffer b2 = pool.acquire();
+        ByteBuffer b3 = pool.acquire();
+
+        assertEquals( 512, b1.capacity() );
+        assertEquals( 3L, pool.getMisses() );
+
+        pool.release( b1 );
+        pool.release( b2 );
+        pool.release( b3 );
+
+        // The pool is full, the last buffer is dropped
+        assertEquals( 2, pool.getOccupancy() );
+        assertEquals( 2L, pool.getRecycled() );
+        assertEquals( 1L, pool.getDropped() );
+
+        // Buffers of another size or read only ones are ignored
+        pool.acquire();
+        pool.release( ByteBuffer.allocateDirect( 1024 ) );
+        pool.release( ByteBuffer.allocateDirect( 512 ).asReadOnlyBuffer() );
+        assertEquals( 1, pool.getOccupancy() );
+
+        b1.putLong( 0, 123L );
+        b1.position( 10 );
+        pool.release( b1 );
+        pool.acquire();
+        ByteBuffer zeroed = pool.acquireZeroed();
+
+        assertSame( b1, zeroed );
+        assertEquals( 0, zeroed.position() );
+        assertEquals( 0L, zeroed.getLong( 0 ) );
+        assertEquals( 3L, pool.getHits() );
+    }
+
+
+    @Test
+    public void testRecordManagerPool() throws Exception
+    {
+        File dataDir = tempFolder.newFolder( "pool" );
+        RecordManager recordManager = new RecordManager( dataDir.getAbsolutePath() );
+
+        try
+        {
+            // A tiny cache, so that the pages are read from the disk
+            recordManager.setPageCacheSize( 1024L );
+
+            BTree<Long, String> btree = recordManager.addBTree( "test", LongSerializer.INSTANCE,
+                StringSerializer.INSTANCE, false );
+
+            for ( long i = 0; i < 500; i++ )
+            {
+                btree.insert( i, Long.toString( i ) );
+            }
+
+            for ( long i = 0; i < 500; i++ )
+            {
+                assertEquals( Long.toString( i ), btree.get( i ) );
+            }
+
+            PageBufferPool pool = recordManager.getPageBufferPool();
+
+            assertTrue( pool.getRecycled() > 0L );
+            assertTrue( pool.getHits() > pool.getMisses() );
+            assertTrue( pool.getOccupancy() <= pool.getMaxBuffers() );
+        }
+        finally
+        {
+            recordManager.close();
+        }
+    }
+}
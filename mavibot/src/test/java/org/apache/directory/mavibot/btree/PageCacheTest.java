@@ -0,0 +1,198 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the page cache shared by the B-trees of a RecordManager
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PageCacheTest
+{
+    private RecordManager recordManager = null;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dataDir = null;
+
+
+    @Before
+    public void createRecordManager() throws Exception
+    {
+        dataDir = tempFolder.newFolder( "pagecache" );
+
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+    }
+
+
+    @After
+    public void cleanup() throws IOException
+    {
+        recordManager.close();
+    }
+
+
+    /**
+     * Check that the cache is shared, bounded, and that the counters are kept per B-tree
+     */
+    @Test
+    public void testSharedBoundedCache() throws Exception
+    {
+        long cacheSize = 32L * 1024L;
+        recordManager.setPageCacheSize( cacheSize );
+
+        BTree<Long, String> btree1 = recordManager.addBTree( "test1", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE, false );
+        BTree<Long, String> btree2 = recordManager.addBTree( "test2", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE, false );
+
+        for ( long i = 0; i < 2000; i++ )
+        {
+            btree1.insert( i, Long.toString( i ) );
+        }
+
+        for ( long i = 0; i < 10; i++ )
+        {
+            btree2.insert( i, Long.toString( i ) );
+        }
+
+        PageCache pageCache = recordManager.getPageCache();
+
+        assertTrue( pageCache.getWeight() <= cacheSize );
+
+        PageCache.Statistics stats1 = ( ( PersistedBTree<Long, String> ) btree1 ).getCacheStatistics();
+        PageCache.Statistics stats2 = ( ( PersistedBTree<Long, String> ) btree2 ).getCacheStatistics();
+
+        // The first B-tree is big enough to have evicted some pages
+        assertTrue( stats1.getEvictions() > 0 );
+
+        // Read everything back, the evicted pages are reloaded from disk
+        long misses = stats1.getMisses();
+
+        for ( long i = 0; i < 2000; i++ )
+        {
+            assertEquals( Long.toString( i ), btree1.get( i ) );
+        }
+
+        assertTrue( stats1.getMisses() > misses );
+        assertTrue( pageCache.getWeight() <= cacheSize );
+
+        // The second B-tree is a single leaf, which is kept in the B-tree header
+        long hits2 = stats2.getHits();
+        long misses2 = stats2.getMisses();
+
+        for ( long i = 0; i < 10; i++ )
+        {
+            assertEquals( Long.toString( i ), btree2.get( i ) );
+        }
+
+        assertEquals( hits2, stats2.getHits() );
+        assertEquals( misses2, stats2.getMisses() );
+    }
+
+
+    /**
+     * Check that the values stored in the leaves are counted in the cache weight : a few
+     * leaves containing big values are enough to fill the cache
+     */
+    @Test
+    public void testLargeValuesEviction() throws Exception
+    {
+        BTree<Long, String> btree = recordManager.addBTree( "test", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE, false );
+
+        char[] chars = new char[8192];
+        Arrays.fill( chars, 'v' );
+        String value = new String( chars );
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            btree.insert( i, value + i );
+        }
+
+        // Reload the B-tree, so that only its last revision is read into the cache
+        recordManager.close();
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+
+        long cacheSize = 256L * 1024L;
+        recordManager.setPageCacheSize( cacheSize );
+        btree = recordManager.getManagedTree( "test" );
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            assertEquals( value + i, btree.get( i ) );
+        }
+
+        // The leaves are less than 256KB without their values, but the values don't fit
+        PageCache.Statistics stats = ( ( PersistedBTree<Long, String> ) btree ).getCacheStatistics();
+
+        assertTrue( stats.getEvictions() > 0 );
+        assertTrue( recordManager.getPageCache().getWeight() <= cacheSize );
+    }
+
+
+    /**
+     * Check that a reduced cache size evicts the pages immediately
+     */
+    @Test
+    public void testResizeCache() throws Exception
+    {
+        BTree<Long, String> btree = recordManager.addBTree( "test", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE, false );
+
+        for ( long i = 0; i < 1000; i++ )
+        {
+            btree.insert( i, Long.toString( i ) );
+        }
+
+        PageCache pageCache = recordManager.getPageCache();
+        assertTrue( pageCache.size() > 0 );
+
+        recordManager.setPageCacheSize( 4096L );
+        assertTrue( pageCache.getWeight() <= 4096L );
+
+        for ( long i = 0; i < 1000; i++ )
+        {
+            assertEquals( Long.toString( i ), btree.get( i ) );
+        }
+
+        // Closing the B-tree removes its pages from the cache
+        btree.close();
+        assertEquals( 0L, pageCache.getWeight() );
+    }
+}
@@ -21,6 +21,7 @@ package org.apache.directory.mavibot.btree;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
@@ -159,6 +160,101 @@ public class PageReclaimerTest
         assertEquals( count, total );
     }
 
+
+    /**
+     * The pages of the revision read by an opened cursor must not be reclaimed,
+     * while the pages of the other B-trees are
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testReclaimerKeepsReadRevision() throws Exception
+    {
+        BTree<Integer, String> otherTree = rm.addBTree( "other-tree", IntSerializer.INSTANCE,
+            StringSerializer.INSTANCE, false );
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            uidTree.insert( i, String.valueOf( i ) );
+        }
+
+        TupleCursor<Integer, String> cursor = uidTree.browse();
+
+        long freedPages = rm.nbFreedPages.get();
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            uidTree.insert( i, "new" + i );
+            otherTree.insert( i, String.valueOf( i ) );
+        }
+
+        assertTrue( rm.nbFreedPages.get() > freedPages );
+
+        int count = 0;
+
+        while ( cursor.hasNext() )
+        {
+            Tuple<Integer, String> t = cursor.next();
+            assertEquals( String.valueOf( count ), t.value );
+            count++;
+        }
+
+        cursor.close();
+
+        assertEquals( 100, count );
+    }
+
+
+    /**
+     * The copied pages are reclaimed by the background thread, in slices, and
+     * not by the committing threads
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testBackgroundReclaimer() throws Exception
+    {
+        rm.setPageReclaimerThreshold( 100000 );
+        rm.setBackgroundReclaimer( BackgroundReclaimer.DEFAULT_TIME_BUDGET, 10L );
+
+        int total = 500;
+
+        for ( int i = 0; i < total; i++ )
+        {
+            uidTree.insert( i, String.valueOf( i ) );
+        }
+
+        // Closing a reader wakes up the reclaimer
+        long freedPages = rm.nbFreedPages.get();
+        uidTree.browse().close();
+
+        BackgroundReclaimer reclaimer = rm.getBackgroundReclaimer();
+
+        for ( int i = 0; ( i < 100 ) && ( rm.nbFreedPages.get() == freedPages ); i++ )
+        {
+            Thread.sleep( 10L );
+        }
+
+        assertTrue( reclaimer.getNbSlices() > 0L );
+        assertTrue( rm.nbFreedPages.get() > freedPages );
+
+        closeAndReopenRM();
+
+        int count = 0;
+        TupleCursor<Integer, String> cursor = uidTree.browse();
+
+        while ( cursor.hasNext() )
+        {
+            Tuple<Integer, String> t = cursor.next();
+            assertEquals( t.key, Integer.valueOf( count ) );
+            count++;
+        }
+
+        cursor.close();
+
+        assertEquals( count, total );
+    }
+
     
     /**
      * Test reclaimer functionality while multiple threads writing to the same BTree
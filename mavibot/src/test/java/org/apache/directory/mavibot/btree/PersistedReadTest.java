@@ -22,6 +22,7 @@ package org.apache.directory.mavibot.btree;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.lang.reflect.Method;
@@ -29,6 +30,8 @@ import java.nio.ByteBuffer;
 
 import org.apache.directory.mavibot.btree.PageIO;
 import org.apache.directory.mavibot.btree.RecordManager;
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -357,4 +360,55 @@ public class PersistedReadTest
 
         recordManager.close();
     }
+
+
+    /**
+     * Test the readLeafKeysAndValues method, which references the page data from the
+     * keys and values instead of copying them
+     */
+    @Test
+    public void testReadLeafKeysAndValues() throws Exception
+    {
+        File tempFile = tempFolder.newFile( "mavibot.db" );
+        String tempFileName = tempFile.getAbsolutePath();
+
+        RecordManager recordManager = new RecordManager( tempFileName );
+        BTree<Long, String> btree = recordManager.addBTree( "test", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE, true );
+
+        for ( long i = 0; i < 1000; i++ )
+        {
+            btree.insert( i, "V" + i );
+            btree.insert( i, "W" + i );
+        }
+
+        recordManager.close();
+
+        // Reload the B-tree and read the leaves from disk
+        recordManager = new RecordManager( tempFileName );
+        btree = recordManager.getManagedTree( "test" );
+
+        // The key of a leaf read from disk is extracted only when needed
+        Page<Long, String> page = ( ( PersistedBTree<Long, String> ) btree ).getRootPage( btree.getRevision() );
+
+        while ( !page.isLeaf() )
+        {
+            page = ( ( AbstractPage<Long, String> ) page ).getPage( 0 );
+        }
+
+        PersistedKeyHolder<Long> keyHolder = ( PersistedKeyHolder<Long> ) ( ( AbstractPage<Long, String> ) page )
+            .getKeys()[0];
+
+        assertEquals( 8, keyHolder.getRawLength() );
+        assertEquals( Long.valueOf( 0L ), keyHolder.getKey() );
+        assertEquals( 0L, LongSerializer.deserialize( keyHolder.getRaw() ).longValue() );
+
+        for ( long i = 0; i < 1000; i++ )
+        {
+            assertEquals( "V" + i, btree.get( i ) );
+            assertTrue( btree.contains( i, "W" + i ) );
+        }
+
+        recordManager.close();
+    }
 }
@@ -0,0 +1,121 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+
+/**
+ * Test the ReadRevisionRegistry
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReadRevisionRegistryTest
+{
+    @Test
+    public void testOldestRevision()
+    {
+        ReadRevisionRegistry registry = new ReadRevisionRegistry();
+
+        assertEquals( Long.MAX_VALUE, registry.getOldestRevision() );
+
+        registry.acquire( 5L );
+        registry.acquire( 3L );
+        registry.acquire( 3L );
+        registry.acquire( 7L );
+
+        assertEquals( 3L, registry.getOldestRevision() );
+        assertEquals( 2, registry.getNbReaders( 3L ) );
+
+        registry.release( 3L );
+        assertEquals( 3L, registry.getOldestRevision() );
+
+        registry.release( 3L );
+        assertEquals( 5L, registry.getOldestRevision() );
+        assertEquals( 0, registry.getNbReaders( 3L ) );
+
+        registry.release( 5L );
+        registry.release( 7L );
+        assertTrue( registry.isEmpty() );
+    }
+
+
+    @Test
+    public void testConcurrentReaders() throws Exception
+    {
+        final ReadRevisionRegistry registry = new ReadRevisionRegistry();
+        final int nbThreads = 8;
+        final CountDownLatch latch = new CountDownLatch( nbThreads );
+
+        for ( int i = 0; i < nbThreads; i++ )
+        {
+            Thread t = new Thread()
+            {
+                public void run()
+                {
+                    for ( int j = 0; j < 100000; j++ )
+                    {
+                        long revision = j % 4;
+                        registry.acquire( revision );
+                        registry.release( revision );
+                    }
+
+                    latch.countDown();
+                }
+            };
+
+            t.start();
+        }
+
+        latch.await();
+
+        assertTrue( registry.isEmpty() );
+    }
+
+
+    @Test
+    public void testReadTransaction() throws Exception
+    {
+        ReadRevisionRegistry registry = new ReadRevisionRegistry();
+        BTreeHeader<Long, String> btreeHeader = new BTreeHeader<Long, String>();
+        btreeHeader.setRevision( 12L );
+
+        ReadTransaction<Long, String> transaction = new ReadTransaction<Long, String>( btreeHeader, registry );
+
+        assertEquals( 12L, registry.getOldestRevision() );
+
+        // Closing a transaction twice releases its revision once
+        ReadTransaction<Long, String> other = new ReadTransaction<Long, String>( btreeHeader, registry );
+        transaction.close();
+        transaction.close();
+
+        assertEquals( 1, registry.getNbReaders( 12L ) );
+
+        other.close();
+
+        assertTrue( registry.isEmpty() );
+    }
+}
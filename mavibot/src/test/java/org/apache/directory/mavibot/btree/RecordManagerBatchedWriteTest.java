@@ -0,0 +1,111 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the batched page writes done by the RecordManager
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RecordManagerBatchedWriteTest
+{
+    private BTree<Long, String> btree = null;
+
+    private RecordManager recordManager = null;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dataDir = null;
+
+
+    @Before
+    public void createBTree() throws Exception
+    {
+        dataDir = tempFolder.newFolder( "batch" );
+
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree = recordManager.addBTree( "test", LongSerializer.INSTANCE, StringSerializer.INSTANCE, false );
+    }
+
+
+    @After
+    public void cleanup() throws IOException
+    {
+        recordManager.close();
+    }
+
+
+    /**
+     * Check that the contiguous pages written by a transaction are merged
+     */
+    @Test
+    public void testBatchedWrites() throws Exception
+    {
+        // A tiny cache, so that the pages are read back from the RecordManager
+        recordManager.setPageCacheSize( 1024L );
+
+        long nbPageIOs = recordManager.nbUpdatePageIOs.get();
+        long nbWrites = recordManager.nbPageWrites.get();
+
+        for ( long i = 0; i < 500; i++ )
+        {
+            btree.insert( i, Long.toString( i ) );
+        }
+
+        for ( long i = 0; i < 500; i++ )
+        {
+            assertEquals( Long.toString( i ), btree.get( i ) );
+        }
+
+        nbPageIOs = recordManager.nbUpdatePageIOs.get() - nbPageIOs;
+        nbWrites = recordManager.nbPageWrites.get() - nbWrites;
+
+        assertTrue( nbPageIOs > 0 );
+        assertTrue( nbWrites < nbPageIOs );
+
+        recordManager.close();
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree = recordManager.getManagedTree( "test" );
+
+        assertEquals( 500, btree.getNbElems() );
+
+        for ( long i = 0; i < 500; i++ )
+        {
+            assertEquals( Long.toString( i ), btree.get( i ) );
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.apache.directory.mavibot.btree.exception.BTreeOperationException;
+import org.apache.directory.mavibot.btree.exception.InvalidChecksumException;
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the checksums added to the pages written by the RecordManager
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RecordManagerChecksumTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static final int NB_ELEMS = 1000;
+
+
+    /**
+     * Create a B-tree with checksummed pages, and return the offset of its first leaf
+     */
+    private long createBTree( File dataDir ) throws Exception
+    {
+        RecordManager recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        recordManager.setChecksumEnabled( true );
+
+        BTree<Long, String> btree = recordManager.addBTree( "test", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE, false );
+
+        for ( long i = 0; i < NB_ELEMS; i++ )
+        {
+            btree.insert( i, Long.toString( i ) );
+        }
+
+        AbstractPage<Long, String> root = ( AbstractPage<Long, String> ) btree.getRootPage();
+        long leafOffset = ( ( AbstractPage<Long, String> ) root.getPage( 0 ) ).getOffset();
+
+        recordManager.close();
+
+        return leafOffset;
+    }
+
+
+    /**
+     * Check that the pages written with a checksum can be read back, and that their
+     * checksum is checked
+     */
+    @Test
+    public void testReadChecksummedPages() throws Exception
+    {
+        File dataDir = tempFolder.newFolder( "checksum" );
+        createBTree( dataDir );
+
+        RecordManager recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        recordManager.setChecksumVerification( ChecksumVerification.ALWAYS );
+
+        try
+        {
+            BTree<Long, String> btree = recordManager.getManagedTree( "test" );
+
+            for ( long i = 0; i < NB_ELEMS; i++ )
+            {
+                assertEquals( Long.toString( i ), btree.get( i ) );
+            }
+
+            assertTrue( recordManager.nbChecksumChecks.get() > 0 );
+            assertEquals( 0L, recordManager.nbChecksumErrors.get() );
+
+            // The pages written without a checksum are still readable
+            recordManager.setChecksumEnabled( false );
+            btree.insert( ( long ) NB_ELEMS, "new" );
+            assertEquals( "new", btree.get( ( long ) NB_ELEMS ) );
+        }
+        finally
+        {
+            recordManager.close();
+        }
+    }
+
+
+    /**
+     * Check that a corrupted page is detected, and reported with its offset
+     */
+    @Test
+    public void testCorruptedPage() throws Exception
+    {
+        File dataDir = tempFolder.newFolder( "corrupted" );
+        long leafOffset = createBTree( dataDir );
+
+        // Modify a byte of the leaf revision
+        RandomAccessFile file = new RandomAccessFile( new File( dataDir, "mavibot.db" ), "rw" );
+
+        try
+        {
+            file.seek( leafOffset + 13 );
+            byte b = file.readByte();
+            file.seek( leafOffset + 13 );
+            file.writeByte( b ^ 0x01 );
+        }
+        finally
+        {
+            file.close();
+        }
+
+        RecordManager recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        recordManager.setChecksumVerification( ChecksumVerification.ALWAYS );
+
+        try
+        {
+            BTree<Long, String> btree = recordManager.getManagedTree( "test" );
+            btree.get( 0L );
+            fail();
+        }
+        catch ( BTreeOperationException boe )
+        {
+            // The page is read when the child of the root page is fetched
+            assertTrue( boe.getCause() instanceof InvalidChecksumException );
+            InvalidChecksumException ice = ( InvalidChecksumException ) boe.getCause();
+
+            assertEquals( leafOffset, ice.getOffset() );
+            assertEquals( "test", ice.getBtreeName() );
+            assertEquals( 1L, recordManager.nbChecksumErrors.get() );
+        }
+        finally
+        {
+            recordManager.close();
+        }
+    }
+}
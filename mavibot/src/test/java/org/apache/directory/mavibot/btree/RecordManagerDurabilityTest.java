@@ -0,0 +1,140 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the RecordManager durability levels
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RecordManagerDurabilityTest
+{
+    private BTree<Long, String> btree = null;
+
+    private RecordManager recordManager = null;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dataDir = null;
+
+
+    @Before
+    public void createBTree() throws Exception
+    {
+        dataDir = tempFolder.newFolder( "durability" );
+
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree = recordManager.addBTree( "test", LongSerializer.INSTANCE, StringSerializer.INSTANCE, false );
+    }
+
+
+    @After
+    public void cleanup() throws IOException
+    {
+        recordManager.close();
+    }
+
+
+    /**
+     * Insert some elements, and return the number of forces done meanwhile
+     */
+    private long insert( long from, long to ) throws IOException
+    {
+        long nbForces = recordManager.nbForces.get();
+
+        for ( long i = from; i < to; i++ )
+        {
+            btree.insert( i, Long.toString( i ) );
+        }
+
+        return recordManager.nbForces.get() - nbForces;
+    }
+
+
+    @Test
+    public void testDurabilityLevels() throws Exception
+    {
+        assertEquals( DurabilityLevel.NONE, recordManager.getDurabilityLevel() );
+        assertEquals( 0L, insert( 0L, 10L ) );
+
+        // One barrier before each of the two header writes, plus the final force
+        recordManager.setDurabilityLevel( DurabilityLevel.FLUSH_ON_COMMIT );
+        assertTrue( insert( 10L, 20L ) >= 30L );
+
+        // Only the barriers
+        recordManager.setDurabilityLevel( DurabilityLevel.FLUSH_HEADER_ONLY );
+        long nbForces = insert( 20L, 30L );
+        assertTrue( nbForces >= 20L );
+        assertTrue( nbForces < 30L );
+
+        // All the commits are flushed with a null interval
+        recordManager.setDurabilityLevel( DurabilityLevel.FLUSH_EVERY_N_MS );
+        recordManager.setFlushInterval( 0L );
+        assertTrue( insert( 30L, 31L ) >= 3L );
+
+        // None with a long one, as a commit has just been flushed
+        recordManager.setFlushInterval( 3600000L );
+        assertEquals( 0L, insert( 31L, 40L ) );
+
+        recordManager.close();
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree = recordManager.getManagedTree( "test" );
+
+        assertEquals( 40L, btree.getNbElems() );
+
+        for ( long i = 0; i < 40L; i++ )
+        {
+            assertEquals( Long.toString( i ), btree.get( i ) );
+        }
+    }
+
+
+    @Test
+    public void testTransactionDurabilityLevel() throws Exception
+    {
+        long nbForces = recordManager.nbForces.get();
+
+        recordManager.beginTransaction( DurabilityLevel.FLUSH_ON_COMMIT );
+        btree.insert( 1L, "1" );
+        recordManager.commit();
+
+        assertTrue( recordManager.nbForces.get() > nbForces );
+
+        // The next transaction uses the default level again
+        assertEquals( 0L, insert( 2L, 10L ) );
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.mavibot.btree.exception.FileException;
+import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the RecordManager group commit
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RecordManagerGroupCommitTest
+{
+    private BTree<Long, String> btree = null;
+
+    private RecordManager recordManager = null;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dataDir = null;
+
+
+    @Before
+    public void createBTree() throws Exception
+    {
+        dataDir = tempFolder.newFolder( "groupcommit" );
+
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree = recordManager.addBTree( "test", LongSerializer.INSTANCE, StringSerializer.INSTANCE, false );
+    }
+
+
+    @After
+    public void cleanup() throws IOException
+    {
+        recordManager.close();
+    }
+
+
+    /**
+     * Check that many concurrent writers are grouped, and that everything is
+     * available when the file is reloaded
+     */
+    @Test
+    public void testConcurrentGroupCommit() throws Exception
+    {
+        final int nbThreads = 8;
+        final int nbInserts = 200;
+
+        recordManager.setGroupCommit( nbThreads, 10L );
+
+        final CountDownLatch latch = new CountDownLatch( nbThreads );
+        final AtomicInteger nbErrors = new AtomicInteger( 0 );
+
+        for ( int t = 0; t < nbThreads; t++ )
+        {
+            final long base = t * nbInserts;
+
+            Thread writer = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for ( long i = 0; i < nbInserts; i++ )
+                        {
+                            btree.insert( base + i, Long.toString( base + i ) );
+                        }
+                    }
+                    catch ( IOException ioe )
+                    {
+                        nbErrors.incrementAndGet();
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                }
+            } );
+
+            writer.start();
+        }
+
+        latch.await();
+
+        assertEquals( 0, nbErrors.get() );
+
+        GroupCommitter groupCommitter = recordManager.getGroupCommitter();
+
+        // All the transactions have been flushed, in less flushes than transactions
+        assertEquals( nbThreads * nbInserts, groupCommitter.getNbGroupedTransactions() );
+        assertTrue( groupCommitter.getNbFlushes() < nbThreads * nbInserts );
+        assertTrue( groupCommitter.getMaxGroupSize() <= nbThreads );
+
+        // Reload the file and check the content
+        recordManager.close();
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree = recordManager.getManagedTree( "test" );
+
+        assertEquals( nbThreads * nbInserts, btree.getNbElems() );
+
+        for ( long i = 0; i < nbThreads * nbInserts; i++ )
+        {
+            assertEquals( Long.toString( i ), btree.get( i ) );
+        }
+    }
+
+
+    /**
+     * Check that a single writer is not blocked when the group can't be filled
+     */
+    @Test
+    public void testSingleWriterGroupCommit() throws IOException, KeyNotFoundException
+    {
+        recordManager.setGroupCommit( 16, 1L );
+
+        for ( long i = 0; i < 20; i++ )
+        {
+            btree.insert( i, Long.toString( i ) );
+        }
+
+        GroupCommitter groupCommitter = recordManager.getGroupCommitter();
+
+        assertEquals( 20, groupCommitter.getNbGroupedTransactions() );
+        assertEquals( 1, groupCommitter.getLastGroupSize() );
+
+        // Disable the group commit and check we still can write
+        recordManager.setGroupCommit( 0, 0L );
+        btree.insert( 20L, "20" );
+
+        recordManager.close();
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree = recordManager.getManagedTree( "test" );
+
+        assertEquals( 21, btree.getNbElems() );
+        assertEquals( "20", btree.get( 20L ) );
+    }
+
+
+    /**
+     * Check that the transactions of a group which could not be flushed are not
+     * considered as durable, and that the next group can still be flushed
+     */
+    @Test
+    public void testFailedGroupFlush() throws Exception
+    {
+        final AtomicInteger nbFailures = new AtomicInteger( 1 );
+
+        RecordManager failingRecordManager = new RecordManager( tempFolder.newFolder( "failing" ).getAbsolutePath() )
+        {
+            /* no qualifier */void flushCommittedGroup()
+            {
+                if ( nbFailures.getAndDecrement() > 0 )
+                {
+                    throw new FileException( "Disk full" );
+                }
+
+                super.flushCommittedGroup();
+            }
+        };
+
+        GroupCommitter groupCommitter = new GroupCommitter( failingRecordManager, 2, 1000L );
+        long ticket1 = groupCommitter.register();
+        long ticket2 = groupCommitter.register();
+
+        // The leader gets the exception
+        try
+        {
+            groupCommitter.awaitFlush( ticket1 );
+            fail();
+        }
+        catch ( FileException fe )
+        {
+            assertEquals( "Disk full", fe.getMessage() );
+        }
+
+        // So does the other transaction of the group
+        try
+        {
+            groupCommitter.awaitFlush( ticket2 );
+            fail();
+        }
+        catch ( FileException fe )
+        {
+            assertEquals( "Disk full", fe.getCause().getMessage() );
+        }
+
+        assertEquals( 0, groupCommitter.getNbFlushes() );
+
+        // The next group is flushed
+        long ticket3 = groupCommitter.register();
+        long ticket4 = groupCommitter.register();
+        groupCommitter.awaitFlush( ticket3 );
+        groupCommitter.awaitFlush( ticket4 );
+
+        assertEquals( 1, groupCommitter.getNbFlushes() );
+        assertEquals( 2, groupCommitter.getLastGroupSize() );
+
+        failingRecordManager.close();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the RecordManager memory mapped read mode
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RecordManagerMemoryMappedTest
+{
+    private BTree<Long, String> btree = null;
+
+    private RecordManager recordManager = null;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dataDir = null;
+
+
+    @Before
+    public void createBTree() throws Exception
+    {
+        dataDir = tempFolder.newFolder( "mmap" );
+
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree = recordManager.addBTree( "test", LongSerializer.INSTANCE, StringSerializer.INSTANCE, false );
+    }
+
+
+    @After
+    public void cleanup() throws IOException
+    {
+        recordManager.close();
+    }
+
+
+    /**
+     * Reload a file with the memory mapped mode, read it and modify it
+     */
+    @Test
+    public void testMemoryMappedReads() throws Exception
+    {
+        for ( long i = 0; i < 1000; i++ )
+        {
+            btree.insert( i, Long.toString( i ) );
+        }
+
+        recordManager.close();
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        recordManager.setMemoryMapped( true );
+        assertTrue( recordManager.isMemoryMapped() );
+
+        btree = recordManager.getManagedTree( "test" );
+
+        for ( long i = 0; i < 1000; i++ )
+        {
+            assertEquals( Long.toString( i ), btree.get( i ) );
+        }
+
+        // Modify the file while it's mapped : the free pages are reused, the file grows
+        for ( long i = 0; i < 500; i++ )
+        {
+            btree.delete( i );
+        }
+
+        for ( long i = 1000; i < 3000; i++ )
+        {
+            btree.insert( i, Long.toString( i ) );
+        }
+
+        for ( long i = 500; i < 3000; i++ )
+        {
+            assertEquals( Long.toString( i ), btree.get( i ) );
+        }
+
+        recordManager.close();
+        assertFalse( recordManager.isMemoryMapped() );
+
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree = recordManager.getManagedTree( "test" );
+
+        assertEquals( 2500, btree.getNbElems() );
+
+        for ( long i = 500; i < 3000; i++ )
+        {
+            assertEquals( Long.toString( i ), btree.get( i ) );
+        }
+    }
+
+
+    /**
+     * Check the segments are extended when the file grows
+     */
+    @Test
+    public void testMappedFileGrowth() throws Exception
+    {
+        File file = tempFolder.newFile( "mapped.db" );
+        RandomAccessFile randomFile = new RandomAccessFile( file, "rw" );
+        FileChannel channel = randomFile.getChannel();
+
+        try
+        {
+            // Two pages per segment
+            MappedFile mappedFile = new MappedFile( channel, 512, 1024 );
+
+            assertNull( mappedFile.getPage( 0L ) );
+
+            ByteBuffer page = ByteBuffer.allocate( 512 );
+            page.putLong( 0, 1L );
+            channel.write( page, 0L );
+
+            ByteBuffer data = mappedFile.getPage( 0L );
+            assertTrue( data.isReadOnly() );
+            assertEquals( 512, data.capacity() );
+            assertEquals( 1L, data.getLong( 0 ) );
+            assertNull( mappedFile.getPage( 512L ) );
+
+            // Grow the file over the second segment
+            for ( long i = 1; i < 4; i++ )
+            {
+                page.putLong( 0, i + 1 );
+                page.rewind();
+                channel.write( page, i * 512 );
+            }
+
+            for ( long i = 0; i < 4; i++ )
+            {
+                assertEquals( i + 1, mappedFile.getPage( i * 512 ).getLong( 0 ) );
+            }
+
+            // The first segment has been extended, the second one has been mapped once
+            assertEquals( 3L, mappedFile.getNbMappings() );
+
+            // A modification done on a PageIO does not modify the file
+            PageIO pageIo = new PageIO( 0L );
+            pageIo.setData( mappedFile.getPage( 0L ) );
+            pageIo.setNextPage( 10L );
+
+            assertEquals( 10L, pageIo.getData().getLong( 0 ) );
+            assertEquals( 1L, mappedFile.getPage( 0L ).getLong( 0 ) );
+        }
+        finally
+        {
+            channel.close();
+            randomFile.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the prefix compressed page format
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RecordManagerPrefixCompressionTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+
+    /**
+     * Create a RecordManager with a B-tree using the given page format, and fill it
+     *
+     * @return the size of the database file
+     */
+    private long createBTree( File dataDir, PageFormatEnum pageFormat, int nbKeys ) throws Exception
+    {
+        RecordManager recordManager = new RecordManager( dataDir.getAbsolutePath() );
+
+        PersistedBTreeConfiguration<String, String> configuration = new PersistedBTreeConfiguration<String, String>();
+        configuration.setName( "test" );
+        configuration.setKeySerializer( StringSerializer.INSTANCE );
+        configuration.setValueSerializer( StringSerializer.INSTANCE );
+        configuration.setAllowDuplicates( true );
+        configuration.setPageFormat( pageFormat );
+
+        BTree<String, String> btree = BTreeFactory.createPersistedBTree( configuration );
+        recordManager.manage( btree );
+
+        for ( int i = 0; i < nbKeys; i++ )
+        {
+            btree.insert( dn( i ), Integer.toString( i ) );
+        }
+
+        // Add enough values to a key to create a sub-btree
+        for ( int i = 0; i < 20; i++ )
+        {
+            btree.insert( dn( 0 ), "value" + i );
+        }
+
+        recordManager.close();
+
+        return new File( dataDir, "mavibot.db" ).length();
+    }
+
+
+    private String dn( int i )
+    {
+        return "dc=com,dc=example,ou=people,uid=user" + i;
+    }
+
+
+    /**
+     * Check the encoding of the keys
+     */
+    @Test
+    public void testCompressKeys()
+    {
+        byte[][] keys = new byte[][]
+            {
+                StringSerializer.INSTANCE.serialize( "dc=com,ou=people" ),
+                StringSerializer.INSTANCE.serialize( "dc=com,ou=people,uid=a" ),
+                StringSerializer.INSTANCE.serialize( "dc=com,ou=people,uid=b" ),
+                StringSerializer.INSTANCE.serialize( "dc=com,ou=peopl" ),
+                StringSerializer.INSTANCE.serialize( "dc=org" ),
+                new byte[0],
+                StringSerializer.INSTANCE.serialize( "dc=org" ) };
+
+        byte[] previousKey = null;
+
+        for ( byte[] key : keys )
+        {
+            byte[] encoded = KeyPrefixCompressor.compress( previousKey, key );
+
+            ByteBuffer buffer = ByteBuffer.wrap( encoded );
+            byte[] decoded = KeyPrefixCompressor.decompress( buffer, previousKey );
+
+            assertArrayEquals( key, decoded );
+            assertEquals( encoded.length, buffer.position() );
+
+            previousKey = key;
+        }
+
+        // The shared prefix, after the different lengths, is not stored
+        byte[] encoded = KeyPrefixCompressor.compress( keys[0], keys[1] );
+        assertTrue( encoded.length < 16 );
+    }
+
+
+    /**
+     * Check that a prefix compressed B-tree can be reloaded, and uses less space
+     */
+    @Test
+    public void testPrefixCompressedBTree() throws Exception
+    {
+        int nbKeys = 2000;
+        File plainDir = tempFolder.newFolder( "plain" );
+        File compressedDir = tempFolder.newFolder( "compressed" );
+
+        long plainSize = createBTree( plainDir, PageFormatEnum.PLAIN, nbKeys );
+        long compressedSize = createBTree( compressedDir, PageFormatEnum.PREFIX_COMPRESSED, nbKeys );
+
+        assertTrue( compressedSize < plainSize );
+
+        // Reload the B-tree : the page format is read from the B-tree info
+        RecordManager recordManager = new RecordManager( compressedDir.getAbsolutePath() );
+        BTree<String, String> btree = recordManager.getManagedTree( "test" );
+
+        assertEquals( PageFormatEnum.PREFIX_COMPRESSED, ( ( PersistedBTree<String, String> ) btree ).getPageFormat() );
+
+        for ( int i = 0; i < nbKeys; i++ )
+        {
+            assertTrue( btree.contains( dn( i ), Integer.toString( i ) ) );
+        }
+
+        assertEquals( 21, btree.getValues( dn( 0 ) ).size() );
+
+        // The keys are browsed in order
+        TupleCursor<String, String> cursor = btree.browse();
+        String previous = null;
+        int nbTuples = 0;
+
+        while ( cursor.hasNext() )
+        {
+            String key = cursor.next().getKey();
+
+            assertTrue( ( previous == null ) || ( previous.compareTo( key ) <= 0 ) );
+            previous = key;
+            nbTuples++;
+        }
+
+        cursor.close();
+
+        assertEquals( nbKeys + 20, nbTuples );
+
+        recordManager.close();
+    }
+}
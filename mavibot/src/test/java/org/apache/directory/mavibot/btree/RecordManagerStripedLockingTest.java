@@ -0,0 +1,246 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.mavibot.btree.exception.RecordManagerException;
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the RecordManager striped locking
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RecordManagerStripedLockingTest
+{
+    private RecordManager recordManager = null;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dataDir = null;
+
+
+    @Before
+    public void createRecordManager() throws Exception
+    {
+        dataDir = tempFolder.newFolder( "striped" );
+
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        recordManager.setStripedLocking( true );
+    }
+
+
+    @After
+    public void cleanup() throws IOException
+    {
+        recordManager.close();
+    }
+
+
+    /**
+     * Check that concurrent transactions modifying different B-trees are all committed,
+     * and that everything is available when the file is reloaded
+     */
+    @Test
+    public void testConcurrentStripedWriters() throws Exception
+    {
+        final int nbThreads = 4;
+        final int nbInserts = 500;
+        final AtomicInteger nbErrors = new AtomicInteger( 0 );
+
+        for ( int t = 0; t < nbThreads; t++ )
+        {
+            recordManager.addBTree( "test" + t, LongSerializer.INSTANCE, StringSerializer.INSTANCE, false );
+        }
+
+        final CountDownLatch latch = new CountDownLatch( nbThreads );
+
+        for ( int t = 0; t < nbThreads; t++ )
+        {
+            final String name = "test" + t;
+
+            Thread writer = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        BTree<Long, String> btree = recordManager.getManagedTree( name );
+
+                        // Many modifications in each transaction
+                        for ( long i = 0; i < nbInserts; i += 10 )
+                        {
+                            recordManager.beginTransaction( name );
+
+                            for ( long j = i; j < i + 10; j++ )
+                            {
+                                btree.insert( j, name + j );
+                            }
+
+                            recordManager.commit();
+                        }
+
+                        for ( long i = 0; i < nbInserts; i += 2 )
+                        {
+                            recordManager.beginTransaction( name );
+                            btree.delete( i );
+                            recordManager.commit();
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        e.printStackTrace();
+                        nbErrors.incrementAndGet();
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                }
+            } );
+
+            writer.start();
+        }
+
+        latch.await();
+
+        assertEquals( 0, nbErrors.get() );
+
+        // Reload the file and check the content
+        recordManager.close();
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+
+        assertEquals( nbThreads, recordManager.getNbManagedTrees() );
+
+        for ( int t = 0; t < nbThreads; t++ )
+        {
+            String name = "test" + t;
+            BTree<Long, String> btree = recordManager.getManagedTree( name );
+
+            assertEquals( nbInserts / 2, btree.getNbElems() );
+
+            for ( long i = 0; i < nbInserts; i++ )
+            {
+                assertEquals( ( i % 2 ) != 0, btree.hasKey( i ) );
+            }
+
+            assertEquals( name + 1, btree.get( 1L ) );
+        }
+    }
+
+
+    /**
+     * Check that a striped transaction can't modify a B-tree it has not declared
+     */
+    @Test
+    public void testUndeclaredBTree() throws Exception
+    {
+        BTree<Long, String> btree1 = recordManager.addBTree( "test1", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE, false );
+        BTree<Long, String> btree2 = recordManager.addBTree( "test2", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE, false );
+
+        recordManager.beginTransaction( "test1" );
+        btree1.insert( 1L, "1" );
+
+        try
+        {
+            btree2.insert( 1L, "1" );
+            fail();
+        }
+        catch ( RecordManagerException rme )
+        {
+            recordManager.rollback();
+        }
+
+        // Nothing has been committed
+        assertFalse( btree1.hasKey( 1L ) );
+        assertFalse( btree2.hasKey( 1L ) );
+
+        // The B-trees are not locked anymore
+        recordManager.beginTransaction( "test1", "test2" );
+        btree1.insert( 1L, "1" );
+        btree2.insert( 2L, "2" );
+        recordManager.commit();
+
+        assertTrue( btree1.hasKey( 1L ) );
+        assertTrue( btree2.hasKey( 2L ) );
+    }
+
+
+    /**
+     * Check that the modifications of a striped transaction are only visible to it
+     * until it's committed
+     */
+    @Test
+    public void testStripedIsolation() throws Exception
+    {
+        final BTree<Long, String> btree = recordManager.addBTree( "test", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE, false );
+        btree.insert( 1L, "1" );
+
+        recordManager.beginTransaction( "test" );
+        btree.insert( 2L, "2" );
+        btree.insert( 3L, "3" );
+
+        // The transaction sees its own modifications
+        assertTrue( btree.hasKey( 2L ) );
+        assertTrue( btree.hasKey( 3L ) );
+
+        // but another thread doesn't
+        final AtomicInteger nbVisible = new AtomicInteger( -1 );
+
+        Thread reader = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                nbVisible.set( ( int ) btree.getNbElems() );
+            }
+        } );
+
+        reader.start();
+        reader.join();
+
+        assertEquals( 1, nbVisible.get() );
+
+        recordManager.commit();
+
+        assertEquals( 3, btree.getNbElems() );
+        assertEquals( "3", btree.get( 3L ) );
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the RecordManager plain transactions, started with beginTransaction()
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RecordManagerTransactionTest
+{
+    private RecordManager recordManager = null;
+
+    private BTree<Long, String> btree = null;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dataDir = null;
+
+
+    @Before
+    public void createRecordManager() throws Exception
+    {
+        dataDir = tempFolder.newFolder( "txn" );
+
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree = recordManager.addBTree( "test", LongSerializer.INSTANCE, StringSerializer.INSTANCE, false );
+    }
+
+
+    @After
+    public void cleanup() throws IOException
+    {
+        recordManager.close();
+    }
+
+
+    private void reopen() throws Exception
+    {
+        recordManager.close();
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree = recordManager.getManagedTree( "test" );
+    }
+
+
+    /**
+     * Check that the writer sees the B-tree header updated by the previous operations
+     * of its transaction, and that the readers don't see it before the commit
+     */
+    @Test
+    public void testTransactionBTreeHeader() throws Exception
+    {
+        BTreeHeader<?, ?> committedHeader = recordManager.getBTreeHeader( "test" );
+
+        recordManager.beginTransaction();
+        btree.insert( 1L, "1" );
+
+        BTreeHeader<?, ?> newHeader = recordManager.getBTreeHeader( "test" );
+
+        assertSame( recordManager.getNewBTreeHeader( "test" ), newHeader );
+        assertEquals( 1L, newHeader.getNbElems() );
+
+        final BTreeHeader<?, ?>[] readerHeader = new BTreeHeader<?, ?>[1];
+
+        Thread reader = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                readerHeader[0] = recordManager.getBTreeHeader( "test" );
+            }
+        } );
+
+        reader.start();
+        reader.join();
+
+        assertSame( committedHeader, readerHeader[0] );
+
+        recordManager.commit();
+
+        assertSame( newHeader, recordManager.getBTreeHeader( "test" ) );
+    }
+
+
+    /**
+     * Check that the successive modifications of a B-tree done in a single transaction
+     * are all kept
+     */
+    @Test
+    public void testModificationsInTransaction() throws Exception
+    {
+        recordManager.beginTransaction();
+
+        for ( long i = 0; i < 10; i++ )
+        {
+            btree.insert( i, "v" + i );
+        }
+
+        btree.delete( 5L );
+        recordManager.commit();
+
+        assertEquals( 9, btree.getNbElems() );
+
+        reopen();
+
+        assertEquals( 9, btree.getNbElems() );
+        assertEquals( "v0", btree.get( 0L ) );
+        assertFalse( btree.hasKey( 5L ) );
+        assertEquals( "v9", btree.get( 9L ) );
+    }
+
+
+    /**
+     * Check that a rollback resets the modified B-trees to their committed revision
+     */
+    @Test
+    public void testRollbackRestoresRevision() throws Exception
+    {
+        btree.insert( 1L, "1" );
+
+        long revision = btree.getRevision();
+
+        recordManager.beginTransaction();
+
+        for ( long i = 2; i < 100; i++ )
+        {
+            btree.insert( i, "v" + i );
+        }
+
+        recordManager.rollback();
+
+        assertEquals( revision, btree.getRevision() );
+        assertEquals( 1, btree.getNbElems() );
+        assertFalse( btree.hasKey( 2L ) );
+
+        // The next modification starts from the committed revision
+        btree.insert( 200L, "200" );
+
+        assertEquals( revision + 1, btree.getRevision() );
+        assertEquals( 2, btree.getNbElems() );
+    }
+
+
+    /**
+     * Check that a rollbacked transaction leaves the file as it was committed, and
+     * that the pages it used can be reused
+     */
+    @Test
+    public void testRollbackAndReopen() throws Exception
+    {
+        btree.insert( 1L, "1" );
+
+        recordManager.beginTransaction();
+
+        for ( long i = 2; i < 100; i++ )
+        {
+            btree.insert( i, "v" + i );
+        }
+
+        recordManager.rollback();
+
+        reopen();
+
+        assertEquals( 1, btree.getNbElems() );
+        assertEquals( "1", btree.get( 1L ) );
+        assertFalse( btree.hasKey( 2L ) );
+
+        for ( long i = 100; i < 200; i++ )
+        {
+            btree.insert( i, "v" + i );
+        }
+
+        reopen();
+
+        assertEquals( 101, btree.getNbElems() );
+        assertEquals( "1", btree.get( 1L ) );
+        assertFalse( btree.hasKey( 50L ) );
+
+        for ( long i = 100; i < 200; i++ )
+        {
+            assertEquals( "v" + i, btree.get( i ) );
+        }
+    }
+}
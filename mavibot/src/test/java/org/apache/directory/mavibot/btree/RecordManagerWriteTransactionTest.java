@@ -0,0 +1,267 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.directory.mavibot.btree.exception.BadTransactionStateException;
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the RecordManager write transactions
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RecordManagerWriteTransactionTest
+{
+    private RecordManager recordManager = null;
+
+    private BTree<Long, String> btree1 = null;
+
+    private BTree<Long, String> btree2 = null;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dataDir = null;
+
+
+    @Before
+    public void createRecordManager() throws Exception
+    {
+        dataDir = tempFolder.newFolder( "txn" );
+
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree1 = recordManager.addBTree( "test1", LongSerializer.INSTANCE, StringSerializer.INSTANCE, false );
+        btree2 = recordManager.addBTree( "test2", LongSerializer.INSTANCE, StringSerializer.INSTANCE, true );
+    }
+
+
+    @After
+    public void cleanup() throws IOException
+    {
+        recordManager.close();
+    }
+
+
+    private void reopen() throws Exception
+    {
+        recordManager.close();
+        recordManager = new RecordManager( dataDir.getAbsolutePath() );
+        btree1 = recordManager.getManagedTree( "test1" );
+        btree2 = recordManager.getManagedTree( "test2" );
+    }
+
+
+    /**
+     * Check that many modifications of two B-trees are applied when the transaction is committed
+     */
+    @Test
+    public void testCommit() throws Exception
+    {
+        int nbKeys = 500;
+        Random random = new Random( 42L );
+        WriteTransaction transaction = recordManager.beginWriteTransaction();
+
+        // Insert the keys in a random order
+        for ( int i = 0; i < nbKeys; i++ )
+        {
+            long key = random.nextInt( nbKeys );
+
+            transaction.insert( btree1, key, "v" + key );
+            transaction.insert( btree2, key % 10, "v" + key );
+        }
+
+        for ( long i = 0; i < nbKeys; i += 2 )
+        {
+            transaction.delete( btree1, i );
+        }
+
+        // Nothing is visible before the commit
+        assertEquals( 0, btree1.getNbElems() );
+        assertEquals( 0, btree2.getNbElems() );
+
+        transaction.commit();
+
+        assertTrue( transaction.isClosed() );
+
+        reopen();
+
+        random = new Random( 42L );
+        long nbElems = 0;
+
+        for ( int i = 0; i < nbKeys; i++ )
+        {
+            long key = random.nextInt( nbKeys );
+
+            assertEquals( ( key % 2 ) != 0, btree1.hasKey( key ) );
+            assertTrue( btree2.contains( key % 10, "v" + key ) );
+        }
+
+        for ( long key = 0; key < nbKeys; key++ )
+        {
+            if ( btree1.hasKey( key ) )
+            {
+                assertEquals( "v" + key, btree1.get( key ) );
+                nbElems++;
+            }
+        }
+
+        assertEquals( nbElems, btree1.getNbElems() );
+    }
+
+
+    /**
+     * Check that the modifications of a key are collapsed, but only when the B-tree
+     * does not allow duplicate values
+     */
+    @Test
+    public void testCollapsedModifications() throws Exception
+    {
+        btree1.insert( 3L, "3" );
+
+        WriteTransaction transaction = recordManager.beginWriteTransaction();
+
+        transaction.insert( btree1, 1L, "a" );
+        transaction.insert( btree1, 1L, "b" );
+        transaction.insert( btree1, 2L, "2" );
+        transaction.delete( btree1, 2L );
+        transaction.delete( btree1, 3L );
+        transaction.insert( btree1, 3L, "c" );
+
+        assertEquals( 3, transaction.getNbModifications() );
+
+        transaction.insert( btree2, 1L, "a" );
+        transaction.insert( btree2, 1L, "b" );
+        transaction.delete( btree2, 1L, "a" );
+
+        assertEquals( 6, transaction.getNbModifications() );
+
+        transaction.commit();
+
+        assertEquals( "b", btree1.get( 1L ) );
+        assertFalse( btree1.hasKey( 2L ) );
+        assertEquals( "c", btree1.get( 3L ) );
+        assertEquals( 2, btree1.getNbElems() );
+
+        assertFalse( btree2.contains( 1L, "a" ) );
+        assertTrue( btree2.contains( 1L, "b" ) );
+    }
+
+
+    /**
+     * Check that nothing is written when a transaction is rollbacked, and that it
+     * can't be used anymore
+     */
+    @Test
+    public void testRollback() throws Exception
+    {
+        WriteTransaction transaction = recordManager.beginWriteTransaction();
+
+        transaction.insert( btree1, 1L, "1" );
+        transaction.insert( btree2, 1L, "1" );
+        transaction.rollback();
+
+        assertFalse( btree1.hasKey( 1L ) );
+        assertFalse( btree2.hasKey( 1L ) );
+
+        try
+        {
+            transaction.commit();
+            fail();
+        }
+        catch ( BadTransactionStateException btse )
+        {
+            // Expected
+        }
+
+        try
+        {
+            transaction.insert( btree1, 1L, "1" );
+            fail();
+        }
+        catch ( BadTransactionStateException btse )
+        {
+            // Expected
+        }
+
+        // The RecordManager is not locked
+        btree1.insert( 2L, "2" );
+        assertEquals( "2", btree1.get( 2L ) );
+    }
+
+
+    /**
+     * Check that a B-tree which is not managed by the RecordManager can't be modified
+     */
+    @Test( expected = IllegalArgumentException.class )
+    public void testUnmanagedBTree() throws Exception
+    {
+        BTree<Long, String> btree = BTreeFactory.createInMemoryBTree( "test1", LongSerializer.INSTANCE,
+            StringSerializer.INSTANCE );
+
+        recordManager.beginWriteTransaction().insert( btree, 1L, "1" );
+    }
+
+
+    /**
+     * Check that concurrent write transactions only lock their B-trees when the
+     * striped locking is enabled
+     */
+    @Test
+    public void testStripedWriteTransactions() throws Exception
+    {
+        recordManager.setStripedLocking( true );
+
+        WriteTransaction transaction1 = recordManager.beginWriteTransaction();
+        WriteTransaction transaction2 = recordManager.beginWriteTransaction();
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            transaction1.insert( btree1, i, "v" + i );
+            transaction2.insert( btree2, i, "v" + i );
+        }
+
+        transaction1.commit();
+        transaction2.commit();
+
+        reopen();
+
+        assertEquals( 100, btree1.getNbElems() );
+        assertEquals( 100, btree2.getNbElems() );
+        assertEquals( "v99", btree1.get( 99L ) );
+        assertTrue( btree2.contains( 50L, "v50" ) );
+    }
+}
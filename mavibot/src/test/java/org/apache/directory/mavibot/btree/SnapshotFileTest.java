@@ -0,0 +1,214 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.mavibot.btree;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import org.apache.directory.mavibot.btree.serializer.LongSerializer;
+import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Test the snapshot files written when an InMemoryBTree is flushed
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class SnapshotFileTest
+{
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+
+    private InMemoryBTreeConfiguration<Long, String> createConfiguration( File dir, boolean compressed,
+        boolean allowDuplicates )
+    {
+        InMemoryBTreeConfiguration<Long, String> config = new InMemoryBTreeConfiguration<Long, String>();
+        config.setSerializers( LongSerializer.INSTANCE, StringSerializer.INSTANCE );
+        config.setFilePath( dir.getAbsolutePath() );
+        config.setName( "snapshot" );
+        config.setSnapshotBlockSize( 512 );
+        config.setSnapshotCompressed( compressed );
+        config.setAllowDuplicates( allowDuplicates );
+
+        return config;
+    }
+
+
+    private void checkSnapshot( boolean compressed ) throws Exception
+    {
+        File dir = tempFolder.newFolder();
+        InMemoryBTreeConfiguration<Long, String> config = createConfiguration( dir, compressed, false );
+        InMemoryBTree<Long, String> btree = new InMemoryBTree<Long, String>( config );
+
+        for ( long i = 0; i < 1000; i++ )
+        {
+            btree.insert( i * 2, "V" + i );
+        }
+
+        btree.close();
+
+        // Read some keys from the file
+        SnapshotFile<Long, String> snapshot = new SnapshotFile<Long, String>( btree.getFile(),
+            LongSerializer.INSTANCE, StringSerializer.INSTANCE );
+
+        assertEquals( compressed, snapshot.isCompressed() );
+        assertEquals( 1000, snapshot.getNbElems() );
+        assertTrue( snapshot.getNbBlocks() > 10 );
+        assertEquals( "V0", snapshot.get( 0L ) );
+        assertEquals( "V500", snapshot.get( 1000L ) );
+        assertEquals( "V999", snapshot.get( 1998L ) );
+        assertNull( snapshot.get( 1001L ) );
+        assertNull( snapshot.get( -1L ) );
+        assertNull( snapshot.get( 2000L ) );
+
+        List<Tuple<Long, String>> tuples = snapshot.browse( 101L, 301L );
+
+        assertEquals( 100, tuples.size() );
+        assertEquals( Long.valueOf( 102L ), tuples.get( 0 ).getKey() );
+        assertEquals( Long.valueOf( 300L ), tuples.get( 99 ).getKey() );
+        assertEquals( 1000, snapshot.browse( null, null ).size() );
+        assertEquals( 5, snapshot.browse( 1990L, null ).size() );
+        assertEquals( 5, snapshot.browse( null, 10L ).size() );
+
+        snapshot.close();
+
+        // Load the B-tree from the file
+        btree = new InMemoryBTree<Long, String>( config );
+
+        assertEquals( 1000, btree.getNbElems() );
+
+        for ( long i = 0; i < 1000; i++ )
+        {
+            assertEquals( "V" + i, btree.get( i * 2 ) );
+        }
+
+        btree.close();
+    }
+
+
+    /**
+     * Check that a B-tree is written in blocks which can be read without loading the B-tree
+     */
+    @Test
+    public void testSnapshot() throws Exception
+    {
+        checkSnapshot( false );
+    }
+
+
+    /**
+     * Check that the blocks can be compressed
+     */
+    @Test
+    public void testCompressedSnapshot() throws Exception
+    {
+        checkSnapshot( true );
+    }
+
+
+    /**
+     * Check that all the values of a key are written in the same block
+     */
+    @Test
+    public void testSnapshotWithDuplicates() throws Exception
+    {
+        File dir = tempFolder.newFolder();
+        InMemoryBTreeConfiguration<Long, String> config = createConfiguration( dir, true, true );
+        InMemoryBTree<Long, String> btree = new InMemoryBTree<Long, String>( config );
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            for ( int j = 0; j < 10; j++ )
+            {
+                btree.insert( i, "V" + i + "-" + j );
+            }
+        }
+
+        btree.close();
+
+        SnapshotFile<Long, String> snapshot = new SnapshotFile<Long, String>( btree.getFile(),
+            LongSerializer.INSTANCE, StringSerializer.INSTANCE );
+
+        assertEquals( 1000, snapshot.getNbElems() );
+        assertEquals( 10, snapshot.browse( 50L, 51L ).size() );
+
+        snapshot.close();
+
+        btree = new InMemoryBTree<Long, String>( config );
+
+        assertEquals( 1000, btree.getNbElems() );
+
+        for ( long i = 0; i < 100; i++ )
+        {
+            for ( int j = 0; j < 10; j++ )
+            {
+                assertTrue( btree.contains( i, "V" + i + "-" + j ) );
+            }
+        }
+
+        btree.close();
+    }
+
+
+    /**
+     * Check that a file written by a previous version is still loaded
+     */
+    @Test
+    public void testLoadPreviousFormat() throws Exception
+    {
+        File dir = tempFolder.newFolder();
+        InMemoryBTreeConfiguration<Long, String> config = createConfiguration( dir, false, false );
+        File file = new File( dir, "snapshot" + InMemoryBTree.DATA_SUFFIX );
+        FileOutputStream stream = new FileOutputStream( file );
+
+        stream.write( LongSerializer.serialize( 10L ) );
+
+        for ( long i = 0; i < 10; i++ )
+        {
+            stream.write( LongSerializer.serialize( i ) );
+            stream.write( StringSerializer.INSTANCE.serialize( "V" + i ) );
+        }
+
+        stream.close();
+
+        assertFalse( SnapshotFile.isSnapshot( file ) );
+
+        InMemoryBTree<Long, String> btree = new InMemoryBTree<Long, String>( config );
+
+        assertEquals( 10, btree.getNbElems() );
+        assertEquals( "V9", btree.get( 9L ) );
+
+        btree.close();
+
+        // The file is written in the new format when the B-tree is closed
+        assertTrue( SnapshotFile.isSnapshot( file ) );
+    }
+}
@@ -26,6 +26,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.IOException;
 import java.util.Arrays;
 
+import org.apache.directory.mavibot.btree.comparator.ByteArrayComparator;
 import org.junit.Test;
 
 
@@ -82,4 +83,34 @@ public class ByteArraySerializerTest
 
         assertTrue( Arrays.equals( value, serializer.deserialize( new BufferHandler( result ) ) ) );
     }
+
+
+    /**
+     * Test the comparison of serialized byte[]
+     */
+    @Test
+    public void testCompareRaw() throws IOException
+    {
+        byte[][] values = new byte[][]
+            {
+                null,
+                {},
+                { 0x00 },
+                { 0x00, 0x01 },
+                { 0x01 },
+                { ( byte ) 0x80 },
+                { 0x7F, 0x00 } };
+
+        for ( byte[] value1 : values )
+        {
+            for ( byte[] value2 : values )
+            {
+                byte[] raw1 = serializer.serialize( value1 );
+                byte[] raw2 = serializer.serialize( value2 );
+
+                assertEquals( Integer.signum( ByteArrayComparator.INSTANCE.compare( value1, value2 ) ),
+                    Integer.signum( serializer.compareRaw( raw1, 0, raw1.length, raw2, 0, raw2.length ) ) );
+            }
+        }
+    }
 }
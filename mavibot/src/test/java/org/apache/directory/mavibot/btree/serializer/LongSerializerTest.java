@@ -351,4 +351,30 @@ public class LongSerializerTest
 
         assertEquals( value, LongSerializer.INSTANCE.deserialize( new BufferHandler( result ) ).longValue() );
     }
+
+
+    /**
+     * Test the comparison of serialized Longs
+     */
+    @Test
+    public void testCompareRaw() throws IOException
+    {
+        LongSerializer serializer = LongSerializer.INSTANCE;
+        long[] values = new long[]
+            { Long.MIN_VALUE, -256L, -1L, 0L, 1L, 255L, 256L, Long.MAX_VALUE };
+
+        for ( long value1 : values )
+        {
+            for ( long value2 : values )
+            {
+                // Store the first value in the middle of a buffer
+                byte[] buffer = new byte[12];
+                System.arraycopy( serializer.serialize( value1 ), 0, buffer, 2, 8 );
+                byte[] raw2 = serializer.serialize( value2 );
+
+                assertEquals( Long.signum( serializer.compare( value1, value2 ) ),
+                    Long.signum( serializer.compareRaw( buffer, 2, 8, raw2, 0, 8 ) ) );
+            }
+        }
+    }
 }
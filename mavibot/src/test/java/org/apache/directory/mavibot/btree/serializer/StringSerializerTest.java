@@ -24,6 +24,7 @@ import static org.junit.Assert.assertEquals;
 
 import java.io.IOException;
 
+import org.apache.directory.mavibot.btree.comparator.StringComparator;
 import org.junit.Test;
 
 
@@ -100,4 +101,27 @@ public class StringSerializerTest
 
         assertEquals( value, serializer.deserialize( new BufferHandler( result ) ) );
     }
+
+
+    /**
+     * Test the comparison of serialized Strings
+     */
+    @Test
+    public void testCompareRaw() throws IOException
+    {
+        String[] values = new String[]
+            { null, "", "a", "ab", "abc", "abd", "b", "L\u00E9charny", "Lecharny", "\u00E9", "z" };
+
+        for ( String value1 : values )
+        {
+            for ( String value2 : values )
+            {
+                byte[] raw1 = serializer.serialize( value1 );
+                byte[] raw2 = serializer.serialize( value2 );
+
+                assertEquals( Integer.signum( StringComparator.INSTANCE.compare( value1, value2 ) ),
+                    Integer.signum( serializer.compareRaw( raw1, 0, raw1.length, raw2, 0, raw2.length ) ) );
+            }
+        }
+    }
 }